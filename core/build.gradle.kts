@@ -6,4 +6,7 @@ dependencies {
 	implementation(project(":laf"))
 }
 
-application { mainClass = "com.twentyfeel.core.Main" }
+application {
+	mainClass = "com.twentyfeel.core.Main"
+	applicationDefaultJvmArgs = listOf("--add-modules", "jdk.incubator.vector")
+}
@@ -4,12 +4,21 @@ package com.twentyfeel.core;
 import com.twentyfeel.laf.core.ZiziTwilightLaf;
 import com.twentyfeel.laf.core.util.PlatformInfo;
 import com.twentyfeel.ui.EditorWindow;
+import com.twentyfeel.ui.metrics.FrameMetrics;
+import com.twentyfeel.ui.metrics.StartupMetrics;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.Path;
 
 public class Main {
+	private static final String VIEW_OPTION = "--view";
+
 	public static void main(String[] args) {
+		StartupMetrics.begin();
 		PlatformInfo platformInfo = PlatformInfo.getInstance();
 		PlatformInfo.OSType osType = platformInfo.getOSType();
 
@@ -33,18 +42,52 @@ public class Main {
 		}
 
 		SwingUtilities.invokeLater(() -> {
+			FrameMetrics.install();
+
 			JFrame window = new JFrame();
 			EditorWindow editorWindow = new EditorWindow();
 
 			window.add(editorWindow);
+			window.setJMenuBar(editorWindow.createMenuBar());
 			window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+			window.addWindowListener(new WindowAdapter() {
+				@Override
+				public void windowClosing(WindowEvent e) {
+					try {
+						editorWindow.saveSession();
+					} catch (IOException ex) {
+						ex.printStackTrace();
+					}
+				}
+			});
 			window.setResizable(true);
 			window.setMinimumSize(new Dimension(800, 600));
 			window.pack();
 			window.setLocationRelativeTo(null);
 			window.setVisible(true);
+			StartupMetrics.Milestone.WINDOW_SHOWN.reach();
+
+			editorWindow.start();
+			// Exiting must not lose the last edits before they were committed to the journal
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					editorWindow.flushJournal();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}, "zizi-journal-flush"));
 
-			editorWindow.startEditorThread();
+			if (args.length == 2 && VIEW_OPTION.equals(args[0])) {
+				try {
+					editorWindow.openViewer(Path.of(args[1]));
+				} catch (IOException ex) {
+					JOptionPane.showMessageDialog(window, "Cannot open " + args[1] + ": " + ex.getMessage(), "Open File", JOptionPane.ERROR_MESSAGE);
+				}
+			} else {
+				// Only the selected tab is loaded now, so the window paints before the other files are read.
+				// Opening a file replays the unsaved edits left in its journal by a session that crashed.
+				editorWindow.restoreSession(args.length == 1 ? Path.of(args[0]) : null);
+			}
 		});
 
 	}
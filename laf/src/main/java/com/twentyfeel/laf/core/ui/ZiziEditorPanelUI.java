@@ -1,9 +1,13 @@
 // Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
 package com.twentyfeel.laf.core.ui;
 
+import java.awt.Graphics;
 import javax.swing.JComponent;
 import javax.swing.plaf.ComponentUI;
 import javax.swing.plaf.basic.BasicEditorPaneUI;
+import javax.swing.text.JTextComponent;
+
+import com.twentyfeel.laf.core.util.ZiziUIUtils;
 
 /**
  * Provides the Zizi LaF (Look and Feel) UI delegate for {@link javax.swing.JEditorPane}.
@@ -20,4 +24,16 @@ public class ZiziEditorPanelUI extends BasicEditorPaneUI {
 	public static ComponentUI createUI(JComponent c) {
 		return new ZiziEditorPanelUI();
 	}
+
+	/**
+	 * Fills the background of the region being painted only, as {@link ZiziTextAreaUI} does.
+	 *
+	 * @param g the graphics context
+	 */
+	@Override
+	protected void paintBackground(Graphics g) {
+		JTextComponent editor = getComponent();
+		g.setColor(editor.getBackground());
+		ZiziUIUtils.fillClipped(g, editor);
+	}
 }
@@ -2,12 +2,18 @@
 package com.twentyfeel.laf.core.ui;
 
 import java.awt.*;
+import java.beans.PropertyChangeEvent;
 import javax.swing.JComponent;
 import javax.swing.UIManager;
 import javax.swing.plaf.ComponentUI;
 import javax.swing.plaf.UIResource;
 import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.text.Element;
 import javax.swing.text.JTextComponent;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+
+import com.twentyfeel.laf.core.util.ZiziUIUtils;
 
 /**
  * Provides the Zizi LaF UI delegate for {@link javax.swing.JTextArea}.
@@ -15,8 +21,14 @@ import javax.swing.text.JTextComponent;
  * This class customizes the appearance of JTextArea components,
  * setting different background colors based on the component's state.
  * </p>
+ * <p>
+ * A text area can supply its own view of the text through the {@value #VIEW_FACTORY_KEY} client
+ * property, a {@link ViewFactory} that is asked first for the view of the whole document and may
+ * return {@code null} to keep the default one.
+ * </p>
  */
 public class ZiziTextAreaUI extends BasicTextAreaUI {
+	public static final String VIEW_FACTORY_KEY = "JTextArea.viewFactory";
 
 	protected Color disabledBackground;
 	protected Color inactiveBackground;
@@ -45,13 +57,39 @@ public class ZiziTextAreaUI extends BasicTextAreaUI {
 		inactiveBackground = null;
 	}
 
+	@Override
+	public View create(Element elem) {
+		if (elem == elem.getDocument().getDefaultRootElement() && getComponent().getClientProperty(VIEW_FACTORY_KEY) instanceof ViewFactory factory) {
+			View view = factory.create(elem);
+			if (view != null) {
+				return view;
+			}
+		}
+		return super.create(elem);
+	}
+
+	@Override
+	protected void propertyChange(PropertyChangeEvent evt) {
+		super.propertyChange(evt);
+		if (VIEW_FACTORY_KEY.equals(evt.getPropertyName())) {
+			// rebuild the view
+			modelChanged();
+		}
+	}
+
+	/**
+	 * Fills the background of the region being painted only, since the text area of a long
+	 * document is far taller than what is visible.
+	 *
+	 * @param g the graphics context
+	 */
 	@Override
 	protected void paintBackground(Graphics g) {
 		JTextComponent textComponent = getComponent();
 
 		Color background = textComponent.getBackground();
 		g.setColor(!(background instanceof UIResource) ? background : (!textComponent.isEnabled() ? disabledBackground : (!textComponent.isEditable() ? inactiveBackground : background)));
-		g.fillRect(0, 0, textComponent.getWidth(), textComponent.getHeight());
+		ZiziUIUtils.fillClipped(g, textComponent);
 	}
 
 	/**
@@ -1,16 +1,21 @@
 // Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
 package com.twentyfeel.laf.core.ui;
 
+import java.awt.Graphics;
 import javax.swing.JComponent;
 import javax.swing.plaf.ComponentUI;
 import javax.swing.plaf.basic.BasicTextPaneUI;
+import javax.swing.text.JTextComponent;
+
+import com.twentyfeel.laf.core.util.ZiziUIUtils;
 
 /**
  * Provides the Zizi LaF UI delegate for {@link javax.swing.JTextPane}.
  * <p>
  * This class extends {@link BasicTextPaneUI} to provide a custom look-and-feel
- * for JTextPane components in the Zizi LaF (Look-and-Feel) theme. Currently,
- * it uses the default implementation, but can be customized further if needed.
+ * for JTextPane components in the Zizi LaF (Look-and-Feel) theme. Apart from
+ * painting only the visible part of the background, it uses the default
+ * implementation, but can be customized further if needed.
  * </p>
  */
 public class ZiziTextPaneUI extends BasicTextPaneUI {
@@ -24,4 +29,16 @@ public class ZiziTextPaneUI extends BasicTextPaneUI {
 	public static ComponentUI createUI(JComponent c) {
 		return new ZiziTextPaneUI();
 	}
+
+	/**
+	 * Fills the background of the region being painted only, as {@link ZiziTextAreaUI} does.
+	 *
+	 * @param g the graphics context
+	 */
+	@Override
+	protected void paintBackground(Graphics g) {
+		JTextComponent editor = getComponent();
+		g.setColor(editor.getBackground());
+		ZiziUIUtils.fillClipped(g, editor);
+	}
 }
@@ -120,6 +120,25 @@ public class ZiziUIUtils {
 		}
 	}
 
+	/**
+	 * Fills the bounds of a component with the current color, but only as far as they lie inside
+	 * the clip. A text component showing a long document is far taller than what is visible, so
+	 * filling all of it on every repaint would cost more than the text itself.
+	 *
+	 * @param graphics  the Graphics object to paint with
+	 * @param component the component whose bounds are filled
+	 */
+	public static void fillClipped(Graphics graphics, JComponent component) {
+		Rectangle bounds = new Rectangle(0, 0, component.getWidth(), component.getHeight());
+		Rectangle clip = graphics.getClipBounds();
+		if (clip != null) {
+			bounds = bounds.intersection(clip);
+		}
+		if (!bounds.isEmpty()) {
+			graphics.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+		}
+	}
+
 	/**
 	 * Finds the first opaque parent of the given component.
 	 *
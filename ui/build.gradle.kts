@@ -1,3 +1,20 @@
 plugins {
 	id("buildlogic.java-library-conventions")
+	id("me.champeau.jmh") version "0.7.2"
+}
+
+// The byte scanning kernel uses the incubating Vector API and falls back to scalar code without it
+val vectorModule = listOf("--add-modules", "jdk.incubator.vector")
+
+tasks.withType<JavaCompile>().configureEach {
+	options.compilerArgs.addAll(vectorModule)
+}
+
+tasks.withType<Test>().configureEach {
+	jvmArgs(vectorModule)
+}
+
+jmh {
+	jmhVersion = "1.37"
+	jvmArgsAppend.addAll(vectorModule)
 }
@@ -0,0 +1,140 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import com.twentyfeel.ui.io.ParallelTextDecoder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.GapContent;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by the content of a document holding an ASCII log file, by storage:
+ * {@code compact} is a {@link PieceTableContent} over {@link CompactText}, {@code chars} the same
+ * piece table over a plain {@code char[]}, and {@code gap} the {@link GapContent} of Swing. The
+ * retained heap is reported as the {@code retainedBytes} counter, next to the load time:
+ * <pre>
+ * ./gradlew :ui:jmh -Pjmh.includes=ContentFootprintBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx10g")
+public class ContentFootprintBenchmark {
+	private static final String[] LEVELS = {"INFO ", "DEBUG", "WARN ", "ERROR"};
+	private static final String[] MESSAGES = {
+		"request completed", "cache miss for key", "connection reset by peer", "retrying after backoff", "session expired"
+	};
+
+	@Param({"compact", "chars", "gap"})
+	public String storage;
+
+	@Param({"1073741824"})
+	public long fileSize;
+
+	private Path file;
+	private long baseline;
+	private AbstractDocument.Content content;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint {
+		public long retainedBytes;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Random random = new Random(42);
+		file = Files.createTempFile("zizi-footprint", ".log");
+		long written = 0;
+		long time = 1_700_000_000_000L;
+		StringBuilder line = new StringBuilder(128);
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+			while (written < fileSize) {
+				time += random.nextInt(50);
+				line.setLength(0);
+				line.append(time).append(' ').append(LEVELS[random.nextInt(LEVELS.length)])
+					.append(" [worker-").append(random.nextInt(32)).append("] ")
+					.append(MESSAGES[random.nextInt(MESSAGES.length)]).append(' ')
+					.append(Integer.toHexString(random.nextInt())).append(" in ").append(random.nextInt(1000)).append(" ms\n");
+				writer.append(line);
+				written += line.length();
+			}
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void measureBaseline() {
+		content = null;
+		baseline = usedHeap();
+	}
+
+	@TearDown(Level.Iteration)
+	public void release() {
+		content = null;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public void load(Footprint footprint) throws IOException, BadLocationException {
+		content = switch (storage) {
+			case "compact" -> new PieceTableContent(decode().text());
+			case "chars" -> {
+				CompactText text = decode().text();
+				char[] chars = new char[text.length()];
+				text.getChars(0, chars.length, chars, 0);
+				yield new PieceTableContent(chars, chars.length);
+			}
+			case "gap" -> {
+				String text = Files.readString(file, StandardCharsets.US_ASCII);
+				GapContent gap = new GapContent(text.length() + 1);
+				gap.insertString(0, text);
+				yield gap;
+			}
+			default -> throw new IllegalArgumentException(storage);
+		};
+		footprint.retainedBytes = usedHeap() - baseline;
+	}
+
+	private ParallelTextDecoder.DecodedText decode() throws IOException {
+		return ParallelTextDecoder.decode(file, StandardCharsets.US_ASCII, ForkJoinPool.commonPool(), null);
+	}
+
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			memory.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
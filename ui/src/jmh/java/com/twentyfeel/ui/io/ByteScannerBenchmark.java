@@ -0,0 +1,72 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vector against scalar {@link ByteScanner} kernels on a 1 MB block of ASCII text with lines of
+ * about {@code lineLength} bytes. Results are in microseconds per block:
+ * <pre>
+ * ./gradlew :ui:jmh -Pjmh.includes=ByteScannerBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteScannerBenchmark {
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	@Param({"vector", "scalar"})
+	public String kernel;
+
+	@Param({"8", "40", "200"})
+	public int lineLength;
+
+	private ByteScanner scanner;
+	private byte[] block;
+
+	@Setup
+	public void setUp() {
+		scanner = kernel.equals("scalar") ? ByteScanner.scalar() : ByteScanner.get();
+		block = new byte[BLOCK_SIZE];
+		Random random = new Random(42);
+		for (int i = 0; i < block.length; i++) {
+			block[i] = random.nextInt(lineLength) == 0 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+		}
+	}
+
+	@Benchmark
+	public int countLines() {
+		return scanner.countLines(block, 0, block.length);
+	}
+
+	@Benchmark
+	public int asciiLength() {
+		return scanner.asciiLength(block, 0, block.length);
+	}
+
+	@Benchmark
+	public int walkLineBreaks() {
+		int lines = 0;
+		for (int i = scanner.indexOfLineBreak(block, 0, block.length); i >= 0; i = scanner.indexOfLineBreak(block, i + 1, block.length)) {
+			lines++;
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,78 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link ParallelTextDecoder} by number of cores; one core is the sequential
+ * baseline. The file mixes ASCII code with some multi-byte text and CRLF line ends.
+ * Divide the file size by the reported time per operation for bytes per second:
+ * <pre>
+ * ./gradlew :ui:jmh -Pjmh.includes=ParallelTextDecoderBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ParallelTextDecoderBenchmark {
+	private static final String[] WORDS = {"return", "int", "value", "=", "+", "();", "{", "}", "// comment", "ünïcödé", "文字", "\t"};
+
+	@Param({"1", "2", "4", "8", "16", "32"})
+	public int cores;
+
+	@Param({"268435456"})
+	public int fileSize;
+
+	private Path file;
+	private ForkJoinPool pool;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Random random = new Random(42);
+		StringBuilder text = new StringBuilder(fileSize);
+		while (text.length() < fileSize) {
+			int words = random.nextInt(12);
+			for (int i = 0; i < words; i++) {
+				text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			text.append("\r\n");
+		}
+		file = Files.createTempFile("zizi-decode", ".txt");
+		Files.writeString(file, text, StandardCharsets.UTF_8);
+		pool = new ForkJoinPool(cores);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		pool.shutdown();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public ParallelTextDecoder.DecodedText parallelUtf8() throws IOException {
+		return ParallelTextDecoder.decode(file, StandardCharsets.UTF_8, pool, null);
+	}
+}
@@ -1,40 +1,87 @@
 // Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
 package com.twentyfeel.ui;
 
+import com.twentyfeel.ui.components.EditorTab;
+import com.twentyfeel.ui.components.FileViewer;
 import com.twentyfeel.ui.components.StatusBar;
 import com.twentyfeel.ui.components.TextArea;
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.document.LineIndex;
+import com.twentyfeel.ui.io.DocumentSaver;
+import com.twentyfeel.ui.io.EditJournal;
+import com.twentyfeel.ui.io.Session;
+import com.twentyfeel.ui.io.SparseLineIndex;
+import com.twentyfeel.ui.metrics.FrameMetrics;
+import com.twentyfeel.ui.metrics.Histogram;
+import com.twentyfeel.ui.metrics.StartupMetrics;
 
 import javax.swing.*;
-import javax.swing.event.CaretEvent;
-import javax.swing.event.DocumentEvent;
-import javax.swing.event.DocumentListener;
-import javax.swing.text.BadLocationException;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class EditorWindow extends JPanel {
+	/**
+	 * System property with the heap, in megabytes, that documents of background tabs may take
+	 * before they are evicted. Defaults to a quarter of the maximum heap.
+	 */
+	public static final String MEMORY_BUDGET_PROPERTY = "zizi.memoryBudgetMB";
+	/**
+	 * System property that, when {@code true}, flashes every region repainted by a frame.
+	 */
+	public static final String DEBUG_REPAINT_PROPERTY = "zizi.debugRepaint";
 
-public class EditorWindow extends JPanel implements Runnable {
 	private static final double SCREEN_WIDTH_RATIO = 0.55;
 	private static final double SCREEN_HEIGHT_RATIO = 0.9;
 	private static final int STATUS_BAR_HEIGHT = 25;
-	private static final int TARGET_FPS = 120;
-	private static final long FRAME_TIME = 1000000000 / TARGET_FPS;
+	private static final String DUMP_METRICS_ACTION = "dumpFrameMetrics";
+	private static final DateTimeFormatter DUMP_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+	/**
+	 * Larger files of a restored session are only loaded when their tab is selected, since
+	 * loading them in parallel would compete with the visible one.
+	 */
+	private static final long PREFETCH_MAX_SIZE = 16L << 20;
+	/**
+	 * The most recently used tabs, including the selected one, are never evicted, so that
+	 * switching between them does not wait for a load.
+	 */
+	private static final int RECENT_TABS = 3;
 
 	private final int screenWidth;
 	private final int screenHeight;
-	private TextArea textArea;
+	private final FrameScheduler frameScheduler = new FrameScheduler();
+	private final Runnable statusBarUpdate = this::updateStatusBar;
+	private final long memoryBudget = Long.getLong(MEMORY_BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() >> 22) << 20;
+	private RepaintFlasher repaintFlasher;
+	/**
+	 * The journals of all documents, kept up to date on the event dispatch thread for the
+	 * shutdown hook to flush.
+	 */
+	private final List<EditJournal> journals = new CopyOnWriteArrayList<>();
+	private JTabbedPane tabs;
 	private StatusBar statusBar;
-
-	private Thread editorThread;
-	private volatile boolean running = false;
-	private volatile boolean needsUpdate = false;
-	private static long lastFpsCheck = 0;
-	private static int currentFps = 0;
-	private static int totalFrames = 0;
+	private Path lastDirectory;
+	private boolean prefetching;
+	private boolean restoring;
+	private boolean compressing;
 
 	public EditorWindow() {
 		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
 		screenWidth = (int) (screenSize.width * SCREEN_WIDTH_RATIO);
 		screenHeight = (int) (screenSize.height * SCREEN_HEIGHT_RATIO);
 
+		putClientProperty(FrameScheduler.class, frameScheduler);
 		initializeUI();
 		setupListeners();
 	}
@@ -43,112 +90,682 @@ public class EditorWindow extends JPanel implements Runnable {
 		setPreferredSize(new Dimension(screenWidth, screenHeight));
 		setLayout(new BorderLayout());
 
-		textArea = new TextArea();
+		tabs = new JTabbedPane(JTabbedPane.TOP, JTabbedPane.SCROLL_TAB_LAYOUT);
 		statusBar = new StatusBar();
 
-		add(textArea, BorderLayout.CENTER);
+		add(tabs, BorderLayout.CENTER);
 		add(statusBar, BorderLayout.SOUTH);
 
 		statusBar.setPreferredSize(new Dimension(screenWidth, STATUS_BAR_HEIGHT));
 
+		addTab(new EditorTab(null, null));
+		materialize(selectedTab(), null);
+
 		// Focus CodeEditorArea on start
-		SwingUtilities.invokeLater(() -> textArea.getTextArea().requestFocusInWindow());
+		SwingUtilities.invokeLater(() -> getTextArea().getTextArea().requestFocusInWindow());
 	}
 
 	private void setupListeners() {
-		textArea.getTextArea().addCaretListener(this::updateStatusBar);
-		textArea.getTextArea().getDocument().addDocumentListener(new DocumentListener() {
+		if (Boolean.getBoolean(DEBUG_REPAINT_PROPERTY)) {
+			repaintFlasher = new RepaintFlasher(this, frameScheduler);
+			frameScheduler.setRepaintListener(repaintFlasher::regionRepainted);
+		}
+		frameScheduler.setFpsListener(fps -> {
+			Histogram frames = FrameMetrics.Probe.FRAME.drainRecent();
+			statusBar.updateFrameStats(fps, frames.getValueAtPercentile(50), frames.getValueAtPercentile(99), frames.getMax());
+		});
+
+		int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+		getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_M, shortcut | InputEvent.SHIFT_DOWN_MASK), DUMP_METRICS_ACTION);
+		getActionMap().put(DUMP_METRICS_ACTION, new AbstractAction() {
 			@Override
-			public void insertUpdate(DocumentEvent e) {
-				needsUpdate = true;
+			public void actionPerformed(ActionEvent e) {
+				dumpFrameMetrics();
 			}
+		});
 
-			@Override
-			public void removeUpdate(DocumentEvent e) {
-				needsUpdate = true;
+		tabs.addChangeListener(e -> {
+			EditorTab tab = selectedTab();
+			if (tab == null || restoring) {
+				return;
 			}
+			tab.touch();
+			materialize(tab, () -> {
+				StartupMetrics.Milestone.VISIBLE_BUFFER_LOADED.reach();
+				prefetchNext();
+			});
+			statusBar.setMessage("");
+			updateStatusBar();
+			enforceMemoryBudget();
+			SwingUtilities.invokeLater(() -> {
+				if (tab.getTextArea() != null) {
+					tab.getTextArea().getTextArea().requestFocusInWindow();
+				}
+			});
+		});
+	}
 
-			@Override
-			public void changedUpdate(DocumentEvent e) {
-				needsUpdate = true;
+	private void updateStatusBar() {
+		EditorTab tab = selectedTab();
+		if (tab == null || tab.getTextArea() == null) {
+			return;
+		}
+		TextArea textArea = tab.getTextArea();
+		LineIndex lineIndex = textArea.getLineIndex();
+		JTextArea editor = textArea.getTextArea();
+		int dot = Math.min(editor.getCaretPosition(), editor.getDocument().getLength());
+		int line = lineIndex.getLineOfOffset(dot);
+		int col = dot - lineIndex.getLineStartOffset(line) + 1;
+		statusBar.updateStatus(line + 1, col);
+	}
+
+	/**
+	 * Shows a message in the status bar if it is about the selected tab.
+	 */
+	private void setMessage(EditorTab tab, String message) {
+		if (tab == selectedTab()) {
+			statusBar.setMessage(message);
+		}
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		StartupMetrics.Milestone.FIRST_PAINT.reach();
+	}
+
+	/**
+	 * Writes the paint and event dispatch histograms to a timestamped file in the working
+	 * directory and reports the result in the status bar.
+	 */
+	public void dumpFrameMetrics() {
+		Path file = Path.of("zizi-frame-metrics-" + LocalDateTime.now().format(DUMP_TIMESTAMP) + ".txt").toAbsolutePath();
+		try {
+			FrameMetrics.dump(file);
+			statusBar.setMessage("Frame metrics written to " + file);
+		} catch (IOException ex) {
+			statusBar.setMessage("Cannot write frame metrics: " + ex.getMessage());
+		}
+	}
+
+	@Override
+	public void paint(Graphics g) {
+		super.paint(g);
+		if (repaintFlasher != null) {
+			repaintFlasher.paint(g);
+		}
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		frameScheduler.setRefreshRate(FrameScheduler.detectRefreshRate(getGraphicsConfiguration().getDevice()));
+	}
+
+	/**
+	 * Starts drawing frames. Until then, repaint requests are only collected.
+	 */
+	public void start() {
+		frameScheduler.start();
+	}
+
+	public void stop() {
+		frameScheduler.stop();
+	}
+
+	/**
+	 * Writes the edits journaled but not yet committed, so that unsaved edits can be recovered
+	 * when the file is opened the next time. Only reads the journals collected on the event
+	 * dispatch thread, so it may be called from a shutdown hook.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the journal
+	 */
+	public void flushJournal() throws InterruptedException {
+		for (EditJournal journal : journals) {
+			journal.flush();
+		}
+	}
+
+	public FrameScheduler getFrameScheduler() {
+		return frameScheduler;
+	}
+
+	private EditorTab selectedTab() {
+		return (EditorTab) tabs.getSelectedComponent();
+	}
+
+	private void addTab(EditorTab tab) {
+		Path path = tab.getPath();
+		tabs.addTab(tab.getTitle(), null, tab, path == null ? null : path.toString());
+	}
+
+	private void updateTitle(EditorTab tab) {
+		int index = tabs.indexOfComponent(tab);
+		if (index >= 0) {
+			Path path = tab.getPath();
+			tabs.setTitleAt(index, tab.getTitle());
+			tabs.setToolTipTextAt(index, path == null ? null : path.toString());
+		}
+	}
+
+	/**
+	 * Creates the text area of a tab that is still a placeholder and loads its file.
+	 *
+	 * @param tab      the tab
+	 * @param onLoaded called when the file has been loaded, or {@code null}
+	 */
+	private void materialize(EditorTab tab, Runnable onLoaded) {
+		if (tab.isMaterialized()) {
+			return;
+		}
+		TextArea textArea = tab.materialize();
+		textArea.getTextArea().addCaretListener(e -> {
+			if (tab == selectedTab()) {
+				frameScheduler.runOnNextFrame(statusBarUpdate);
+			}
+		});
+		textArea.addLineChangeListener(e -> {
+			if (tab == selectedTab()) {
+				updateStatusBar();
+			}
+		});
+		textArea.setJournalListener((ended, started) -> {
+			journals.remove(ended);
+			if (started != null) {
+				journals.add(started);
+			}
+		});
+		if (tab.getPath() != null) {
+			load(tab, tab.getPath(), onLoaded);
+		}
+	}
+
+	/**
+	 * Returns the tab to open a file in: the selected one if it holds an empty new document,
+	 * otherwise a new tab, which is selected.
+	 */
+	private EditorTab targetTab() {
+		EditorTab tab = selectedTab();
+		TextArea textArea = tab == null ? null : tab.getTextArea();
+		if (textArea != null && tab.getPath() == null && !textArea.isLoading() && textArea.getFileViewer() == null
+			&& textArea.getTextArea().getDocument().getLength() == 0) {
+			return tab;
+		}
+		tab = new EditorTab(null, null);
+		addTab(tab);
+		tabs.setSelectedComponent(tab);
+		return tab;
+	}
+
+	/**
+	 * Returns the tab that has a file open, if any.
+	 */
+	private EditorTab findTab(Path path) {
+		Path absolute = path.toAbsolutePath();
+		for (int i = 0; i < tabs.getTabCount(); i++) {
+			EditorTab tab = (EditorTab) tabs.getComponentAt(i);
+			if (tab.getPath() != null && tab.getPath().toAbsolutePath().equals(absolute)) {
+				return tab;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Opens a file in the editor, streaming it in on a background thread, and shows the loading
+	 * progress in the status bar. A file that is already open is only selected.
+	 *
+	 * @param path the file to open
+	 */
+	public void openFile(Path path) {
+		EditorTab open = findTab(path);
+		if (open != null) {
+			tabs.setSelectedComponent(open);
+			return;
+		}
+		EditorTab tab = targetTab();
+		load(tab, path, null);
+		updateTitle(tab);
+	}
+
+	private void load(EditorTab tab, Path path, Runnable onLoaded) {
+		String name = path.getFileName() == null ? path.toString() : path.getFileName().toString();
+		TextArea textArea = tab.getTextArea();
+		textArea.openFile(path, loader -> {
+			EditJournal journal = textArea.getJournal();
+			if (!loader.isDone()) {
+				setMessage(tab, String.format("Loading %s %d%%", name, (int) (loader.getProgress() * 100)));
+				return;
 			}
+			if (loader.getError() != null) {
+				setMessage(tab, "Cannot open " + name + ": " + loader.getError().getMessage());
+			} else if (textArea.getJournalError() != null) {
+				setMessage(tab, "Cannot recover unsaved edits of " + name + ": " + textArea.getJournalError().getMessage());
+			} else if (journal != null && journal.getRecoveredEdits() > 0) {
+				setMessage(tab, String.format("Recovered %,d unsaved edits of %s", journal.getRecoveredEdits(), name));
+			} else if (journal != null && journal.getRecoveredEdits() < 0) {
+				setMessage(tab, "Unsaved edits of " + name + " are for another version of it and were set aside");
+			} else {
+				setMessage(tab, "");
+			}
+			Session.Buffer view = tab.takeSavedView();
+			if (view != null && loader.getError() == null) {
+				textArea.restoreView(view.dot(), view.mark(), view.topOffset());
+			}
+			if (onLoaded != null) {
+				onLoaded.run();
+			}
+			enforceMemoryBudget();
 		});
+		setMessage(tab, "Loading " + name);
 	}
 
-	private void updateStatusBar(CaretEvent e) {
-		SwingUtilities.invokeLater(() -> {
+	/**
+	 * Loads the next tab of a restored session that is still a placeholder, one at a time, so
+	 * that switching to it later is instant. Tabs evicted to free memory are not loaded again,
+	 * and prefetching stops where a file would not fit into the memory budget.
+	 */
+	private void prefetchNext() {
+		if (prefetching) {
+			return;
+		}
+		long footprint = getMemoryFootprint();
+		for (int i = 0; i < tabs.getTabCount(); i++) {
+			EditorTab tab = (EditorTab) tabs.getComponentAt(i);
+			if (!tab.isMaterialized() && !tab.isEvicted() && isPrefetchable(tab.getPath(), memoryBudget - footprint)) {
+				prefetching = true;
+				materialize(tab, () -> {
+					prefetching = false;
+					prefetchNext();
+				});
+				return;
+			}
+		}
+	}
+
+	private static boolean isPrefetchable(Path path, long available) {
+		try {
+			return path != null && Files.size(path) <= Math.min(PREFETCH_MAX_SIZE, available);
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the estimated heap taken by the documents of all tabs.
+	 *
+	 * @return the footprint in bytes
+	 */
+	public long getMemoryFootprint() {
+		long footprint = 0;
+		for (int i = 0; i < tabs.getTabCount(); i++) {
+			TextArea textArea = ((EditorTab) tabs.getComponentAt(i)).getTextArea();
+			if (textArea != null) {
+				footprint += textArea.getMemoryFootprint();
+			}
+		}
+		return footprint;
+	}
+
+	/**
+	 * Frees memory while the documents of all tabs take more than the budget, starting with the
+	 * tab used longest ago. A document that is not modified is dropped, leaving a placeholder
+	 * that loads the file again when selected. A modified document is compressed on a background
+	 * thread; it stays readable meanwhile, and the parts the user reads again are inflated as they
+	 * are read. Tabs that are loading, saving, following a file or showing a viewer are left
+	 * alone, as are the most recently used ones.
+	 */
+	private void enforceMemoryBudget() {
+		if (compressing) {
+			// Checked again once the running compression ends
+			return;
+		}
+		long footprint = getMemoryFootprint();
+		if (footprint <= memoryBudget) {
+			return;
+		}
+		List<EditorTab> candidates = new ArrayList<>();
+		for (int i = 0; i < tabs.getTabCount(); i++) {
+			EditorTab tab = (EditorTab) tabs.getComponentAt(i);
+			if (tab.isMaterialized()) {
+				candidates.add(tab);
+			}
+		}
+		candidates.sort(Comparator.comparingLong(EditorTab::getLastUsed));
+		candidates.remove(selectedTab());
+		for (int i = 0; i < candidates.size() - (RECENT_TABS - 1) && footprint > memoryBudget; i++) {
+			EditorTab tab = candidates.get(i);
+			TextArea textArea = tab.getTextArea();
+			if (textArea.isLoading() || textArea.isSaving() || textArea.isFollowing() || textArea.getFileViewer() != null) {
+				continue;
+			}
+			long tabFootprint = textArea.getMemoryFootprint();
+			if (!textArea.isModified()) {
+				tab.dematerialize();
+				footprint -= tabFootprint;
+			} else if (tabFootprint != tab.getCompressedFootprint()) {
+				compress(tab);
+				return;
+			}
+		}
+	}
+
+	private void compress(EditorTab tab) {
+		TextArea textArea = tab.getTextArea();
+		EditorDocument document = (EditorDocument) textArea.getTextArea().getDocument();
+		compressing = true;
+		Thread.ofVirtual().name("zizi-compress").start(() -> {
 			try {
-				int dot = e.getDot();
-				int line = dot == 0 ? 1 : textArea.getTextArea().getLineOfOffset(dot) + 1;
-				int col = dot - textArea.getTextArea().getLineStartOffset(line - 1) + 1;
-				statusBar.updateStatus(line, col);
-			} catch (BadLocationException ex) {
-				ex.printStackTrace();
+				document.compressStorage();
+			} finally {
+				SwingUtilities.invokeLater(() -> {
+					compressing = false;
+					if (tab.getTextArea() == textArea) {
+						tab.setCompressedFootprint(textArea.getMemoryFootprint());
+					}
+					enforceMemoryBudget();
+				});
 			}
 		});
 	}
 
-	public void startEditorThread() {
-		if (editorThread == null || !editorThread.isAlive()) {
-			editorThread = new Thread(this);
-			running = true;
-			editorThread.start();
+	/**
+	 * Closes the selected tab. Unsaved edits stay in the journal of the file and are recovered
+	 * when it is opened again. Edits that have no journal, as in a new document, are only
+	 * discarded once the user confirms.
+	 */
+	public void closeTab() {
+		EditorTab tab = selectedTab();
+		if (tab == null) {
+			return;
+		}
+		TextArea textArea = tab.getTextArea();
+		if (textArea != null && !textArea.isLoading() && !textArea.isFollowing() && textArea.getJournal() == null && textArea.isModified()) {
+			int answer = JOptionPane.showConfirmDialog(this, "Discard the unsaved changes to " + tab.getTitle() + "?", "Close Tab",
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
+			if (answer != JOptionPane.OK_OPTION) {
+				return;
+			}
+		}
+		if (textArea != null) {
+			textArea.close();
+		}
+		tabs.remove(tab);
+		if (tabs.getTabCount() == 0) {
+			EditorTab untitled = new EditorTab(null, null);
+			addTab(untitled);
+			materialize(untitled, null);
 		}
 	}
 
-	public void stopEditorThread() {
-		running = false;
+	/**
+	 * Restores the tabs of the last session. Only the tab that ends up selected is loaded right
+	 * away; the others stay placeholders until they are selected, and small files are loaded in
+	 * the background one after the other once the selected one is in.
+	 *
+	 * @param open a file to open and select, or {@code null} to select the tab that was selected
+	 */
+	public void restoreSession(Path open) {
+		Session session = null;
+		try {
+			session = Session.read(Session.getDefaultPath());
+		} catch (IOException ex) {
+			statusBar.setMessage("Cannot restore the session: " + ex.getMessage());
+		}
+		List<EditorTab> restored = new ArrayList<>();
+		EditorTab selected = null;
+		if (session != null) {
+			List<Session.Buffer> buffers = session.getBuffers();
+			for (int i = 0; i < buffers.size(); i++) {
+				Session.Buffer buffer = buffers.get(i);
+				if (Files.isRegularFile(buffer.path())) {
+					EditorTab tab = new EditorTab(buffer.path(), buffer);
+					restored.add(tab);
+					if (i == session.getSelected()) {
+						selected = tab;
+					}
+				}
+			}
+		}
+		// The file to open is loaded as the visible buffer, like the selected tab of a session
+		if (open != null && restored.stream().noneMatch(tab -> tab.getPath().toAbsolutePath().equals(open.toAbsolutePath()))) {
+			restored.add(new EditorTab(open, null));
+		}
+		if (!restored.isEmpty()) {
+			EditorTab untitled = selectedTab();
+			// Adding the first tab selects it, which must not load it yet
+			restoring = true;
+			tabs.removeAll();
+			if (untitled != null) {
+				untitled.getTextArea().close();
+			}
+			for (EditorTab tab : restored) {
+				addTab(tab);
+			}
+			tabs.setSelectedIndex(-1);
+			restoring = false;
+		}
+		if (open != null) {
+			tabs.setSelectedComponent(findTab(open));
+		} else if (!restored.isEmpty()) {
+			tabs.setSelectedComponent(selected != null ? selected : restored.get(0));
+		}
 	}
 
-	@Override
-	public void run() {
-		long lastFrame = System.nanoTime();
-
-		// TODO: do I need this?
-		while (running) {
-			long now = System.nanoTime();
-			long elapsed = now - lastFrame;
-
-			if (elapsed >= FRAME_TIME) {
-				totalFrames++;
-				if (now > lastFpsCheck + 1000000000) {
-					lastFpsCheck = now;
-					currentFps = totalFrames;
-					totalFrames = 0;
-
-					update();
-					repaint();
-					System.out.println("FPS: " + currentFps);
-					SwingUtilities.invokeLater(() -> statusBar.updateFps(currentFps));
+	/**
+	 * Writes the open files and where the user is in each of them to the session file.
+	 *
+	 * @throws IOException if the session file cannot be written
+	 */
+	public void saveSession() throws IOException {
+		List<Session.Buffer> buffers = new ArrayList<>();
+		int selected = -1;
+		for (int i = 0; i < tabs.getTabCount(); i++) {
+			EditorTab tab = (EditorTab) tabs.getComponentAt(i);
+			Session.Buffer view = tab.captureView();
+			if (view != null) {
+				if (tab == selectedTab()) {
+					selected = buffers.size();
 				}
+				buffers.add(view);
+			}
+		}
+		new Session(buffers, selected).write(Session.getDefaultPath());
+	}
 
-				lastFrame = now - (elapsed % FRAME_TIME);
+	/**
+	 * Opens a file and keeps appending what is written to it, showing how much has been read in
+	 * the status bar.
+	 *
+	 * @param path the file to follow
+	 */
+	public void followFile(Path path) {
+		String name = path.getFileName() == null ? path.toString() : path.getFileName().toString();
+		EditorTab tab = targetTab();
+		tab.getTextArea().followFile(path, loader -> {
+			if (!loader.isDone()) {
+				setMessage(tab, String.format("Loading %s %d%%", name, (int) (loader.getProgress() * 100)));
+			} else if (loader.getError() != null) {
+				setMessage(tab, "Cannot open " + name + ": " + loader.getError().getMessage());
+			} else if (loader.isCompressed()) {
+				setMessage(tab, "Compressed files cannot be followed, " + name + " was only opened");
 			} else {
-				long sleepTime = (FRAME_TIME - elapsed) / 1000000;
-				try {
-					Thread.sleep(sleepTime > 0 ? sleepTime : 1);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				setMessage(tab, "Following " + name);
 			}
+		}, follower -> {
+			String dropped = follower.getDroppedLines() > 0 ? String.format(", %,d lines dropped", follower.getDroppedLines()) : "";
+			String error = follower.getError() != null ? ", " + follower.getError().getMessage() : "";
+			setMessage(tab, String.format("Following %s, %,d bytes read%s%s", name, follower.getPosition(), dropped, error));
+		});
+		updateTitle(tab);
+		setMessage(tab, "Loading " + name);
+	}
+
+	/**
+	 * Stops following the file, if one is followed.
+	 */
+	public void stopFollowing() {
+		TextArea textArea = getTextArea();
+		if (textArea.isFollowing()) {
+			textArea.stopFollowing();
+			statusBar.setMessage("");
 		}
 	}
 
-	private void update() {
-		// Future usage: add any logic that needs to be updated each frame
-		if (needsUpdate) {
-			// Perform any necessary updates
-			needsUpdate = false;
+	/**
+	 * Saves the document to the file it was opened from, or asks for a file if it is new, and
+	 * shows the progress in the status bar.
+	 */
+	public void save() {
+		Path path = getTextArea().getFilePath();
+		if (path == null) {
+			saveAs();
+		} else {
+			saveFile(path);
+		}
+	}
+
+	/**
+	 * Asks for a file and saves the document to it.
+	 */
+	public void saveAs() {
+		chooseFile("Save").ifPresent(this::saveFile);
+	}
+
+	private void saveFile(Path path) {
+		EditorTab tab = selectedTab();
+		TextArea textArea = getTextArea();
+		if (textArea.getFileViewer() != null) {
+			statusBar.setMessage("The viewer is read-only");
+			return;
+		}
+		if (textArea.isCompressed()) {
+			statusBar.setMessage("Compressed files are read-only");
+			return;
+		}
+		if (textArea.isLoading()) {
+			statusBar.setMessage("Cannot save while the file is loading");
+			return;
 		}
+		if (textArea.getLoadError() != null) {
+			statusBar.setMessage("The file was not loaded completely and cannot be saved");
+			return;
+		}
+		String name = path.getFileName() == null ? path.toString() : path.getFileName().toString();
+		textArea.saveFile(path, saver -> {
+			if (!saver.isDone()) {
+				setMessage(tab, String.format("Saving %s %d%%", name, (int) (saver.getProgress() * 100)));
+			} else if (saver.getError() != null) {
+				setMessage(tab, "Cannot save " + name + ": " + saver.getError().getMessage());
+			} else {
+				String how = saver.isInPlace() ? " in place" : "";
+				String sync = saver.getDurability() == DocumentSaver.Durability.ASYNC_SYNC && !saver.isSynced() ? ", syncing" : "";
+				setMessage(tab, String.format("Saved %s%s, %,d bytes written%s", name, how, saver.getBytesWritten(), sync));
+				updateTitle(tab);
+			}
+		});
+		statusBar.setMessage("Saving " + name);
+	}
+
+	/**
+	 * Creates the menu bar with the file actions of this window.
+	 *
+	 * @return the menu bar
+	 */
+	public JMenuBar createMenuBar() {
+		int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+		JMenu fileMenu = new JMenu("File");
 
-		// Uncomment this to test FPS under load
-		// TODO: this will do nothing because we already capped FPS to 120 from 700-800
-		// for (int i = 0; i < 1000000; i++) {
-		// Math.sin(i);
-		// }
+		JMenuItem openItem = new JMenuItem("Open...");
+		openItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, shortcut));
+		openItem.addActionListener(e -> chooseFile("Open").ifPresent(this::openFile));
+		fileMenu.add(openItem);
+
+		JMenuItem viewItem = new JMenuItem("Open Read-Only View...");
+		viewItem.addActionListener(e -> chooseFile("View").ifPresent(path -> {
+			try {
+				openViewer(path);
+			} catch (IOException ex) {
+				JOptionPane.showMessageDialog(this, "Cannot open " + path + ": " + ex.getMessage(), "Open File", JOptionPane.ERROR_MESSAGE);
+			}
+		}));
+		fileMenu.add(viewItem);
+
+		JMenuItem followItem = new JMenuItem("Follow File...");
+		followItem.addActionListener(e -> chooseFile("Follow").ifPresent(this::followFile));
+		fileMenu.add(followItem);
+
+		JMenuItem stopFollowingItem = new JMenuItem("Stop Following");
+		stopFollowingItem.addActionListener(e -> stopFollowing());
+		fileMenu.add(stopFollowingItem);
+		fileMenu.addSeparator();
+
+		JMenuItem saveItem = new JMenuItem("Save");
+		saveItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, shortcut));
+		saveItem.addActionListener(e -> save());
+		fileMenu.add(saveItem);
+
+		JMenuItem saveAsItem = new JMenuItem("Save As...");
+		saveAsItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, shortcut | InputEvent.SHIFT_DOWN_MASK));
+		saveAsItem.addActionListener(e -> saveAs());
+		fileMenu.add(saveAsItem);
+		fileMenu.addSeparator();
+
+		JMenuItem closeItem = new JMenuItem("Close Tab");
+		closeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, shortcut));
+		closeItem.addActionListener(e -> closeTab());
+		fileMenu.add(closeItem);
+
+		JMenuBar menuBar = new JMenuBar();
+		menuBar.add(fileMenu);
+		return menuBar;
+	}
+
+	private Optional<Path> chooseFile(String approveText) {
+		JFileChooser chooser = new JFileChooser(lastDirectory == null ? null : lastDirectory.toFile());
+		if (chooser.showDialog(this, approveText) != JFileChooser.APPROVE_OPTION) {
+			return Optional.empty();
+		}
+		Path path = chooser.getSelectedFile().toPath();
+		lastDirectory = path.getParent();
+		return Optional.of(path);
+	}
+
+	/**
+	 * Opens a file in the read-only viewer and shows its caret position, its indexing progress and
+	 * the first error reading it in the status bar.
+	 *
+	 * @param path the file to view
+	 * @throws IOException if the file cannot be opened
+	 */
+	public void openViewer(Path path) throws IOException {
+		EditorTab tab = targetTab();
+		FileViewer viewer = tab.getTextArea().openViewer(path);
+		String name = path.getFileName() == null ? path.toString() : path.getFileName().toString();
+		tabs.setTitleAt(tabs.indexOfComponent(tab), name);
+		Runnable viewerStatusUpdate = () -> {
+			if (tab != selectedTab()) {
+				return;
+			}
+			statusBar.updateStatus(viewer.getCaretLine() + 1, viewer.getCaretColumn() + 1);
+			SparseLineIndex lineIndex = viewer.getLineIndex();
+			if (viewer.getError() != null) {
+				statusBar.setMessage("Cannot read " + name + ": " + viewer.getError().getMessage());
+			} else {
+				statusBar.setMessage(lineIndex.isComplete() ? "" : String.format("Indexing lines %d%%", (int) (lineIndex.getProgress() * 100)));
+			}
+		};
+		viewer.addChangeListener(e -> frameScheduler.runOnNextFrame(viewerStatusUpdate));
 	}
 
+	/**
+	 * Returns the text area of the selected tab.
+	 *
+	 * @return the text area
+	 */
 	public TextArea getTextArea() {
-		return textArea;
+		EditorTab tab = selectedTab();
+		materialize(tab, null);
+		return tab.getTextArea();
 	}
 }
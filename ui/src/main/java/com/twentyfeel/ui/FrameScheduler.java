@@ -0,0 +1,289 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Event-driven frame scheduler of an editor window.
+ * <p>
+ * Nothing runs while there is no pending work: the first repaint request, task or animation
+ * arms a single-shot timer for the next frame, paced to the display refresh rate. All requests
+ * that arrive before that frame are merged, so each component is repainted at most once per
+ * frame with the union of its dirty regions, and each task runs once no matter how often it was
+ * requested. Animations keep requesting frames only for as long as they report more work.
+ * </p>
+ * <p>
+ * Components find the scheduler of their window with {@link #forComponent(Component)}.
+ * </p>
+ */
+public class FrameScheduler {
+	private static final int DEFAULT_REFRESH_RATE = 60;
+	private static final int STATS_INTERVAL_MS = 1000;
+
+	/**
+	 * Work that runs once per frame for as long as it has something to animate.
+	 */
+	public interface Animation {
+		/**
+		 * Advances the animation.
+		 *
+		 * @param frameTime the time of the frame in nanoseconds
+		 * @return {@code true} if another frame is needed
+		 */
+		boolean onFrame(long frameTime);
+	}
+
+	private final Timer frameTimer;
+	private final Timer statsTimer;
+	private final Map<JComponent, Rectangle> dirtyRegions = new IdentityHashMap<>();
+	private final Set<Runnable> tasks = new LinkedHashSet<>();
+	private final List<Animation> animations = new ArrayList<>();
+
+	private long frameInterval;
+	private long lastFrame;
+	private boolean scheduled;
+	private boolean running;
+	private int framesSinceReport;
+	private IntConsumer fpsListener;
+	private BiConsumer<JComponent, Rectangle> repaintListener;
+
+	public FrameScheduler() {
+		frameTimer = new Timer(0, e -> frame());
+		frameTimer.setRepeats(false);
+		statsTimer = new Timer(STATS_INTERVAL_MS, e -> reportStats());
+		statsTimer.setRepeats(false);
+		setRefreshRate(detectRefreshRate(null));
+	}
+
+	/**
+	 * Returns the scheduler of the window containing a component.
+	 *
+	 * @param component the component
+	 * @return the scheduler, or {@code null} if the component is not inside an editor window
+	 */
+	public static FrameScheduler forComponent(Component component) {
+		for (Component c = component; c != null; c = c.getParent()) {
+			if (c instanceof JComponent jc && jc.getClientProperty(FrameScheduler.class) instanceof FrameScheduler scheduler) {
+				return scheduler;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Defers a repaint of a component to the next frame of its window's scheduler. Components
+	 * call this from {@link JComponent#repaint(long, int, int, int, int)} and fall back to an
+	 * immediate repaint when it returns {@code false}.
+	 *
+	 * @param component the component to repaint
+	 * @param x         the x coordinate of the dirty region
+	 * @param y         the y coordinate of the dirty region
+	 * @param width     the width of the dirty region
+	 * @param height    the height of the dirty region
+	 * @return {@code true} if the repaint was deferred
+	 */
+	public static boolean deferRepaint(JComponent component, int x, int y, int width, int height) {
+		FrameScheduler scheduler = forComponent(component);
+		if (scheduler == null) {
+			return false;
+		}
+		scheduler.requestRepaint(component, x, y, width, height);
+		return true;
+	}
+
+	/**
+	 * Returns the refresh rate of a screen device, or of the default screen if the device is
+	 * {@code null}, falling back to {@value #DEFAULT_REFRESH_RATE} Hz when it is unknown.
+	 *
+	 * @param device the screen device, may be {@code null}
+	 * @return the refresh rate in Hz
+	 */
+	public static int detectRefreshRate(GraphicsDevice device) {
+		if (GraphicsEnvironment.isHeadless()) {
+			return DEFAULT_REFRESH_RATE;
+		}
+		if (device == null) {
+			device = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
+		}
+		int refreshRate = device.getDisplayMode().getRefreshRate();
+		return refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : refreshRate;
+	}
+
+	public synchronized void setRefreshRate(int refreshRate) {
+		frameInterval = 1_000_000_000L / Math.max(1, refreshRate);
+	}
+
+	/**
+	 * Enables frames. Requests made while the scheduler is stopped are kept and run on the first
+	 * frame after starting.
+	 */
+	public synchronized void start() {
+		running = true;
+		if (hasWork()) {
+			schedule();
+		}
+	}
+
+	public synchronized void stop() {
+		running = false;
+		scheduled = false;
+		frameTimer.stop();
+		statsTimer.stop();
+	}
+
+	/**
+	 * Sets the listener that receives the number of frames drawn per second. It is called once
+	 * per second while frames are being drawn and once more with {@code 0} after they stop.
+	 *
+	 * @param fpsListener the listener, called on the event dispatch thread
+	 */
+	public void setFpsListener(IntConsumer fpsListener) {
+		this.fpsListener = fpsListener;
+	}
+
+	/**
+	 * Sets the listener that receives every region repainted by a frame, after it has been handed
+	 * to the repaint manager.
+	 *
+	 * @param repaintListener the listener, called on the event dispatch thread with the component
+	 *                        and the region in its coordinates, or {@code null}
+	 */
+	public void setRepaintListener(BiConsumer<JComponent, Rectangle> repaintListener) {
+		this.repaintListener = repaintListener;
+	}
+
+	/**
+	 * Requests a repaint of a whole component on the next frame.
+	 *
+	 * @param component the component to repaint
+	 */
+	public void requestRepaint(JComponent component) {
+		requestRepaint(component, 0, 0, component.getWidth(), component.getHeight());
+	}
+
+	/**
+	 * Requests a repaint of part of a component on the next frame. Requests for the same
+	 * component are merged into their bounding rectangle.
+	 *
+	 * @param component the component to repaint
+	 * @param x         the x coordinate of the dirty region
+	 * @param y         the y coordinate of the dirty region
+	 * @param width     the width of the dirty region
+	 * @param height    the height of the dirty region
+	 */
+	public synchronized void requestRepaint(JComponent component, int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		Rectangle dirty = dirtyRegions.get(component);
+		if (dirty == null) {
+			dirtyRegions.put(component, new Rectangle(x, y, width, height));
+		} else {
+			dirty.add(new Rectangle(x, y, width, height));
+		}
+		schedule();
+	}
+
+	/**
+	 * Runs a task on the next frame. A task that is requested again before the frame runs only
+	 * once.
+	 *
+	 * @param task the task, run on the event dispatch thread
+	 */
+	public synchronized void runOnNextFrame(Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	public synchronized void addAnimation(Animation animation) {
+		if (!animations.contains(animation)) {
+			animations.add(animation);
+		}
+		schedule();
+	}
+
+	public synchronized void removeAnimation(Animation animation) {
+		animations.remove(animation);
+	}
+
+	private boolean hasWork() {
+		return !dirtyRegions.isEmpty() || !tasks.isEmpty() || !animations.isEmpty();
+	}
+
+	private void schedule() {
+		if (scheduled || !running) {
+			return;
+		}
+		scheduled = true;
+		long wait = lastFrame + frameInterval - System.nanoTime();
+		frameTimer.setInitialDelay((int) Math.max(0, (wait + 999_999) / 1_000_000));
+		frameTimer.restart();
+	}
+
+	private void frame() {
+		Runnable[] frameTasks;
+		Animation[] frameAnimations;
+		Map<JComponent, Rectangle> frameRegions;
+		long now = System.nanoTime();
+		synchronized (this) {
+			scheduled = false;
+			if (!running) {
+				return;
+			}
+			lastFrame = now;
+			frameTasks = tasks.toArray(new Runnable[0]);
+			tasks.clear();
+			frameAnimations = animations.toArray(new Animation[0]);
+			frameRegions = new IdentityHashMap<>(dirtyRegions);
+			dirtyRegions.clear();
+		}
+
+		for (Runnable task : frameTasks) {
+			task.run();
+		}
+		for (Animation animation : frameAnimations) {
+			if (!animation.onFrame(now)) {
+				removeAnimation(animation);
+			}
+		}
+		for (Map.Entry<JComponent, Rectangle> entry : frameRegions.entrySet()) {
+			JComponent component = entry.getKey();
+			Rectangle dirty = entry.getValue();
+			RepaintManager.currentManager(component).addDirtyRegion(component, dirty.x, dirty.y, dirty.width, dirty.height);
+			if (repaintListener != null) {
+				repaintListener.accept(component, dirty);
+			}
+		}
+
+		framesSinceReport++;
+		if (!statsTimer.isRunning()) {
+			statsTimer.start();
+		}
+
+		synchronized (this) {
+			if (hasWork()) {
+				schedule();
+			}
+		}
+	}
+
+	private void reportStats() {
+		int frames = framesSinceReport;
+		framesSinceReport = 0;
+		if (fpsListener != null) {
+			fpsListener.accept(frames * 1000 / STATS_INTERVAL_MS);
+		}
+		if (frames > 0) {
+			statsTimer.start();
+		}
+	}
+}
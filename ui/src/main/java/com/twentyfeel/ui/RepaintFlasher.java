@@ -0,0 +1,96 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Debug overlay that flashes the regions the {@link FrameScheduler} of a window repaints.
+ * <p>
+ * Every region is outlined and filled over the window, fading out over
+ * {@value #FLASH_MILLIS} ms, so that repaints larger or more frequent than an edit or a caret
+ * move calls for stand out. Only the visible part of a region is shown. The window paints the
+ * flashes on top of its children with {@link #paint(Graphics)}; fading them repaints the window
+ * directly, so the overlay never flashes its own repaints.
+ * </p>
+ */
+final class RepaintFlasher implements FrameScheduler.Animation {
+	private static final int FLASH_MILLIS = 400;
+	private static final Color FLASH_COLOR = new Color(0xFF3B30);
+	private static final int FLASH_ALPHA = 0x60;
+
+	private final JComponent window;
+	private final FrameScheduler scheduler;
+	private final List<Flash> flashes = new ArrayList<>();
+
+	private record Flash(Rectangle bounds, long start) {
+	}
+
+	RepaintFlasher(JComponent window, FrameScheduler scheduler) {
+		this.window = window;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Flashes a region that was repainted.
+	 *
+	 * @param component the repainted component
+	 * @param region    the region, in the coordinates of the component
+	 */
+	void regionRepainted(JComponent component, Rectangle region) {
+		if (!component.isShowing() || !SwingUtilities.isDescendingFrom(component, window)) {
+			return;
+		}
+		Rectangle visible = region.intersection(component.getVisibleRect());
+		if (visible.isEmpty()) {
+			return;
+		}
+		Rectangle bounds = SwingUtilities.convertRectangle(component, visible, window);
+		flashes.add(new Flash(bounds, System.nanoTime()));
+		window.repaint(bounds);
+		scheduler.addAnimation(this);
+	}
+
+	@Override
+	public boolean onFrame(long frameTime) {
+		for (Iterator<Flash> it = flashes.iterator(); it.hasNext(); ) {
+			Flash flash = it.next();
+			if (frameTime - flash.start() >= FLASH_MILLIS * 1_000_000L) {
+				it.remove();
+			}
+			window.repaint(flash.bounds());
+		}
+		return !flashes.isEmpty();
+	}
+
+	/**
+	 * Paints the flashes over what the window painted.
+	 *
+	 * @param g the graphics of the window
+	 */
+	void paint(Graphics g) {
+		if (flashes.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		Graphics2D g2 = (Graphics2D) g.create();
+		try {
+			for (Flash flash : flashes) {
+				float left = 1 - (now - flash.start()) / (FLASH_MILLIS * 1_000_000f);
+				if (left <= 0) {
+					continue;
+				}
+				Rectangle r = flash.bounds();
+				g2.setColor(new Color(FLASH_COLOR.getRed(), FLASH_COLOR.getGreen(), FLASH_COLOR.getBlue(), (int) (FLASH_ALPHA * left)));
+				g2.fillRect(r.x, r.y, r.width, r.height);
+				g2.setColor(new Color(FLASH_COLOR.getRed(), FLASH_COLOR.getGreen(), FLASH_COLOR.getBlue(), (int) (0xFF * left)));
+				g2.drawRect(r.x, r.y, r.width - 1, r.height - 1);
+			}
+		} finally {
+			g2.dispose();
+		}
+	}
+}
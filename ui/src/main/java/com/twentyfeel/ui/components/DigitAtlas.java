@@ -0,0 +1,136 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Pre-rendered image of the digits 0 to 9 in one font, color and scale.
+ * <p>
+ * Numbers are drawn by copying digit cells out of the image, which needs neither a string nor a
+ * glyph vector per number and so allocates nothing while painting. The image is rendered at the
+ * device scale of the graphics it is created for, so the copies map pixel to pixel on HiDPI
+ * screens.
+ * </p>
+ */
+final class DigitAtlas {
+	private static final int MAX_DIGITS = 19;
+
+	private final Font font;
+	private final Color color;
+	private final double scale;
+	private final BufferedImage image;
+	private final int digitWidth;
+	private final int ascent;
+	private final int height;
+	private final int cellPixels;
+	private final int heightPixels;
+	private final int[] digits = new int[MAX_DIGITS];
+
+	private DigitAtlas(Graphics2D g, Font font, Color color, double scale) {
+		this.font = font;
+		this.color = color;
+		this.scale = scale;
+
+		FontMetrics metrics = g.getFontMetrics(font);
+		digitWidth = digitWidth(metrics);
+		ascent = metrics.getAscent();
+		height = metrics.getHeight();
+		cellPixels = (int) Math.ceil(digitWidth * scale);
+		heightPixels = (int) Math.ceil(height * scale);
+
+		GraphicsConfiguration configuration = g.getDeviceConfiguration();
+		image = configuration.createCompatibleImage(10 * cellPixels, heightPixels, Transparency.TRANSLUCENT);
+		Graphics2D ig = image.createGraphics();
+		try {
+			ig.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			ig.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, g.getRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS));
+			ig.scale(scale, scale);
+			ig.setFont(font);
+			ig.setColor(color);
+			for (int digit = 0; digit <= 9; digit++) {
+				ig.drawString(String.valueOf((char) ('0' + digit)), (float) (digit * cellPixels / scale), ascent);
+			}
+		} finally {
+			ig.dispose();
+		}
+	}
+
+	/**
+	 * Returns an atlas for drawing with the given graphics, reusing {@code cached} when it still
+	 * matches the font, color and scale.
+	 *
+	 * @param cached the previously used atlas, may be {@code null}
+	 * @param g      the graphics to draw with
+	 * @param font   the font of the digits
+	 * @param color  the color of the digits
+	 * @return a matching atlas
+	 */
+	static DigitAtlas get(DigitAtlas cached, Graphics2D g, Font font, Color color) {
+		double scale = g.getTransform().getScaleY();
+		if (cached != null && cached.scale == scale && cached.font.equals(font) && cached.color.equals(color)) {
+			return cached;
+		}
+		return new DigitAtlas(g, font, color, scale);
+	}
+
+	/**
+	 * Returns the width of the widest digit, which is the advance of every digit in the atlas.
+	 *
+	 * @param metrics the metrics of the font
+	 * @return the digit width
+	 */
+	static int digitWidth(FontMetrics metrics) {
+		int width = 0;
+		for (char c = '0'; c <= '9'; c++) {
+			width = Math.max(width, metrics.charWidth(c));
+		}
+		return width;
+	}
+
+	/**
+	 * Returns the number of decimal digits of a non-negative number.
+	 *
+	 * @param number the number
+	 * @return the digit count
+	 */
+	static int digitCount(long number) {
+		int count = 1;
+		while (number >= 10) {
+			number /= 10;
+			count++;
+		}
+		return count;
+	}
+
+	int getDigitWidth() {
+		return digitWidth;
+	}
+
+	int getAscent() {
+		return ascent;
+	}
+
+	/**
+	 * Draws a non-negative number.
+	 *
+	 * @param g        the graphics
+	 * @param number   the number
+	 * @param x        the left edge of the first digit
+	 * @param baseline the baseline
+	 */
+	void drawNumber(Graphics2D g, long number, int x, int baseline) {
+		int count = 0;
+		do {
+			digits[count++] = (int) (number % 10);
+			number /= 10;
+		} while (number > 0);
+
+		int top = baseline - ascent;
+		for (int i = count - 1; i >= 0; i--) {
+			int source = digits[i] * cellPixels;
+			g.drawImage(image, x, top, x + digitWidth, top + height, source, 0, source + cellPixels, heightPixels, null);
+			x += digitWidth;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import com.twentyfeel.ui.io.Session;
+
+import javax.swing.*;
+import java.awt.*;
+import java.nio.file.Path;
+
+/**
+ * A tab of the editor, holding one buffer.
+ * <p>
+ * A tab restored from a session starts as a placeholder that only knows its file and where the
+ * user was in it. The {@link TextArea} and its document are created by {@link #materialize()}
+ * when the tab is first selected or prefetched, so that restoring many tabs costs nothing until
+ * they are used. A tab in the background can be turned back into a placeholder by
+ * {@link #dematerialize()} when memory runs short.
+ * </p>
+ */
+public class EditorTab extends JPanel {
+	private static final String UNTITLED = "Untitled";
+
+	private Path path;
+	private Session.Buffer savedView;
+	private TextArea textArea;
+	private long lastUsed;
+	private boolean evicted;
+	private long compressedFootprint = -1;
+
+	/**
+	 * Creates a placeholder tab.
+	 *
+	 * @param path      the file of the tab, or {@code null} for a new document
+	 * @param savedView where the user was in the file, or {@code null}
+	 */
+	public EditorTab(Path path, Session.Buffer savedView) {
+		super(new BorderLayout());
+		this.path = path;
+		this.savedView = savedView;
+	}
+
+	/**
+	 * Returns the file of the tab.
+	 *
+	 * @return the file, or {@code null} for a new document
+	 */
+	public Path getPath() {
+		Path file = textArea != null ? textArea.getFilePath() : null;
+		return file != null ? file : path;
+	}
+
+	public String getTitle() {
+		Path file = getPath();
+		return file == null ? UNTITLED : file.getFileName() == null ? file.toString() : file.getFileName().toString();
+	}
+
+	public boolean isMaterialized() {
+		return textArea != null;
+	}
+
+	/**
+	 * Returns the text area of the tab.
+	 *
+	 * @return the text area, or {@code null} while the tab is a placeholder
+	 */
+	public TextArea getTextArea() {
+		return textArea;
+	}
+
+	/**
+	 * Creates the text area of the tab, if it is still a placeholder. The file is not opened.
+	 *
+	 * @return the text area
+	 */
+	public TextArea materialize() {
+		if (textArea == null) {
+			textArea = new TextArea();
+			add(textArea, BorderLayout.CENTER);
+			revalidate();
+		}
+		return textArea;
+	}
+
+	/**
+	 * Drops the text area of the tab, keeping where the user was in the file, so that the file
+	 * is loaded again when the tab is materialized. The document must not be modified.
+	 */
+	public void dematerialize() {
+		if (textArea == null) {
+			return;
+		}
+		// The document may have been saved to another file since the tab was created
+		path = getPath();
+		savedView = captureView();
+		textArea.close();
+		remove(textArea);
+		textArea = null;
+		evicted = true;
+		compressedFootprint = -1;
+		revalidate();
+	}
+
+	/**
+	 * Returns whether the tab was turned back into a placeholder to free memory.
+	 *
+	 * @return {@code true} once evicted
+	 */
+	public boolean isEvicted() {
+		return evicted;
+	}
+
+	/**
+	 * Records that the tab was used now.
+	 */
+	public void touch() {
+		lastUsed = System.nanoTime();
+	}
+
+	/**
+	 * Returns when the tab was last used.
+	 *
+	 * @return the {@link System#nanoTime()} of the last use, or 0 if never used
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Returns the footprint of the document right after it was last compressed.
+	 *
+	 * @return the footprint in bytes, or -1 if it was not compressed
+	 */
+	public long getCompressedFootprint() {
+		return compressedFootprint;
+	}
+
+	public void setCompressedFootprint(long compressedFootprint) {
+		this.compressedFootprint = compressedFootprint;
+	}
+
+	/**
+	 * Takes the view to restore once the file of the tab has been loaded, leaving none.
+	 *
+	 * @return the view, or {@code null}
+	 */
+	public Session.Buffer takeSavedView() {
+		Session.Buffer view = savedView;
+		savedView = null;
+		return view;
+	}
+
+	/**
+	 * Returns where the user is in the file, for the session.
+	 *
+	 * @return the view, or {@code null} for a new document
+	 */
+	public Session.Buffer captureView() {
+		Path file = getPath();
+		if (file == null) {
+			return null;
+		}
+		if (textArea == null || textArea.isLoading() || textArea.getFileViewer() != null) {
+			// Not loaded yet, or not a document: keep what was restored
+			return savedView != null ? savedView : new Session.Buffer(file, 0, 0, 0);
+		}
+		JTextArea editor = textArea.getTextArea();
+		return new Session.Buffer(file, editor.getCaret().getDot(), editor.getCaret().getMark(), textArea.getTopOffset());
+	}
+}
@@ -0,0 +1,71 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import com.twentyfeel.ui.FrameScheduler;
+import com.twentyfeel.ui.metrics.FrameMetrics;
+
+import javax.swing.*;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import java.awt.*;
+
+/**
+ * Text component of the editor. Repaints are routed through the {@link FrameScheduler} of the
+ * window, so a burst of edits and caret moves is painted once per frame. Wrapped lines are laid
+ * out by a {@link WrappedTextView}, which the look and feel picks up from a client property. In a
+ * {@link TextViewport}, every repaint also marks the region for the viewport to render again.
+ */
+public class EditorTextArea extends JTextArea {
+	/**
+	 * The client property the text area UI of the look and feel asks for the document view.
+	 */
+	static final String VIEW_FACTORY_KEY = "JTextArea.viewFactory";
+
+	public EditorTextArea(Document document) {
+		super(document);
+		putClientProperty(VIEW_FACTORY_KEY, (ViewFactory) this::createView);
+	}
+
+	private View createView(Element elem) {
+		// Bidirectional text needs the views of the UI
+		if (!getLineWrap() || Boolean.TRUE.equals(elem.getDocument().getProperty("i18n"))) {
+			return null;
+		}
+		return new WrappedTextView(elem, getWrapStyleWord());
+	}
+
+	@Override
+	public void repaint(long tm, int x, int y, int width, int height) {
+		if (getParent() instanceof TextViewport viewport) {
+			viewport.viewChanged(x, y, width, height);
+		}
+		if (!FrameScheduler.deferRepaint(this, x, y, width, height)) {
+			super.repaint(tm, x, y, width, height);
+		}
+	}
+
+	@Override
+	public void paint(Graphics g) {
+		long start = System.nanoTime();
+		try {
+			super.paint(g);
+		} finally {
+			FrameMetrics.Probe.TEXT_AREA.recordSince(start);
+		}
+	}
+
+	/**
+	 * Paints through the look and feel delegate, which draws the background, highlights and text.
+	 */
+	@Override
+	protected void paintComponent(Graphics g) {
+		long start = System.nanoTime();
+		try {
+			super.paintComponent(g);
+		} finally {
+			FrameMetrics.Probe.TEXT_AREA_UI.recordSince(start);
+		}
+	}
+}
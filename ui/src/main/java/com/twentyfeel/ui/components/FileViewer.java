@@ -0,0 +1,469 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import com.twentyfeel.ui.FrameScheduler;
+import com.twentyfeel.ui.io.MappedFile;
+import com.twentyfeel.ui.io.SparseLineIndex;
+import com.twentyfeel.ui.metrics.FrameMetrics;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Read-only viewer for files far larger than the heap.
+ * <p>
+ * The file is memory-mapped through {@link MappedFile} and lines are located with a
+ * {@link SparseLineIndex} built in the background. Only the lines in and around the viewport are
+ * decoded, and the viewer scrolls by lines with its own scroll bars, so neither the heap nor
+ * Swing's integer pixel coordinates limit the size of the file.
+ * </p>
+ */
+public class FileViewer extends JComponent {
+	private static final int TAB_SIZE = 4;
+	private static final int PADDING = 4;
+	private static final int MAX_LINE_BYTES = 1 << 16;
+	private static final int CACHE_SIZE = 512;
+	private static final long PROGRESS_INTERVAL = 100_000_000L;
+
+	private final MappedFile file;
+	private final SparseLineIndex lineIndex;
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private final JScrollBar verticalScrollBar = new JScrollBar(Adjustable.VERTICAL);
+	private final JScrollBar horizontalScrollBar = new JScrollBar(Adjustable.HORIZONTAL);
+
+	private final long[] cachedLine = new long[CACHE_SIZE];
+	private final long[] cachedNextStart = new long[CACHE_SIZE];
+	private final String[] cachedText = new String[CACHE_SIZE];
+	private final byte[] lineBytes = new byte[MAX_LINE_BYTES];
+
+	private long topLine;
+	private int xOffset;
+	private long caretLine;
+	private int caretColumn;
+	private int widestLine;
+	private long scrollScale = 1;
+	private boolean adjusting;
+	private long lastProgress;
+	private IOException error;
+
+	public FileViewer(MappedFile file) {
+		this.file = file;
+		this.lineIndex = new SparseLineIndex(file);
+
+		Arrays.fill(cachedLine, -1);
+		setFont(new Font("IBM Plex Mono", Font.PLAIN, 14));
+		setBackground(UIManager.getColor("TextArea.background"));
+		setForeground(UIManager.getColor("TextArea.foreground"));
+		setFocusable(true);
+		setOpaque(true);
+
+		verticalScrollBar.addAdjustmentListener(e -> {
+			if (!adjusting) {
+				setTopLine(e.getValue() * scrollScale);
+			}
+		});
+		horizontalScrollBar.addAdjustmentListener(e -> {
+			if (!adjusting) {
+				xOffset = e.getValue();
+				repaint();
+			}
+		});
+
+		installMouseHandling();
+		installKeyBindings();
+
+		lineIndex.start(this::indexProgressed);
+	}
+
+	public MappedFile getFile() {
+		return file;
+	}
+
+	public SparseLineIndex getLineIndex() {
+		return lineIndex;
+	}
+
+	public JScrollBar getVerticalScrollBar() {
+		return verticalScrollBar;
+	}
+
+	public JScrollBar getHorizontalScrollBar() {
+		return horizontalScrollBar;
+	}
+
+	public long getLineCount() {
+		return lineIndex.getLineCount();
+	}
+
+	/**
+	 * Returns the first error that occurred reading or indexing the file. Lines that cannot be
+	 * read show up empty.
+	 *
+	 * @return the error, or {@code null}
+	 */
+	public IOException getError() {
+		return error != null ? error : lineIndex.getError();
+	}
+
+	public long getTopLine() {
+		return topLine;
+	}
+
+	public long getCaretLine() {
+		return caretLine;
+	}
+
+	public int getCaretColumn() {
+		return caretColumn;
+	}
+
+	public int getLineHeight() {
+		return getFontMetrics(getFont()).getHeight();
+	}
+
+	/**
+	 * Returns the vertical offset of the first line, shared with the gutter so both stay aligned.
+	 *
+	 * @return the top padding in pixels
+	 */
+	public int getTopPadding() {
+		return PADDING;
+	}
+
+	public void addChangeListener(ChangeListener listener) {
+		listenerList.add(ChangeListener.class, listener);
+	}
+
+	public void removeChangeListener(ChangeListener listener) {
+		listenerList.remove(ChangeListener.class, listener);
+	}
+
+	/**
+	 * Scrolls so that the given line is the first visible one.
+	 *
+	 * @param line the zero-based line
+	 */
+	public void setTopLine(long line) {
+		long maxTop = Math.max(0, getLineCount() - getVisibleRows() + 1);
+		line = Math.max(0, Math.min(line, maxTop));
+		if (line != topLine) {
+			topLine = line;
+			updateScrollBars();
+			repaint();
+			fireStateChanged();
+		}
+	}
+
+	/**
+	 * Moves the caret and scrolls it into view.
+	 *
+	 * @param line   the zero-based line
+	 * @param column the zero-based character column
+	 */
+	public void setCaret(long line, int column) {
+		caretLine = Math.max(0, Math.min(line, getLineCount() - 1));
+		caretColumn = Math.max(0, Math.min(column, lineText(caretLine).length()));
+
+		int rows = getVisibleRows();
+		if (caretLine < topLine) {
+			setTopLine(caretLine);
+		} else if (caretLine >= topLine + rows - 1) {
+			setTopLine(caretLine - rows + 2);
+		}
+		repaint();
+		fireStateChanged();
+	}
+
+	/**
+	 * Stops indexing and releases the file.
+	 */
+	public void close() {
+		lineIndex.stop();
+		try {
+			file.close();
+		} catch (IOException ex) {
+			// Nothing of the file is shown any more, so the error is only kept
+			if (error == null) {
+				error = ex;
+			}
+		}
+	}
+
+	@Override
+	public void repaint(long tm, int x, int y, int width, int height) {
+		if (!FrameScheduler.deferRepaint(this, x, y, width, height)) {
+			super.repaint(tm, x, y, width, height);
+		}
+	}
+
+	@Override
+	public void doLayout() {
+		super.doLayout();
+		updateScrollBars();
+	}
+
+	@Override
+	public void paint(Graphics g) {
+		long start = System.nanoTime();
+		try {
+			super.paint(g);
+		} finally {
+			FrameMetrics.Probe.FILE_VIEWER.recordSince(start);
+		}
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Graphics2D g2d = (Graphics2D) g;
+		g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+		Rectangle clip = g2d.getClipBounds();
+		g2d.setColor(getBackground());
+		g2d.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+		FontMetrics metrics = g2d.getFontMetrics(getFont());
+		int lineHeight = metrics.getHeight();
+		int ascent = metrics.getAscent();
+		long lineCount = getLineCount();
+		int rows = getVisibleRows();
+
+		g2d.setFont(getFont());
+		g2d.setColor(getForeground());
+		int widest = widestLine;
+		for (int row = 0; row < rows && topLine + row < lineCount; row++) {
+			long line = topLine + row;
+			String text = lineText(line);
+			int y = PADDING + row * lineHeight;
+			if (y + lineHeight < clip.y || y > clip.y + clip.height) {
+				continue;
+			}
+			int width = drawLine(g2d, metrics, text, PADDING - xOffset, y + ascent);
+			widest = Math.max(widest, width);
+
+			if (line == caretLine && hasFocus()) {
+				int caretX = PADDING - xOffset + columnToX(metrics, text, caretColumn);
+				g2d.fillRect(caretX, y, 2, lineHeight);
+			}
+		}
+
+		if (widest != widestLine) {
+			widestLine = widest;
+			SwingUtilities.invokeLater(this::updateScrollBars);
+		}
+
+		// Decode the lines just outside the viewport so that scrolling by a page stays smooth
+		prefetch(Math.max(0, topLine - rows), topLine);
+		prefetch(topLine + rows, Math.min(lineCount, topLine + 2L * rows));
+	}
+
+	private int getVisibleRows() {
+		return Math.max(1, (getHeight() - PADDING) / getLineHeight() + 1);
+	}
+
+	private void prefetch(long from, long to) {
+		for (long line = from; line < to; line++) {
+			lineText(line);
+		}
+	}
+
+	/**
+	 * Returns the decoded text of a line, reading and decoding it on a cache miss. Lines longer
+	 * than {@value #MAX_LINE_BYTES} bytes are truncated for display.
+	 */
+	private String lineText(long line) {
+		int slot = (int) (line % CACHE_SIZE);
+		if (cachedLine[slot] == line) {
+			return cachedText[slot];
+		}
+
+		try {
+			long start = startOf(line);
+			if (start < 0) {
+				return "";
+			}
+			long end = lineIndex.getLineEnd(start);
+			int count = file.read(start, lineBytes, 0, (int) Math.min(end - start, MAX_LINE_BYTES));
+			String text = decoder.reset().decode(ByteBuffer.wrap(lineBytes, 0, count)).toString();
+
+			long newline = file.indexOf((byte) '\n', end, file.size());
+			cachedLine[slot] = line;
+			cachedNextStart[slot] = newline < 0 ? file.size() : newline + 1;
+			cachedText[slot] = text;
+			return text;
+		} catch (CharacterCodingException ex) {
+			return "";
+		} catch (IOException ex) {
+			failed(ex);
+			return "";
+		}
+	}
+
+	/**
+	 * Keeps the first error for {@link #getError()} and tells the listeners about it. Lines are
+	 * read while painting, so a file that cannot be read fails on every frame; only the first
+	 * failure is reported.
+	 */
+	private void failed(IOException ex) {
+		if (error == null) {
+			error = ex;
+			SwingUtilities.invokeLater(this::fireStateChanged);
+		}
+	}
+
+	private long startOf(long line) throws IOException {
+		if (line > 0) {
+			int previous = (int) ((line - 1) % CACHE_SIZE);
+			if (cachedLine[previous] == line - 1) {
+				return cachedNextStart[previous];
+			}
+		}
+		return lineIndex.getLineStart(line);
+	}
+
+	private int drawLine(Graphics2D g2d, FontMetrics metrics, String text, int x, int baseline) {
+		int tabWidth = TAB_SIZE * metrics.charWidth(' ');
+		int position = 0;
+		int segmentStart = 0;
+		int length = text.length();
+		for (int i = 0; i <= length; i++) {
+			if (i == length || text.charAt(i) == '\t') {
+				if (i > segmentStart) {
+					String segment = text.substring(segmentStart, i);
+					g2d.drawString(segment, x + position, baseline);
+					position += metrics.stringWidth(segment);
+				}
+				if (i < length) {
+					position = (position / tabWidth + 1) * tabWidth;
+				}
+				segmentStart = i + 1;
+			}
+		}
+		return position;
+	}
+
+	private int columnToX(FontMetrics metrics, String text, int column) {
+		int tabWidth = TAB_SIZE * metrics.charWidth(' ');
+		int position = 0;
+		for (int i = 0; i < column && i < text.length(); i++) {
+			char c = text.charAt(i);
+			position = c == '\t' ? (position / tabWidth + 1) * tabWidth : position + metrics.charWidth(c);
+		}
+		return position;
+	}
+
+	private int xToColumn(FontMetrics metrics, String text, int x) {
+		int tabWidth = TAB_SIZE * metrics.charWidth(' ');
+		int position = 0;
+		for (int column = 0; column < text.length(); column++) {
+			char c = text.charAt(column);
+			int next = c == '\t' ? (position / tabWidth + 1) * tabWidth : position + metrics.charWidth(c);
+			if (x < (position + next) / 2) {
+				return column;
+			}
+			position = next;
+		}
+		return text.length();
+	}
+
+	private void updateScrollBars() {
+		long lineCount = getLineCount();
+		scrollScale = Math.max(1, lineCount / (Integer.MAX_VALUE / 2) + 1);
+		int rows = getVisibleRows();
+
+		adjusting = true;
+		try {
+			verticalScrollBar.setValues((int) (topLine / scrollScale), (int) Math.max(1, rows / scrollScale),
+				0, (int) ((lineCount + rows - 1) / scrollScale));
+			verticalScrollBar.setUnitIncrement(1);
+			verticalScrollBar.setBlockIncrement((int) Math.max(1, (rows - 1) / scrollScale));
+
+			int viewWidth = Math.max(1, getWidth() - PADDING);
+			horizontalScrollBar.setValues(Math.min(xOffset, Math.max(0, widestLine - viewWidth)), viewWidth, 0, Math.max(viewWidth, widestLine + PADDING));
+			horizontalScrollBar.setUnitIncrement(getFontMetrics(getFont()).charWidth('0'));
+		} finally {
+			adjusting = false;
+		}
+	}
+
+	private void indexProgressed() {
+		long now = System.nanoTime();
+		if (!lineIndex.isComplete() && lineIndex.getError() == null && now - lastProgress < PROGRESS_INTERVAL) {
+			return;
+		}
+		lastProgress = now;
+		SwingUtilities.invokeLater(() -> {
+			updateScrollBars();
+			repaint();
+			fireStateChanged();
+		});
+	}
+
+	private void fireStateChanged() {
+		ChangeEvent event = new ChangeEvent(this);
+		for (ChangeListener listener : listenerList.getListeners(ChangeListener.class)) {
+			listener.stateChanged(event);
+		}
+	}
+
+	private void installMouseHandling() {
+		addMouseListener(new MouseAdapter() {
+			@Override
+			public void mousePressed(MouseEvent e) {
+				requestFocusInWindow();
+				FontMetrics metrics = getFontMetrics(getFont());
+				long line = topLine + Math.max(0, e.getY() - PADDING) / metrics.getHeight();
+				if (line < getLineCount()) {
+					setCaret(line, xToColumn(metrics, lineText(line), e.getX() - PADDING + xOffset));
+				}
+			}
+		});
+		addMouseWheelListener((MouseWheelEvent e) -> {
+			if (e.isShiftDown()) {
+				horizontalScrollBar.setValue(horizontalScrollBar.getValue() + e.getUnitsToScroll() * horizontalScrollBar.getUnitIncrement());
+			} else {
+				setTopLine(topLine + e.getUnitsToScroll());
+			}
+		});
+	}
+
+	private void installKeyBindings() {
+		int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+		bind(KeyEvent.VK_UP, 0, "caretUp", () -> setCaret(caretLine - 1, caretColumn));
+		bind(KeyEvent.VK_DOWN, 0, "caretDown", () -> setCaret(caretLine + 1, caretColumn));
+		bind(KeyEvent.VK_LEFT, 0, "caretLeft", () -> setCaret(caretLine, caretColumn - 1));
+		bind(KeyEvent.VK_RIGHT, 0, "caretRight", () -> setCaret(caretLine, caretColumn + 1));
+		bind(KeyEvent.VK_PAGE_UP, 0, "pageUp", () -> setCaret(caretLine - getVisibleRows() + 1, caretColumn));
+		bind(KeyEvent.VK_PAGE_DOWN, 0, "pageDown", () -> setCaret(caretLine + getVisibleRows() - 1, caretColumn));
+		bind(KeyEvent.VK_HOME, 0, "lineStart", () -> setCaret(caretLine, 0));
+		bind(KeyEvent.VK_END, 0, "lineEnd", () -> setCaret(caretLine, Integer.MAX_VALUE));
+		bind(KeyEvent.VK_HOME, shortcut, "fileStart", () -> setCaret(0, 0));
+		bind(KeyEvent.VK_END, shortcut, "fileEnd", () -> setCaret(Long.MAX_VALUE, 0));
+	}
+
+	private void bind(int keyCode, int modifiers, String name, Runnable action) {
+		getInputMap(WHEN_FOCUSED).put(KeyStroke.getKeyStroke(keyCode, modifiers), name);
+		getActionMap().put(name, new AbstractAction() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				action.run();
+			}
+		});
+	}
+}
@@ -0,0 +1,146 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import com.twentyfeel.ui.metrics.CacheMetrics;
+
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shaped rows of text, so that repaints for scrolling and caret blinks draw glyphs laid out
+ * before instead of laying out the same characters again.
+ * <p>
+ * A row is keyed by its line element, which a plain document keeps for as long as the line
+ * exists, and by where it starts and ends in the line. The view drops the rows of a line when an
+ * edit touches it, so rows of other lines stay valid however the document changes around them.
+ * A row is only used with the font and render context it was laid out for; the render context
+ * carries the scale of the display. The least recently drawn rows are dropped once their
+ * estimated size passes {@value #BUDGET} bytes. Hits and misses are counted in
+ * {@link CacheMetrics.Cache#GLYPH_LAYOUT}. Used on the event dispatch thread only.
+ * </p>
+ */
+final class GlyphCache {
+	private static final int BUDGET = 4 << 20;
+	private static final int ROW_BYTES = 96;
+	private static final int RUN_BYTES = 128;
+	private static final int GLYPH_BYTES = 24;
+
+	private final LinkedHashMap<Key, Row> rows = new LinkedHashMap<>(256, 0.75f, true);
+	private long size;
+
+	private record Key(Element line, int start, int end) {
+	}
+
+	/**
+	 * The glyphs of a row, in runs between tabs.
+	 *
+	 * @param x     where each run starts, from the start of the row
+	 * @param bytes the estimated size
+	 */
+	record Row(Font font, FontRenderContext context, GlyphVector[] runs, float[] x, int bytes) {
+		void draw(Graphics2D g, float x, float y) {
+			for (int i = 0; i < runs.length; i++) {
+				g.drawGlyphVector(runs[i], x + this.x[i], y);
+			}
+		}
+	}
+
+	/**
+	 * Lays out a row, with tab stops and run positions as {@link RowMetrics} measures them, so
+	 * that the glyphs line up with the caret.
+	 *
+	 * @param text        the text of the row
+	 * @param startOffset the offset of the row in the document
+	 * @param kind        the class of the line
+	 * @return the glyphs
+	 */
+	static Row layout(Segment text, int startOffset, byte kind, RowMetrics rowMetrics, FontRenderContext context) {
+		Font font = rowMetrics.getFontMetrics().getFont();
+		int tabWidth = rowMetrics.getTabWidth();
+		char[] chars = text.array;
+		int end = text.offset + text.count;
+		GlyphVector[] runs = new GlyphVector[1];
+		float[] x = new float[1];
+		int count = 0;
+		int bytes = ROW_BYTES;
+		Segment run = new Segment(chars, 0, 0);
+		float position = 0;
+		for (int i = text.offset, runStart = i; i <= end; i++) {
+			if (i < end && chars[i] != '\t') {
+				continue;
+			}
+			if (i > runStart) {
+				if (count == runs.length) {
+					runs = Arrays.copyOf(runs, count * 2);
+					x = Arrays.copyOf(x, count * 2);
+				}
+				runs[count] = font.layoutGlyphVector(context, chars, runStart, i, Font.LAYOUT_LEFT_TO_RIGHT);
+				x[count] = position;
+				bytes += RUN_BYTES + runs[count].getNumGlyphs() * GLYPH_BYTES;
+				count++;
+				run.offset = runStart;
+				run.count = i - runStart;
+				position += rowMetrics.width(run, startOffset + runStart - text.offset, kind);
+			}
+			if (i < end) {
+				position = ((int) position / tabWidth + 1) * tabWidth;
+			}
+			runStart = i + 1;
+		}
+		return new Row(font, context, Arrays.copyOf(runs, count), Arrays.copyOf(x, count), bytes);
+	}
+
+	/**
+	 * Returns the glyphs of a row, if they were laid out with the same font and render context.
+	 *
+	 * @param line  the line element
+	 * @param start the start of the row, relative to the line start
+	 * @param end   the end of the row, relative to the line start
+	 * @return the glyphs, or {@code null}
+	 */
+	Row get(Element line, int start, int end, Font font, FontRenderContext context) {
+		Row row = rows.get(new Key(line, start, end));
+		if (row != null && row.font().equals(font) && row.context().equals(context)) {
+			CacheMetrics.Cache.GLYPH_LAYOUT.hit();
+			return row;
+		}
+		CacheMetrics.Cache.GLYPH_LAYOUT.miss();
+		return null;
+	}
+
+	void put(Element line, int start, int end, Row row) {
+		Row previous = rows.put(new Key(line, start, end), row);
+		size += row.bytes() - (previous != null ? previous.bytes() : 0);
+		for (Iterator<Row> eldest = rows.values().iterator(); size > BUDGET && eldest.hasNext(); ) {
+			size -= eldest.next().bytes();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Drops the rows of a line that was edited or removed.
+	 *
+	 * @param line the line element
+	 */
+	void invalidate(Element line) {
+		for (Iterator<Map.Entry<Key, Row>> entries = rows.entrySet().iterator(); entries.hasNext(); ) {
+			Map.Entry<Key, Row> entry = entries.next();
+			if (entry.getKey().line() == line) {
+				size -= entry.getValue().bytes();
+				entries.remove();
+			}
+		}
+	}
+
+	void clear() {
+		rows.clear();
+		size = 0;
+	}
+}
@@ -1,21 +1,63 @@
 // Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
 package com.twentyfeel.ui.components;
 
+import com.twentyfeel.ui.FrameScheduler;
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.document.LineChangeEvent;
+import com.twentyfeel.ui.document.LineIndex;
+import com.twentyfeel.ui.metrics.FrameMetrics;
+
 import javax.swing.*;
-import javax.swing.text.BadLocationException;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.Document;
+import javax.swing.text.View;
 import java.awt.*;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 
+/**
+ * Line number gutter of the editor and the file viewer.
+ * <p>
+ * Only the lines inside the clip are visited. Without line wrapping every line has the height of
+ * the font, so the visible lines follow from the scroll position by arithmetic. With wrapping the
+ * line positions come from the row counts of the {@link WrappedTextView}, or with other wrapped
+ * views from the spans they have already laid out, searched by binary search. Numbers are drawn
+ * from a {@link DigitAtlas}, so painting allocates nothing per line.
+ * </p>
+ */
 public class LineNumbers extends JPanel {
+	private static final int MIN_DIGITS = 3;
+
 	private JTextArea textArea;
+	private FileViewer fileViewer;
 	private int padding = 15;
 
+	private DigitAtlas digitAtlas;
+	private final Rectangle viewAllocation = new Rectangle();
+	private int digitWidth = -1;
+	private int digits;
+
 	public LineNumbers(JTextArea textArea) {
 		this.textArea = textArea;
 		setBackground(textArea.getBackground());
 		setForeground(textArea.getForeground());
 		setFont(textArea.getFont());
+		// The gutter is as tall as the text, which grows and shrinks with line wrapping and edits
+		textArea.addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentResized(ComponentEvent e) {
+				revalidate();
+				repaint();
+			}
+		});
+	}
+
+	public LineNumbers(FileViewer fileViewer) {
+		this.fileViewer = fileViewer;
+		setBackground(fileViewer.getBackground());
+		setForeground(fileViewer.getForeground());
+		setFont(fileViewer.getFont());
+		fileViewer.addChangeListener(e -> refresh());
 	}
 
 	public void setScrollPane(JScrollPane scrollPane) {
@@ -29,50 +71,191 @@ public class LineNumbers extends JPanel {
 		});
 	}
 
+	@Override
+	public void setFont(Font font) {
+		super.setFont(font);
+		digitWidth = -1;
+	}
+
 	@Override
 	public Dimension getPreferredSize() {
-		return new Dimension(getLineNumberWidth(), textArea.getHeight());
+		if (fileViewer != null) {
+			return new Dimension(getLineNumberWidth(fileViewer.getLineCount()), fileViewer.getHeight());
+		}
+		return new Dimension(getLineNumberWidth(getLineIndex().getLineCount()), textArea.getHeight());
+	}
+
+	private int getLineNumberWidth(long lineCount) {
+		if (digitWidth < 0) {
+			digitWidth = DigitAtlas.digitWidth(getFontMetrics(getFont()));
+		}
+		digits = Math.max(MIN_DIGITS, DigitAtlas.digitCount(lineCount));
+		return digits * digitWidth + 2 * padding;
 	}
 
-	private int getLineNumberWidth() {
-		int lineCount = textArea.getLineCount();
-		int maxDigits = Math.max(3, String.valueOf(lineCount).length());
-		return maxDigits * getFontMetrics(getFont()).charWidth('0') + 2 * padding;
+	@Override
+	public void paint(Graphics g) {
+		long start = System.nanoTime();
+		try {
+			super.paint(g);
+		} finally {
+			FrameMetrics.Probe.LINE_NUMBERS.recordSince(start);
+		}
 	}
 
 	@Override
 	protected void paintComponent(Graphics g) {
 		super.paintComponent(g);
 		Graphics2D g2d = (Graphics2D) g;
-		g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-
+		digitAtlas = DigitAtlas.get(digitAtlas, g2d, getFont(), getForeground());
 		Rectangle clip = g2d.getClipBounds();
-		int fontHeight = g2d.getFontMetrics().getHeight();
-		int startOffset = textArea.viewToModel2D(new Point(0, clip.y));
-		int endOffset = textArea.viewToModel2D(new Point(0, clip.y + clip.height));
 
-		try {
-			int startLine = textArea.getLineOfOffset(startOffset);
-			int endLine = textArea.getLineOfOffset(endOffset);
+		if (fileViewer != null) {
+			paintViewerLines(g2d, clip);
+		} else if (textArea.getLineWrap()) {
+			paintWrappedLines(g2d, clip);
+		} else {
+			paintLines(g2d, clip);
+		}
+	}
+
+	private void paintLines(Graphics2D g2d, Rectangle clip) {
+		int lineHeight = textArea.getFontMetrics(textArea.getFont()).getHeight();
+		int top = textArea.getInsets().top;
+		int lineCount = getLineIndex().getLineCount();
+		int first = Math.max(0, (clip.y - top) / lineHeight);
+		int last = Math.min(lineCount - 1, (clip.y + clip.height - top) / lineHeight);
+
+		for (int line = first; line <= last; line++) {
+			drawLineNumber(g2d, line + 1, top + line * lineHeight);
+		}
+	}
 
-			for (int line = startLine; line <= endLine; line++) {
-				String lineNumber = String.valueOf(line + 1);
-				int yText = textArea.modelToView2D(textArea.getLineStartOffset(line)).getBounds().y;
-				// TODO: we will have problem with this prob
-				int y = yText + fontHeight - 4;
+	private void paintWrappedLines(Graphics2D g2d, Rectangle clip) {
+		Document document = textArea.getDocument();
+		if (document instanceof AbstractDocument abstractDocument) {
+			abstractDocument.readLock();
+		}
+		try {
+			View root = textArea.getUI().getRootView(textArea);
+			if (root.getViewCount() == 0) {
+				return;
+			}
+			Insets insets = textArea.getInsets();
+			viewAllocation.setBounds(insets.left, insets.top,
+				textArea.getWidth() - insets.left - insets.right, textArea.getHeight() - insets.top - insets.bottom);
+			if (viewAllocation.width <= 0 || viewAllocation.height <= 0) {
+				return;
+			}
+			// Lays the view out only if an edit invalidated it, like painting the text area would
+			root.setSize(viewAllocation.width, viewAllocation.height);
+			View lines = root.getView(0);
+			int clipBottom = clip.y + clip.height;
+			if (lines instanceof WrappedTextView wrapped) {
+				int line = wrapped.getLineAtY(clip.y - insets.top);
+				for (int y = insets.top + wrapped.getLineY(line); line < wrapped.getLineCount() && y < clipBottom; line++) {
+					drawLineNumber(g2d, line + 1, y);
+					y += wrapped.getLineHeight(line);
+				}
+				return;
+			}
+			int lineCount = lines.getViewCount();
 
-				int stringWidth = g2d.getFontMetrics().stringWidth(lineNumber);
-				int x = padding + (getWidth() - 2 * padding - stringWidth) / 2;
+			// Binary search for the first line whose bottom is below the top of the clip
+			int low = 0;
+			int high = lineCount - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				Rectangle bounds = lineBounds(lines, mid);
+				if (bounds != null && bounds.y + bounds.height <= clip.y) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
 
-				g2d.drawString(lineNumber, x, y);
+			for (int line = low; line < lineCount; line++) {
+				Rectangle bounds = lineBounds(lines, line);
+				if (bounds == null || bounds.y >= clipBottom) {
+					break;
+				}
+				drawLineNumber(g2d, line + 1, bounds.y);
 			}
-		} catch (BadLocationException ex) {
-			ex.printStackTrace();
+		} finally {
+			if (document instanceof AbstractDocument abstractDocument) {
+				abstractDocument.readUnlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the bounds of a line from the spans cached by the wrapped view. The returned
+	 * rectangle is reused by the view and only valid until the next call.
+	 */
+	private Rectangle lineBounds(View lines, int line) {
+		return lines.getChildAllocation(line, viewAllocation) instanceof Rectangle bounds ? bounds : null;
+	}
+
+	private void paintViewerLines(Graphics2D g2d, Rectangle clip) {
+		int lineHeight = fileViewer.getLineHeight();
+		int top = fileViewer.getTopPadding();
+		long topLine = fileViewer.getTopLine();
+		long lineCount = fileViewer.getLineCount();
+		int first = Math.max(0, (clip.y - top) / lineHeight);
+		int last = (clip.y + clip.height - top) / lineHeight;
+
+		for (int row = first; row <= last && topLine + row < lineCount; row++) {
+			drawLineNumber(g2d, topLine + row + 1, top + row * lineHeight);
 		}
 	}
 
+	private void drawLineNumber(Graphics2D g2d, long lineNumber, int y) {
+		int width = DigitAtlas.digitCount(lineNumber) * digitAtlas.getDigitWidth();
+		int x = padding + (getWidth() - 2 * padding - width) / 2;
+		digitAtlas.drawNumber(g2d, lineNumber, x, y + digitAtlas.getAscent());
+	}
+
+	private LineIndex getLineIndex() {
+		return ((EditorDocument) textArea.getDocument()).getLineIndex();
+	}
+
+	@Override
+	public void repaint(long tm, int x, int y, int width, int height) {
+		if (!FrameScheduler.deferRepaint(this, x, y, width, height)) {
+			super.repaint(tm, x, y, width, height);
+		}
+	}
+
+	/**
+	 * Repaints the numbers that a batch of edits may have changed. Without wrapping, numbers only
+	 * change from the first edited line down and only if lines were added or removed.
+	 *
+	 * @param e the changed lines
+	 */
+	public void linesChanged(LineChangeEvent e) {
+		if (textArea.getLineWrap()) {
+			refresh();
+		} else if (e.getLineCountDelta() != 0) {
+			int lineHeight = textArea.getFontMetrics(textArea.getFont()).getHeight();
+			int y = textArea.getInsets().top + e.getFirstLine() * lineHeight;
+			revalidateIfWider();
+			repaint(0, y, getWidth(), Math.max(0, getHeight() - y));
+		}
+	}
+
+	/**
+	 * Repaints the gutter, and lays it out again only when the number of digits of the last line
+	 * changed.
+	 */
 	public void refresh() {
-		revalidate();
+		revalidateIfWider();
 		repaint();
 	}
+
+	private void revalidateIfWider() {
+		long lineCount = fileViewer != null ? fileViewer.getLineCount() : getLineIndex().getLineCount();
+		if (Math.max(MIN_DIGITS, DigitAtlas.digitCount(lineCount)) != digits) {
+			revalidate();
+		}
+	}
 }
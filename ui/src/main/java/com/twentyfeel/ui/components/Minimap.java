@@ -0,0 +1,322 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import com.twentyfeel.ui.FrameScheduler;
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.document.LineChangeEvent;
+import com.twentyfeel.ui.document.LineIndex;
+import com.twentyfeel.ui.document.TextSnapshot;
+
+import javax.swing.*;
+import javax.swing.text.PlainDocument;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Overview of the whole document beside the editor, with the visible part marked.
+ * <p>
+ * The document is drawn into an image with one pixel row for every {@code N} lines, as many as
+ * fit the height, and one pixel column per character column. The shade of a pixel is the share
+ * of non-blank characters in its column, sampled from at most {@value #SAMPLE_LINES} lines of
+ * its band, between the background and foreground colors of the text area. The cost of a full
+ * render so depends on the height of the map rather than the length of the document.
+ * </p>
+ * <p>
+ * Rendering happens on a background thread from a snapshot of the text, with the band offsets
+ * taken from the {@link LineIndex} on the event dispatch thread. After edits only the bands of
+ * the changed lines are rendered again, or all bands after them when lines were added or
+ * removed. One render runs at a time and picks up what was changed meanwhile when it is done.
+ * Painting only copies the image and draws the viewport indicator, which follows the vertical
+ * scroll bar; pressing or dragging on the map scrolls there.
+ * </p>
+ */
+public class Minimap extends JComponent {
+	private static final int MAP_WIDTH = 80;
+	private static final int SAMPLE_LINES = 16;
+	private static final int MIN_INDICATOR_HEIGHT = 4;
+	private static final float MAX_SHADE = 0.6f;
+	private static final int DEFAULT_TAB_SIZE = 8;
+
+	private final JTextArea textArea;
+	private final JScrollBar scrollBar;
+	private final Runnable startRendering = this::startRendering;
+
+	private BufferedImage image;
+	private int linesPerRow = 1;
+	private int dirtyFrom = Integer.MAX_VALUE;
+	private int dirtyTo;
+	private boolean rendering;
+	/**
+	 * Bumped whenever the image is replaced, so that renders for the previous one are dropped.
+	 */
+	private int generation;
+
+	public Minimap(JTextArea textArea, JScrollPane scrollPane) {
+		this.textArea = textArea;
+		this.scrollBar = scrollPane.getVerticalScrollBar();
+		setOpaque(true);
+		scrollBar.getModel().addChangeListener(e -> repaint());
+		textArea.addPropertyChangeListener("document", e -> relayout(true));
+		MouseAdapter scroller = new MouseAdapter() {
+			@Override
+			public void mousePressed(MouseEvent e) {
+				scrollTo(e.getY());
+			}
+
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				scrollTo(e.getY());
+			}
+		};
+		addMouseListener(scroller);
+		addMouseMotionListener(scroller);
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		return new Dimension(MAP_WIDTH, 0);
+	}
+
+	@Override
+	public void updateUI() {
+		super.updateUI();
+		// The colors of the new look and feel
+		if (textArea != null) {
+			relayout(true);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void reshape(int x, int y, int width, int height) {
+		boolean resized = height != getHeight();
+		super.reshape(x, y, width, height);
+		if (resized) {
+			relayout(false);
+		}
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		runOnNextFrame(startRendering);
+	}
+
+	/**
+	 * Renders the bands of the lines an edit changed again.
+	 *
+	 * @param e the changed lines
+	 */
+	public void linesChanged(LineChangeEvent e) {
+		if (relayout(false) || image == null) {
+			return;
+		}
+		int lastRow = e.getLineCountDelta() != 0 ? image.getHeight() - 1 : e.getLastLine() / linesPerRow;
+		markDirty(e.getFirstLine() / linesPerRow, lastRow + 1);
+	}
+
+	private int rowsFor(int lineCount, int lines) {
+		return (lineCount + lines - 1) / lines;
+	}
+
+	/**
+	 * Replaces the image when the line count or the height call for other bands.
+	 *
+	 * @param force whether to replace it anyway and render everything again
+	 * @return {@code true} if the image was replaced
+	 */
+	private boolean relayout(boolean force) {
+		if (!(textArea.getDocument() instanceof EditorDocument document)) {
+			return false;
+		}
+		int lineCount = document.getLineIndex().getLineCount();
+		int height = Math.max(1, getHeight());
+		int lines = Math.max(1, rowsFor(lineCount, height));
+		int rows = rowsFor(lineCount, lines);
+		if (!force && image != null && lines == linesPerRow && rows == image.getHeight()) {
+			return false;
+		}
+		linesPerRow = lines;
+		image = new BufferedImage(MAP_WIDTH, rows, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(textArea.getBackground());
+			g.fillRect(0, 0, MAP_WIDTH, rows);
+		} finally {
+			g.dispose();
+		}
+		generation++;
+		dirtyFrom = Integer.MAX_VALUE;
+		markDirty(0, rows);
+		repaint();
+		return true;
+	}
+
+	private void markDirty(int from, int to) {
+		dirtyFrom = Math.min(dirtyFrom, from);
+		dirtyTo = Math.max(dirtyTo, Math.min(to, image.getHeight()));
+		runOnNextFrame(startRendering);
+	}
+
+	/**
+	 * Starts rendering the dirty bands on a background thread, unless a render is running.
+	 */
+	private void startRendering() {
+		if (rendering || image == null || dirtyFrom >= dirtyTo || !isShowing() || !(textArea.getDocument() instanceof EditorDocument document)) {
+			return;
+		}
+		int from = dirtyFrom;
+		int to = dirtyTo;
+		dirtyFrom = Integer.MAX_VALUE;
+		dirtyTo = 0;
+
+		// Where each band starts and how many lines it has, from the index while it matches the snapshot
+		LineIndex lineIndex = document.getLineIndex();
+		int lineCount = lineIndex.getLineCount();
+		int[] starts = new int[to - from];
+		int[] lines = new int[to - from];
+		for (int row = from; row < to; row++) {
+			int line = Math.min(row * linesPerRow, lineCount - 1);
+			starts[row - from] = lineIndex.getLineStartOffset(line);
+			lines[row - from] = Math.min(Math.min(linesPerRow, lineCount - line), SAMPLE_LINES);
+		}
+		TextSnapshot snapshot = document.snapshot();
+		int tabSize = document.getProperty(PlainDocument.tabSizeAttribute) instanceof Integer size ? size : DEFAULT_TAB_SIZE;
+		Color background = textArea.getBackground();
+		Color foreground = textArea.getForeground();
+		int job = generation;
+		rendering = true;
+		Thread.ofVirtual().name("zizi-minimap").start(() -> {
+			int[] pixels = render(snapshot, starts, lines, tabSize, background, foreground);
+			SwingUtilities.invokeLater(() -> applyRender(job, from, to, pixels));
+		});
+	}
+
+	/**
+	 * Shades the bands, one pixel row each.
+	 *
+	 * @param starts the offset of the first line of every band
+	 * @param lines  the number of lines to sample in every band
+	 */
+	private static int[] render(TextSnapshot text, int[] starts, int[] lines, int tabSize, Color background, Color foreground) {
+		int[] shades = new int[256];
+		for (int i = 0; i < shades.length; i++) {
+			shades[i] = blend(background, foreground, i / 255f * MAX_SHADE);
+		}
+		int[] pixels = new int[starts.length * MAP_WIDTH];
+		int[] counts = new int[MAP_WIDTH];
+		char[] buffer = new char[1024];
+		int length = text.length();
+		for (int row = 0; row < starts.length; row++) {
+			Arrays.fill(counts, 0);
+			int offset = starts[row];
+			int bufferStart = offset;
+			int bufferLength = 0;
+			for (int line = 0; line < lines[row] && offset < length; line++) {
+				int column = 0;
+				// Characters past the width of the map are skipped up to the newline
+				while (offset < length) {
+					if (offset >= bufferStart + bufferLength) {
+						bufferStart = offset;
+						bufferLength = Math.min(buffer.length, length - offset);
+						text.getChars(offset, bufferLength, buffer, 0);
+					}
+					char c = buffer[offset++ - bufferStart];
+					if (c == '\n') {
+						break;
+					}
+					if (column >= MAP_WIDTH) {
+						continue;
+					}
+					if (c == '\t') {
+						column = (column / tabSize + 1) * tabSize;
+					} else {
+						if (!Character.isWhitespace(c)) {
+							counts[column]++;
+						}
+						column++;
+					}
+				}
+			}
+			int sampled = Math.max(1, lines[row]);
+			for (int x = 0; x < MAP_WIDTH; x++) {
+				pixels[row * MAP_WIDTH + x] = shades[counts[x] * 255 / sampled];
+			}
+		}
+		return pixels;
+	}
+
+	private static int blend(Color background, Color foreground, float alpha) {
+		int r = Math.round(background.getRed() + (foreground.getRed() - background.getRed()) * alpha);
+		int g = Math.round(background.getGreen() + (foreground.getGreen() - background.getGreen()) * alpha);
+		int b = Math.round(background.getBlue() + (foreground.getBlue() - background.getBlue()) * alpha);
+		return r << 16 | g << 8 | b;
+	}
+
+	private void applyRender(int job, int from, int to, int[] pixels) {
+		rendering = false;
+		if (job == generation) {
+			image.getRaster().setDataElements(0, from, MAP_WIDTH, to - from, pixels);
+			int scale = rowScale();
+			repaint(0, from * scale, getWidth(), (to - from) * scale);
+		}
+		startRendering();
+	}
+
+	/**
+	 * Returns the height of a pixel row on screen: short documents are drawn two pixels per line
+	 * where that fits, so that they stay legible.
+	 */
+	private int rowScale() {
+		return linesPerRow == 1 && image.getHeight() * 2 <= getHeight() ? 2 : 1;
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		g.setColor(textArea.getBackground());
+		g.fillRect(0, 0, getWidth(), getHeight());
+		if (image == null) {
+			return;
+		}
+		int mapHeight = image.getHeight() * rowScale();
+		g.drawImage(image, 0, 0, MAP_WIDTH, mapHeight, null);
+
+		BoundedRangeModel model = scrollBar.getModel();
+		int range = model.getMaximum() - model.getMinimum();
+		if (range <= 0) {
+			return;
+		}
+		int y = (int) ((long) (model.getValue() - model.getMinimum()) * mapHeight / range);
+		int height = Math.max(MIN_INDICATOR_HEIGHT, (int) ((long) model.getExtent() * mapHeight / range));
+		Color thumb = UIManager.getColor("ScrollBar.thumb");
+		Color indicator = thumb != null ? thumb : textArea.getSelectionColor();
+		g.setColor(new Color(indicator.getRed(), indicator.getGreen(), indicator.getBlue(), 0x50));
+		g.fillRect(0, y, getWidth(), height);
+	}
+
+	/**
+	 * Scrolls the editor so that the indicator is centered at a height of the map.
+	 */
+	private void scrollTo(int y) {
+		if (image == null) {
+			return;
+		}
+		BoundedRangeModel model = scrollBar.getModel();
+		int mapHeight = image.getHeight() * rowScale();
+		long range = model.getMaximum() - model.getMinimum();
+		int value = model.getMinimum() + (int) (Math.max(0, Math.min(y, mapHeight)) * range / mapHeight) - model.getExtent() / 2;
+		model.setValue(value);
+	}
+
+	private void runOnNextFrame(Runnable task) {
+		FrameScheduler scheduler = FrameScheduler.forComponent(this);
+		if (scheduler != null) {
+			scheduler.runOnNextFrame(task);
+		} else {
+			SwingUtilities.invokeLater(task);
+		}
+	}
+}
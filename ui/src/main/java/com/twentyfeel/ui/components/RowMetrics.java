@@ -0,0 +1,255 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+import javax.swing.text.Utilities;
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.text.BreakIterator;
+import java.util.Arrays;
+
+/**
+ * Measures rows of text in one font, with tab stops counted from the start of the row.
+ * <p>
+ * Swing measures text one character at a time through the font, allocating for every
+ * character. With a fixed-pitch font, such as the editor's default, every character of most
+ * lines has the same advance, so x positions follow from the column and the tab stops by
+ * arithmetic. Lines are classified once by their characters: {@link #PLAIN} and {@link #TABS}
+ * lines take the arithmetic path, while lines with wide, combining, control or non-BMP
+ * characters, or characters the font cannot display, are {@link #MIXED} and measured glyph by
+ * glyph as before. Instances are immutable and may be used from any thread.
+ * </p>
+ */
+final class RowMetrics {
+	static final byte UNKNOWN = 0;
+	static final byte PLAIN = 1;
+	static final byte TABS = 2;
+	static final byte MIXED = 3;
+
+	private static final int[] SINGLE_ROW = new int[0];
+	private static final String PITCH_PROBE = "miW .@1_";
+
+	private final Font font;
+	private final FontMetrics metrics;
+	private final int tabWidth;
+	private final float advance;
+	private final TabExpander tabs;
+
+	/**
+	 * Creates metrics for a font.
+	 *
+	 * @param metrics the metrics of the font, as the text component measures it
+	 * @param tabSize the number of columns between tab stops
+	 */
+	RowMetrics(FontMetrics metrics, int tabSize) {
+		this.metrics = metrics;
+		this.font = metrics.getFont();
+		this.tabWidth = Math.max(1, tabSize * metrics.charWidth('m'));
+		this.advance = fixedAdvance(font, metrics.getFontRenderContext());
+		int tab = tabWidth;
+		this.tabs = (x, tabOffset) -> ((int) x / tab + 1) * tab;
+	}
+
+	/**
+	 * Returns the advance shared by all characters of a fixed-pitch font, as Swing measures it.
+	 */
+	private static float fixedAdvance(Font font, FontRenderContext context) {
+		float advance = (float) font.getStringBounds(PITCH_PROBE, 0, 1, context).getWidth();
+		for (int i = 1; i < PITCH_PROBE.length(); i++) {
+			if ((float) font.getStringBounds(PITCH_PROBE, i, i + 1, context).getWidth() != advance) {
+				return 0;
+			}
+		}
+		return advance;
+	}
+
+	FontMetrics getFontMetrics() {
+		return metrics;
+	}
+
+	int getTabWidth() {
+		return tabWidth;
+	}
+
+	/**
+	 * Returns the advance of every character, if the font is fixed-pitch.
+	 *
+	 * @return the advance, or 0 if the font is proportional
+	 */
+	float getAdvance() {
+		return advance;
+	}
+
+	/**
+	 * Classifies a line by its characters.
+	 *
+	 * @param text the characters
+	 * @param from the first character of the line
+	 * @param to   the end of the line
+	 * @return {@link #PLAIN}, {@link #TABS} or {@link #MIXED}
+	 */
+	byte classify(char[] text, int from, int to) {
+		if (advance == 0) {
+			return MIXED;
+		}
+		byte kind = PLAIN;
+		for (int i = from; i < to; i++) {
+			char c = text[i];
+			if (c >= ' ' && c < 0x7F) {
+				continue;
+			}
+			if (c == '\t') {
+				kind = TABS;
+			} else if (!hasAdvance(c)) {
+				return MIXED;
+			}
+		}
+		return kind;
+	}
+
+	private boolean hasAdvance(char c) {
+		if (c < ' ' || Character.isSurrogate(c) || isWide(c)) {
+			return false;
+		}
+		int type = Character.getType(c);
+		if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK || type == Character.COMBINING_SPACING_MARK
+			|| type == Character.FORMAT || type == Character.CONTROL || type == Character.UNASSIGNED) {
+			return false;
+		}
+		// Characters the font lacks come from a fallback font with its own advances
+		return font.canDisplay(c);
+	}
+
+	/**
+	 * Tells whether a character takes two columns in East Asian text, after Markus Kuhn's
+	 * {@code wcwidth}.
+	 */
+	private static boolean isWide(char c) {
+		return c >= 0x1100 && (c <= 0x115F || c == 0x2329 || c == 0x232A
+			|| c >= 0x2E80 && c <= 0xA4CF && c != 0x303F
+			|| c >= 0xAC00 && c <= 0xD7A3
+			|| c >= 0xF900 && c <= 0xFAFF
+			|| c >= 0xFE10 && c <= 0xFE19
+			|| c >= 0xFE30 && c <= 0xFE6F
+			|| c >= 0xFF00 && c <= 0xFF60
+			|| c >= 0xFFE0 && c <= 0xFFE6);
+	}
+
+	private boolean isArithmetic(byte kind) {
+		return kind == PLAIN || kind == TABS;
+	}
+
+	/**
+	 * Returns the width of the start of a row.
+	 *
+	 * @param row         the text from the start of the row
+	 * @param startOffset the offset of the row in the document
+	 * @param kind        the class of the line
+	 * @return the width
+	 */
+	float width(Segment row, int startOffset, byte kind) {
+		if (kind == PLAIN) {
+			return row.count * advance;
+		}
+		if (kind == TABS) {
+			float x = 0;
+			for (int i = row.offset, end = row.offset + row.count; i < end; i++) {
+				x = row.array[i] == '\t' ? ((int) x / tabWidth + 1) * tabWidth : x + advance;
+			}
+			return x;
+		}
+		return Utilities.getTabbedTextWidth(row, metrics, 0f, tabs, startOffset);
+	}
+
+	/**
+	 * Returns the number of characters of a row before an x position.
+	 *
+	 * @param row         the text of the row
+	 * @param startOffset the offset of the row in the document
+	 * @param x           the position, from the start of the row
+	 * @param kind        the class of the line
+	 * @param round       whether to round to the nearest character boundary, rather than count
+	 *                    only the characters that end before {@code x}
+	 * @return the number of characters
+	 */
+	int offset(Segment row, int startOffset, float x, byte kind, boolean round) {
+		if (!isArithmetic(kind)) {
+			return Utilities.getTabbedTextOffset(row, metrics, 0f, x, tabs, startOffset, round);
+		}
+		if (x <= 0) {
+			return 0;
+		}
+		if (kind == PLAIN) {
+			float columns = x / advance;
+			return (int) Math.min(row.count, round ? Math.round(columns) : (long) columns);
+		}
+		float position = 0;
+		for (int i = row.offset, end = row.offset + row.count; i < end; i++) {
+			float next = row.array[i] == '\t' ? ((int) position / tabWidth + 1) * tabWidth : position + advance;
+			if (x < next) {
+				return i - row.offset + (round && next - x <= x - position ? 1 : 0);
+			}
+			position = next;
+		}
+		return row.count;
+	}
+
+	/**
+	 * Finds where a line breaks into rows of at most the given width, the way Swing's wrapped
+	 * view does. Without word wrapping a row takes as many characters as fit. With it, the row
+	 * ends after the last whitespace that fits, and a whitespace just past the edge stays on the
+	 * row rather than starting the next one.
+	 *
+	 * @param line        the text of the line, without its newline
+	 * @param startOffset the offset of the line in the document
+	 * @param width       the width of a row
+	 * @param kind        the class of the line
+	 * @param wordWrap    whether rows break between words
+	 * @return the offsets of the rows after the first, relative to the line start
+	 */
+	int[] wrap(Segment line, int startOffset, int width, byte kind, boolean wordWrap) {
+		char[] text = line.array;
+		int end = line.offset + line.count;
+		Segment row = new Segment(text, line.offset, line.count);
+		int[] found = SINGLE_ROW;
+		int count = 0;
+		while (true) {
+			int fit = offset(row, startOffset + row.offset - line.offset, width, kind, false);
+			if (fit >= row.count) {
+				break;
+			}
+			int rowEnd = row.offset + fit;
+			if (wordWrap) {
+				rowEnd = wordBreak(row, rowEnd);
+			}
+			rowEnd = Math.max(rowEnd, row.offset + 1);
+			if (count == found.length) {
+				found = Arrays.copyOf(found, Math.max(4, count * 2));
+			}
+			found[count++] = rowEnd - line.offset;
+			row.offset = rowEnd;
+			row.count = end - rowEnd;
+		}
+		return count == found.length ? found : Arrays.copyOf(found, count);
+	}
+
+	private static int wordBreak(Segment row, int overflow) {
+		char[] text = row.array;
+		for (int i = overflow; i >= row.offset; i--) {
+			char c = text[i];
+			if (c < 256) {
+				if (Character.isWhitespace(c)) {
+					return i + 1;
+				}
+			} else {
+				// Beyond Latin-1, words are found with a line break iterator, as Swing does
+				BreakIterator lines = BreakIterator.getLineInstance();
+				lines.setText(row);
+				int position = lines.preceding(i + 1);
+				return position > row.offset ? position : overflow;
+			}
+		}
+		return overflow;
+	}
+}
@@ -1,6 +1,8 @@
 // Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
 package com.twentyfeel.ui.components;
 
+import com.twentyfeel.ui.metrics.FrameMetrics;
+
 import javax.swing.*;
 import java.awt.*;
 
@@ -8,7 +10,8 @@ public class StatusBar extends JPanel {
 	private static final int PADDING = 10;
 
 	private JLabel positionLabel;
-	private JLabel fpsLabel;
+	private JLabel messageLabel;
+	private JLabel frameLabel;
 
 	public StatusBar() {
 		setLayout(new BorderLayout());
@@ -16,18 +19,39 @@ public class StatusBar extends JPanel {
 		positionLabel = new JLabel("Line 1, Column 1");
 		positionLabel.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, PADDING));
 
-		fpsLabel = new JLabel("FPS 0");
-		fpsLabel.setBorder(BorderFactory.createEmptyBorder(0, PADDING, 0, 0));
+		frameLabel = new JLabel("Idle");
+		frameLabel.setBorder(BorderFactory.createEmptyBorder(0, PADDING, 0, 0));
+
+		messageLabel = new JLabel();
+		messageLabel.setHorizontalAlignment(SwingConstants.CENTER);
 
-		add(fpsLabel, BorderLayout.WEST);
+		add(frameLabel, BorderLayout.WEST);
+		add(messageLabel, BorderLayout.CENTER);
 		add(positionLabel, BorderLayout.EAST);
 	}
 
-	public void updateStatus(int line, int col) {
+	public void updateStatus(long line, int col) {
 		positionLabel.setText("Line " + line + ", Column " + col);
 	}
 
-	public void updateFps(int fps) {
-		fpsLabel.setText("FPS " + fps);
+	public void setMessage(String message) {
+		messageLabel.setText(message);
+	}
+
+	/**
+	 * Shows the frame rate and frame times of the last second.
+	 *
+	 * @param fps  the frames drawn in the last second
+	 * @param p50  the median frame time in nanoseconds
+	 * @param p99  the 99th percentile frame time in nanoseconds
+	 * @param max  the longest frame time in nanoseconds
+	 */
+	public void updateFrameStats(int fps, long p50, long p99, long max) {
+		if (fps == 0) {
+			frameLabel.setText("Idle");
+			return;
+		}
+		frameLabel.setText(String.format("%d fps  p50 %s  p99 %s  max %s", fps,
+			FrameMetrics.formatMillis(p50), FrameMetrics.formatMillis(p99), FrameMetrics.formatMillis(max)));
 	}
 }
@@ -1,55 +1,630 @@
 // Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
 package com.twentyfeel.ui.components;
 
+import com.twentyfeel.ui.FrameScheduler;
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.document.LineChangeBatcher;
+import com.twentyfeel.ui.document.LineChangeListener;
+import com.twentyfeel.ui.document.LineIndex;
+import com.twentyfeel.ui.document.TextSnapshot;
+import com.twentyfeel.ui.io.DiskImage;
+import com.twentyfeel.ui.io.DocumentLoader;
+import com.twentyfeel.ui.io.DocumentSaver;
+import com.twentyfeel.ui.io.EditJournal;
+import com.twentyfeel.ui.io.FileFollower;
+import com.twentyfeel.ui.io.GzipIndex;
+import com.twentyfeel.ui.io.MappedFile;
+
 import javax.swing.*;
-import javax.swing.event.DocumentEvent;
-import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
 import javax.swing.text.PlainDocument;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class TextArea extends JPanel {
+	private static final String GO_TO_LINE_ACTION = "goToLine";
+	private static final String FIND_ACTION = "find";
+	private static final int TAB_SIZE = 4;
+	/**
+	 * Document property set to {@link Boolean#TRUE} for text decompressed from a gzip file.
+	 */
+	private static final String COMPRESSED_PROPERTY = "zizi.compressed";
+	/**
+	 * Document property with the {@link IOException} that ended loading the document early.
+	 */
+	private static final String LOAD_ERROR_PROPERTY = "zizi.loadError";
+
 	private JTextArea textArea;
 	private LineNumbers lineNumbers;
+	private Minimap minimap;
 	private JScrollPane textScrollPane;
+	private FileViewer fileViewer;
+	private JPanel viewerPanel;
+	private LineChangeBatcher lineChangeBatcher;
+	private DocumentLoader loader;
+	private DocumentSaver saver;
+	private Runnable pendingSave;
+	private FileFollower follower;
+	private EditJournal journal;
+	private IOException journalError;
+	private BiConsumer<EditJournal, EditJournal> journalListener;
+	private String lastSearch = "";
 
 	public TextArea() {
 		setLayout(new BorderLayout());
-		textArea = new JTextArea();
+		textArea = new EditorTextArea(new EditorDocument());
 
 		// CONFIG
 		textArea.setLineWrap(true);
 		textArea.setWrapStyleWord(true);
 		textArea.setMargin(new Insets(1, 1, 1, 1));
 		textArea.setFont(new Font("IBM Plex Mono", Font.PLAIN, 14));
-		int tabSize = 4;
-		textArea.getDocument().putProperty(PlainDocument.tabSizeAttribute, tabSize);
+		textArea.getDocument().putProperty(PlainDocument.tabSizeAttribute, TAB_SIZE);
 
 		lineNumbers = new LineNumbers(textArea);
-		textScrollPane = new JScrollPane(textArea);
+		textScrollPane = new JScrollPane();
+		textScrollPane.setViewport(new TextViewport());
+		textScrollPane.setViewportView(textArea);
 		textScrollPane.setBorder(null);
 		textScrollPane.setRowHeaderView(lineNumbers);
 		lineNumbers.setScrollPane(textScrollPane);
 
+		minimap = new Minimap(textArea, textScrollPane);
+
 		add(textScrollPane, BorderLayout.CENTER);
+		add(minimap, BorderLayout.EAST);
+
+		lineChangeBatcher = new LineChangeBatcher((EditorDocument) textArea.getDocument(), this::runOnNextFrame);
+		lineChangeBatcher.addLineChangeListener(lineNumbers::linesChanged);
+		lineChangeBatcher.addLineChangeListener(minimap::linesChanged);
+
+		installGoToLine();
+		installFind();
+	}
+
+	private void runOnNextFrame(Runnable task) {
+		FrameScheduler scheduler = FrameScheduler.forComponent(this);
+		if (scheduler != null) {
+			scheduler.runOnNextFrame(task);
+		} else {
+			SwingUtilities.invokeLater(task);
+		}
+	}
+
+	/**
+	 * Adds a listener notified once per frame with the lines changed by all edits of that frame.
+	 *
+	 * @param listener the listener
+	 */
+	public void addLineChangeListener(LineChangeListener listener) {
+		lineChangeBatcher.addLineChangeListener(listener);
+	}
+
+	public void removeLineChangeListener(LineChangeListener listener) {
+		lineChangeBatcher.removeLineChangeListener(listener);
+	}
 
-		textArea.getDocument().addDocumentListener(new DocumentListener() {
+	private void installGoToLine() {
+		int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+		textArea.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_G, shortcut), GO_TO_LINE_ACTION);
+		textArea.getActionMap().put(GO_TO_LINE_ACTION, new AbstractAction() {
 			@Override
-			public void insertUpdate(DocumentEvent e) {
-				lineNumbers.refresh();
+			public void actionPerformed(ActionEvent e) {
+				String input = JOptionPane.showInputDialog(TextArea.this, "Go to line:");
+				if (input == null) {
+					return;
+				}
+				try {
+					goToLine(Integer.parseInt(input.trim()));
+				} catch (NumberFormatException ex) {
+					UIManager.getLookAndFeel().provideErrorFeedback(textArea);
+				}
 			}
+		});
+	}
 
+	private void installFind() {
+		int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+		textArea.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_F, shortcut), FIND_ACTION);
+		textArea.getActionMap().put(FIND_ACTION, new AbstractAction() {
 			@Override
-			public void removeUpdate(DocumentEvent e) {
-				lineNumbers.refresh();
+			public void actionPerformed(ActionEvent e) {
+				Object input = JOptionPane.showInputDialog(TextArea.this, "Find:", "Find", JOptionPane.PLAIN_MESSAGE, null, null, lastSearch);
+				if (input == null || input.toString().isEmpty()) {
+					return;
+				}
+				lastSearch = input.toString();
+				if (!findNext(lastSearch)) {
+					UIManager.getLookAndFeel().provideErrorFeedback(textArea);
+				}
 			}
+		});
+	}
 
-			@Override
-			public void changedUpdate(DocumentEvent e) {
-				lineNumbers.refresh();
+	/**
+	 * Selects the next occurrence of a string after the caret, wrapping around to the start of
+	 * the document. While a file is loading, only the part loaded so far is searched.
+	 *
+	 * @param text the string to find
+	 * @return {@code true} if it was found
+	 */
+	public boolean findNext(String text) {
+		EditorDocument document = (EditorDocument) textArea.getDocument();
+		int from = Math.max(textArea.getSelectionEnd(), textArea.getCaretPosition());
+		int match = document.indexOf(text, from);
+		if (match < 0 && from > 0) {
+			match = document.indexOf(text, 0);
+		}
+		if (match < 0) {
+			return false;
+		}
+		textArea.select(match, match + text.length());
+		textArea.requestFocusInWindow();
+		return true;
+	}
+
+	/**
+	 * Opens a file in a new document and streams its text in on a background thread. The part
+	 * that has been loaded can be scrolled and searched right away; editing is enabled once the
+	 * whole file is in. Edits left unsaved in the journal of the file are then applied, and all
+	 * further edits are journaled until they are saved. A gzip file is decompressed as it is read
+	 * and stays read-only.
+	 *
+	 * @param path     the file to open
+	 * @param progress called on the event dispatch thread as text arrives and when loading ends
+	 * @return the loader, already started
+	 */
+	public DocumentLoader openFile(Path path, Consumer<DocumentLoader> progress) {
+		return openFile(path, false, progress);
+	}
+
+	private DocumentLoader openFile(Path path, boolean following, Consumer<DocumentLoader> progress) {
+		closeViewer();
+		stopFollowing();
+		closeJournal();
+		journalError = null;
+		if (loader != null) {
+			loader.cancel();
+		}
+
+		EditorDocument document = new EditorDocument();
+		document.putProperty(PlainDocument.tabSizeAttribute, TAB_SIZE);
+		document.putProperty(Document.StreamDescriptionProperty, path);
+		textArea.setDocument(document);
+		lineChangeBatcher.setDocument(document);
+
+		// Keep the caret on the first line instead of following the appended text
+		DefaultCaret caret = (DefaultCaret) textArea.getCaret();
+		caret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+		textArea.setEditable(false);
+
+		DocumentLoader fileLoader = new DocumentLoader(path, document, this::runOnNextFrame);
+		fileLoader.setFollowing(following);
+		loader = fileLoader;
+		fileLoader.start(() -> {
+			if (fileLoader.isDone() && loader == fileLoader) {
+				loader = null;
+				if (fileLoader.getDocument() != document) {
+					replaceDocument((EditorDocument) fileLoader.getDocument(), document);
+				}
+				fileLoader.getDocument().putProperty(DiskImage.class, fileLoader.getDiskImage());
+				fileLoader.getDocument().putProperty(GzipIndex.class, fileLoader.getGzipIndex());
+				// Also when the load failed, so that the partial text is never saved over the file
+				fileLoader.getDocument().putProperty(COMPRESSED_PROPERTY, fileLoader.isCompressed());
+				fileLoader.getDocument().putProperty(LOAD_ERROR_PROPERTY, fileLoader.getError());
+				caret.setUpdatePolicy(DefaultCaret.UPDATE_WHEN_ON_EDT);
+				// Compressed files are not saved back, so they stay read-only
+				textArea.setEditable(!fileLoader.isCompressed());
+				if (!following && fileLoader.getError() == null && !fileLoader.isCompressed()) {
+					recoverJournal((EditorDocument) fileLoader.getDocument(), fileLoader.getDiskImage());
+				}
+			}
+			progress.accept(fileLoader);
+		});
+		return fileLoader;
+	}
+
+	/**
+	 * Opens a file like {@link #openFile(Path, Consumer)} and then keeps appending what is written
+	 * to its end, like {@code tail -f}. The document stays read-only while following. The view
+	 * scrolls along with the appended text as long as it is scrolled to the end; once the user
+	 * scrolls away, it stays where it is. A gzip file is only opened, not followed.
+	 *
+	 * @param path           the file to follow
+	 * @param progress       called on the event dispatch thread while the file loads
+	 * @param followProgress called on the event dispatch thread after text was appended
+	 * @return the loader, already started
+	 */
+	public DocumentLoader followFile(Path path, Consumer<DocumentLoader> progress, Consumer<FileFollower> followProgress) {
+		return openFile(path, true, fileLoader -> {
+			if (fileLoader.isDone() && fileLoader.getError() == null && !fileLoader.isCompressed() && textArea.getDocument() == fileLoader.getDocument()) {
+				FileFollower fileFollower = new FileFollower(path, (EditorDocument) fileLoader.getDocument(), StandardCharsets.UTF_8,
+					fileLoader.getTextBytes(), autoScrolling(this::runOnNextFrame));
+				follower = fileFollower;
+				((DefaultCaret) textArea.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+				textArea.setEditable(false);
+				fileFollower.start(() -> followProgress.accept(fileFollower));
+			}
+			progress.accept(fileLoader);
+		});
+	}
+
+	/**
+	 * Stops following the file, if one is followed, and makes the document editable again.
+	 */
+	public void stopFollowing() {
+		if (follower == null) {
+			return;
+		}
+		follower.stop();
+		follower = null;
+		((DefaultCaret) textArea.getCaret()).setUpdatePolicy(DefaultCaret.UPDATE_WHEN_ON_EDT);
+		textArea.setEditable(true);
+	}
+
+	/**
+	 * Returns whether a file is being followed.
+	 *
+	 * @return {@code true} while following
+	 */
+	public boolean isFollowing() {
+		return follower != null;
+	}
+
+	/**
+	 * Wraps an executor so that, if the view is scrolled to the end when a task runs, it is
+	 * scrolled to the new end after the task.
+	 */
+	private Executor autoScrolling(Executor executor) {
+		JScrollBar bar = textScrollPane.getVerticalScrollBar();
+		return task -> executor.execute(() -> {
+			boolean atEnd = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+			task.run();
+			if (atEnd) {
+				// Lay out now so the scroll bar knows the new height
+				textScrollPane.validate();
+				bar.setValue(bar.getMaximum() - bar.getVisibleAmount());
+			}
+		});
+	}
+
+	/**
+	 * Stops all background work on the document: loading, following and journaling. Unsaved
+	 * edits stay in the journal.
+	 */
+	public void close() {
+		if (loader != null) {
+			loader.cancel();
+			loader = null;
+		}
+		stopFollowing();
+		closeJournal();
+		closeViewer();
+	}
+
+	/**
+	 * Returns whether a file is still being loaded into the editor.
+	 *
+	 * @return {@code true} while loading
+	 */
+	public boolean isLoading() {
+		return loader != null;
+	}
+
+	/**
+	 * Returns whether a save is running or waiting for the running one.
+	 *
+	 * @return {@code true} while saving
+	 */
+	public boolean isSaving() {
+		return saver != null;
+	}
+
+	/**
+	 * Returns whether the document differs from the file it was loaded from or last saved to. A
+	 * new document is modified once it holds any text. Edits that were undone do not count.
+	 *
+	 * @return {@code true} if closing the document would lose text
+	 */
+	public boolean isModified() {
+		if (fileViewer != null || isCompressed()) {
+			return false;
+		}
+		EditorDocument document = (EditorDocument) textArea.getDocument();
+		if (!(document.getProperty(DiskImage.class) instanceof DiskImage image)) {
+			return document.getLength() > 0 || isLoading();
+		}
+		TextSnapshot saved = image.getText();
+		TextSnapshot current = document.snapshot();
+		int[] differences = current.differences(saved);
+		return differences == null || differences.length > 0 || current.length() != saved.length();
+	}
+
+	/**
+	 * Returns whether the document was decompressed from a gzip file. Such a document is
+	 * read-only.
+	 *
+	 * @return {@code true} for a decompressed file
+	 */
+	public boolean isCompressed() {
+		return Boolean.TRUE.equals(textArea.getDocument().getProperty(COMPRESSED_PROPERTY));
+	}
+
+	/**
+	 * Returns why the document could not be loaded completely. Such a document holds only part
+	 * of its file and is not saved.
+	 *
+	 * @return the error, or {@code null} if the document was loaded completely or is new
+	 */
+	public IOException getLoadError() {
+		return textArea.getDocument().getProperty(LOAD_ERROR_PROPERTY) instanceof IOException error ? error : null;
+	}
+
+	/**
+	 * Estimates the heap taken by the document. A viewer takes none, as its file is mapped.
+	 *
+	 * @return the footprint in bytes
+	 */
+	public long getMemoryFootprint() {
+		return fileViewer != null ? 0 : ((EditorDocument) textArea.getDocument()).getStorageSize();
+	}
+
+	/**
+	 * Returns the file the document was opened from or last saved to.
+	 *
+	 * @return the file, or {@code null} for a new document
+	 */
+	public Path getFilePath() {
+		return textArea.getDocument().getProperty(Document.StreamDescriptionProperty) instanceof Path path ? path : null;
+	}
+
+	/**
+	 * Saves a snapshot of the document on a background thread, with the line separator it was
+	 * loaded with, writing only the changed parts of the file where possible. Editing can go on
+	 * meanwhile. If a save is still running, this one starts with
+	 * a fresh snapshot once that has finished, so saves never overtake each other.
+	 *
+	 * @param path     the file to write
+	 * @param progress called on the event dispatch thread while writing and when the save ends
+	 * @throws IllegalStateException if a file is still loading
+	 */
+	public void saveFile(Path path, Consumer<DocumentSaver> progress) {
+		if (loader != null) {
+			throw new IllegalStateException("Cannot save while " + loader.getPath() + " is loading");
+		}
+		if (saver != null) {
+			pendingSave = () -> saveFile(path, progress);
+			return;
+		}
+
+		EditorDocument document = (EditorDocument) textArea.getDocument();
+		DocumentSaver fileSaver = new DocumentSaver(path, document.snapshot(),
+			(String) document.getProperty(DefaultEditorKit.EndOfLineStringProperty), this::runOnNextFrame);
+		fileSaver.setBaseline((DiskImage) document.getProperty(DiskImage.class));
+		saver = fileSaver;
+		fileSaver.start(() -> {
+			if (fileSaver.isDone() && saver == fileSaver) {
+				saver = null;
+				if (fileSaver.getError() == null) {
+					document.putProperty(Document.StreamDescriptionProperty, path);
+				}
+				// A failed save leaves the file in an unknown state, so the next one rewrites it
+				document.putProperty(DiskImage.class, fileSaver.getDiskImage());
+				if (fileSaver.getDiskImage() != null && textArea.getDocument() == document) {
+					journalSaved(document, fileSaver.getDiskImage());
+				}
+				if (pendingSave != null) {
+					Runnable next = pendingSave;
+					pendingSave = null;
+					next.run();
+				}
 			}
+			progress.accept(fileSaver);
 		});
 	}
 
+	private void recoverJournal(EditorDocument document, DiskImage image) {
+		try {
+			setJournal(EditJournal.recover(document, image));
+		} catch (IOException ex) {
+			// Leave the journal for a later attempt rather than overwrite it
+			journalError = ex;
+		}
+	}
+
+	/**
+	 * Records further edits against the saved file. After saving under another name, the journal
+	 * of the old file is no longer needed.
+	 */
+	private void journalSaved(EditorDocument document, DiskImage image) {
+		if (journal != null && journal.getFile().equals(image.getPath())) {
+			journal.rebase(image);
+			return;
+		}
+		if (journal != null) {
+			journal.discard();
+		}
+		EditJournal saved = new EditJournal(document, image);
+		saved.start();
+		setJournal(saved);
+	}
+
+	private void setJournal(EditJournal newJournal) {
+		EditJournal old = journal;
+		journal = newJournal;
+		if (journalListener != null) {
+			journalListener.accept(old, newJournal);
+		}
+	}
+
+	/**
+	 * Stops journaling the document. Unsaved edits stay in the journal to be recovered when the
+	 * file is opened again.
+	 */
+	public void closeJournal() {
+		if (journal != null) {
+			journal.close();
+			setJournal(null);
+		}
+	}
+
+	/**
+	 * Sets the listener told whenever the document starts or stops being journaled.
+	 *
+	 * @param journalListener called on the event dispatch thread with the journal that ended and
+	 *                        the one that started, either of which may be {@code null}
+	 */
+	public void setJournalListener(BiConsumer<EditJournal, EditJournal> journalListener) {
+		this.journalListener = journalListener;
+	}
+
+	/**
+	 * Returns the journal of the document.
+	 *
+	 * @return the journal, or {@code null} if edits are not journaled
+	 */
+	public EditJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Returns the error that kept the journal of the last opened file from being recovered.
+	 *
+	 * @return the error, or {@code null}
+	 */
+	public IOException getJournalError() {
+		return journalError;
+	}
+
+	/**
+	 * Swaps in a document whose text starts with the text of the current one, keeping the
+	 * selection and the scroll position.
+	 */
+	private void replaceDocument(EditorDocument replacement, EditorDocument current) {
+		replacement.putProperty(PlainDocument.tabSizeAttribute, current.getProperty(PlainDocument.tabSizeAttribute));
+		replacement.putProperty(Document.StreamDescriptionProperty, current.getProperty(Document.StreamDescriptionProperty));
+
+		int mark = textArea.getCaret().getMark();
+		int dot = textArea.getCaret().getDot();
+		Point viewPosition = textScrollPane.getViewport().getViewPosition();
+
+		textArea.setDocument(replacement);
+		lineChangeBatcher.setDocument(replacement);
+		textArea.getCaret().setDot(mark);
+		textArea.getCaret().moveDot(dot);
+		SwingUtilities.invokeLater(() -> textScrollPane.getViewport().setViewPosition(viewPosition));
+	}
+
+	/**
+	 * Returns the offset at the top left of the view.
+	 *
+	 * @return the offset
+	 */
+	public int getTopOffset() {
+		return Math.max(0, textArea.viewToModel2D(textScrollPane.getViewport().getViewPosition()));
+	}
+
+	/**
+	 * Restores a selection and scrolls the view so that an offset is at its top, as far as the
+	 * document allows, once the view has been laid out.
+	 *
+	 * @param dot       the caret offset
+	 * @param mark      the other end of the selection
+	 * @param topOffset the offset to show at the top
+	 */
+	public void restoreView(int dot, int mark, int topOffset) {
+		int length = textArea.getDocument().getLength();
+		textArea.getCaret().setDot(Math.min(Math.max(mark, 0), length));
+		textArea.getCaret().moveDot(Math.min(Math.max(dot, 0), length));
+		SwingUtilities.invokeLater(() -> {
+			try {
+				Rectangle2D top = textArea.modelToView2D(Math.min(Math.max(topOffset, 0), textArea.getDocument().getLength()));
+				JViewport viewport = textScrollPane.getViewport();
+				int maxY = Math.max(0, viewport.getViewSize().height - viewport.getExtentSize().height);
+				viewport.setViewPosition(new Point(0, Math.min((int) top.getY(), maxY)));
+			} catch (BadLocationException ex) {
+				// The document changed in the meantime, keep the caret in view instead
+			}
+		});
+	}
+
+	/**
+	 * Moves the caret to the start of a line, clamping to the first and last line.
+	 *
+	 * @param line the one-based line number
+	 */
+	public void goToLine(int line) {
+		LineIndex lineIndex = getLineIndex();
+		int target = Math.max(0, Math.min(line - 1, lineIndex.getLineCount() - 1));
+		textArea.setCaretPosition(lineIndex.getLineStartOffset(target));
+		textArea.requestFocusInWindow();
+	}
+
+	/**
+	 * Replaces the editor with a read-only, memory-mapped view of a file. This is meant for files
+	 * that are too large to load into a document.
+	 *
+	 * @param path the file to view
+	 * @return the viewer
+	 * @throws IOException if the file cannot be opened
+	 */
+	public FileViewer openViewer(Path path) throws IOException {
+		closeViewer();
+		stopFollowing();
+		closeJournal();
+		fileViewer = new FileViewer(new MappedFile(path));
+
+		viewerPanel = new JPanel(new BorderLayout());
+		viewerPanel.add(new LineNumbers(fileViewer), BorderLayout.WEST);
+		viewerPanel.add(fileViewer, BorderLayout.CENTER);
+		viewerPanel.add(fileViewer.getVerticalScrollBar(), BorderLayout.EAST);
+		viewerPanel.add(fileViewer.getHorizontalScrollBar(), BorderLayout.SOUTH);
+
+		remove(textScrollPane);
+		remove(minimap);
+		add(viewerPanel, BorderLayout.CENTER);
+		revalidate();
+		repaint();
+		fileViewer.requestFocusInWindow();
+		return fileViewer;
+	}
+
+	/**
+	 * Closes the file viewer, if one is open, and shows the editor again.
+	 */
+	public void closeViewer() {
+		if (fileViewer == null) {
+			return;
+		}
+		fileViewer.close();
+		remove(viewerPanel);
+		add(textScrollPane, BorderLayout.CENTER);
+		add(minimap, BorderLayout.EAST);
+		fileViewer = null;
+		viewerPanel = null;
+		revalidate();
+		repaint();
+	}
+
+	public FileViewer getFileViewer() {
+		return fileViewer;
+	}
+
+	public LineIndex getLineIndex() {
+		return ((EditorDocument) textArea.getDocument()).getLineIndex();
+	}
+
 	public JTextArea getTextArea() {
 		return textArea;
 	}
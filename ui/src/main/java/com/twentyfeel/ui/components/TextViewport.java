@@ -0,0 +1,239 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Viewport of the text area that keeps the rendered text in an accelerated image.
+ * <p>
+ * Swing's blit scrolling copies what is on the window, and falls back to painting the whole
+ * view whenever that is not possible. This viewport keeps its own {@link VolatileImage} of the
+ * visible part of the view instead. On a scroll the image is moved within itself and only the
+ * strip that came into view is rendered; on an edit only the regions the view asked to repaint,
+ * typically the bands of the changed lines, are rendered again. Every paint then copies the image
+ * to the screen.
+ * </p>
+ * <p>
+ * The image has the pixel size of the viewport at the scale of the graphics it is painted with,
+ * and is rendered again from scratch when that scale or the screen changes or its contents are
+ * lost. Headless, when printing, or where images cannot be accelerated, the viewport paints as
+ * usual.
+ * </p>
+ */
+final class TextViewport extends JViewport {
+	private static final int MAX_DIRTY_REGIONS = 8;
+	private static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * Regions of the view to render again, in view coordinates.
+	 */
+	private final List<Rectangle> dirty = new ArrayList<>();
+	private boolean retained;
+	private VolatileImage buffer;
+	private double bufferScale;
+	private Point bufferPosition;
+	private boolean bufferValid;
+	private boolean scrolling;
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		GraphicsConfiguration configuration = getGraphicsConfiguration();
+		retained = !GraphicsEnvironment.isHeadless() && configuration != null && configuration.getImageCapabilities().isAccelerated();
+		// The window blitter paints the view directly, around the image
+		setScrollMode(retained ? SIMPLE_SCROLL_MODE : BLIT_SCROLL_MODE);
+	}
+
+	@Override
+	public void removeNotify() {
+		super.removeNotify();
+		dropBuffer();
+	}
+
+	/**
+	 * Paints every repaint of the view through this viewport, so that it goes to the image.
+	 */
+	@Override
+	protected boolean isPaintingOrigin() {
+		return retained || super.isPaintingOrigin();
+	}
+
+	@Override
+	public void setViewPosition(Point p) {
+		scrolling = true;
+		try {
+			super.setViewPosition(p);
+		} finally {
+			scrolling = false;
+		}
+	}
+
+	/**
+	 * Marks what is repainted as changed, except the repaints of a scroll, which the image
+	 * follows by itself.
+	 */
+	@Override
+	public void repaint(long tm, int x, int y, int width, int height) {
+		if (!scrolling && getView() != null) {
+			Point position = getViewPosition();
+			viewChanged(x + position.x, y + position.y, width, height);
+		}
+		super.repaint(tm, x, y, width, height);
+	}
+
+	/**
+	 * Marks a region of the view to be rendered again. Called by the view for every repaint it
+	 * requests.
+	 */
+	void viewChanged(int x, int y, int width, int height) {
+		if (!retained || buffer == null || width <= 0 || height <= 0) {
+			return;
+		}
+		Rectangle region = new Rectangle(x, y, width, height);
+		for (Rectangle other : dirty) {
+			if (other.intersects(region)) {
+				other.add(region);
+				return;
+			}
+		}
+		dirty.add(region);
+		if (dirty.size() > MAX_DIRTY_REGIONS) {
+			Rectangle union = dirty.getFirst();
+			for (Rectangle other : dirty) {
+				union.add(other);
+			}
+			dirty.clear();
+			dirty.add(union);
+		}
+	}
+
+	@Override
+	public void paint(Graphics g) {
+		if (!retained || isPaintingForPrint() || getView() == null || getWidth() <= 0 || getHeight() <= 0 || !(g instanceof Graphics2D g2d)) {
+			super.paint(g);
+			return;
+		}
+		GraphicsConfiguration configuration = g2d.getDeviceConfiguration();
+		double scale = g2d.getTransform().getScaleX();
+		int pixelWidth = (int) Math.ceil(getWidth() * scale);
+		int pixelHeight = (int) Math.ceil(getHeight() * scale);
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			if (buffer == null || buffer.getWidth() != pixelWidth || buffer.getHeight() != pixelHeight || scale != bufferScale) {
+				dropBuffer();
+				buffer = configuration.createCompatibleVolatileImage(pixelWidth, pixelHeight);
+				bufferScale = scale;
+				if (!buffer.getCapabilities().isAccelerated()) {
+					// Rendering into an image in memory would only add a copy
+					dropBuffer();
+					retained = false;
+					setScrollMode(BLIT_SCROLL_MODE);
+					super.paint(g);
+					return;
+				}
+			}
+			int status = buffer.validate(configuration);
+			if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+				dropBuffer();
+				continue;
+			}
+			if (status == VolatileImage.IMAGE_RESTORED) {
+				bufferValid = false;
+			}
+			render(getViewPosition());
+
+			Graphics2D copy = (Graphics2D) g2d.create();
+			try {
+				copy.scale(1 / scale, 1 / scale);
+				copy.drawImage(buffer, 0, 0, null);
+			} finally {
+				copy.dispose();
+			}
+			if (!buffer.contentsLost()) {
+				return;
+			}
+			bufferValid = false;
+		}
+		dropBuffer();
+		super.paint(g);
+	}
+
+	/**
+	 * Brings the image up to date with the view: moves what it holds to the new view position and
+	 * renders what came into view or changed.
+	 */
+	private void render(Point position) {
+		int width = getWidth();
+		int height = getHeight();
+		Graphics2D g = buffer.createGraphics();
+		try {
+			if (bufferValid && !position.equals(bufferPosition)) {
+				bufferValid = scroll(g, position.x - bufferPosition.x, position.y - bufferPosition.y, position);
+			}
+			if (!bufferValid) {
+				dirty.clear();
+				dirty.add(new Rectangle(position.x, position.y, width, height));
+			}
+			g.scale(bufferScale, bufferScale);
+			Rectangle bounds = new Rectangle(0, 0, width, height);
+			for (Rectangle region : dirty) {
+				Rectangle area = bounds.intersection(new Rectangle(region.x - position.x, region.y - position.y, region.width, region.height));
+				if (area.isEmpty()) {
+					continue;
+				}
+				Graphics2D clipped = (Graphics2D) g.create();
+				try {
+					clipped.clipRect(area.x, area.y, area.width, area.height);
+					clipped.setColor(getBackground());
+					clipped.fillRect(area.x, area.y, area.width, area.height);
+					super.paint(clipped);
+				} finally {
+					clipped.dispose();
+				}
+			}
+		} finally {
+			g.dispose();
+		}
+		dirty.clear();
+		bufferPosition = position;
+		bufferValid = true;
+	}
+
+	/**
+	 * Moves the contents of the image by a scroll and marks the strips that came into view.
+	 *
+	 * @return {@code false} if nothing of the image can be kept
+	 */
+	private boolean scroll(Graphics2D g, int dx, int dy, Point position) {
+		int width = getWidth();
+		int height = getHeight();
+		double pixelDx = dx * bufferScale;
+		double pixelDy = dy * bufferScale;
+		// At fractional scales a scroll may not move whole pixels
+		if (Math.abs(dx) >= width || Math.abs(dy) >= height || pixelDx != Math.rint(pixelDx) || pixelDy != Math.rint(pixelDy)) {
+			return false;
+		}
+		int px = (int) pixelDx;
+		int py = (int) pixelDy;
+		g.copyArea(Math.max(0, px), Math.max(0, py), buffer.getWidth() - Math.abs(px), buffer.getHeight() - Math.abs(py), -px, -py);
+		if (dy != 0) {
+			dirty.add(new Rectangle(position.x, dy > 0 ? position.y + height - dy : position.y, width, Math.abs(dy)));
+		}
+		if (dx != 0) {
+			dirty.add(new Rectangle(dx > 0 ? position.x + width - dx : position.x, position.y, Math.abs(dx), height));
+		}
+		return true;
+	}
+
+	private void dropBuffer() {
+		if (buffer != null) {
+			buffer.flush();
+			buffer = null;
+		}
+		bufferValid = false;
+		dirty.clear();
+	}
+}
@@ -0,0 +1,1034 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.components;
+
+import com.twentyfeel.ui.FrameScheduler;
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.document.LineIndex;
+import com.twentyfeel.ui.document.TextSnapshot;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Caret;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.LayeredHighlighter;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * View of a plain document with wrapped lines, laid out from cached break positions.
+ * <p>
+ * Swing's {@code WrappedPlainView} keeps a child view per line and measures every line again
+ * whenever the width changes, which freezes the editor on large files. This view keeps the
+ * positions where each line breaks into rows, and the row count of every line in a
+ * {@link LineIndex}, so a y coordinate maps to a line in O(log n). An edit rewraps only the lines
+ * it changed. After a resize the previous row counts stand in as estimates and the lines being
+ * painted are measured first; the others are measured on a background thread, starting at the
+ * top of the viewport, and applied on the event dispatch thread while the first visible line
+ * keeps its place.
+ * </p>
+ * <p>
+ * Rows are measured through {@link RowMetrics}, which maps columns to x positions by arithmetic
+ * for fixed-pitch fonts. Whether a line can take that path is decided when it is first measured
+ * and kept until the line is edited.
+ * </p>
+ * <p>
+ * Lines of {@value #LONG_LINE} characters or more, such as minified JSON, are never read whole on
+ * the event dispatch thread. They are wrapped a slice at a time from their last known break, at
+ * most one slice per line and one per frame while painting, and the rows past the measured part
+ * are assumed full until the background thread, which reads them the same way, catches up. The
+ * breaks double as checkpoints: mapping between offsets and points only measures the one row
+ * involved. An edit in a long line keeps the rows before it.
+ * </p>
+ * <p>
+ * Rows are drawn from glyphs kept in a {@link GlyphCache}, which an edit clears only for the
+ * lines it touched.
+ * </p>
+ */
+final class WrappedTextView extends View {
+	private static final int[] SINGLE_ROW = new int[0];
+	private static final int DEFAULT_TAB_SIZE = 8;
+	/**
+	 * Lines an edit rewraps right away, a large paste leaves the rest to the background.
+	 */
+	private static final int SYNC_LINES = 256;
+	private static final int BATCH_LINES = 4096;
+	private static final int LONG_LINE = 1 << 16;
+	/**
+	 * Characters of a long line wrapped at a time.
+	 */
+	private static final int SLICE = 1 << 18;
+	/**
+	 * Set in {@link #kinds} for a long line that is measured only up to its last break.
+	 */
+	private static final byte PARTIAL = 0x10;
+	private static final byte CLASS = 0x0F;
+
+	private final boolean wordWrap;
+	private final LineIndex rows = new LineIndex();
+	private final Segment segment = new Segment();
+	private final GlyphCache glyphs = new GlyphCache();
+	private final ConcurrentLinkedQueue<Batch> results = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean applyScheduled = new AtomicBoolean();
+	private final Runnable startMeasuring = this::startMeasuring;
+	private final Runnable repaintHost = () -> {
+		if (getContainer() instanceof JComponent host) {
+			host.repaint(host.getVisibleRect());
+		}
+	};
+
+	/**
+	 * The offsets of the rows after the first of every line, relative to the line start, or
+	 * {@code null} where the line has not been measured at the current width. For a
+	 * {@link #PARTIAL} line, the offsets up to where it has been measured.
+	 */
+	private int[][] breaks;
+	/**
+	 * The {@link RowMetrics} class of every line, or {@link RowMetrics#UNKNOWN}, with the
+	 * {@link #PARTIAL} flag.
+	 */
+	private byte[] kinds;
+	private int lineCount;
+	private int unmeasured;
+	private int width;
+	/**
+	 * Bumped on every edit and width change, so that background results for older text are
+	 * dropped and the measuring thread stops.
+	 */
+	private volatile int generation;
+
+	private Font font;
+	private FontMetrics metrics;
+	private RowMetrics rowMetrics;
+	private int rowHeight = 1;
+
+	/**
+	 * Break positions and line classes measured in the background for consecutive lines.
+	 */
+	private record Batch(int generation, int firstLine, int[][] breaks, byte[] kinds) {
+	}
+
+	WrappedTextView(Element elem, boolean wordWrap) {
+		super(elem);
+		this.wordWrap = wordWrap;
+		lineCount = elem.getElementCount();
+		breaks = new int[Math.max(lineCount, 16)][];
+		kinds = new byte[breaks.length];
+		unmeasured = lineCount;
+		int[] estimates = new int[lineCount];
+		Arrays.fill(estimates, 1);
+		rows.reset(estimates, lineCount);
+	}
+
+	int getLineCount() {
+		return lineCount;
+	}
+
+	int getRowHeight() {
+		updateMetrics();
+		return rowHeight;
+	}
+
+	/**
+	 * Returns the line shown at a height.
+	 *
+	 * @param y the distance from the top of the text
+	 * @return the zero-based line, clamped to the existing lines
+	 */
+	int getLineAtY(int y) {
+		return rows.getLineOfOffset(Math.max(0, y / getRowHeight()));
+	}
+
+	/**
+	 * Returns the top of a line.
+	 *
+	 * @param line the zero-based line
+	 * @return the distance from the top of the text
+	 */
+	int getLineY(int line) {
+		return rows.getLineStartOffset(line) * getRowHeight();
+	}
+
+	int getLineHeight(int line) {
+		return rows.getLineLength(line) * getRowHeight();
+	}
+
+	@Override
+	public void setParent(View parent) {
+		super.setParent(parent);
+		if (parent == null) {
+			// Replaced, stop measuring
+			generation++;
+			results.clear();
+			glyphs.clear();
+		}
+	}
+
+	@Override
+	public float getPreferredSpan(int axis) {
+		updateMetrics();
+		return axis == X_AXIS ? width : (float) rows.getLength() * rowHeight;
+	}
+
+	@Override
+	public void setSize(float width, float height) {
+		int newWidth = (int) width;
+		// BasicTextUI asks unsized components for their preferred size with an unbounded width
+		if (newWidth <= 0 || newWidth >= Integer.MAX_VALUE / 2 || newWidth == this.width || !updateMetrics()) {
+			return;
+		}
+		boolean first = this.width == 0;
+		this.width = newWidth;
+		if (first) {
+			estimateRows();
+			preferenceChanged(null, false, true);
+		}
+		invalidateBreaks();
+	}
+
+	@Override
+	public void paint(Graphics g, Shape a) {
+		if (!updateMetrics()) {
+			return;
+		}
+		JTextComponent host = (JTextComponent) getContainer();
+		Rectangle alloc = a.getBounds();
+		Rectangle clip = g.getClipBounds() != null ? g.getClipBounds() : alloc;
+		int clipBottom = clip.y + clip.height;
+
+		// Measure the visible lines first, so that they are painted where they end up
+		int firstLine = rows.getLineOfOffset(Math.max(0, (clip.y - alloc.y) / rowHeight));
+		int firstY = alloc.y + rows.getLineStartOffset(firstLine) * rowHeight;
+		int lastLine = firstLine;
+		int changedFrom = -1;
+		boolean sliced = false;
+		boolean behind = false;
+		for (int line = firstLine, y = firstY; line < lineCount && y < clipBottom; line++) {
+			int[] known = breaks[line];
+			// A long line is only measured on as far as it shows
+			if (width > 0 && !isMeasured(line) && (known == null || y + (known.length + 1) * rowHeight < clipBottom)) {
+				if (sliced && isLong(line)) {
+					behind = true;
+				} else {
+					sliced |= isLong(line);
+					if (measure(line) != 0 && changedFrom < 0) {
+						changedFrom = line;
+					}
+					behind |= !isMeasured(line);
+				}
+			}
+			y += rows.getLineLength(line) * rowHeight;
+			lastLine = line;
+		}
+		if (changedFrom >= 0) {
+			rowsChanged(changedFrom, 0);
+		}
+		if (behind) {
+			// Wrap another slice on the next frame
+			runOnNextFrame(repaintHost);
+		}
+
+		Highlighter highlighter = host.getHighlighter();
+		LayeredHighlighter layered = highlighter instanceof LayeredHighlighter lh ? lh : null;
+		Caret caret = host.getCaret();
+		boolean selectionVisible = highlighter != null && caret.isSelectionVisible();
+		Color unselected = host.isEnabled() ? host.getForeground() : host.getDisabledTextColor();
+		Color selected = selectionVisible ? host.getSelectedTextColor() : null;
+		int sel0 = selectionVisible ? host.getSelectionStart() : 0;
+		int sel1 = selectionVisible ? host.getSelectionEnd() : 0;
+
+		Graphics2D g2d = (Graphics2D) g.create();
+		try {
+			g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g2d.setFont(font);
+			FontRenderContext context = g2d.getFontRenderContext();
+			Element root = getElement();
+			int y = firstY;
+			for (int line = firstLine; line <= lastLine; line++) {
+				Element element = root.getElement(line);
+				int start = element.getStartOffset();
+				int end = element.getEndOffset() - 1;
+				int[] lineBreaks = breaks[line] != null ? breaks[line] : SINGLE_ROW;
+				int rowCount = rows.getLineLength(line);
+				boolean measured = isMeasured(line);
+				int row = Math.max(0, Math.min(rowCount, (clip.y - y) / rowHeight));
+				for (int rowY = y + row * rowHeight; row < rowCount && rowY < clipBottom; row++, rowY += rowHeight) {
+					int p0 = rowStart(start, end, lineBreaks, row);
+					int p1 = rowEnd(start, end, lineBreaks, row, measured);
+					if (layered != null) {
+						layered.paintLayeredHighlights(g2d, p0, p1, a, host, this);
+					}
+					if (p0 < p1) {
+						GlyphCache.Row glyphRow = glyphs.get(element, p0 - start, p1 - start, font, context);
+						byte kind = rowKind(line, lineBreaks, row);
+						if (glyphRow == null) {
+							glyphRow = GlyphCache.layout(text(p0, p1), p0, kind, rowMetrics, context);
+							glyphs.put(element, p0 - start, p1 - start, glyphRow);
+						}
+						drawRow(g2d, glyphRow, p0, p1, kind, alloc.x, rowY, sel0, sel1, unselected, selected);
+					}
+				}
+				y += rowCount * rowHeight;
+			}
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			segment.array = null;
+			g2d.dispose();
+		}
+	}
+
+	/**
+	 * Draws a row, the selected part in the selected text color. The glyphs are drawn whole and
+	 * clipped, so the selection does not change how the row is laid out.
+	 */
+	private void drawRow(Graphics2D g, GlyphCache.Row glyphRow, int p0, int p1, byte kind, int x, int y, int sel0, int sel1, Color unselected, Color selected) throws BadLocationException {
+		int baseline = y + metrics.getAscent();
+		if (selected == null || selected.equals(unselected) || sel0 >= p1 || sel1 <= p0 || sel0 == sel1) {
+			g.setColor(unselected);
+			glyphRow.draw(g, x, baseline);
+			return;
+		}
+		int x0 = sel0 <= p0 ? x : x + (int) rowMetrics.width(text(p0, sel0), p0, kind);
+		int x1 = sel1 >= p1 ? Integer.MAX_VALUE / 2 : x + (int) Math.ceil(rowMetrics.width(text(p0, sel1), p0, kind));
+		drawClipped(g, glyphRow, x, baseline, Integer.MIN_VALUE / 2, x0, y, unselected);
+		drawClipped(g, glyphRow, x, baseline, x0, x1, y, selected);
+		drawClipped(g, glyphRow, x, baseline, x1, Integer.MAX_VALUE / 2, y, unselected);
+	}
+
+	private void drawClipped(Graphics2D g, GlyphCache.Row glyphRow, int x, int baseline, int from, int to, int y, Color color) {
+		if (from >= to) {
+			return;
+		}
+		Graphics2D clipped = (Graphics2D) g.create();
+		try {
+			clipped.clipRect(from, y, to - from, rowHeight);
+			clipped.setColor(color);
+			glyphRow.draw(clipped, x, baseline);
+		} finally {
+			clipped.dispose();
+		}
+	}
+
+	/**
+	 * Reads text into the shared segment, valid until the next read.
+	 */
+	private Segment text(int p0, int p1) throws BadLocationException {
+		getDocument().getText(p0, p1 - p0, segment);
+		return segment;
+	}
+
+	/**
+	 * Maps an offset to its place on screen. An offset where a line wraps is both the end of one
+	 * row and the start of the next; the bias tells which.
+	 */
+	@Override
+	public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+		if (pos < getStartOffset() || pos > getEndOffset()) {
+			throw new BadLocationException("Offset outside of the view", pos);
+		}
+		Rectangle alloc = a.getBounds();
+		if (!updateMetrics()) {
+			return new Rectangle(alloc.x, alloc.y, 1, rowHeight);
+		}
+		int line = getElement().getElementIndex(pos);
+		Element element = getElement().getElement(line);
+		int start = element.getStartOffset();
+		int end = element.getEndOffset() - 1;
+		int column = Math.min(pos, end) - start;
+		int[] lineBreaks = lineBreaks(line);
+		int row = rowAt(line, lineBreaks, column, b == Position.Bias.Backward);
+		int rowStart = rowStart(start, end, lineBreaks, row);
+
+		byte kind = rowKind(line, lineBreaks, row);
+		float x;
+		if (kind == RowMetrics.PLAIN) {
+			x = (start + column - rowStart) * rowMetrics.getAdvance();
+		} else {
+			getDocument().getText(rowStart, start + column - rowStart, segment);
+			try {
+				x = rowMetrics.width(segment, rowStart, kind);
+			} finally {
+				segment.array = null;
+			}
+		}
+		int y = alloc.y + (rows.getLineStartOffset(line) + row) * rowHeight;
+		return new Rectangle(alloc.x + (int) x, y, 1, rowHeight);
+	}
+
+	/**
+	 * Maps a point to an offset. Past the end of a wrapped row, this is the offset where the line
+	 * breaks with a backward bias, so the caret stays at the end of that row.
+	 */
+	@Override
+	public int viewToModel(float fx, float fy, Shape a, Position.Bias[] biasReturn) {
+		biasReturn[0] = Position.Bias.Forward;
+		Rectangle alloc = a.getBounds();
+		if (!updateMetrics() || fy < alloc.y) {
+			return getStartOffset();
+		}
+		int row = (int) (fy - alloc.y) / rowHeight;
+		if (row >= rows.getLength()) {
+			return getEndOffset() - 1;
+		}
+		int line = rows.getLineOfOffset(row);
+		int[] lineBreaks = lineBreaks(line);
+		int rowCount = rows.getLineLength(line);
+		int rowInLine = Math.min(row - rows.getLineStartOffset(line), rowCount - 1);
+		Element element = getElement().getElement(line);
+		int start = element.getStartOffset();
+		int end = element.getEndOffset() - 1;
+		int p0 = rowStart(start, end, lineBreaks, rowInLine);
+		int p1 = rowEnd(start, end, lineBreaks, rowInLine, isMeasured(line));
+
+		byte kind = rowKind(line, lineBreaks, rowInLine);
+		try {
+			int pos;
+			if (kind == RowMetrics.PLAIN) {
+				pos = p0 + Math.min(p1 - p0, Math.max(0, Math.round((fx - alloc.x) / rowMetrics.getAdvance())));
+			} else {
+				getDocument().getText(p0, p1 - p0, segment);
+				pos = p0 + rowMetrics.offset(segment, p0, fx - alloc.x, kind, true);
+			}
+			if (pos == p1 && p1 < end) {
+				biasReturn[0] = Position.Bias.Backward;
+			}
+			return pos;
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			segment.array = null;
+		}
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+		update(e, a);
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+		update(e, a);
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+		update(e, a);
+	}
+
+	/**
+	 * Rewraps the lines an edit touched. Lines that were added or removed are spliced into the
+	 * caches, everything else keeps its breaks.
+	 */
+	private void update(DocumentEvent e, Shape a) {
+		Element root = getElement();
+		DocumentEvent.ElementChange change = e.getChange(root);
+		int first;
+		int count;
+		if (change != null) {
+			first = change.getIndex();
+			count = change.getChildrenAdded().length;
+			for (Element removed : change.getChildrenRemoved()) {
+				glyphs.invalidate(removed);
+			}
+			replaceLines(first, change.getChildrenRemoved().length, count);
+		} else {
+			first = root.getElementIndex(e.getOffset());
+			count = 1;
+			glyphs.invalidate(root.getElement(first));
+			if (isMeasured(first)) {
+				unmeasured++;
+			}
+			int[] known = breaks[first];
+			if (known != null && isLong(first)) {
+				// The rows before the edit stand, the one just before may take words from the edited row
+				int row = rowOf(known, e.getOffset() - root.getElement(first).getStartOffset(), false);
+				breaks[first] = Arrays.copyOf(known, Math.max(0, Math.min(row, known.length) - 1));
+				kinds[first] |= PARTIAL;
+			} else {
+				breaks[first] = null;
+				kinds[first] = RowMetrics.UNKNOWN;
+			}
+		}
+		// Whatever is being measured in the background is for the text before this edit
+		generation++;
+		results.clear();
+
+		int totalRows = rows.getLength();
+		if (updateMetrics() && width > 0) {
+			for (int line = first, end = first + Math.min(count, SYNC_LINES); line < end; line++) {
+				measure(line);
+			}
+		}
+		if (unmeasured > 0) {
+			runOnNextFrame(startMeasuring);
+		}
+
+		Container host = getContainer();
+		if (host == null) {
+			return;
+		}
+		int top = a != null ? a.getBounds().y : host.getInsets().top;
+		int y = top + rows.getLineStartOffset(first) * rowHeight;
+		if (change != null || rows.getLength() != totalRows) {
+			preferenceChanged(null, false, true);
+			repaintBelow(host, y);
+		} else {
+			host.repaint(0, y, host.getWidth(), rows.getLineLength(first) * rowHeight);
+		}
+	}
+
+	private void replaceLines(int index, int removed, int added) {
+		for (int line = index; line < index + removed; line++) {
+			if (!isMeasured(line)) {
+				unmeasured--;
+			}
+		}
+		int newCount = lineCount - removed + added;
+		if (newCount > breaks.length) {
+			breaks = Arrays.copyOf(breaks, Math.max(newCount, breaks.length * 2));
+			kinds = Arrays.copyOf(kinds, breaks.length);
+		}
+		System.arraycopy(breaks, index + removed, breaks, index + added, lineCount - index - removed);
+		System.arraycopy(kinds, index + removed, kinds, index + added, lineCount - index - removed);
+		Arrays.fill(breaks, index, index + added, null);
+		Arrays.fill(kinds, index, index + added, RowMetrics.UNKNOWN);
+		if (newCount < lineCount) {
+			Arrays.fill(breaks, newCount, lineCount, null);
+		}
+		unmeasured += added;
+		lineCount = newCount;
+
+		rows.removeLines(index, removed);
+		int[] estimates = new int[added];
+		Element root = getElement();
+		for (int i = 0; i < added; i++) {
+			Element element = root.getElement(index + i);
+			estimates[i] = estimateRows(element.getEndOffset() - 1 - element.getStartOffset());
+		}
+		rows.insertLines(index, estimates, added);
+	}
+
+	/**
+	 * Picks up the font of the host the first time the view is shown there.
+	 *
+	 * @return {@code false} if the view is not shown yet
+	 */
+	private boolean updateMetrics() {
+		Container host = getContainer();
+		if (host == null) {
+			return false;
+		}
+		Font current = host.getFont();
+		if (current != font) {
+			font = current;
+			metrics = host.getFontMetrics(current);
+			rowHeight = Math.max(1, metrics.getHeight());
+			rowMetrics = new RowMetrics(metrics, getTabSize());
+			Arrays.fill(kinds, 0, lineCount, RowMetrics.UNKNOWN);
+			if (width > 0) {
+				invalidateBreaks();
+			}
+		}
+		return true;
+	}
+
+	private int getTabSize() {
+		return getDocument().getProperty(PlainDocument.tabSizeAttribute) instanceof Integer size ? size : DEFAULT_TAB_SIZE;
+	}
+
+	/**
+	 * Guesses row counts from line lengths, for the first layout at a known width.
+	 */
+	private void estimateRows() {
+		int[] estimates = new int[lineCount];
+		Element root = getElement();
+		for (int line = 0; line < lineCount; line++) {
+			Element element = root.getElement(line);
+			estimates[line] = estimateRows(element.getEndOffset() - 1 - element.getStartOffset());
+		}
+		rows.reset(estimates, lineCount);
+	}
+
+	private int estimateRows(int length) {
+		if (width <= 0 || metrics == null) {
+			return 1;
+		}
+		int rowChars = rowChars();
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, ((long) length + rowChars - 1) / rowChars));
+	}
+
+	/**
+	 * Returns the characters a row is assumed to hold where a line has not been measured.
+	 */
+	private int rowChars() {
+		if (width <= 0 || metrics == null) {
+			return Integer.MAX_VALUE / 2;
+		}
+		return Math.max(1, width / Math.max(1, metrics.charWidth('x')));
+	}
+
+	/**
+	 * Forgets all breaks after the width or font changed. The row counts stay as estimates until
+	 * the lines are measured again.
+	 */
+	private void invalidateBreaks() {
+		generation++;
+		results.clear();
+		Arrays.fill(breaks, 0, lineCount, null);
+		unmeasured = lineCount;
+		runOnNextFrame(startMeasuring);
+	}
+
+	private int[] lineBreaks(int line) {
+		int[] lineBreaks = breaks[line];
+		if (lineBreaks != null) {
+			return lineBreaks;
+		}
+		if (width <= 0) {
+			return SINGLE_ROW;
+		}
+		if (measure(line) != 0) {
+			rowsChanged(line, 0);
+		}
+		return breaks[line];
+	}
+
+	private boolean isMeasured(int line) {
+		return breaks[line] != null && (kinds[line] & PARTIAL) == 0;
+	}
+
+	private boolean isLong(int line) {
+		Element element = getElement().getElement(line);
+		return element.getEndOffset() - 1 - element.getStartOffset() >= LONG_LINE;
+	}
+
+	/**
+	 * Measures a line, or the next slice of a long line.
+	 *
+	 * @return the change in the row count of the line
+	 */
+	private int measure(int line) {
+		Element element = getElement().getElement(line);
+		int start = element.getStartOffset();
+		int length = element.getEndOffset() - 1 - start;
+		try {
+			if (length < LONG_LINE) {
+				getDocument().getText(start, length, segment);
+				byte kind = (byte) (kinds[line] & CLASS);
+				if (kind == RowMetrics.UNKNOWN) {
+					kind = rowMetrics.classify(segment.array, segment.offset, segment.offset + segment.count);
+				}
+				return store(line, rowMetrics.wrap(segment, start, width, kind, wordWrap), kind);
+			}
+			int[] known = breaks[line] != null ? breaks[line] : SINGLE_ROW;
+			int from = measuredEnd(known);
+			int to = Math.min(length, from + SLICE);
+			getDocument().getText(start + from, to - from, segment);
+			byte kind = (byte) Math.max(kinds[line] & CLASS, rowMetrics.classify(segment.array, segment.offset, segment.offset + segment.count));
+			int[] lineBreaks = appendSlice(known, segment, start, from, to == length, kind, width, rowMetrics);
+			if (to == length) {
+				return store(line, lineBreaks, kind);
+			}
+			if (isMeasured(line)) {
+				unmeasured++;
+			}
+			breaks[line] = lineBreaks;
+			kinds[line] = (byte) (kind | PARTIAL);
+			return setRows(line, lineBreaks.length + estimateRows(length - measuredEnd(lineBreaks)));
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			segment.array = null;
+		}
+	}
+
+	/**
+	 * Wraps a slice of a long line and appends the breaks found in it. Only rows that broke
+	 * inside the slice are complete, so the next slice starts at the last break.
+	 *
+	 * @param lineBreaks the breaks up to {@code from}
+	 * @param slice      the text from {@code from}
+	 * @param lineStart  the offset of the line in the document
+	 * @param from       the start of the slice, relative to the line start
+	 * @param last       whether the slice ends the line
+	 * @return the breaks up to the start of the last row of the slice
+	 */
+	private int[] appendSlice(int[] lineBreaks, Segment slice, int lineStart, int from, boolean last, byte kind, int wrapWidth, RowMetrics wrapMetrics) {
+		int[] found = wrapMetrics.wrap(slice, lineStart + from, wrapWidth, kind, wordWrap);
+		if (found.length == 0 && !last) {
+			// A row that outlasts a whole slice is cut where the slice ends
+			found = new int[]{slice.count};
+		}
+		int[] result = Arrays.copyOf(lineBreaks, lineBreaks.length + found.length);
+		for (int i = 0; i < found.length; i++) {
+			result[lineBreaks.length + i] = from + found[i];
+		}
+		return result;
+	}
+
+	private static int measuredEnd(int[] lineBreaks) {
+		return lineBreaks.length == 0 ? 0 : lineBreaks[lineBreaks.length - 1];
+	}
+
+	/**
+	 * Keeps the breaks of a whole line.
+	 *
+	 * @return the change in the row count of the line
+	 */
+	private int store(int line, int[] lineBreaks, byte kind) {
+		if (!isMeasured(line)) {
+			unmeasured--;
+		}
+		breaks[line] = lineBreaks;
+		kinds[line] = kind;
+		return setRows(line, lineBreaks.length + 1);
+	}
+
+	private int setRows(int line, int rowCount) {
+		int delta = rowCount - rows.getLineLength(line);
+		if (delta != 0) {
+			rows.setLength(line, rowCount);
+		}
+		return delta;
+	}
+
+	/**
+	 * Returns the offset where a row starts. Rows past where a line has been measured are
+	 * assumed full.
+	 */
+	private int rowStart(int start, int end, int[] lineBreaks, int row) {
+		if (row == 0) {
+			return start;
+		}
+		if (row <= lineBreaks.length) {
+			return start + lineBreaks[row - 1];
+		}
+		return (int) Math.min(end, start + measuredEnd(lineBreaks) + (long) (row - lineBreaks.length) * rowChars());
+	}
+
+	private int rowEnd(int start, int end, int[] lineBreaks, int row, boolean measured) {
+		if (row < lineBreaks.length) {
+			return start + lineBreaks[row];
+		}
+		return measured ? end : rowStart(start, end, lineBreaks, row + 1);
+	}
+
+	/**
+	 * Returns the row of a line that holds a column, estimated past where the line has been
+	 * measured.
+	 */
+	private int rowAt(int line, int[] lineBreaks, int column, boolean backward) {
+		int last = measuredEnd(lineBreaks);
+		if (isMeasured(line) || column <= last) {
+			return rowOf(lineBreaks, column, backward);
+		}
+		int rowChars = rowChars();
+		int row = lineBreaks.length + (column - last) / rowChars;
+		return backward && (column - last) % rowChars == 0 ? row - 1 : row;
+	}
+
+	/**
+	 * Returns the class to measure a row by. Past where a line has been measured its characters
+	 * are not classified yet.
+	 */
+	private byte rowKind(int line, int[] lineBreaks, int row) {
+		return isMeasured(line) || row < lineBreaks.length ? (byte) (kinds[line] & CLASS) : RowMetrics.MIXED;
+	}
+
+	/**
+	 * Lays out and repaints the text after lines changed their row counts.
+	 *
+	 * @param line      the first line that changed
+	 * @param rowsAbove the rows gained above the viewport, which are scrolled past so that the
+	 *                  first visible line stays in place
+	 */
+	private void rowsChanged(int line, int rowsAbove) {
+		JComponent host = (JComponent) getContainer();
+		preferenceChanged(null, false, true);
+		if (rowsAbove != 0 && host.getParent() instanceof JViewport viewport && viewport.getParent() != null) {
+			viewport.getParent().validate();
+			Point position = viewport.getViewPosition();
+			position.y = Math.max(0, position.y + rowsAbove * rowHeight);
+			viewport.setViewPosition(position);
+		}
+		repaintBelow(host, host.getInsets().top + rows.getLineStartOffset(line) * rowHeight);
+	}
+
+	/**
+	 * Repaints the visible part of the text below a height. What is scrolled into view later is
+	 * painted then, so the rest of a long document is left alone.
+	 */
+	private static void repaintBelow(Container host, int y) {
+		int bottom = host instanceof JComponent c ? (int) c.getVisibleRect().getMaxY() : host.getHeight();
+		if (bottom > y) {
+			host.repaint(0, y, host.getWidth(), bottom - y);
+		}
+	}
+
+	private static int rowOf(int[] lineBreaks, int column, boolean backward) {
+		int index = Arrays.binarySearch(lineBreaks, column);
+		if (index >= 0) {
+			return backward ? index : index + 1;
+		}
+		return -index - 1;
+	}
+
+	/**
+	 * Starts measuring the lines that have no breaks yet on a background thread, from the first
+	 * visible line down and then from the top.
+	 */
+	private void startMeasuring() {
+		Container host = getContainer();
+		if (unmeasured == 0 || width <= 0 || host == null || !(getDocument() instanceof EditorDocument document)) {
+			return;
+		}
+		int top = firstVisibleLine((JComponent) host);
+		Element root = getElement();
+		int[] ranges = new int[48];
+		int size = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			int from = pass == 0 ? top : 0;
+			int to = pass == 0 ? lineCount : top;
+			for (int line = from; line < to; line++) {
+				if (isMeasured(line)) {
+					continue;
+				}
+				int firstLine = line;
+				while (line < to && !isMeasured(line)) {
+					line++;
+				}
+				if (size + 3 > ranges.length) {
+					ranges = Arrays.copyOf(ranges, ranges.length * 2);
+				}
+				ranges[size++] = firstLine;
+				ranges[size++] = line - firstLine;
+				ranges[size++] = root.getElement(firstLine).getStartOffset();
+			}
+		}
+		int[] work = Arrays.copyOf(ranges, size);
+		int job = ++generation;
+		results.clear();
+		TextSnapshot snapshot = document.snapshot();
+		byte[] knownKinds = new byte[lineCount];
+		for (int line = 0; line < lineCount; line++) {
+			knownKinds[line] = (byte) (kinds[line] & CLASS);
+		}
+		int wrapWidth = width;
+		RowMetrics wrapMetrics = rowMetrics;
+		Thread.ofVirtual().name("zizi-wrap").start(() -> measureAll(job, snapshot, work, knownKinds, wrapWidth, wrapMetrics));
+	}
+
+	/**
+	 * Measures ranges of lines, handing the breaks to the event dispatch thread in batches, until
+	 * done or until an edit or resize makes the work stale.
+	 *
+	 * @param ranges     triples of the first line, the line count and the start offset of a range
+	 * @param knownKinds the classes of the lines that were already classified
+	 */
+	private void measureAll(int job, TextSnapshot snapshot, int[] ranges, byte[] knownKinds, int wrapWidth, RowMetrics wrapMetrics) {
+		LineReader reader = new LineReader(snapshot);
+		Segment line = new Segment();
+		for (int r = 0; r < ranges.length; r += 3) {
+			int firstLine = ranges[r];
+			int count = ranges[r + 1];
+			reader.seek(ranges[r + 2]);
+			for (int done = 0; done < count; ) {
+				int[][] batch = new int[Math.min(BATCH_LINES, count - done)][];
+				byte[] batchKinds = new byte[batch.length];
+				for (int i = 0; i < batch.length; i++) {
+					if (generation != job) {
+						return;
+					}
+					int start = reader.next(line);
+					byte kind = knownKinds[firstLine + done + i];
+					if (line.array == null) {
+						batchKinds[i] = kind;
+						batch[i] = wrapLong(job, snapshot, start, line.count, batchKinds, i, wrapWidth, wrapMetrics);
+						continue;
+					}
+					if (kind == RowMetrics.UNKNOWN) {
+						kind = wrapMetrics.classify(line.array, line.offset, line.offset + line.count);
+					}
+					batchKinds[i] = kind;
+					batch[i] = wrapMetrics.wrap(line, start, wrapWidth, kind, wordWrap);
+				}
+				results.add(new Batch(job, firstLine + done, batch, batchKinds));
+				done += batch.length;
+				if (applyScheduled.compareAndSet(false, true)) {
+					SwingUtilities.invokeLater(this::applyResults);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wraps a long line of a snapshot a slice at a time, without holding all of it.
+	 *
+	 * @param kinds receives the class of the line at {@code index}, which holds what is known
+	 *              of it
+	 * @return the breaks, incomplete if the work went stale
+	 */
+	private int[] wrapLong(int job, TextSnapshot snapshot, int start, int length, byte[] kinds, int index, int wrapWidth, RowMetrics wrapMetrics) {
+		char[] buffer = new char[Math.min(length, SLICE)];
+		Segment slice = new Segment(buffer, 0, 0);
+		int[] lineBreaks = SINGLE_ROW;
+		for (int from = 0; generation == job; from = measuredEnd(lineBreaks)) {
+			int to = Math.min(length, from + SLICE);
+			snapshot.getChars(start + from, to - from, buffer, 0);
+			slice.count = to - from;
+			kinds[index] = (byte) Math.max(kinds[index], wrapMetrics.classify(buffer, 0, slice.count));
+			lineBreaks = appendSlice(lineBreaks, slice, start, from, to == length, kinds[index], wrapWidth, wrapMetrics);
+			if (to == length) {
+				break;
+			}
+		}
+		return lineBreaks;
+	}
+
+	/**
+	 * Takes in the breaks measured in the background, unless the text or width changed since.
+	 */
+	private void applyResults() {
+		applyScheduled.set(false);
+		Container host = getContainer();
+		if (host == null) {
+			results.clear();
+			return;
+		}
+		int topLine = firstVisibleLine((JComponent) host);
+		int rowsAbove = 0;
+		int changedFrom = Integer.MAX_VALUE;
+		for (Batch batch; (batch = results.poll()) != null; ) {
+			if (batch.generation() != generation) {
+				continue;
+			}
+			for (int i = 0; i < batch.breaks().length; i++) {
+				int line = batch.firstLine() + i;
+				if (isMeasured(line)) {
+					// Painted in the meantime
+					continue;
+				}
+				int delta = store(line, batch.breaks()[i], batch.kinds()[i]);
+				if (delta != 0) {
+					changedFrom = Math.min(changedFrom, line);
+					rowsAbove += line < topLine ? delta : 0;
+				}
+			}
+		}
+		if (changedFrom != Integer.MAX_VALUE) {
+			rowsChanged(changedFrom, rowsAbove);
+		}
+	}
+
+	private int firstVisibleLine(JComponent host) {
+		int y = host.getVisibleRect().y - host.getInsets().top;
+		return rows.getLineOfOffset(Math.max(0, y / rowHeight));
+	}
+
+	private void runOnNextFrame(Runnable task) {
+		FrameScheduler scheduler = FrameScheduler.forComponent(getContainer());
+		if (scheduler != null) {
+			scheduler.runOnNextFrame(task);
+		} else {
+			SwingUtilities.invokeLater(task);
+		}
+	}
+
+	/**
+	 * Reads a snapshot line by line through a buffer of {@value #LONG_LINE} characters, which holds
+	 * any shorter line whole. Longer lines are only measured.
+	 */
+	private static final class LineReader {
+		private final TextSnapshot text;
+		private final char[] buffer = new char[LONG_LINE];
+		private int bufferStart;
+		private int bufferLength;
+		private int position;
+
+		LineReader(TextSnapshot text) {
+			this.text = text;
+		}
+
+		void seek(int offset) {
+			position = offset;
+			bufferStart = offset;
+			bufferLength = 0;
+		}
+
+		/**
+		 * Reads the next line, without its newline.
+		 *
+		 * @param line receives the line, valid until the next call, or a {@code null} array and
+		 *             the length of a long line
+		 * @return the offset of the line
+		 */
+		int next(Segment line) {
+			int start = position;
+			int i = start - bufferStart;
+			while (true) {
+				for (; i < bufferLength; i++) {
+					if (buffer[i] == '\n') {
+						line.array = buffer;
+						line.offset = start - bufferStart;
+						line.count = i - line.offset;
+						position = bufferStart + i + 1;
+						return start;
+					}
+				}
+				int end = bufferStart + bufferLength;
+				if (end == text.length()) {
+					line.array = buffer;
+					line.offset = start - bufferStart;
+					line.count = bufferLength - line.offset;
+					position = end + 1;
+					return start;
+				}
+				int keep = end - start;
+				if (keep >= LONG_LINE) {
+					return skip(start, line);
+				}
+				// Move the start of the line to the front and fill up the rest
+				System.arraycopy(buffer, start - bufferStart, buffer, 0, keep);
+				bufferStart = start;
+				int read = Math.min(buffer.length - keep, text.length() - end);
+				text.getChars(end, read, buffer, keep);
+				bufferLength = keep + read;
+				i = keep;
+			}
+		}
+
+		private int skip(int start, Segment line) {
+			int end = bufferStart + bufferLength;
+			line.array = null;
+			while (end < text.length()) {
+				int read = Math.min(buffer.length, text.length() - end);
+				text.getChars(end, read, buffer, 0);
+				bufferStart = end;
+				bufferLength = read;
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] == '\n') {
+						line.count = end + i - start;
+						position = end + i + 1;
+						return start;
+					}
+				}
+				end += read;
+			}
+			line.count = end - start;
+			position = end + 1;
+			return start;
+		}
+	}
+}
@@ -0,0 +1,330 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import javax.swing.text.Segment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Immutable text stored one byte per character wherever it fits into Latin-1.
+ * <p>
+ * The text is a sequence of blocks. A block whose characters are all below {@code U+0100} is
+ * kept as a {@code byte[]}, any other block as a {@code char[]}, so ASCII logs and source files
+ * take as much heap as they take on disk, and a single wide character only widens the block
+ * around it. Wide blocks are served to {@link Segment}s directly. Byte blocks are widened a small
+ * window at a time into a cache; since the text never changes, a cached window can be shared by
+ * any number of segments for as long as they are held.
+ * </p>
+ * <p>
+ * Blocks of a document kept in the background can be {@link #compress() compressed}. A compressed
+ * block is inflated again the first time it is read and then stays inflated, so only the parts
+ * of the text the user looks at come back into memory.
+ * </p>
+ */
+public final class CompactText {
+	private static final int BLOCK_SIZE = 1 << 16;
+	private static final int WINDOW_BITS = 14;
+	private static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+	private static final int CACHE_SLOTS = 64;
+	private static final CompactText EMPTY = new CompactText(new Object[0], new int[]{0}, 0);
+	/**
+	 * Blocks are replaced while readers may be using the text on other threads.
+	 */
+	private static final VarHandle BLOCKS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	/**
+	 * Blocks of {@code byte[]}, {@code char[]} or {@link Packed}.
+	 */
+	private final Object[] blocks;
+	/**
+	 * Start offset of every block, followed by the total length.
+	 */
+	private final int[] starts;
+	private final int blockCount;
+	private final Window[] windows = new Window[CACHE_SLOTS];
+
+	private CompactText(Object[] blocks, int[] starts, int blockCount) {
+		this.blocks = blocks;
+		this.starts = starts;
+		this.blockCount = blockCount;
+	}
+
+	public static CompactText empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Wraps a buffer of Latin-1 bytes, which is adopted, not copied.
+	 *
+	 * @param latin1 the characters, one byte each
+	 * @param length the number of valid bytes
+	 * @return the text
+	 */
+	public static CompactText ofLatin1(byte[] latin1, int length) {
+		if (length == 0) {
+			return EMPTY;
+		}
+		return new CompactText(new Object[]{latin1}, new int[]{0, length}, 1);
+	}
+
+	/**
+	 * Wraps a buffer of characters, which is adopted, not copied, and kept wide.
+	 *
+	 * @param chars  the characters
+	 * @param length the number of valid characters
+	 * @return the text
+	 */
+	public static CompactText ofChars(char[] chars, int length) {
+		if (length == 0) {
+			return EMPTY;
+		}
+		return new CompactText(new Object[]{chars}, new int[]{0, length}, 1);
+	}
+
+	/**
+	 * Copies characters into compact storage, narrowing every block that fits into Latin-1.
+	 *
+	 * @param chars  the characters
+	 * @param length the number of valid characters
+	 * @return the text
+	 */
+	public static CompactText compact(char[] chars, int length) {
+		int count = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		Object[] blocks = new Object[count];
+		int[] starts = new int[count + 1];
+		for (int i = 0; i < count; i++) {
+			int start = i * BLOCK_SIZE;
+			int end = Math.min(length, start + BLOCK_SIZE);
+			starts[i] = start;
+			blocks[i] = narrow(chars, start, end);
+		}
+		starts[count] = length;
+		return count == 0 ? EMPTY : new CompactText(blocks, starts, count);
+	}
+
+	/**
+	 * Joins texts without copying their storage.
+	 *
+	 * @param parts the texts
+	 * @return the joined text
+	 */
+	public static CompactText concat(CompactText... parts) {
+		int count = 0;
+		for (CompactText part : parts) {
+			count += part.blockCount;
+		}
+		Object[] blocks = new Object[count];
+		int[] starts = new int[count + 1];
+		int index = 0;
+		long offset = 0;
+		for (CompactText part : parts) {
+			for (int i = 0; i < part.blockCount; i++) {
+				blocks[index] = BLOCKS.getAcquire(part.blocks, i);
+				starts[index] = (int) offset;
+				offset += part.starts[i + 1] - part.starts[i];
+				index++;
+			}
+		}
+		if (offset > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Text too long: " + offset);
+		}
+		starts[count] = (int) offset;
+		return count == 0 ? EMPTY : new CompactText(blocks, starts, count);
+	}
+
+	private static Object narrow(char[] chars, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (chars[i] > 0xFF) {
+				return Arrays.copyOfRange(chars, start, end);
+			}
+		}
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			bytes[i - start] = (byte) chars[i];
+		}
+		return bytes;
+	}
+
+	public int length() {
+		return starts[blockCount];
+	}
+
+	/**
+	 * Returns the heap taken by the characters, not counting object headers.
+	 *
+	 * @return the storage size in bytes
+	 */
+	public long getStorageSize() {
+		long size = 0;
+		for (int i = 0; i < blockCount; i++) {
+			int length = starts[i + 1] - starts[i];
+			Object block = BLOCKS.getAcquire(blocks, i);
+			size += block instanceof Packed packed ? packed.bytes.length : block instanceof byte[] ? length : 2L * length;
+		}
+		return size;
+	}
+
+	/**
+	 * Compresses every block that is not compressed yet, keeping a block as it is if it does not
+	 * shrink. The text reads the same afterwards, only slower the first time each block is read.
+	 *
+	 * @return the number of bytes saved
+	 */
+	public long compress() {
+		long saved = 0;
+		for (int i = 0; i < blockCount; i++) {
+			// Adopted buffers may be longer than their block
+			int length = starts[i + 1] - starts[i];
+			Object block = BLOCKS.getAcquire(blocks, i);
+			byte[] raw;
+			int rawLength;
+			if (block instanceof byte[] bytes) {
+				raw = bytes;
+				rawLength = length;
+			} else if (block instanceof char[] chars) {
+				rawLength = length * 2;
+				raw = new byte[rawLength];
+				for (int j = 0; j < length; j++) {
+					raw[2 * j] = (byte) chars[j];
+					raw[2 * j + 1] = (byte) (chars[j] >>> 8);
+				}
+			} else {
+				continue;
+			}
+			byte[] packed = LzBlock.compress(raw, 0, rawLength);
+			if (packed.length < rawLength) {
+				// Another thread may have been reading the block, it keeps its raw copy
+				BLOCKS.setRelease(blocks, i, new Packed(packed, block instanceof char[], rawLength));
+				saved += rawLength - packed.length;
+			}
+		}
+		Arrays.fill(windows, null);
+		return saved;
+	}
+
+	/**
+	 * Copies characters into an array.
+	 *
+	 * @param where     the offset of the first character
+	 * @param len       the number of characters
+	 * @param dst       the destination
+	 * @param dstOffset the offset in the destination
+	 */
+	public void getChars(int where, int len, char[] dst, int dstOffset) {
+		int block = findBlock(where);
+		while (len > 0) {
+			int inBlock = where - starts[block];
+			int count = Math.min(starts[block + 1] - where, len);
+			if (block(block) instanceof byte[] bytes) {
+				for (int i = 0; i < count; i++) {
+					dst[dstOffset + i] = (char) (bytes[inBlock + i] & 0xFF);
+				}
+			} else {
+				System.arraycopy((char[]) block(block), inBlock, dst, dstOffset, count);
+			}
+			where += count;
+			dstOffset += count;
+			len -= count;
+			block++;
+		}
+	}
+
+	/**
+	 * Points a segment at the characters starting at an offset without copying them. The
+	 * segment covers at most {@code len} characters and never crosses a block or a widened
+	 * window, so it may be shorter.
+	 *
+	 * @param where   the offset of the first character
+	 * @param len     the maximum number of characters
+	 * @param segment the segment to fill
+	 * @return the number of characters in the segment
+	 */
+	public int getSegment(int where, int len, Segment segment) {
+		int block = findBlock(where);
+		int blockStart = starts[block];
+		int inBlock = where - blockStart;
+		int available = starts[block + 1] - where;
+		if (block(block) instanceof char[] chars) {
+			segment.array = chars;
+			segment.offset = inBlock;
+			segment.count = Math.min(available, len);
+			return segment.count;
+		}
+
+		int windowStart = inBlock & -WINDOW_SIZE;
+		Window window = window(block, windowStart);
+		segment.array = window.chars;
+		segment.offset = inBlock - windowStart;
+		segment.count = Math.min(Math.min(available, len), window.chars.length - segment.offset);
+		return segment.count;
+	}
+
+	private Window window(int block, int windowStart) {
+		int slot = (block * 31 + (windowStart >>> WINDOW_BITS)) & (CACHE_SLOTS - 1);
+		Window window = windows[slot];
+		if (window != null && window.block == block && window.start == windowStart) {
+			return window;
+		}
+		byte[] bytes = (byte[]) block(block);
+		int blockLength = starts[block + 1] - starts[block];
+		char[] chars = new char[Math.min(WINDOW_SIZE, blockLength - windowStart)];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) (bytes[windowStart + i] & 0xFF);
+		}
+		// Windows are immutable, so racing readers at worst widen the same window twice
+		window = new Window(block, windowStart, chars);
+		windows[slot] = window;
+		return window;
+	}
+
+	/**
+	 * Returns a block, inflating it if it is compressed.
+	 */
+	private Object block(int index) {
+		Object block = BLOCKS.getAcquire(blocks, index);
+		if (!(block instanceof Packed packed)) {
+			return block;
+		}
+		byte[] raw = new byte[packed.rawLength];
+		LzBlock.decompress(packed.bytes, raw);
+		Object inflated = raw;
+		if (packed.wide) {
+			char[] chars = new char[raw.length / 2];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char) ((raw[2 * i] & 0xFF) | (raw[2 * i + 1] & 0xFF) << 8);
+			}
+			inflated = chars;
+		}
+		// Racing readers at worst inflate the same block twice
+		BLOCKS.setRelease(blocks, index, inflated);
+		return inflated;
+	}
+
+	private int findBlock(int offset) {
+		int low = 0;
+		int high = blockCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private record Window(int block, int start, char[] chars) {
+	}
+
+	/**
+	 * A compressed block.
+	 *
+	 * @param bytes     the compressed bytes
+	 * @param wide      whether the block holds characters, stored as little-endian pairs of bytes
+	 * @param rawLength the number of bytes once inflated
+	 */
+	private record Packed(byte[] bytes, boolean wide, int rawLength) {
+	}
+}
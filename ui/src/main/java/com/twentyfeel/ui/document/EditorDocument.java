@@ -0,0 +1,190 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Segment;
+
+/**
+ * Plain text document of the editor, stored in a {@link PieceTableContent} and indexed by a
+ * {@link LineIndex}.
+ * <p>
+ * The line index is updated before any listener is notified, including for undo and redo, so
+ * listeners can always query it for the state that matches the event.
+ * </p>
+ */
+public class EditorDocument extends PlainDocument {
+	/**
+	 * Approximate heap taken by every line for its element, the element's two positions and its
+	 * node in the line index.
+	 */
+	private static final int LINE_OVERHEAD = 96;
+
+	private final LineIndex lineIndex = new LineIndex();
+
+	public EditorDocument() {
+		super(new PieceTableContent());
+	}
+
+	/**
+	 * Creates a document over already decoded text. The buffers are adopted, not copied, and the
+	 * line elements and the line index are built from the given line lengths in one step instead
+	 * of being discovered by inserting the text.
+	 *
+	 * @param text        the text, with {@code \n} line separators
+	 * @param lineLengths the line lengths including their newline; the last one includes the
+	 *                    implied trailing newline
+	 * @param lineCount   the number of lines
+	 */
+	public EditorDocument(CompactText text, int[] lineLengths, int lineCount) {
+		super(new PieceTableContent(text));
+		lineIndex.reset(lineLengths, lineCount);
+
+		writeLock();
+		try {
+			Element root = getDefaultRootElement();
+			Element[] lines = new Element[lineCount];
+			int start = 0;
+			for (int i = 0; i < lineCount; i++) {
+				int end = start + lineLengths[i];
+				lines[i] = createLeafElement(root, null, start, end);
+				start = end;
+			}
+			((BranchElement) root).replace(0, root.getElementCount(), lines);
+		} finally {
+			writeUnlock();
+		}
+	}
+
+	/**
+	 * Returns the line index of this document. It must only be read while holding the document
+	 * lock or on the thread that edits the document.
+	 *
+	 * @return the line index
+	 */
+	public LineIndex getLineIndex() {
+		return lineIndex;
+	}
+
+	/**
+	 * Captures the text of this document, without the implied trailing newline, for reading on
+	 * another thread. Only the piece descriptors are copied.
+	 *
+	 * @return the snapshot
+	 */
+	public TextSnapshot snapshot() {
+		readLock();
+		try {
+			return ((PieceTableContent) getContent()).snapshot(getLength());
+		} finally {
+			readUnlock();
+		}
+	}
+
+	/**
+	 * Estimates the heap taken by this document: its text, plus a fixed amount for every line.
+	 * Must be called on the thread that edits the document.
+	 *
+	 * @return the storage size in bytes
+	 */
+	public long getStorageSize() {
+		return ((PieceTableContent) getContent()).getStorageSize() + (long) LINE_OVERHEAD * lineIndex.getLineCount();
+	}
+
+	/**
+	 * Compresses the loaded text of this document, which is left unchanged and still readable.
+	 * Meant for documents in the background; the parts read again are inflated as they are read.
+	 * May be called on any thread.
+	 *
+	 * @return the number of bytes saved
+	 */
+	public long compressStorage() {
+		return ((PieceTableContent) getContent()).compressOriginal();
+	}
+
+	/**
+	 * Copies the text into fresh storage, so that the memory of text removed since it was loaded
+	 * can be reclaimed. The text and its positions do not change and no event is fired, but undo
+	 * records created before no longer apply. Must be called on the thread that edits the
+	 * document.
+	 */
+	public void compactStorage() {
+		writeLock();
+		try {
+			((PieceTableContent) getContent()).compact();
+		} finally {
+			writeUnlock();
+		}
+	}
+
+	@Override
+	protected void fireInsertUpdate(DocumentEvent e) {
+		lineIndex.insertUpdate(e, this);
+		super.fireInsertUpdate(e);
+	}
+
+	@Override
+	protected void fireRemoveUpdate(DocumentEvent e) {
+		lineIndex.removeUpdate(e);
+		super.fireRemoveUpdate(e);
+	}
+
+	/**
+	 * Returns the offset of the next occurrence of a string. The text is scanned in place, piece
+	 * by piece, without copying the document.
+	 *
+	 * @param pattern the string to find
+	 * @param from    the offset to start at
+	 * @return the offset of the match, or -1 if there is none
+	 */
+	public int indexOf(String pattern, int from) {
+		int patternLength = pattern.length();
+		if (patternLength == 0) {
+			return from;
+		}
+		char first = pattern.charAt(0);
+		Segment segment = new Segment();
+		segment.setPartialReturn(true);
+		readLock();
+		try {
+			int last = getLength() - patternLength;
+			int position = Math.max(0, from);
+			while (position <= last) {
+				getText(position, getLength() - position, segment);
+				char[] array = segment.array;
+				int base = segment.offset - position;
+				int end = Math.min(segment.offset + segment.count, last - position + segment.offset + 1);
+				for (int i = segment.offset; i < end; i++) {
+					if (array[i] == first && matchesAt(pattern, i - base, array, i, segment.offset + segment.count)) {
+						return i - base;
+					}
+				}
+				position += segment.count;
+			}
+			return -1;
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			readUnlock();
+		}
+	}
+
+	private boolean matchesAt(String pattern, int offset, char[] array, int index, int arrayEnd) throws BadLocationException {
+		int patternLength = pattern.length();
+		if (index + patternLength > arrayEnd) {
+			// The candidate crosses into the next piece
+			Segment candidate = new Segment();
+			getText(offset, patternLength, candidate);
+			array = candidate.array;
+			index = candidate.offset;
+		}
+		for (int i = 1; i < patternLength; i++) {
+			if (array[index + i] != pattern.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
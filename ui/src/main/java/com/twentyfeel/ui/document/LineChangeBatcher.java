@@ -0,0 +1,143 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.EventListenerList;
+import java.util.concurrent.Executor;
+
+/**
+ * Gathers the events of a document into one {@link LineChangeEvent} per frame.
+ * <p>
+ * Every document event widens a single pending range of changed lines, which is kept in the
+ * current line numbering by shifting it across later insertions and removals. The first event of
+ * a batch hands one notification task to the frame executor, so a paste, a macro or a replace-all
+ * that fires thousands of events still notifies each listener once.
+ * </p>
+ */
+public class LineChangeBatcher implements DocumentListener {
+	private EditorDocument document;
+	private final Executor frameExecutor;
+	private final EventListenerList listenerList = new EventListenerList();
+	private final Runnable notifyTask = this::fireLinesChanged;
+
+	private int lineCount;
+	private int firstLine;
+	private int lastLine;
+	private int lineCountDelta;
+	private int editCount;
+
+	/**
+	 * Creates a batcher and starts listening to the document.
+	 *
+	 * @param document      the document
+	 * @param frameExecutor runs the notification of a batch on the event dispatch thread, once
+	 *                      per frame
+	 */
+	public LineChangeBatcher(EditorDocument document, Executor frameExecutor) {
+		this.document = document;
+		this.frameExecutor = frameExecutor;
+		this.lineCount = document.getLineIndex().getLineCount();
+		document.addDocumentListener(this);
+	}
+
+	/**
+	 * Moves over to another document and reports all of its lines as changed on the next frame.
+	 *
+	 * @param document the new document
+	 */
+	public void setDocument(EditorDocument document) {
+		this.document.removeDocumentListener(this);
+		this.document = document;
+		document.addDocumentListener(this);
+
+		int newLineCount = document.getLineIndex().getLineCount();
+		if (editCount == 0) {
+			frameExecutor.execute(notifyTask);
+		}
+		firstLine = 0;
+		lastLine = newLineCount - 1;
+		lineCountDelta += newLineCount - lineCount;
+		lineCount = newLineCount;
+		editCount++;
+	}
+
+	public void addLineChangeListener(LineChangeListener listener) {
+		listenerList.add(LineChangeListener.class, listener);
+	}
+
+	public void removeLineChangeListener(LineChangeListener listener) {
+		listenerList.remove(LineChangeListener.class, listener);
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e) {
+		LineIndex lineIndex = document.getLineIndex();
+		int line = lineIndex.getLineOfOffset(e.getOffset());
+		int added = lineIndex.getLineCount() - lineCount;
+		if (editCount > 0) {
+			if (firstLine > line) {
+				firstLine += added;
+			}
+			if (lastLine > line) {
+				lastLine += added;
+			}
+		}
+		changed(line, line + added, added);
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e) {
+		LineIndex lineIndex = document.getLineIndex();
+		int line = lineIndex.getLineOfOffset(e.getOffset());
+		int removed = lineCount - lineIndex.getLineCount();
+		if (editCount > 0) {
+			if (firstLine > line) {
+				firstLine = Math.max(line, firstLine - removed);
+			}
+			if (lastLine > line) {
+				lastLine = Math.max(line, lastLine - removed);
+			}
+		}
+		changed(line, line, -removed);
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e) {
+		LineIndex lineIndex = document.getLineIndex();
+		int first = lineIndex.getLineOfOffset(e.getOffset());
+		int last = lineIndex.getLineOfOffset(e.getOffset() + e.getLength());
+		changed(first, last, 0);
+	}
+
+	private void changed(int first, int last, int delta) {
+		if (editCount == 0) {
+			firstLine = first;
+			lastLine = last;
+			frameExecutor.execute(notifyTask);
+		} else {
+			firstLine = Math.min(firstLine, first);
+			lastLine = Math.max(lastLine, last);
+		}
+		lineCount += delta;
+		lineCountDelta += delta;
+		editCount++;
+	}
+
+	private void fireLinesChanged() {
+		if (editCount == 0) {
+			return;
+		}
+		int maxLine = document.getLineIndex().getLineCount() - 1;
+		LineChangeEvent event = new LineChangeEvent(document, Math.min(firstLine, maxLine), Math.min(lastLine, maxLine), lineCountDelta, editCount);
+		editCount = 0;
+		lineCountDelta = 0;
+
+		Object[] listeners = listenerList.getListenerList();
+		for (int i = listeners.length - 2; i >= 0; i -= 2) {
+			if (listeners[i] == LineChangeListener.class) {
+				((LineChangeListener) listeners[i + 1]).linesChanged(event);
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import java.util.EventObject;
+
+/**
+ * The range of lines touched by a batch of document edits, in the line numbering after all of
+ * them. Lines after the range are unchanged but may have moved by {@link #getLineCountDelta()}.
+ */
+public class LineChangeEvent extends EventObject {
+	private final int firstLine;
+	private final int lastLine;
+	private final int lineCountDelta;
+	private final int editCount;
+
+	public LineChangeEvent(EditorDocument source, int firstLine, int lastLine, int lineCountDelta, int editCount) {
+		super(source);
+		this.firstLine = firstLine;
+		this.lastLine = lastLine;
+		this.lineCountDelta = lineCountDelta;
+		this.editCount = editCount;
+	}
+
+	public EditorDocument getDocument() {
+		return (EditorDocument) getSource();
+	}
+
+	/**
+	 * Returns the first changed line.
+	 *
+	 * @return the zero-based line
+	 */
+	public int getFirstLine() {
+		return firstLine;
+	}
+
+	/**
+	 * Returns the last changed line, inclusive.
+	 *
+	 * @return the zero-based line
+	 */
+	public int getLastLine() {
+		return lastLine;
+	}
+
+	/**
+	 * Returns how many lines were added, or removed if negative.
+	 *
+	 * @return the change of the line count
+	 */
+	public int getLineCountDelta() {
+		return lineCountDelta;
+	}
+
+	/**
+	 * Returns the number of document events merged into this one.
+	 *
+	 * @return the edit count
+	 */
+	public int getEditCount() {
+		return editCount;
+	}
+}
@@ -0,0 +1,11 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import java.util.EventListener;
+
+/**
+ * Receives the lines changed by all edits of a frame, see {@link LineChangeBatcher}.
+ */
+public interface LineChangeListener extends EventListener {
+	void linesChanged(LineChangeEvent e);
+}
@@ -0,0 +1,447 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.util.Arrays;
+
+/**
+ * Balanced index of line lengths for O(log n) offset to line lookups.
+ * <p>
+ * Lines are nodes of an implicit treap stored in primitive arrays: every node holds the length of
+ * its line, including the terminating newline, together with the line count and total length of
+ * its subtree. Lookups walk a single path from the root and never allocate. The index is updated
+ * incrementally from document events, splicing in or cutting out only the lines an edit touches.
+ * </p>
+ * <p>
+ * Nothing in the tree is specific to characters, so views reuse it for other per-line amounts,
+ * such as the number of rows a wrapped line takes.
+ * </p>
+ */
+public class LineIndex {
+	private static final int NIL = 0;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int[] left = new int[INITIAL_CAPACITY];
+	private int[] right = new int[INITIAL_CAPACITY];
+	private int[] size = new int[INITIAL_CAPACITY];
+	private int[] length = new int[INITIAL_CAPACITY];
+	private int[] sum = new int[INITIAL_CAPACITY];
+	private int nodeCount = 1;
+	private int freeList = NIL;
+	private int root = NIL;
+
+	private int splitLeft;
+	private int splitRight;
+
+	private int[] scratch = new int[INITIAL_CAPACITY];
+	private int[] stack = new int[INITIAL_CAPACITY];
+	private final Segment segment = new Segment();
+
+	/**
+	 * Creates an index for an empty document, which consists of a single line holding the implied
+	 * trailing newline.
+	 */
+	public LineIndex() {
+		scratch[0] = 1;
+		root = build(scratch, 0, 1);
+	}
+
+	/**
+	 * Returns the number of lines.
+	 *
+	 * @return the line count
+	 */
+	public int getLineCount() {
+		return size[root];
+	}
+
+	/**
+	 * Returns the total length of all lines, which is the document length plus the implied
+	 * trailing newline.
+	 *
+	 * @return the indexed length
+	 */
+	public int getLength() {
+		return sum[root];
+	}
+
+	/**
+	 * Returns the line containing the given offset. Offsets past the end map to the last line.
+	 *
+	 * @param offset the document offset
+	 * @return the zero-based line
+	 */
+	public int getLineOfOffset(int offset) {
+		int node = root;
+		int line = 0;
+		while (node != NIL) {
+			int leftSum = sum[left[node]];
+			if (offset < leftSum) {
+				node = left[node];
+			} else if (offset < leftSum + length[node] || right[node] == NIL) {
+				return line + size[left[node]];
+			} else {
+				offset -= leftSum + length[node];
+				line += size[left[node]] + 1;
+				node = right[node];
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * Returns the offset of the first character of a line.
+	 *
+	 * @param line the zero-based line
+	 * @return the start offset
+	 * @throws IndexOutOfBoundsException if the line does not exist
+	 */
+	public int getLineStartOffset(int line) {
+		checkLine(line);
+		int node = root;
+		int offset = 0;
+		while (true) {
+			int leftSize = size[left[node]];
+			if (line < leftSize) {
+				node = left[node];
+			} else if (line == leftSize) {
+				return offset + sum[left[node]];
+			} else {
+				offset += sum[left[node]] + length[node];
+				line -= leftSize + 1;
+				node = right[node];
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset just past the end of a line, including its newline.
+	 *
+	 * @param line the zero-based line
+	 * @return the end offset
+	 * @throws IndexOutOfBoundsException if the line does not exist
+	 */
+	public int getLineEndOffset(int line) {
+		return getLineStartOffset(line) + getLineLength(line);
+	}
+
+	/**
+	 * Returns the length of a line, including its newline.
+	 *
+	 * @param line the zero-based line
+	 * @return the line length
+	 * @throws IndexOutOfBoundsException if the line does not exist
+	 */
+	public int getLineLength(int line) {
+		return length[nodeAt(line)];
+	}
+
+	/**
+	 * Updates the index after text has been inserted. The inserted text must already be part of
+	 * the document.
+	 *
+	 * @param e        the insert event
+	 * @param document the changed document
+	 */
+	void insertUpdate(DocumentEvent e, Document document) {
+		int offset = e.getOffset();
+		int count = e.getLength();
+		int newlines = collectNewlines(document, offset, count);
+
+		int line = getLineOfOffset(offset);
+		if (newlines == 0) {
+			addLength(line, count);
+			return;
+		}
+
+		int column = offset - getLineStartOffset(line);
+		int rest = getLineLength(line) - column;
+		int previous = scratch[0];
+		setLength(line, column + previous + 1);
+		for (int i = 1; i < newlines; i++) {
+			int position = scratch[i];
+			scratch[i - 1] = position - previous;
+			previous = position;
+		}
+		scratch[newlines - 1] = count - previous - 1 + rest;
+		insertLines(line + 1, scratch, newlines);
+	}
+
+	/**
+	 * Updates the index after text has been removed. Only offsets are needed, so this works both
+	 * before and after the content itself has changed.
+	 *
+	 * @param e the remove event
+	 */
+	void removeUpdate(DocumentEvent e) {
+		int offset = e.getOffset();
+		int end = offset + e.getLength();
+		int firstLine = getLineOfOffset(offset);
+		int lastLine = getLineOfOffset(end);
+		int start = getLineStartOffset(firstLine);
+		int lastEnd = getLineEndOffset(lastLine);
+		if (lastLine > firstLine) {
+			removeLines(firstLine + 1, lastLine - firstLine);
+		}
+		setLength(firstLine, lastEnd - start - e.getLength());
+	}
+
+	/**
+	 * Replaces the whole index with the given line lengths.
+	 *
+	 * @param lengths the line lengths, including newlines and the implied trailing newline
+	 * @param count   the number of lines
+	 */
+	public void reset(int[] lengths, int count) {
+		nodeCount = 1;
+		freeList = NIL;
+		root = build(lengths, 0, count);
+	}
+
+	private int collectNewlines(Document document, int offset, int count) {
+		int newlines = 0;
+		segment.setPartialReturn(true);
+		try {
+			int position = 0;
+			while (position < count) {
+				document.getText(offset + position, count - position, segment);
+				char[] array = segment.array;
+				for (int i = segment.offset, end = segment.offset + segment.count; i < end; i++) {
+					if (array[i] == '\n') {
+						if (newlines == scratch.length) {
+							scratch = Arrays.copyOf(scratch, newlines * 2);
+						}
+						scratch[newlines++] = position + i - segment.offset;
+					}
+				}
+				position += segment.count;
+			}
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			segment.array = null;
+		}
+		return newlines;
+	}
+
+	private void checkLine(int line) {
+		if (line < 0 || line >= size[root]) {
+			throw new IndexOutOfBoundsException("Line " + line + " out of range [0, " + size[root] + ")");
+		}
+	}
+
+	private int nodeAt(int line) {
+		checkLine(line);
+		int node = root;
+		while (true) {
+			int leftSize = size[left[node]];
+			if (line < leftSize) {
+				node = left[node];
+			} else if (line == leftSize) {
+				return node;
+			} else {
+				line -= leftSize + 1;
+				node = right[node];
+			}
+		}
+	}
+
+	private void addLength(int line, int delta) {
+		int node = root;
+		while (true) {
+			sum[node] += delta;
+			int leftSize = size[left[node]];
+			if (line < leftSize) {
+				node = left[node];
+			} else if (line == leftSize) {
+				length[node] += delta;
+				return;
+			} else {
+				line -= leftSize + 1;
+				node = right[node];
+			}
+		}
+	}
+
+	/**
+	 * Changes the length of a line.
+	 *
+	 * @param line      the zero-based line
+	 * @param newLength the new length
+	 * @throws IndexOutOfBoundsException if the line does not exist
+	 */
+	public void setLength(int line, int newLength) {
+		addLength(line, newLength - getLineLength(line));
+	}
+
+	/**
+	 * Inserts lines before a line.
+	 *
+	 * @param at      the zero-based line the new lines go before, or the line count to append
+	 * @param lengths the lengths of the new lines
+	 * @param count   the number of new lines
+	 */
+	public void insertLines(int at, int[] lengths, int count) {
+		int inserted = build(lengths, 0, count);
+		split(root, at);
+		int tail = splitRight;
+		root = merge(merge(splitLeft, inserted), tail);
+	}
+
+	/**
+	 * Removes consecutive lines.
+	 *
+	 * @param at    the first zero-based line to remove
+	 * @param count the number of lines to remove
+	 */
+	public void removeLines(int at, int count) {
+		split(root, at);
+		int head = splitLeft;
+		split(splitRight, count);
+		int tail = splitRight;
+		release(splitLeft);
+		root = merge(head, tail);
+	}
+
+	/**
+	 * Splits a subtree into its first {@code count} lines and the rest, leaving the results in
+	 * {@link #splitLeft} and {@link #splitRight}.
+	 */
+	private void split(int node, int count) {
+		if (node == NIL) {
+			splitLeft = NIL;
+			splitRight = NIL;
+			return;
+		}
+		int leftSize = size[left[node]];
+		if (count <= leftSize) {
+			split(left[node], count);
+			left[node] = splitRight;
+			update(node);
+			splitRight = node;
+		} else {
+			split(right[node], count - leftSize - 1);
+			right[node] = splitLeft;
+			update(node);
+			splitLeft = node;
+		}
+	}
+
+	private int merge(int a, int b) {
+		if (a == NIL) {
+			return b;
+		}
+		if (b == NIL) {
+			return a;
+		}
+		if (priority(a) > priority(b)) {
+			right[a] = merge(right[a], b);
+			update(a);
+			return a;
+		}
+		left[b] = merge(a, left[b]);
+		update(b);
+		return b;
+	}
+
+	/**
+	 * Builds a treap over consecutive lines with the stack-based Cartesian tree construction,
+	 * which runs in linear time.
+	 */
+	private int build(int[] lengths, int from, int count) {
+		ensureCapacity(count);
+		if (stack.length < count) {
+			stack = new int[count];
+		}
+		int top = 0;
+		for (int i = 0; i < count; i++) {
+			int node = allocate(lengths[from + i]);
+			int last = NIL;
+			while (top > 0 && priority(stack[top - 1]) < priority(node)) {
+				last = stack[--top];
+				update(last);
+			}
+			left[node] = last;
+			if (top > 0) {
+				right[stack[top - 1]] = node;
+			}
+			stack[top++] = node;
+		}
+		int last = NIL;
+		while (top > 0) {
+			last = stack[--top];
+			update(last);
+		}
+		return last;
+	}
+
+	private void release(int node) {
+		if (node == NIL) {
+			return;
+		}
+		int top = 0;
+		stack[top++] = node;
+		while (top > 0) {
+			int current = stack[--top];
+			if (top + 2 > stack.length) {
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			}
+			if (left[current] != NIL) {
+				stack[top++] = left[current];
+			}
+			if (right[current] != NIL) {
+				stack[top++] = right[current];
+			}
+			left[current] = NIL;
+			right[current] = freeList;
+			freeList = current;
+		}
+	}
+
+	private int allocate(int lineLength) {
+		int node;
+		if (freeList != NIL) {
+			node = freeList;
+			freeList = right[node];
+		} else {
+			node = nodeCount++;
+		}
+		left[node] = NIL;
+		right[node] = NIL;
+		size[node] = 1;
+		length[node] = lineLength;
+		sum[node] = lineLength;
+		return node;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (nodeCount + additional <= left.length) {
+			return;
+		}
+		int capacity = Math.max(left.length * 2, nodeCount + additional);
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		size = Arrays.copyOf(size, capacity);
+		length = Arrays.copyOf(length, capacity);
+		sum = Arrays.copyOf(sum, capacity);
+	}
+
+	private void update(int node) {
+		size[node] = size[left[node]] + size[right[node]] + 1;
+		sum[node] = sum[left[node]] + sum[right[node]] + length[node];
+	}
+
+	/**
+	 * Derives a pseudo-random priority from the node slot, so priorities need no storage.
+	 */
+	private static int priority(int node) {
+		int h = node * 0x9E3779B9;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+}
@@ -0,0 +1,162 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import java.util.Arrays;
+
+/**
+ * Fast compression of independent blocks of bytes in the LZ4 block format.
+ * <p>
+ * The compressor finds earlier occurrences of four-byte sequences through a small hash table
+ * and emits sequences of literals followed by a back reference of up to 64K bytes. It trades
+ * ratio for speed: text and logs still shrink to a third or so, at a cost small enough to run on
+ * whole documents while the user keeps working. The caller keeps the uncompressed length, as
+ * the format does not store it.
+ * </p>
+ */
+final class LzBlock {
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_BITS = 14;
+	private static final int MAX_OFFSET = 0xFFFF;
+	/**
+	 * The last bytes of a block are always literals, as in LZ4.
+	 */
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_LIMIT = 12;
+	private static final int SKIP_SHIFT = 6;
+
+	private LzBlock() {
+	}
+
+	/**
+	 * Compresses a range of bytes.
+	 *
+	 * @param src    the bytes
+	 * @param offset the first byte
+	 * @param length the number of bytes
+	 * @return the compressed bytes
+	 */
+	static byte[] compress(byte[] src, int offset, int length) {
+		byte[] dst = new byte[length + length / 255 + 16];
+		int[] table = new int[1 << HASH_BITS];
+		int end = offset + length;
+		int matchLimit = end - MATCH_LIMIT;
+		int anchor = offset;
+		int ip = offset;
+		int op = 0;
+		while (ip < matchLimit) {
+			int sequence = readInt(src, ip);
+			int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+			// Positions are stored plus one, so 0 means none
+			int ref = offset + table[hash] - 1;
+			table[hash] = ip - offset + 1;
+			if (ref < offset || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+				// Skip faster through data that does not compress
+				ip += 1 + ((ip - anchor) >>> SKIP_SHIFT);
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < end - LAST_LITERALS && src[ref + matchLength] == src[ip + matchLength]) {
+				matchLength++;
+			}
+
+			int token = op++;
+			int literals = ip - anchor;
+			op = writeLiterals(src, anchor, literals, dst, op);
+			dst[op++] = (byte) (ip - ref);
+			dst[op++] = (byte) ((ip - ref) >>> 8);
+			int extra = matchLength - MIN_MATCH;
+			dst[token] = (byte) (Math.min(literals, 15) << 4 | Math.min(extra, 15));
+			if (extra >= 15) {
+				op = writeLength(extra - 15, dst, op);
+			}
+			ip += matchLength;
+			anchor = ip;
+		}
+		int literals = end - anchor;
+		int token = op++;
+		dst[token] = (byte) (Math.min(literals, 15) << 4);
+		op = writeLiterals(src, anchor, literals, dst, op);
+		return Arrays.copyOf(dst, op);
+	}
+
+	/**
+	 * Decompresses a block.
+	 *
+	 * @param src the compressed bytes
+	 * @param dst receives exactly the uncompressed bytes
+	 * @throws IllegalArgumentException if the block is damaged
+	 */
+	static void decompress(byte[] src, byte[] dst) {
+		int ip = 0;
+		int op = 0;
+		try {
+			while (true) {
+				int token = src[ip++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literals += b;
+					} while (b == 255);
+				}
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+				if (ip == src.length) {
+					break;
+				}
+				int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+				ip += 2;
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				int from = op - distance;
+				if (distance == 0 || from < 0) {
+					throw new IllegalArgumentException("Bad match distance " + distance + " at " + op);
+				}
+				if (distance >= matchLength) {
+					System.arraycopy(dst, from, dst, op, matchLength);
+					op += matchLength;
+				} else {
+					// Overlapping copy repeats the last bytes
+					for (int i = 0; i < matchLength; i++) {
+						dst[op++] = dst[from + i];
+					}
+				}
+			}
+		} catch (IndexOutOfBoundsException ex) {
+			throw new IllegalArgumentException("Damaged block", ex);
+		}
+		if (op != dst.length) {
+			throw new IllegalArgumentException("Block decompressed to " + op + " bytes, expected " + dst.length);
+		}
+	}
+
+	private static int writeLiterals(byte[] src, int from, int count, byte[] dst, int op) {
+		if (count >= 15) {
+			op = writeLength(count - 15, dst, op);
+		}
+		System.arraycopy(src, from, dst, op, count);
+		return op + count;
+	}
+
+	private static int writeLength(int rest, byte[] dst, int op) {
+		while (rest >= 255) {
+			dst[op++] = (byte) 255;
+			rest -= 255;
+		}
+		dst[op++] = (byte) rest;
+		return op;
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | bytes[offset + 3] << 24;
+	}
+}
@@ -0,0 +1,332 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import javax.swing.text.Position;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ordered set of document positions backed by a treap.
+ * <p>
+ * Each mark stores its distance to the previous mark instead of an absolute offset, and every
+ * node keeps the sum of the distances in its subtree. Shifting all positions behind an edit is
+ * therefore a single update of the first affected mark, and resolving an offset walks one path
+ * to the root. Marks whose {@link Position} has been collected are purged lazily.
+ * </p>
+ */
+final class MarkTree {
+	private final ReferenceQueue<StickyPosition> queue = new ReferenceQueue<>();
+	private Mark root;
+	private int size;
+
+	/**
+	 * Returns a position tracking the given offset, reusing a live mark at the same offset.
+	 *
+	 * @param offset the offset to track
+	 * @return the position
+	 */
+	Position createPosition(int offset) {
+		purge();
+
+		Mark candidate = firstAtOrAfter(offset);
+		if (candidate != null && candidate.offset() == offset) {
+			StickyPosition position = candidate.get();
+			if (position != null) {
+				return position;
+			}
+		}
+
+		StickyPosition position = new StickyPosition();
+		Mark mark = new Mark(position, queue);
+		position.mark = mark;
+		insertBefore(candidate, mark, offset);
+		size++;
+		return position;
+	}
+
+	/**
+	 * Shifts the marks after an insertion. Marks at the insertion point move with the inserted
+	 * text, except marks at offset 0 which always stay at the document start.
+	 *
+	 * @param where  the insertion offset
+	 * @param length the number of inserted characters
+	 */
+	void insertUpdate(int where, int length) {
+		Mark first = firstAtOrAfter(Math.max(where, 1));
+		if (first != null) {
+			first.addDelta(length);
+		}
+	}
+
+	/**
+	 * Shifts the marks after a removal and collapses the marks inside the removed range onto its
+	 * start.
+	 *
+	 * @param where  the removal offset
+	 * @param length the number of removed characters
+	 */
+	void removeUpdate(int where, int length) {
+		Mark mark = firstAtOrAfter(where + 1);
+		int end = where + length;
+		int shift = 0;
+		while (mark != null) {
+			int offset = mark.offset();
+			if (offset - shift > end) {
+				mark.addDelta(-length - shift);
+				break;
+			}
+			mark.addDelta(where - offset);
+			shift += where - offset;
+			mark = mark.next();
+		}
+	}
+
+	/**
+	 * Records the offsets of the marks inside a range that is about to be removed.
+	 *
+	 * @param where  the start of the range
+	 * @param length the length of the range
+	 * @return the recorded marks
+	 */
+	Snapshot snapshot(int where, int length) {
+		Snapshot snapshot = new Snapshot();
+		int end = where + length;
+		for (Mark mark = firstAtOrAfter(where); mark != null; mark = mark.next()) {
+			int offset = mark.offset();
+			if (offset > end) {
+				break;
+			}
+			snapshot.add(mark, offset);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Moves the recorded marks back to their offsets once the removed text has been reinserted.
+	 *
+	 * @param snapshot the marks recorded before the removal
+	 */
+	void restore(Snapshot snapshot) {
+		for (int i = 0; i < snapshot.count; i++) {
+			Mark mark = snapshot.marks[i];
+			if (!mark.removed && mark.get() != null) {
+				detach(mark);
+				insertBefore(firstAtOrAfter(snapshot.offsets[i]), mark, snapshot.offsets[i]);
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	private Mark firstAtOrAfter(int offset) {
+		Mark candidate = null;
+		int base = 0;
+		Mark node = root;
+		while (node != null) {
+			int nodeOffset = base + sum(node.left) + node.delta;
+			if (nodeOffset >= offset) {
+				candidate = node;
+				node = node.left;
+			} else {
+				base = nodeOffset;
+				node = node.right;
+			}
+		}
+		return candidate;
+	}
+
+	private void insertBefore(Mark successor, Mark mark, int offset) {
+		int previousOffset = successor != null ? successor.offset() - successor.delta : sum(root);
+		mark.delta = offset - previousOffset;
+		mark.sum = mark.delta;
+		if (successor != null) {
+			successor.addDelta(previousOffset - offset);
+		}
+
+		if (root == null) {
+			root = mark;
+		} else if (successor == null) {
+			attach(rightmost(root), mark, false);
+		} else if (successor.left == null) {
+			attach(successor, mark, true);
+		} else {
+			attach(rightmost(successor.left), mark, false);
+		}
+
+		while (mark.parent != null && mark.parent.priority < mark.priority) {
+			rotateUp(mark);
+		}
+	}
+
+	private void attach(Mark parent, Mark mark, boolean left) {
+		if (left) {
+			parent.left = mark;
+		} else {
+			parent.right = mark;
+		}
+		mark.parent = parent;
+		for (Mark node = parent; node != null; node = node.parent) {
+			node.sum += mark.delta;
+		}
+	}
+
+	private void remove(Mark mark) {
+		if (mark.removed) {
+			return;
+		}
+		detach(mark);
+		mark.removed = true;
+		size--;
+	}
+
+	private void detach(Mark mark) {
+		Mark next = mark.next();
+		if (next != null) {
+			next.addDelta(mark.delta);
+		}
+		mark.addDelta(-mark.delta);
+
+		while (mark.left != null && mark.right != null) {
+			rotateUp(mark.left.priority > mark.right.priority ? mark.left : mark.right);
+		}
+		Mark child = mark.left != null ? mark.left : mark.right;
+		replaceChild(mark.parent, mark, child);
+		mark.left = mark.right = mark.parent = null;
+	}
+
+	private void rotateUp(Mark node) {
+		Mark parent = node.parent;
+		Mark grandParent = parent.parent;
+		if (parent.left == node) {
+			parent.left = node.right;
+			if (node.right != null) {
+				node.right.parent = parent;
+			}
+			node.right = parent;
+		} else {
+			parent.right = node.left;
+			if (node.left != null) {
+				node.left.parent = parent;
+			}
+			node.left = parent;
+		}
+		parent.parent = node;
+		replaceChild(grandParent, parent, node);
+		parent.sum = parent.delta + sum(parent.left) + sum(parent.right);
+		node.sum = node.delta + sum(node.left) + sum(node.right);
+	}
+
+	private void replaceChild(Mark parent, Mark oldChild, Mark newChild) {
+		if (newChild != null) {
+			newChild.parent = parent;
+		}
+		if (parent == null) {
+			root = newChild;
+		} else if (parent.left == oldChild) {
+			parent.left = newChild;
+		} else {
+			parent.right = newChild;
+		}
+	}
+
+	private void purge() {
+		Reference<? extends StickyPosition> reference;
+		while ((reference = queue.poll()) != null) {
+			remove((Mark) reference);
+		}
+	}
+
+	private static Mark rightmost(Mark node) {
+		while (node.right != null) {
+			node = node.right;
+		}
+		return node;
+	}
+
+	private static int sum(Mark node) {
+		return node != null ? node.sum : 0;
+	}
+
+	private static final class Mark extends WeakReference<StickyPosition> {
+		private final int priority = ThreadLocalRandom.current().nextInt();
+		private Mark left;
+		private Mark right;
+		private Mark parent;
+		private int delta;
+		private int sum;
+		private boolean removed;
+
+		Mark(StickyPosition position, ReferenceQueue<StickyPosition> queue) {
+			super(position, queue);
+		}
+
+		int offset() {
+			int offset = delta + sum(left);
+			for (Mark node = this; node.parent != null; node = node.parent) {
+				if (node.parent.right == node) {
+					offset += node.parent.delta + sum(node.parent.left);
+				}
+			}
+			return offset;
+		}
+
+		void addDelta(int amount) {
+			if (amount == 0) {
+				return;
+			}
+			delta += amount;
+			for (Mark node = this; node != null; node = node.parent) {
+				node.sum += amount;
+			}
+		}
+
+		Mark next() {
+			if (right != null) {
+				Mark node = right;
+				while (node.left != null) {
+					node = node.left;
+				}
+				return node;
+			}
+			Mark node = this;
+			while (node.parent != null && node.parent.right == node) {
+				node = node.parent;
+			}
+			return node.parent;
+		}
+	}
+
+	static final class Snapshot {
+		private Mark[] marks = new Mark[4];
+		private int[] offsets = new int[4];
+		private int count;
+
+		private void add(Mark mark, int offset) {
+			if (count == marks.length) {
+				marks = Arrays.copyOf(marks, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			marks[count] = mark;
+			offsets[count++] = offset;
+		}
+	}
+
+	private static final class StickyPosition implements Position {
+		private Mark mark;
+
+		@Override
+		public int getOffset() {
+			return mark.offset();
+		}
+
+		@Override
+		public String toString() {
+			return Integer.toString(getOffset());
+		}
+	}
+}
@@ -0,0 +1,473 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+import java.util.Arrays;
+
+/**
+ * Piece-table implementation of {@link AbstractDocument.Content}.
+ * <p>
+ * The text is described by an ordered list of pieces, each referencing a range of either the
+ * original buffer, which holds the loaded file and is never modified, or the add buffer, to which
+ * inserted text is only ever appended. Inserting or removing text splits and drops pieces, so the
+ * cost of an edit depends on the number of pieces rather than on the size of the text or the
+ * distance to the previous edit. Both buffers are immutable once written, which lets
+ * {@link #getChars(int, int, Segment)} hand out views into them without copying. The original
+ * buffer is a {@link CompactText}, which keeps ASCII and Latin-1 files at one byte per character.
+ * </p>
+ */
+public class PieceTableContent implements AbstractDocument.Content {
+	private static final char[] EMPTY = new char[0];
+	private static final int INITIAL_PIECES = 16;
+	private static final int INITIAL_ADD_CAPACITY = 1024;
+
+	static final byte ORIGINAL = 0;
+	static final byte ADDED = 1;
+
+	private CompactText original;
+
+	private char[] added = new char[INITIAL_ADD_CAPACITY];
+	private int addedLength;
+
+	private byte[] pieceBuffer = new byte[INITIAL_PIECES];
+	private int[] pieceStart = new int[INITIAL_PIECES];
+	private int[] pieceLength = new int[INITIAL_PIECES];
+	private int[] pieceOffset = new int[INITIAL_PIECES];
+	private int pieceCount;
+	private int length;
+	// Counts compactions, after which buffer places no longer identify text
+	private int epoch;
+
+	private final MarkTree marks = new MarkTree();
+
+	/**
+	 * Creates empty content holding only the implied trailing newline.
+	 */
+	public PieceTableContent() {
+		this(CompactText.empty());
+	}
+
+	/**
+	 * Creates content over an already loaded buffer. The buffer is adopted, not copied, and must
+	 * not be modified afterwards. The implied trailing newline required by
+	 * {@link AbstractDocument} is appended as a separate piece.
+	 *
+	 * @param original the loaded text
+	 * @param length   the number of valid characters in {@code original}
+	 */
+	public PieceTableContent(char[] original, int length) {
+		this(CompactText.ofChars(original, length));
+	}
+
+	/**
+	 * Creates content over already loaded compact text. The implied trailing newline required by
+	 * {@link AbstractDocument} is appended as a separate piece.
+	 *
+	 * @param original the loaded text
+	 */
+	public PieceTableContent(CompactText original) {
+		this.original = original;
+		if (original.length() > 0) {
+			appendPiece(ORIGINAL, 0, original.length());
+		}
+		added[addedLength++] = '\n';
+		appendPiece(ADDED, 0, 1);
+	}
+
+	@Override
+	public Position createPosition(int offset) throws BadLocationException {
+		return marks.createPosition(offset);
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public UndoableEdit insertString(int where, String str) throws BadLocationException {
+		if (where > length || where < 0) {
+			throw new BadLocationException("Invalid insert", length);
+		}
+		int count = str.length();
+		if (count == 0) {
+			return null;
+		}
+
+		int start = append(str);
+		insertPiece(where, ADDED, start, count);
+		marks.insertUpdate(where, count);
+		return new InsertUndo(where, count);
+	}
+
+	@Override
+	public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+		if (where + nitems >= length) {
+			throw new BadLocationException("Invalid remove", length + 1);
+		}
+		if (nitems == 0) {
+			return null;
+		}
+
+		MarkTree.Snapshot positions = marks.snapshot(where, nitems);
+		Pieces removed = removePieces(where, nitems);
+		marks.removeUpdate(where, nitems);
+		return new RemoveUndo(where, removed, positions);
+	}
+
+	@Override
+	public String getString(int where, int len) throws BadLocationException {
+		Segment segment = new Segment();
+		getChars(where, len, segment);
+		return new String(segment.array, segment.offset, segment.count);
+	}
+
+	@Override
+	public void getChars(int where, int len, Segment txt) throws BadLocationException {
+		if (where < 0 || len < 0 || where + len > length) {
+			throw new BadLocationException("Invalid location", length);
+		}
+		if (len == 0) {
+			txt.array = EMPTY;
+			txt.offset = 0;
+			txt.count = 0;
+			return;
+		}
+
+		int index = findPiece(where);
+		int inPiece = where - pieceOffset[index];
+		int available = pieceLength[index] - inPiece;
+		if (pieceBuffer[index] == ORIGINAL) {
+			int count = original.getSegment(pieceStart[index] + inPiece, Math.min(available, len), txt);
+			if (count == len || txt.isPartialReturn()) {
+				return;
+			}
+		} else if (available >= len || txt.isPartialReturn()) {
+			txt.array = added;
+			txt.offset = pieceStart[index] + inPiece;
+			txt.count = Math.min(available, len);
+			return;
+		}
+
+		char[] chars = new char[len];
+		copyChars(index, inPiece, len, chars, 0);
+		txt.array = chars;
+		txt.offset = 0;
+		txt.count = len;
+	}
+
+	/**
+	 * Captures the current text without copying it. Both buffers are immutable once written, so
+	 * the snapshot stays valid and can be read from any thread while editing goes on; only the
+	 * piece descriptors are copied. The caller must hold the document lock.
+	 *
+	 * @param len the number of characters to capture from the start
+	 * @return the snapshot
+	 */
+	public TextSnapshot snapshot(int len) {
+		return new TextSnapshot(this, epoch, original, added,
+			Arrays.copyOf(pieceBuffer, pieceCount), Arrays.copyOf(pieceStart, pieceCount),
+			Arrays.copyOf(pieceLength, pieceCount), Arrays.copyOf(pieceOffset, pieceCount), Math.min(len, length));
+	}
+
+	/**
+	 * Returns the number of pieces currently describing the text.
+	 *
+	 * @return the piece count
+	 */
+	public int getPieceCount() {
+		return pieceCount;
+	}
+
+	/**
+	 * Returns the heap taken by both buffers and the piece descriptors, not counting object
+	 * headers or positions.
+	 *
+	 * @return the storage size in bytes
+	 */
+	public long getStorageSize() {
+		return original.getStorageSize() + 2L * added.length + 13L * pieceBuffer.length;
+	}
+
+	/**
+	 * Compresses the original buffer. The add buffer, which only holds typed text, is left as it
+	 * is. May be called on any thread.
+	 *
+	 * @return the number of bytes saved
+	 */
+	public long compressOriginal() {
+		return original.compress();
+	}
+
+	/**
+	 * Copies the text into a new original buffer, described by a single piece, so that the
+	 * buffers still holding removed text can be collected. The text and all positions stay as
+	 * they are. Snapshots taken before can still be read, but no longer compare with snapshots
+	 * taken after, since the same place of a new buffer holds other text. Undo records created
+	 * before no longer apply and must be discarded. The caller must hold the document write lock.
+	 */
+	public void compact() {
+		int textLength = length - 1;
+		char[] chars = new char[textLength];
+		copyChars(0, 0, textLength, chars, 0);
+		original = CompactText.compact(chars, textLength);
+		added = new char[INITIAL_ADD_CAPACITY];
+		addedLength = 0;
+		pieceBuffer = new byte[INITIAL_PIECES];
+		pieceStart = new int[INITIAL_PIECES];
+		pieceLength = new int[INITIAL_PIECES];
+		pieceOffset = new int[INITIAL_PIECES];
+		pieceCount = 0;
+		length = 0;
+		if (textLength > 0) {
+			appendPiece(ORIGINAL, 0, textLength);
+		}
+		added[addedLength++] = '\n';
+		appendPiece(ADDED, 0, 1);
+		epoch++;
+	}
+
+	private void copyChars(int index, int inPiece, int len, char[] dst, int dstOffset) {
+		while (len > 0) {
+			int count = Math.min(pieceLength[index] - inPiece, len);
+			if (pieceBuffer[index] == ORIGINAL) {
+				original.getChars(pieceStart[index] + inPiece, count, dst, dstOffset);
+			} else {
+				System.arraycopy(added, pieceStart[index] + inPiece, dst, dstOffset, count);
+			}
+			dstOffset += count;
+			len -= count;
+			inPiece = 0;
+			index++;
+		}
+	}
+
+	private int append(String str) {
+		int count = str.length();
+		if (addedLength + count > added.length) {
+			added = Arrays.copyOf(added, Math.max(added.length * 2, addedLength + count));
+		}
+		int start = addedLength;
+		str.getChars(0, count, added, start);
+		addedLength += count;
+		return start;
+	}
+
+	/**
+	 * Returns the index of the piece containing the given offset, or {@link #pieceCount} if the
+	 * offset is the end of the text.
+	 */
+	private int findPiece(int offset) {
+		if (offset >= length) {
+			return pieceCount;
+		}
+		int low = 0;
+		int high = pieceCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (pieceOffset[mid] <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the index of a piece starting exactly at the given offset, splitting the piece
+	 * containing it if necessary.
+	 */
+	private int splitAt(int offset) {
+		int index = findPiece(offset);
+		if (index == pieceCount || pieceOffset[index] == offset) {
+			return index;
+		}
+		int head = offset - pieceOffset[index];
+		openGap(index + 1, 1);
+		pieceBuffer[index + 1] = pieceBuffer[index];
+		pieceStart[index + 1] = pieceStart[index] + head;
+		pieceLength[index + 1] = pieceLength[index] - head;
+		pieceOffset[index + 1] = offset;
+		pieceLength[index] = head;
+		return index + 1;
+	}
+
+	private void insertPiece(int where, byte buffer, int start, int count) {
+		int index = splitAt(where);
+		int previous = index - 1;
+		if (previous >= 0 && pieceBuffer[previous] == buffer && pieceStart[previous] + pieceLength[previous] == start) {
+			// Typing at the end of the previous insertion just grows that piece
+			pieceLength[previous] += count;
+		} else {
+			openGap(index, 1);
+			pieceBuffer[index] = buffer;
+			pieceStart[index] = start;
+			pieceLength[index] = count;
+			pieceOffset[index] = where;
+			index++;
+		}
+		length += count;
+		shiftOffsets(index, count);
+	}
+
+	private void insertPieces(int where, Pieces pieces) {
+		int index = splitAt(where);
+		openGap(index, pieces.count);
+		int offset = where;
+		for (int i = 0; i < pieces.count; i++) {
+			pieceBuffer[index + i] = pieces.buffer[i];
+			pieceStart[index + i] = pieces.start[i];
+			pieceLength[index + i] = pieces.length[i];
+			pieceOffset[index + i] = offset;
+			offset += pieces.length[i];
+		}
+		int count = offset - where;
+		length += count;
+		shiftOffsets(index + pieces.count, count);
+	}
+
+	private Pieces removePieces(int where, int count) {
+		int first = splitAt(where);
+		int end = splitAt(where + count);
+
+		Pieces removed = new Pieces(end - first);
+		System.arraycopy(pieceBuffer, first, removed.buffer, 0, removed.count);
+		System.arraycopy(pieceStart, first, removed.start, 0, removed.count);
+		System.arraycopy(pieceLength, first, removed.length, 0, removed.count);
+
+		closeGap(first, end - first);
+		length -= count;
+		shiftOffsets(first, -count);
+		return removed;
+	}
+
+	private void appendPiece(byte buffer, int start, int count) {
+		openGap(pieceCount, 1);
+		int index = pieceCount - 1;
+		pieceBuffer[index] = buffer;
+		pieceStart[index] = start;
+		pieceLength[index] = count;
+		pieceOffset[index] = length;
+		length += count;
+	}
+
+	private void openGap(int index, int count) {
+		if (pieceCount + count > pieceStart.length) {
+			int capacity = Math.max(pieceStart.length * 2, pieceCount + count);
+			pieceBuffer = Arrays.copyOf(pieceBuffer, capacity);
+			pieceStart = Arrays.copyOf(pieceStart, capacity);
+			pieceLength = Arrays.copyOf(pieceLength, capacity);
+			pieceOffset = Arrays.copyOf(pieceOffset, capacity);
+		}
+		int tail = pieceCount - index;
+		System.arraycopy(pieceBuffer, index, pieceBuffer, index + count, tail);
+		System.arraycopy(pieceStart, index, pieceStart, index + count, tail);
+		System.arraycopy(pieceLength, index, pieceLength, index + count, tail);
+		System.arraycopy(pieceOffset, index, pieceOffset, index + count, tail);
+		pieceCount += count;
+	}
+
+	private void closeGap(int index, int count) {
+		int tail = pieceCount - index - count;
+		System.arraycopy(pieceBuffer, index + count, pieceBuffer, index, tail);
+		System.arraycopy(pieceStart, index + count, pieceStart, index, tail);
+		System.arraycopy(pieceLength, index + count, pieceLength, index, tail);
+		System.arraycopy(pieceOffset, index + count, pieceOffset, index, tail);
+		pieceCount -= count;
+	}
+
+	private void shiftOffsets(int from, int delta) {
+		for (int i = from; i < pieceCount; i++) {
+			pieceOffset[i] += delta;
+		}
+	}
+
+	/**
+	 * Piece descriptors detached from the table, kept by undo records so that undoing and redoing
+	 * never copies text.
+	 */
+	private static final class Pieces {
+		private final int count;
+		private final byte[] buffer;
+		private final int[] start;
+		private final int[] length;
+
+		Pieces(int count) {
+			this.count = count;
+			this.buffer = new byte[count];
+			this.start = new int[count];
+			this.length = new int[count];
+		}
+	}
+
+	private final class InsertUndo extends AbstractUndoableEdit {
+		private final int where;
+		private final int count;
+		private Pieces pieces;
+		private MarkTree.Snapshot positions;
+
+		InsertUndo(int where, int count) {
+			this.where = where;
+			this.count = count;
+		}
+
+		@Override
+		public void undo() throws CannotUndoException {
+			super.undo();
+			positions = marks.snapshot(where, count);
+			pieces = removePieces(where, count);
+			marks.removeUpdate(where, count);
+		}
+
+		@Override
+		public void redo() throws CannotRedoException {
+			super.redo();
+			insertPieces(where, pieces);
+			marks.insertUpdate(where, count);
+			marks.restore(positions);
+			pieces = null;
+			positions = null;
+		}
+	}
+
+	private final class RemoveUndo extends AbstractUndoableEdit {
+		private final int where;
+		private final int count;
+		private final Pieces pieces;
+		private final MarkTree.Snapshot positions;
+
+		RemoveUndo(int where, Pieces pieces, MarkTree.Snapshot positions) {
+			this.where = where;
+			this.pieces = pieces;
+			this.positions = positions;
+			int total = 0;
+			for (int i = 0; i < pieces.count; i++) {
+				total += pieces.length[i];
+			}
+			this.count = total;
+		}
+
+		@Override
+		public void undo() throws CannotUndoException {
+			super.undo();
+			insertPieces(where, pieces);
+			marks.insertUpdate(where, count);
+			marks.restore(positions);
+		}
+
+		@Override
+		public void redo() throws CannotRedoException {
+			super.redo();
+			removePieces(where, count);
+			marks.removeUpdate(where, count);
+		}
+	}
+}
@@ -0,0 +1,204 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import java.util.Arrays;
+
+/**
+ * Immutable view of the text of a {@link PieceTableContent} at one point in time.
+ * <p>
+ * A snapshot shares the buffers of the content and only owns a copy of its piece descriptors, so
+ * taking one costs as much as the number of pieces, however large the text. It can be read from
+ * any thread without the document lock, which lets a save run in the background while the
+ * document is being edited.
+ * </p>
+ * <p>
+ * Two snapshots of the same content can be compared piece by piece: where both take their text
+ * from the same place of the same buffer, the text is equal without looking at it. This only
+ * holds between snapshots taken without a {@link PieceTableContent#compact() compaction} in
+ * between, which replaces the buffers.
+ * </p>
+ */
+public final class TextSnapshot {
+	private final PieceTableContent owner;
+	private final int epoch;
+	private final CompactText original;
+	private final char[] added;
+	private final byte[] pieceBuffer;
+	private final int[] pieceStart;
+	private final int[] pieceLength;
+	private final int[] pieceOffset;
+	private final int length;
+
+	TextSnapshot(PieceTableContent owner, int epoch, CompactText original, char[] added, byte[] pieceBuffer, int[] pieceStart, int[] pieceLength, int[] pieceOffset, int length) {
+		this.owner = owner;
+		this.epoch = epoch;
+		this.original = original;
+		this.added = added;
+		this.pieceBuffer = pieceBuffer;
+		this.pieceStart = pieceStart;
+		this.pieceLength = pieceLength;
+		this.pieceOffset = pieceOffset;
+		this.length = length;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Copies characters into an array.
+	 *
+	 * @param where     the offset of the first character
+	 * @param len       the number of characters
+	 * @param dst       the destination
+	 * @param dstOffset the offset in the destination
+	 * @throws IndexOutOfBoundsException if the range is outside the snapshot
+	 */
+	public void getChars(int where, int len, char[] dst, int dstOffset) {
+		if (where < 0 || len < 0 || where + len > length) {
+			throw new IndexOutOfBoundsException("Range [" + where + ", " + (where + len) + ") outside of snapshot of length " + length);
+		}
+		int index = findPiece(where);
+		int inPiece = where - pieceOffset[index];
+		while (len > 0) {
+			int count = Math.min(pieceLength[index] - inPiece, len);
+			if (pieceBuffer[index] == PieceTableContent.ORIGINAL) {
+				original.getChars(pieceStart[index] + inPiece, count, dst, dstOffset);
+			} else {
+				System.arraycopy(added, pieceStart[index] + inPiece, dst, dstOffset, count);
+			}
+			dstOffset += count;
+			len -= count;
+			inPiece = 0;
+			index++;
+		}
+	}
+
+	/**
+	 * Returns the ranges in which this snapshot may differ from an older snapshot of the same
+	 * content, comparing both at the same offsets. Only the text both snapshots have, up to the
+	 * shorter length, is compared. Ranges are merged where they touch.
+	 *
+	 * @param base the older snapshot
+	 * @return pairs of start and end offsets, in order, or {@code null} if the snapshots do not
+	 * come from the same content or the content was compacted in between
+	 */
+	public int[] differences(TextSnapshot base) {
+		if (base.owner != owner || base.epoch != epoch) {
+			return null;
+		}
+		int end = Math.min(length, base.length);
+		int[] ranges = new int[8];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		int offset = 0;
+		while (offset < end) {
+			while (pieceOffset[i] + pieceLength[i] <= offset) {
+				i++;
+			}
+			while (base.pieceOffset[j] + base.pieceLength[j] <= offset) {
+				j++;
+			}
+			int inPiece = offset - pieceOffset[i];
+			int inBasePiece = offset - base.pieceOffset[j];
+			int step = Math.min(Math.min(pieceLength[i] - inPiece, base.pieceLength[j] - inBasePiece), end - offset);
+			// Both buffers are only ever appended to, so the same place holds the same text
+			boolean same = pieceBuffer[i] == base.pieceBuffer[j] && pieceStart[i] + inPiece == base.pieceStart[j] + inBasePiece;
+			if (!same) {
+				if (count > 0 && ranges[count - 1] == offset) {
+					ranges[count - 1] = offset + step;
+				} else {
+					if (count == ranges.length) {
+						ranges = Arrays.copyOf(ranges, count * 2);
+					}
+					ranges[count++] = offset;
+					ranges[count++] = offset + step;
+				}
+			}
+			offset += step;
+		}
+		return Arrays.copyOf(ranges, count);
+	}
+
+	/**
+	 * Tells, run by run, where the text of this snapshot comes from in an older snapshot of the
+	 * same content. Text that was cut and pasted elsewhere counts as new, since it was inserted
+	 * anew. Only the piece descriptors are compared, so this costs as much as the number of pieces.
+	 *
+	 * @param base the older snapshot
+	 * @return pairs of the offset in {@code base} where a run of this snapshot comes from, or -1
+	 * if the run is not in {@code base}, and the length of the run, in order; {@code null} if the
+	 * snapshots do not come from the same content or the content was compacted in between
+	 */
+	public int[] origins(TextSnapshot base) {
+		if (base.owner != owner || base.epoch != epoch) {
+			return null;
+		}
+		// The pieces of the base by buffer and start: each place of a buffer is in at most one
+		long[] order = new long[base.pieceOffset.length];
+		int basePieces = 0;
+		for (int j = 0; j < order.length; j++) {
+			if (base.pieceLength[j] > 0) {
+				order[basePieces++] = ((long) base.pieceBuffer[j] << 62) | ((long) base.pieceStart[j] << 31) | j;
+			}
+		}
+		Arrays.sort(order, 0, basePieces);
+
+		int[] runs = new int[8];
+		int count = 0;
+		for (int i = 0; i < pieceOffset.length && pieceOffset[i] < length; i++) {
+			int start = pieceStart[i];
+			int end = start + Math.min(pieceLength[i], length - pieceOffset[i]);
+			while (start < end) {
+				long key = ((long) pieceBuffer[i] << 62) | ((long) start << 31) | Integer.MAX_VALUE;
+				int index = Arrays.binarySearch(order, 0, basePieces, key);
+				index = index >= 0 ? index : -index - 2;
+				int origin = -1;
+				int step = end - start;
+				if (index >= 0 && (order[index] >>> 62) == pieceBuffer[i]) {
+					int j = (int) (order[index] & Integer.MAX_VALUE);
+					int pieceEnd = base.pieceStart[j] + base.pieceLength[j];
+					if (start < pieceEnd) {
+						origin = base.pieceOffset[j] + start - base.pieceStart[j];
+						step = Math.min(step, pieceEnd - start);
+						if (origin >= base.length) {
+							// The implied trailing newline of the base
+							origin = -1;
+						} else {
+							step = Math.min(step, base.length - origin);
+						}
+					}
+				}
+				if (origin < 0 && index + 1 < basePieces && (order[index + 1] >>> 62) == pieceBuffer[i]) {
+					step = Math.min(step, base.pieceStart[(int) (order[index + 1] & Integer.MAX_VALUE)] - start);
+				}
+				if (count > 0 && (origin < 0 ? runs[count - 2] < 0 : runs[count - 2] >= 0 && runs[count - 2] + runs[count - 1] == origin)) {
+					runs[count - 1] += step;
+				} else {
+					if (count == runs.length) {
+						runs = Arrays.copyOf(runs, count * 2);
+					}
+					runs[count++] = origin;
+					runs[count++] = step;
+				}
+				start += step;
+			}
+		}
+		return Arrays.copyOf(runs, count);
+	}
+
+	private int findPiece(int offset) {
+		int low = 0;
+		int high = pieceOffset.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (pieceOffset[mid] <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,181 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Kernel for the byte scans done while loading and indexing files: finding line breaks, counting
+ * lines and measuring runs of ASCII.
+ * <p>
+ * {@link #get()} returns an implementation on the {@code jdk.incubator.vector} API when that
+ * module is available and the platform has vector registers, and a scalar one otherwise. The
+ * choice is made once, when this class is initialized; setting the system property
+ * {@value #SCALAR_PROPERTY} forces the scalar kernel.
+ * </p>
+ */
+public abstract class ByteScanner {
+	public static final String SCALAR_PROPERTY = "zizi.scalarScan";
+	private static final int BUFFER_WINDOW = 1 << 14;
+
+	private static final ByteScanner INSTANCE = create();
+
+	/**
+	 * Returns the fastest kernel available on this platform.
+	 *
+	 * @return the kernel
+	 */
+	public static ByteScanner get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the scalar kernel, which every platform supports.
+	 *
+	 * @return the scalar kernel
+	 */
+	public static ByteScanner scalar() {
+		return ScalarByteScanner.INSTANCE;
+	}
+
+	private static ByteScanner create() {
+		if (Boolean.getBoolean(SCALAR_PROPERTY) || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			return scalar();
+		}
+		try {
+			// Loaded by name so that the scalar kernel never links against the incubator module
+			ByteScanner vector = (ByteScanner) Class.forName("com.twentyfeel.ui.io.VectorByteScanner").getDeclaredConstructor().newInstance();
+			return vector.isAccelerated() ? vector : scalar();
+		} catch (ReflectiveOperationException | LinkageError ex) {
+			return scalar();
+		}
+	}
+
+	/**
+	 * Returns a short description of the kernel, for diagnostics.
+	 *
+	 * @return the name
+	 */
+	public abstract String getName();
+
+	/**
+	 * Returns whether this kernel uses vector instructions.
+	 *
+	 * @return {@code true} if it is vectorized
+	 */
+	public abstract boolean isAccelerated();
+
+	/**
+	 * Returns the index of the first occurrence of a byte.
+	 *
+	 * @param bytes the array
+	 * @param from  the first index to scan
+	 * @param to    the index to stop at, exclusive
+	 * @param value the byte to find
+	 * @return the index, or -1 if there is none
+	 */
+	public abstract int indexOf(byte[] bytes, int from, int to, byte value);
+
+	/**
+	 * Returns the index of the first {@code \n} or {@code \r}.
+	 *
+	 * @param bytes the array
+	 * @param from  the first index to scan
+	 * @param to    the index to stop at, exclusive
+	 * @return the index, or -1 if there is none
+	 */
+	public abstract int indexOfLineBreak(byte[] bytes, int from, int to);
+
+	/**
+	 * Counts the {@code \n} bytes.
+	 *
+	 * @param bytes the array
+	 * @param from  the first index to scan
+	 * @param to    the index to stop at, exclusive
+	 * @return the number of newlines
+	 */
+	public abstract int countLines(byte[] bytes, int from, int to);
+
+	/**
+	 * Returns the length of the run of ASCII bytes starting at {@code from}. The range is pure
+	 * ASCII if this is {@code to - from}.
+	 *
+	 * @param bytes the array
+	 * @param from  the first index to scan
+	 * @param to    the index to stop at, exclusive
+	 * @return the length of the ASCII run
+	 */
+	public abstract int asciiLength(byte[] bytes, int from, int to);
+
+	/**
+	 * Counts the {@code \n} bytes between the position and the limit of a buffer, without
+	 * changing the buffer.
+	 *
+	 * @param buffer the buffer
+	 * @return the number of newlines
+	 */
+	public long countLines(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			int from = buffer.arrayOffset() + buffer.position();
+			return countLines(buffer.array(), from, from + buffer.remaining());
+		}
+		byte[] window = new byte[Math.min(BUFFER_WINDOW, buffer.remaining())];
+		long lines = 0;
+		for (int position = buffer.position(); position < buffer.limit(); position += window.length) {
+			int count = Math.min(window.length, buffer.limit() - position);
+			buffer.get(position, window, 0, count);
+			lines += countLines(window, 0, count);
+		}
+		return lines;
+	}
+
+	/**
+	 * Returns the index of the first {@code \n} or {@code \r} between the position and the limit
+	 * of a buffer, without changing the buffer.
+	 *
+	 * @param buffer the buffer
+	 * @return the absolute index in the buffer, or -1 if there is none
+	 */
+	public int indexOfLineBreak(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			int offset = buffer.arrayOffset();
+			int index = indexOfLineBreak(buffer.array(), offset + buffer.position(), offset + buffer.limit());
+			return index < 0 ? -1 : index - offset;
+		}
+		byte[] window = new byte[Math.min(BUFFER_WINDOW, buffer.remaining())];
+		for (int position = buffer.position(); position < buffer.limit(); position += window.length) {
+			int count = Math.min(window.length, buffer.limit() - position);
+			buffer.get(position, window, 0, count);
+			int index = indexOfLineBreak(window, 0, count);
+			if (index >= 0) {
+				return position + index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the length of the run of ASCII bytes at the position of a buffer, without changing
+	 * the buffer.
+	 *
+	 * @param buffer the buffer
+	 * @return the length of the ASCII run
+	 */
+	public int asciiLength(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			int from = buffer.arrayOffset() + buffer.position();
+			return asciiLength(buffer.array(), from, from + buffer.remaining());
+		}
+		byte[] window = new byte[Math.min(BUFFER_WINDOW, buffer.remaining())];
+		int length = 0;
+		for (int position = buffer.position(); position < buffer.limit(); position += window.length) {
+			int count = Math.min(window.length, buffer.limit() - position);
+			buffer.get(position, window, 0, count);
+			int run = asciiLength(window, 0, count);
+			length += run;
+			if (run < count) {
+				break;
+			}
+		}
+		return length;
+	}
+}
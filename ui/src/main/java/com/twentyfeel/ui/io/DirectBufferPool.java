@@ -0,0 +1,74 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct byte buffers of one size.
+ * <p>
+ * Direct buffers are expensive to allocate and are only freed when the garbage collector gets
+ * around to them, but they let channels write without an extra copy out of the heap. Buffers
+ * handed back are kept for the next user, up to a fixed number.
+ * </p>
+ */
+public final class DirectBufferPool {
+	private static final DirectBufferPool SHARED = new DirectBufferPool(1 << 20, 16);
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param bufferSize the capacity of every buffer
+	 * @param maxPooled  the maximum number of buffers kept while not in use
+	 */
+	public DirectBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Returns the pool shared by file operations, holding buffers of 1 MB.
+	 *
+	 * @return the shared pool
+	 */
+	public static DirectBufferPool shared() {
+		return SHARED;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating one if the pool is empty.
+	 *
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		return buffer.clear();
+	}
+
+	/**
+	 * Hands a buffer back. It must not be used afterwards.
+	 *
+	 * @param buffer a buffer taken from this pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+			buffers.offer(buffer);
+		} else if (buffer.capacity() == bufferSize) {
+			pooled.decrementAndGet();
+		}
+	}
+}
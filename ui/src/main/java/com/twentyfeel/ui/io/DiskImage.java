@@ -0,0 +1,146 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.TextSnapshot;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+/**
+ * What the editor knows about the bytes of a file after loading or saving it: the text they
+ * encode, and anchors that map some character offsets of that text to byte offsets in the file.
+ * <p>
+ * The byte offset of any other character is found by encoding the text from the nearest anchor
+ * before it. Anchors are taken at the chunk boundaries of loading and saving, so this never
+ * encodes more than a chunk, except after loading a file in a charset with a byte order mark or
+ * shift states, where only the start is known. The file size and modification time tell whether
+ * the file was changed by someone else since.
+ * </p>
+ */
+public final class DiskImage {
+	private final Path path;
+	private final Charset charset;
+	private final String lineSeparator;
+	private final TextSnapshot text;
+	private final int[] anchorChars;
+	private final long[] anchorBytes;
+	private final long size;
+	private final FileTime lastModified;
+
+	/**
+	 * Creates an image.
+	 *
+	 * @param path          the file
+	 * @param charset       the charset of the file
+	 * @param lineSeparator the line separator of the file
+	 * @param text          the text in the file, with {@code \n} line separators
+	 * @param anchorChars   character offsets, ascending, the first one 0
+	 * @param anchorBytes   the byte offsets of those characters in the file
+	 * @param anchorCount   the number of valid anchors
+	 * @param size          the size of the file
+	 * @param lastModified  the modification time of the file
+	 */
+	public DiskImage(Path path, Charset charset, String lineSeparator, TextSnapshot text, int[] anchorChars, long[] anchorBytes, int anchorCount, long size, FileTime lastModified) {
+		this.path = path;
+		this.charset = charset;
+		this.lineSeparator = lineSeparator == null ? "\n" : lineSeparator;
+		this.text = text;
+		this.anchorChars = Arrays.copyOf(anchorChars, anchorCount);
+		this.anchorBytes = Arrays.copyOf(anchorBytes, anchorCount);
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public String getLineSeparator() {
+		return lineSeparator;
+	}
+
+	public TextSnapshot getText() {
+		return text;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public FileTime getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Returns whether the file still has the size and modification time it had when this image
+	 * was taken.
+	 *
+	 * @return {@code true} if the file looks unchanged
+	 * @throws IOException if the file cannot be read
+	 */
+	public boolean isCurrent() throws IOException {
+		return Files.size(path) == size && Files.getLastModifiedTime(path).equals(lastModified);
+	}
+
+	/**
+	 * Returns the index of the last anchor at or before a character offset.
+	 *
+	 * @param offset the character offset
+	 * @return the anchor index
+	 */
+	int floorAnchor(int offset) {
+		int index = Arrays.binarySearch(anchorChars, offset);
+		return index >= 0 ? index : Math.max(0, -index - 2);
+	}
+
+	int getAnchorChar(int index) {
+		return anchorChars[index];
+	}
+
+	long getAnchorByte(int index) {
+		return anchorBytes[index];
+	}
+
+	/**
+	 * Returns an image of the same file after parts of it were overwritten with text of the same
+	 * encoded length, which keeps all anchors.
+	 *
+	 * @param text         the text now in the file
+	 * @param lastModified the new modification time of the file
+	 * @return the new image
+	 */
+	DiskImage patched(TextSnapshot text, FileTime lastModified) {
+		return new DiskImage(path, charset, lineSeparator, text, anchorChars, anchorBytes, anchorChars.length, size, lastModified);
+	}
+
+	/**
+	 * Returns an image of the same file after the text from a character offset on was rewritten,
+	 * keeping the anchors before that offset.
+	 *
+	 * @param text         the text now in the file
+	 * @param from         the first rewritten character
+	 * @param fromByte     the byte offset of that character
+	 * @param size         the new size of the file
+	 * @param lastModified the new modification time of the file
+	 * @return the new image
+	 */
+	DiskImage rewrittenFrom(TextSnapshot text, int from, long fromByte, long size, FileTime lastModified) {
+		int count = floorAnchor(from);
+		if (anchorChars[count] < from) {
+			count++;
+		}
+		int[] chars = Arrays.copyOf(anchorChars, count + 1);
+		long[] bytes = Arrays.copyOf(anchorBytes, count + 1);
+		chars[count] = from;
+		bytes[count] = fromByte;
+		return new DiskImage(path, charset, lineSeparator, text, chars, bytes, count + 1, size, lastModified);
+	}
+}
@@ -0,0 +1,550 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.io.ParallelTextDecoder.DecodedText;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads a UTF-8 text file into a document without blocking the event dispatch thread.
+ * <p>
+ * A virtual thread reads the file through NIO in large chunks and decodes it incrementally,
+ * normalizing line separators to {@code \n} as {@link DefaultEditorKit} does. Decoded chunks are
+ * handed over through a small bounded queue and appended to the document once per frame, with a
+ * time budget per frame, so the first screen shows up after the first small chunk and the editor
+ * stays responsive while the rest streams in. The bounded queue keeps the reader from running
+ * ahead of the document.
+ * </p>
+ * <p>
+ * Files of {@value #PARALLEL_THRESHOLD} bytes and more in a charset that can be decoded in chunks
+ * only stream their first chunk this way. The whole file is then decoded and line-indexed with
+ * {@link ParallelTextDecoder}, and the resulting document replaces the preview in one step.
+ * </p>
+ * <p>
+ * An in-place save of the file that was interrupted is rolled back before the file is read. A
+ * {@link DiskImage} of the loaded file lets the next save write only what changed.
+ * </p>
+ * <p>
+ * A gzip file is decompressed on the fly: its first chunk is streamed like any other file, then
+ * the whole text is decompressed into memory and decoded in parallel. The first time, this
+ * records a {@link GzipIndex}; opening the file again while the index is cached decompresses the
+ * spans between its seek points in parallel. Compressed files are not saved back, so no
+ * {@link DiskImage} is made for them.
+ * </p>
+ */
+public class DocumentLoader {
+	private static final int FIRST_CHUNK_SIZE = 1 << 16;
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int QUEUED_CHUNKS = 4;
+	private static final long PARALLEL_THRESHOLD = 1 << 24;
+	private static final long APPEND_BUDGET = TimeUnit.MILLISECONDS.toNanos(8);
+	private static final int MAX_LENGTH = Integer.MAX_VALUE - 16;
+
+	private final Path path;
+	private final Document document;
+	private final Charset charset;
+	private final Executor frameExecutor;
+	private final BlockingQueue<String> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+	private final AtomicBoolean appendScheduled = new AtomicBoolean();
+	private final Runnable appendTask = this::appendChunks;
+	private final NewlineNormalizer normalizer = new NewlineNormalizer();
+
+	private Runnable progress;
+	private Thread thread;
+	private boolean following;
+	private volatile long size;
+	private volatile long bytesRead;
+	private volatile long textBytes;
+	private volatile boolean readComplete;
+	private volatile boolean cancelled;
+	private volatile IOException error;
+	private volatile String lineSeparator;
+	private volatile EditorDocument replacement;
+	private volatile FileTime lastModified;
+	private volatile DiskImage diskImage;
+	private volatile boolean compressed;
+	private volatile GzipIndex gzipIndex;
+	// Written by the reader thread before readComplete
+	private int[] anchorChars = {0};
+	private long[] anchorBytes = {0};
+	private int anchorCount = 1;
+	private int charsQueued;
+	private boolean done;
+
+	/**
+	 * Creates a loader. The document should be empty; text is appended at its end.
+	 *
+	 * @param path          the file to load
+	 * @param document      the document to fill
+	 * @param frameExecutor runs appends on the event dispatch thread, once per frame
+	 */
+	public DocumentLoader(Path path, Document document, Executor frameExecutor) {
+		this(path, document, StandardCharsets.UTF_8, frameExecutor);
+	}
+
+	/**
+	 * Creates a loader for a file in the given charset.
+	 *
+	 * @param path          the file to load
+	 * @param document      the document to fill
+	 * @param charset       the charset of the file
+	 * @param frameExecutor runs appends on the event dispatch thread, once per frame
+	 */
+	public DocumentLoader(Path path, Document document, Charset charset, Executor frameExecutor) {
+		this.path = path;
+		this.document = document;
+		this.charset = charset;
+		this.frameExecutor = frameExecutor;
+	}
+
+	/**
+	 * Makes the loader leave the end of a file that is still being written for a
+	 * {@link FileFollower} to read, starting at {@link #getTextBytes()}. An incomplete character
+	 * at the end of the file is then not decoded into a replacement character, and a trailing
+	 * {@code \r} is not turned into a line break of its own, since a {@code \n} may yet follow.
+	 * The charset must be able to encode every character on its own, as UTF-8 can. Must be called
+	 * before {@link #start(Runnable)}.
+	 *
+	 * @param following whether the file is loaded to be followed
+	 */
+	public void setFollowing(boolean following) {
+		this.following = following;
+	}
+
+	/**
+	 * Starts loading on a virtual thread.
+	 *
+	 * @param progress called on the event dispatch thread after text was appended and once more
+	 *                 when loading has finished
+	 */
+	public void start(Runnable progress) {
+		this.progress = progress;
+		thread = Thread.ofVirtual().name("zizi-open").start(this::read);
+	}
+
+	/**
+	 * Stops loading. Text that was already appended stays in the document.
+	 */
+	public void cancel() {
+		cancelled = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Returns the number of bytes of the file behind the text of the document, where reading a
+	 * file that has grown since would continue. Unlike {@link #getBytesRead()}, which only hints
+	 * at the progress, this is exact. Must be called on the event dispatch thread.
+	 *
+	 * @return the byte count, or -1 until the loader has finished
+	 */
+	public long getTextBytes() {
+		return done ? textBytes : -1;
+	}
+
+	/**
+	 * Returns the fraction of the file that has been read.
+	 *
+	 * @return the progress between 0 and 1
+	 */
+	public double getProgress() {
+		long total = size;
+		// The length of a compressed file is only an estimate
+		return total == 0 ? (done ? 1 : 0) : Math.min(1, (double) bytesRead / total);
+	}
+
+	/**
+	 * Returns whether all text has been appended, or loading failed or was cancelled. Must be
+	 * called on the event dispatch thread.
+	 *
+	 * @return {@code true} if the loader has finished
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns the document holding the loaded text. Large files are decoded in parallel into a
+	 * new document, which replaces the one given to the constructor once loading is done; until
+	 * then, and for all other files, this is the document given to the constructor.
+	 *
+	 * @return the document
+	 */
+	public Document getDocument() {
+		return done && replacement != null ? replacement : document;
+	}
+
+	/**
+	 * Returns what is known about the loaded file, for saving it in place later.
+	 *
+	 * @return the image, or {@code null} until the file has been loaded completely
+	 */
+	public DiskImage getDiskImage() {
+		return done ? diskImage : null;
+	}
+
+	/**
+	 * Returns whether the file is gzip compressed. Its size and the bytes read then count
+	 * decompressed bytes.
+	 *
+	 * @return {@code true} for a compressed file, once reading has started
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Returns the seek points of the loaded gzip file.
+	 *
+	 * @return the index, or {@code null} if the file is not compressed or has not been loaded
+	 * completely
+	 */
+	public GzipIndex getGzipIndex() {
+		return done ? gzipIndex : null;
+	}
+
+	/**
+	 * Returns the error that stopped loading.
+	 *
+	 * @return the error, or {@code null}
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	private void read() {
+		try {
+			InPlaceSave.recover(path);
+			lastModified = Files.getLastModifiedTime(path);
+		} catch (IOException ex) {
+			error = ex;
+			readComplete = true;
+			scheduleAppend();
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			size = channel.size();
+			if (GzipIndex.isGzip(channel)) {
+				readCompressed(channel);
+			} else if (size >= PARALLEL_THRESHOLD && ParallelTextDecoder.isParallelSafe(charset)) {
+				// Show the first screen while the whole file is decoded on all cores
+				stream(channel, FIRST_CHUNK_SIZE);
+				if (!cancelled) {
+					decodeInParallel();
+				}
+			} else {
+				stream(channel, Long.MAX_VALUE);
+			}
+		} catch (IOException ex) {
+			if (!cancelled) {
+				error = ex;
+			}
+		} catch (InterruptedException ex) {
+			// Cancelled while waiting for the document to catch up
+		}
+		readComplete = true;
+		scheduleAppend();
+	}
+
+	/**
+	 * Reads, decodes and queues text until the end of the file or until at least {@code limit}
+	 * bytes have been read.
+	 *
+	 * @return whether the end of the file was reached
+	 */
+	private boolean stream(ReadableByteChannel channel, long limit) throws IOException, InterruptedException {
+		CharsetDecoder decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer in = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		CharBuffer out = CharBuffer.allocate(CHUNK_SIZE);
+		boolean anchored = isRestartable(charset);
+		int carriageReturnLength = "\r".getBytes(charset).length;
+		// A small first chunk gets the first screen in front of the user quickly
+		in.limit(FIRST_CHUNK_SIZE);
+
+		boolean endOfInput = false;
+		while (!endOfInput && !cancelled && bytesRead < limit) {
+			int read = channel.read(in);
+			endOfInput = read < 0;
+			if (read > 0) {
+				bytesRead += read;
+			}
+			in.flip();
+			// A followed file may still grow, so an incomplete end waits for the follower
+			boolean flush = endOfInput && !following;
+			CoderResult result;
+			do {
+				result = decoder.decode(in, out, flush);
+				if (flush && result.isUnderflow()) {
+					result = decoder.flush(out);
+				}
+				out.flip();
+				enqueue(out, flush && result.isUnderflow());
+				out.clear();
+			} while (result.isOverflow());
+			textBytes = bytesRead - in.remaining();
+			if (normalizer.hasPendingCarriageReturn()) {
+				textBytes -= carriageReturnLength;
+			}
+			if (anchored && !in.hasRemaining() && !normalizer.hasPendingCarriageReturn()) {
+				// The decoder used up every byte, so the next one starts a character
+				addAnchor(charsQueued, bytesRead);
+			}
+			in.compact();
+			in.limit(in.capacity());
+		}
+		return endOfInput;
+	}
+
+	/**
+	 * Returns whether text in a charset can be encoded from any character on, with the bytes
+	 * matching those of the whole text from there. Charsets with a byte order mark or shift
+	 * states cannot.
+	 */
+	private static boolean isRestartable(Charset charset) {
+		return ParallelTextDecoder.isParallelSafe(charset) || charset.newEncoder().maxBytesPerChar() == 1;
+	}
+
+	private void addAnchor(int chars, long bytes) {
+		if (chars == anchorChars[anchorCount - 1]) {
+			return;
+		}
+		if (anchorCount == anchorChars.length) {
+			anchorChars = Arrays.copyOf(anchorChars, anchorCount * 2);
+			anchorBytes = Arrays.copyOf(anchorBytes, anchorCount * 2);
+		}
+		anchorChars[anchorCount] = chars;
+		anchorBytes[anchorCount] = bytes;
+		anchorCount++;
+	}
+
+	/**
+	 * Streams the first chunk of a gzip file, then decompresses all of it and decodes it in
+	 * parallel, with the seek points of an earlier pass if they are cached.
+	 */
+	private void readCompressed(FileChannel channel) throws IOException, InterruptedException {
+		compressed = true;
+		long compressedSize = size;
+		GzipIndex index = GzipIndex.cached(path, compressedSize, lastModified);
+		size = index != null ? index.getLength() : GzipIndex.claimedLength(channel);
+		GzipDecoder preview = new GzipDecoder(channel);
+		if (index == null) {
+			preview.recordSeekPoints(GzipIndex.SEEK_SPAN);
+		}
+		RecordingChannel previewed = new RecordingChannel(preview);
+		if (stream(previewed, FIRST_CHUNK_SIZE)) {
+			if (index == null) {
+				index = new GzipIndex(path, compressedSize, lastModified, preview.getSeekPoints(), preview.getOffset());
+				GzipIndex.remember(index);
+			}
+			gzipIndex = index;
+			return;
+		}
+		if (cancelled) {
+			return;
+		}
+		ByteBuffer text;
+		if (index != null) {
+			text = ByteBuffer.wrap(index.decompress(channel, ForkJoinPool.commonPool(), decompressed -> {
+				bytesRead = decompressed;
+				scheduleAppend();
+			}));
+		} else {
+			text = inflateRest(preview, previewed.toByteArray());
+			if (text == null) {
+				return;
+			}
+			index = new GzipIndex(path, compressedSize, lastModified, preview.getSeekPoints(), text.remaining());
+			GzipIndex.remember(index);
+		}
+		DecodedText decoded = ParallelTextDecoder.decode(text, charset, ForkJoinPool.commonPool(), null);
+		bytesRead = decoded.byteLength();
+		textBytes = decoded.byteLength();
+		gzipIndex = index;
+		replacement = toDocument(decoded);
+	}
+
+	/**
+	 * Decompresses the rest of a gzip file after its first chunk was streamed, recording seek
+	 * points on the way, behind the bytes of the first chunk.
+	 *
+	 * @param preview the bytes the decoder produced for the first chunk
+	 * @return the whole decompressed text, or {@code null} if cancelled
+	 */
+	private ByteBuffer inflateRest(GzipDecoder decoder, byte[] preview) throws IOException {
+		int previewed = preview.length;
+		byte[] text = new byte[(int) Math.min(MAX_LENGTH, Math.max(size, previewed) + CHUNK_SIZE)];
+		int length = previewed;
+		while (!cancelled) {
+			if (length == text.length) {
+				if (length == MAX_LENGTH) {
+					throw new IOException(path + " is too large to edit when decompressed");
+				}
+				text = Arrays.copyOf(text, (int) Math.min(MAX_LENGTH, 2L * length));
+			}
+			int read = decoder.read(text, length, text.length - length);
+			if (read < 0) {
+				break;
+			}
+			length += read;
+			bytesRead = length;
+			scheduleAppend();
+		}
+		if (cancelled) {
+			return null;
+		}
+		System.arraycopy(preview, 0, text, 0, previewed);
+		return ByteBuffer.wrap(text, 0, length);
+	}
+
+	/**
+	 * Keeps a copy of the bytes read through a channel, so that the decompressed first chunk of
+	 * a gzip file does not have to be decompressed again.
+	 */
+	private static final class RecordingChannel implements ReadableByteChannel {
+		private final ReadableByteChannel channel;
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(FIRST_CHUNK_SIZE);
+
+		RecordingChannel(ReadableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int start = dst.position();
+			int read = channel.read(dst);
+			if (read > 0) {
+				byte[] copy = new byte[read];
+				dst.get(start, copy);
+				bytes.write(copy, 0, read);
+			}
+			return read;
+		}
+
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private void decodeInParallel() throws IOException {
+		DecodedText text = ParallelTextDecoder.decode(path, charset, following, ForkJoinPool.commonPool(), decoded -> {
+			bytesRead = decoded;
+			scheduleAppend();
+		});
+		// The file may have grown since its size was taken
+		bytesRead = text.byteLength();
+		textBytes = text.byteLength();
+		EditorDocument decoded = toDocument(text);
+		diskImage = new DiskImage(path, charset, text.lineSeparator(), decoded.snapshot(),
+			text.anchorChars(), text.anchorBytes(), text.anchorChars().length, textBytes, lastModified);
+		replacement = decoded;
+	}
+
+	private static EditorDocument toDocument(DecodedText text) {
+		EditorDocument document = new EditorDocument(text.text(), text.lineLengths(), text.lineCount());
+		if (text.lineSeparator() != null) {
+			document.putProperty(DefaultEditorKit.EndOfLineStringProperty, text.lineSeparator());
+		}
+		return document;
+	}
+
+	/**
+	 * Queues decoded text with its line separators normalized.
+	 */
+	private void enqueue(CharBuffer text, boolean endOfInput) throws InterruptedException {
+		String chunk = normalizer.normalize(text, endOfInput);
+		lineSeparator = normalizer.getLineSeparator();
+		if (chunk != null) {
+			charsQueued += chunk.length();
+			chunks.put(chunk);
+			scheduleAppend();
+		}
+	}
+
+	private void scheduleAppend() {
+		if (appendScheduled.compareAndSet(false, true)) {
+			frameExecutor.execute(appendTask);
+		}
+	}
+
+	private void appendChunks() {
+		appendScheduled.set(false);
+		if (done) {
+			return;
+		}
+		long start = System.nanoTime();
+		String chunk;
+		try {
+			while (!cancelled && System.nanoTime() - start < APPEND_BUDGET && (chunk = chunks.poll()) != null) {
+				document.insertString(document.getLength(), chunk, null);
+			}
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		}
+
+		if (cancelled || (readComplete && (chunks.isEmpty() || replacement != null))) {
+			done = true;
+			chunks.clear();
+			if (lineSeparator != null) {
+				document.putProperty(DefaultEditorKit.EndOfLineStringProperty, lineSeparator);
+			}
+			if (!cancelled && error == null && replacement == null && !compressed && document instanceof EditorDocument editorDocument) {
+				// Anchors were taken once per chunk read; only the start for a charset with state
+				diskImage = new DiskImage(path, charset, lineSeparator, editorDocument.snapshot(),
+					anchorChars, anchorBytes, anchorCount, textBytes, lastModified);
+			}
+		} else if (!chunks.isEmpty()) {
+			scheduleAppend();
+		}
+		progress.run();
+	}
+}
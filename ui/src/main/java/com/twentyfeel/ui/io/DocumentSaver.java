@@ -0,0 +1,497 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.TextSnapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Saves a snapshot of a document to a file without blocking the event dispatch thread.
+ * <p>
+ * A virtual thread encodes the snapshot a chunk at a time into pooled direct buffers, turning
+ * {@code \n} back into the line separator of the file, and writes a batch of buffers at once with
+ * a gathering write. The text goes to a temporary file next to the target, which is then renamed
+ * over the target, so the file is replaced atomically and is never seen half written. Since the
+ * snapshot does not change, editing can go on while a large document is being saved.
+ * </p>
+ * <p>
+ * How much is done to get the text onto the disk is set by the {@link Durability}. The default
+ * is read from the system property {@value #DURABILITY_PROPERTY}.
+ * </p>
+ * <p>
+ * Given the {@link DiskImage} of the file from loading or the last save, the saver first tries to
+ * overwrite only what changed, see {@link InPlaceSave}, and rewrites the whole file only when
+ * that is not possible. In-place saves always force the file to the disk, since their
+ * write-ahead record is only safe to remove after that.
+ * </p>
+ */
+public class DocumentSaver {
+	public static final String DURABILITY_PROPERTY = "zizi.saveDurability";
+
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int BATCH_SIZE = 8;
+	private static final int ANCHOR_INTERVAL = 1 << 20;
+
+	/**
+	 * What a save waits for before it is reported as done.
+	 */
+	public enum Durability {
+		/**
+		 * Forces the temporary file and then the directory to the disk around the rename. A
+		 * save that was reported done survives a power failure.
+		 */
+		FSYNC,
+		/**
+		 * Leaves flushing to the operating system. Fastest, but a crash soon after saving may
+		 * lose the new text.
+		 */
+		NO_SYNC,
+		/**
+		 * Renames right after writing and reports the save as done, then forces the file and
+		 * the directory to the disk in the background. {@link DocumentSaver#isSynced()} tells
+		 * when that has finished.
+		 */
+		ASYNC_SYNC;
+
+		/**
+		 * Returns the durability named by the system property {@value #DURABILITY_PROPERTY},
+		 * {@code fsync}, {@code no_sync} or {@code async_sync}, or {@link #FSYNC} if it is not
+		 * set or unknown.
+		 *
+		 * @return the default durability
+		 */
+		public static Durability getDefault() {
+			String value = System.getProperty(DURABILITY_PROPERTY, "fsync");
+			try {
+				return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+			} catch (IllegalArgumentException ex) {
+				return FSYNC;
+			}
+		}
+	}
+
+	private final Path path;
+	private final TextSnapshot snapshot;
+	private final Charset charset;
+	private final String lineSeparator;
+	private final Durability durability;
+	private final Executor frameExecutor;
+	private final DirectBufferPool pool = DirectBufferPool.shared();
+	private final AtomicBoolean progressScheduled = new AtomicBoolean();
+	private final Runnable progressTask = this::reportProgress;
+
+	private DiskImage baseline;
+	private int[] anchorChars = new int[16];
+	private long[] anchorBytes = new long[16];
+	private int anchorCount;
+
+	private Runnable progress;
+	private Thread thread;
+	private volatile int charsEncoded;
+	private volatile long bytesWritten;
+	private volatile boolean written;
+	private volatile boolean synced;
+	private volatile boolean finished;
+	private volatile boolean cancelled;
+	private volatile boolean inPlace;
+	private volatile DiskImage diskImage;
+	private volatile IOException error;
+	private boolean done;
+
+	/**
+	 * Creates a saver.
+	 *
+	 * @param path          the file to write
+	 * @param snapshot      the text to save, with {@code \n} line separators
+	 * @param charset       the charset of the file
+	 * @param lineSeparator the line separator to write for every {@code \n}, or {@code null} to
+	 *                      keep {@code \n}
+	 * @param durability    what to wait for before the save is done
+	 * @param frameExecutor runs progress updates on the event dispatch thread, once per frame
+	 */
+	public DocumentSaver(Path path, TextSnapshot snapshot, Charset charset, String lineSeparator, Durability durability, Executor frameExecutor) {
+		this.path = path;
+		this.snapshot = snapshot;
+		this.charset = charset;
+		this.lineSeparator = lineSeparator == null ? "\n" : lineSeparator;
+		this.durability = durability;
+		this.frameExecutor = frameExecutor;
+	}
+
+	/**
+	 * Creates a saver writing UTF-8 with the default durability.
+	 *
+	 * @param path          the file to write
+	 * @param snapshot      the text to save
+	 * @param lineSeparator the line separator to write, or {@code null} to keep {@code \n}
+	 * @param frameExecutor runs progress updates on the event dispatch thread, once per frame
+	 */
+	public DocumentSaver(Path path, TextSnapshot snapshot, String lineSeparator, Executor frameExecutor) {
+		this(path, snapshot, StandardCharsets.UTF_8, lineSeparator, Durability.getDefault(), frameExecutor);
+	}
+
+	/**
+	 * Sets what is known about the file on the disk, which allows saving in place. Must be
+	 * called before {@link #start(Runnable)}.
+	 *
+	 * @param baseline the image of the file from loading or the last save, or {@code null}
+	 */
+	public void setBaseline(DiskImage baseline) {
+		this.baseline = baseline;
+	}
+
+	/**
+	 * Starts saving on a virtual thread.
+	 *
+	 * @param progress called on the event dispatch thread while writing, when the save is done
+	 *                 and, with {@link Durability#ASYNC_SYNC}, once more when the file is synced
+	 */
+	public void start(Runnable progress) {
+		this.progress = progress;
+		thread = Thread.ofVirtual().name("zizi-save").start(this::save);
+	}
+
+	/**
+	 * Stops saving if the file has not been replaced yet, which leaves it as it was.
+	 */
+	public void cancel() {
+		cancelled = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the fraction of the text that has been encoded.
+	 *
+	 * @return the progress between 0 and 1
+	 */
+	public double getProgress() {
+		int total = snapshot.length();
+		return total == 0 ? (written ? 1 : 0) : (double) charsEncoded / total;
+	}
+
+	/**
+	 * Returns whether the file has been replaced, or saving failed or was cancelled. Must be
+	 * called on the event dispatch thread.
+	 *
+	 * @return {@code true} if the saver has finished
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns whether the new file is known to be on the disk. Always {@code false} with
+	 * {@link Durability#NO_SYNC}.
+	 *
+	 * @return {@code true} if the file has been synced
+	 */
+	public boolean isSynced() {
+		return synced;
+	}
+
+	/**
+	 * Returns whether only the changed parts of the file were written.
+	 *
+	 * @return {@code true} if the file was saved in place
+	 */
+	public boolean isInPlace() {
+		return inPlace;
+	}
+
+	/**
+	 * Returns what is known about the file after saving, to be used as the baseline of the next
+	 * save.
+	 *
+	 * @return the image, or {@code null} if the save did not succeed
+	 */
+	public DiskImage getDiskImage() {
+		return diskImage;
+	}
+
+	/**
+	 * Returns the error that stopped saving.
+	 *
+	 * @return the error, or {@code null}
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	private void save() {
+		Path directory = path.toAbsolutePath().getParent();
+		try {
+			InPlaceSave.recover(path);
+			if (!saveInPlace()) {
+				saveByRename(directory);
+			}
+		} catch (IOException ex) {
+			if (!cancelled) {
+				error = ex;
+			}
+		}
+		finished = true;
+		scheduleProgress();
+
+		if (written && !inPlace && durability == Durability.ASYNC_SYNC) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				channel.force(true);
+				syncDirectory(directory);
+				synced = true;
+			} catch (IOException ex) {
+				error = ex;
+			}
+			scheduleProgress();
+		}
+	}
+
+	private boolean saveInPlace() throws IOException {
+		if (baseline == null || !baseline.getPath().toAbsolutePath().equals(path.toAbsolutePath()) || !Files.exists(path)) {
+			return false;
+		}
+		InPlaceSave.Result result = InPlaceSave.save(baseline, snapshot, lineSeparator);
+		if (result == null) {
+			return false;
+		}
+		bytesWritten = result.bytesWritten();
+		charsEncoded = snapshot.length();
+		diskImage = result.image();
+		inPlace = true;
+		written = true;
+		synced = true;
+		return true;
+	}
+
+	private void saveByRename(Path directory) throws IOException {
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(directory, "." + path.getFileName(), ".zizi-save");
+			copyPermissions(temp);
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				write(channel);
+				if (durability == Durability.FSYNC) {
+					channel.force(true);
+				}
+			}
+			if (!cancelled) {
+				move(temp);
+				temp = null;
+				diskImage = new DiskImage(path, charset, lineSeparator, snapshot, anchorChars, anchorBytes, anchorCount,
+					bytesWritten, Files.getLastModifiedTime(path));
+				written = true;
+				if (durability == Durability.FSYNC) {
+					syncDirectory(directory);
+					synced = true;
+				}
+			}
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ex) {
+					// Leave the temporary file behind rather than hide the original error
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encodes the snapshot and writes it in batches of pooled buffers.
+	 */
+	private void write(FileChannel channel) throws IOException {
+		CharsetEncoder encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		char[] source = new char[CHUNK_SIZE];
+		// Room for a surrogate the encoder held back from the previous chunk
+		char[] chars = new char[CHUNK_SIZE * lineSeparator.length() + 2];
+		ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+		int filled = 0;
+		batch[0] = pool.acquire();
+		try {
+			int length = snapshot.length();
+			int position = 0;
+			boolean endOfInput = false;
+			CharBuffer in = CharBuffer.wrap(chars, 0, 0);
+			while (!cancelled) {
+				CoderResult result = encoder.encode(in, batch[filled], endOfInput);
+				if (result.isOverflow()) {
+					filled = nextBuffer(channel, batch, filled);
+					continue;
+				}
+				if (endOfInput) {
+					break;
+				}
+				// Move what the encoder could not use yet in front of the next chunk
+				int leftover = in.remaining();
+				if (leftover == 0 && position % ANCHOR_INTERVAL == 0) {
+					addAnchor(position, encodedBytes(batch, filled));
+				}
+				System.arraycopy(chars, in.position(), chars, 0, leftover);
+				int count = Math.min(CHUNK_SIZE, length - position);
+				snapshot.getChars(position, count, source, 0);
+				position += count;
+				charsEncoded = position;
+				endOfInput = position == length;
+				in = CharBuffer.wrap(chars, 0, leftover + expandLineSeparators(source, count, chars, leftover));
+			}
+			if (!cancelled) {
+				while (encoder.flush(batch[filled]).isOverflow()) {
+					filled = nextBuffer(channel, batch, filled);
+				}
+				writeBatch(channel, batch, filled + 1);
+			}
+		} finally {
+			for (ByteBuffer buffer : batch) {
+				if (buffer != null) {
+					pool.release(buffer);
+				}
+			}
+		}
+	}
+
+	private long encodedBytes(ByteBuffer[] batch, int filled) {
+		long count = bytesWritten;
+		for (int i = 0; i <= filled; i++) {
+			count += batch[i].position();
+		}
+		return count;
+	}
+
+	private void addAnchor(int charOffset, long byteOffset) {
+		if (anchorCount == anchorChars.length) {
+			anchorChars = Arrays.copyOf(anchorChars, anchorCount * 2);
+			anchorBytes = Arrays.copyOf(anchorBytes, anchorCount * 2);
+		}
+		anchorChars[anchorCount] = charOffset;
+		anchorBytes[anchorCount] = byteOffset;
+		anchorCount++;
+	}
+
+	private int nextBuffer(FileChannel channel, ByteBuffer[] batch, int filled) throws IOException {
+		if (filled + 1 == batch.length) {
+			writeBatch(channel, batch, batch.length);
+			return 0;
+		}
+		if (batch[filled + 1] == null) {
+			batch[filled + 1] = pool.acquire();
+		}
+		return filled + 1;
+	}
+
+	private void writeBatch(FileChannel channel, ByteBuffer[] batch, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			batch[i].flip();
+		}
+		long remaining = 0;
+		for (int i = 0; i < count; i++) {
+			remaining += batch[i].remaining();
+		}
+		while (remaining > 0) {
+			long wrote = channel.write(batch, 0, count);
+			remaining -= wrote;
+			bytesWritten += wrote;
+		}
+		for (int i = 0; i < count; i++) {
+			batch[i].clear();
+		}
+		scheduleProgress();
+	}
+
+	/**
+	 * Copies characters, replacing {@code \n} by the line separator of the file.
+	 *
+	 * @return the number of characters written to {@code dst}
+	 */
+	private int expandLineSeparators(char[] src, int count, char[] dst, int dstOffset) {
+		if (lineSeparator.equals("\n")) {
+			System.arraycopy(src, 0, dst, dstOffset, count);
+			return count;
+		}
+		int write = dstOffset;
+		for (int i = 0; i < count; i++) {
+			char c = src[i];
+			if (c == '\n') {
+				for (int j = 0; j < lineSeparator.length(); j++) {
+					dst[write++] = lineSeparator.charAt(j);
+				}
+			} else {
+				dst[write++] = c;
+			}
+		}
+		return write - dstOffset;
+	}
+
+	private void copyPermissions(Path temp) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try {
+			Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(path));
+		} catch (UnsupportedOperationException ex) {
+			// Not a POSIX file system, the new file gets the default permissions
+		}
+	}
+
+	private void move(Path temp) throws IOException {
+		try {
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Forces the directory entry of the renamed file to the disk. Not every platform can open a
+	 * directory as a channel, in which case the rename is left to the file system.
+	 */
+	static void syncDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException ex) {
+			// Directories cannot be synced on this platform
+		}
+	}
+
+	private void scheduleProgress() {
+		if (progressScheduled.compareAndSet(false, true)) {
+			frameExecutor.execute(progressTask);
+		}
+	}
+
+	private void reportProgress() {
+		progressScheduled.set(false);
+		done = finished;
+		progress.run();
+	}
+}
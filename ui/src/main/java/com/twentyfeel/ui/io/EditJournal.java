@@ -0,0 +1,588 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.document.TextSnapshot;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Records the edits of a document in a file next to the file it was loaded from, so that edits
+ * that were not saved survive a crash without saving the whole document again and again.
+ * <p>
+ * Every insertion and removal is appended as a small record of its offset, its length and the
+ * inserted text in UTF-8, each with a checksum. The records are collected in memory and written
+ * by a virtual thread together, at most every commit interval, with a single write and force, so
+ * typing costs one small write per interval. The interval defaults to the system property
+ * {@value #COMMIT_INTERVAL_PROPERTY}, in milliseconds.
+ * </p>
+ * <p>
+ * The journal starts with the size and modification time of the file its records apply to. When
+ * it has grown large, and whenever the document was saved, it is compacted in the background:
+ * the pieces of the document are compared with the pieces of the saved text, and the journal is
+ * replaced by the few edits that turn one into the other. Recovering with
+ * {@link #recover(EditorDocument, DiskImage)} therefore costs about as much as the edits since the
+ * last save, and a journal with nothing left to record is removed.
+ * </p>
+ */
+public final class EditJournal implements DocumentListener {
+	public static final String COMMIT_INTERVAL_PROPERTY = "zizi.journalCommitMillis";
+
+	private static final long DEFAULT_COMMIT_MILLIS = 200;
+	private static final int MAGIC = 0x5A495A4A;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+	private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 4 + 4;
+	private static final byte INSERT = 1;
+	private static final byte REMOVE = 2;
+	private static final long COMPACT_THRESHOLD = 1 << 20;
+	private static final int CHUNK_CHARS = 1 << 16;
+
+	private final EditorDocument document;
+	private final Path file;
+	private final Path path;
+	private final Duration commitInterval;
+	private final Object lock = new Object();
+
+	// Guarded by lock
+	private List<Edit> pending = new ArrayList<>();
+	private DiskImage baseline;
+	private TextSnapshot compactTo;
+	private boolean compacting;
+	private boolean rewriteNeeded;
+	private boolean closed;
+	private boolean discarded;
+
+	private FileChannel channel;
+	private Thread thread;
+	private int recoveredEdits;
+	private volatile long journalSize;
+	private volatile long compactedSize;
+	private volatile IOException error;
+
+	private record Edit(byte type, int offset, int length, String text) {
+	}
+
+	/**
+	 * Creates a journal with the commit interval from the system property.
+	 *
+	 * @param document the document to record
+	 * @param baseline the file as it is on the disk, matching the document
+	 */
+	public EditJournal(EditorDocument document, DiskImage baseline) {
+		this(document, baseline, Duration.ofMillis(Long.getLong(COMMIT_INTERVAL_PROPERTY, DEFAULT_COMMIT_MILLIS)));
+	}
+
+	/**
+	 * Creates a journal.
+	 *
+	 * @param document       the document to record
+	 * @param baseline       the file as it is on the disk, matching the document
+	 * @param commitInterval how long edits are collected before they are written together
+	 */
+	public EditJournal(EditorDocument document, DiskImage baseline, Duration commitInterval) {
+		this.document = document;
+		this.baseline = baseline;
+		this.file = baseline.getPath();
+		this.path = journalPath(file);
+		this.commitInterval = commitInterval;
+	}
+
+	/**
+	 * Opens the journal of a file that was just loaded: applies the edits left in it by a session
+	 * that ended without saving, then starts recording. A journal that belongs to another version
+	 * of the file is moved aside, with the extension {@code .stale}, instead of being applied.
+	 * <p>
+	 * Must be called on the event dispatch thread.
+	 * </p>
+	 *
+	 * @param document the loaded document
+	 * @param baseline the image of the file the document was loaded from
+	 * @return the journal, already started, with the number of edits recovered
+	 * @throws IOException if the journal cannot be read; it is then left as it is
+	 */
+	public static EditJournal recover(EditorDocument document, DiskImage baseline) throws IOException {
+		EditJournal journal = new EditJournal(document, baseline);
+		journal.recoveredEdits = journal.replay();
+		journal.start();
+		return journal;
+	}
+
+	/**
+	 * Starts recording edits. If a journal file is already there, it is rewritten from the
+	 * document right away. Must be called on the event dispatch thread.
+	 */
+	public void start() {
+		document.addDocumentListener(this);
+		if (Files.exists(path)) {
+			requestCompaction(baseline);
+		}
+		thread = Thread.ofVirtual().name("zizi-journal").start(this::run);
+	}
+
+	/**
+	 * Makes the journal record edits against the file as it is after a save. Edits made since the
+	 * saved snapshot was taken are kept. Must be called on the event dispatch thread.
+	 *
+	 * @param saved the image of the file after saving
+	 */
+	public void rebase(DiskImage saved) {
+		requestCompaction(saved);
+	}
+
+	/**
+	 * Stops recording. Edits recorded so far are still written, and the journal file stays for
+	 * the next session to recover.
+	 */
+	public void close() {
+		document.removeDocumentListener(this);
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Stops recording and removes the journal file, once the document was saved elsewhere or its
+	 * edits are to be thrown away.
+	 */
+	public void discard() {
+		synchronized (lock) {
+			discarded = true;
+		}
+		close();
+	}
+
+	/**
+	 * Writes the edits recorded so far without waiting for the commit interval, stops the writer
+	 * and waits until it is done. Unlike {@link #close()}, this does not touch the document, so it
+	 * may be called on any thread, as by a shutdown hook. Edits recorded afterwards are not
+	 * written.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		awaitClosed();
+	}
+
+	/**
+	 * Waits until the edits recorded before {@link #close()} have been written.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitClosed() throws InterruptedException {
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Returns the file whose edits are recorded.
+	 *
+	 * @return the file
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the journal file.
+	 *
+	 * @return the journal file
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the number of edits applied by {@link #recover(EditorDocument, DiskImage)}.
+	 *
+	 * @return the edit count, 0 if there was nothing to recover, or -1 if the journal was stale
+	 */
+	public int getRecoveredEdits() {
+		return recoveredEdits;
+	}
+
+	/**
+	 * Returns the size of the journal file.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getJournalSize() {
+		return journalSize;
+	}
+
+	/**
+	 * Returns the last error writing the journal. Recording goes on, and the next write rewrites
+	 * the journal from the document.
+	 *
+	 * @return the error, or {@code null}
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Returns the journal file of a file.
+	 *
+	 * @param file the file
+	 * @return the journal file next to it
+	 */
+	public static Path journalPath(Path file) {
+		return file.toAbsolutePath().resolveSibling("." + file.getFileName() + ".zizi-journal");
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e) {
+		try {
+			record(new Edit(INSERT, e.getOffset(), e.getLength(), document.getText(e.getOffset(), e.getLength())));
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e) {
+		record(new Edit(REMOVE, e.getOffset(), e.getLength(), null));
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e) {
+		// Attributes are not part of the text
+	}
+
+	private void record(Edit edit) {
+		long size = journalSize;
+		synchronized (lock) {
+			if (compacting || !rewriteNeeded && (size <= COMPACT_THRESHOLD || size <= 2 * compactedSize)) {
+				pending.add(edit);
+				lock.notifyAll();
+				return;
+			}
+		}
+		// The document already holds this edit, so the compacted journal does too
+		requestCompaction(null);
+	}
+
+	/**
+	 * Asks the writer to replace the journal by the edits from the baseline to the current text.
+	 * Edits recorded before are dropped, since the snapshot holds them.
+	 */
+	private void requestCompaction(DiskImage newBaseline) {
+		// Taken outside the lock: the listener holds the document lock while it waits for ours
+		TextSnapshot snapshot = document.snapshot();
+		synchronized (lock) {
+			if (newBaseline != null) {
+				baseline = newBaseline;
+			}
+			compacting = true;
+			rewriteNeeded = false;
+			compactTo = snapshot;
+			pending = new ArrayList<>();
+			lock.notifyAll();
+		}
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				synchronized (lock) {
+					while (pending.isEmpty() && compactTo == null && !closed) {
+						lock.wait();
+					}
+					if (closed && (discarded || pending.isEmpty() && compactTo == null)) {
+						break;
+					}
+					// Let the edits of one interval pile up and write them together
+					long deadline = System.nanoTime() + commitInterval.toNanos();
+					long remaining;
+					while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+						lock.wait(Math.max(1, remaining / 1_000_000));
+					}
+				}
+				commit();
+			}
+		} catch (InterruptedException ex) {
+			// Stopped
+		} finally {
+			closeChannel();
+			if (discarded) {
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException ex) {
+					error = ex;
+				}
+			}
+		}
+	}
+
+	private void commit() {
+		List<Edit> edits;
+		TextSnapshot snapshot;
+		DiskImage image;
+		synchronized (lock) {
+			if (discarded) {
+				return;
+			}
+			edits = pending;
+			pending = new ArrayList<>();
+			snapshot = compactTo;
+			compactTo = null;
+			image = baseline;
+		}
+		try {
+			if (snapshot != null) {
+				RecordBuffer records = new RecordBuffer();
+				encodeChanges(image.getText(), snapshot, records);
+				encodeEdits(edits, records);
+				if (records.isEmpty()) {
+					closeChannel();
+					Files.deleteIfExists(path);
+					journalSize = 0;
+				} else {
+					rewrite(image, records);
+				}
+				compactedSize = journalSize;
+				synchronized (lock) {
+					compacting = compactTo != null;
+				}
+			} else if (!edits.isEmpty()) {
+				RecordBuffer records = new RecordBuffer();
+				encodeEdits(edits, records);
+				if (channel == null) {
+					rewrite(image, records);
+				} else {
+					ByteBuffer bytes = records.flip();
+					while (bytes.hasRemaining()) {
+						channel.write(bytes);
+					}
+					channel.force(false);
+					journalSize += bytes.limit();
+				}
+			}
+			error = null;
+		} catch (IOException ex) {
+			error = ex;
+			closeChannel();
+			synchronized (lock) {
+				// The records just taken are lost, so the next edit rewrites the journal from the document
+				compacting = compactTo != null;
+				rewriteNeeded = true;
+			}
+		}
+	}
+
+	/**
+	 * Writes a new journal next to the old one and moves it over it, so a crash leaves one or
+	 * the other.
+	 */
+	private void rewrite(DiskImage image, RecordBuffer records) throws IOException {
+		closeChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(image.getSize()).putLong(image.getLastModified().toMillis());
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, header.position());
+		header.putInt((int) crc.getValue()).flip();
+		ByteBuffer bytes = records.flip();
+
+		Path directory = path.getParent();
+		Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer[] content = {header, bytes};
+				while (header.hasRemaining() || bytes.hasRemaining()) {
+					out.write(content);
+				}
+				out.force(true);
+			}
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			DocumentSaver.syncDirectory(directory);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		journalSize = HEADER_SIZE + bytes.limit();
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				// Every record written was forced already
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Encodes the edits that turn the base text into a snapshot. Runs of the snapshot that come
+	 * from the base in order are kept, with removals for the text skipped between them; all
+	 * other text is inserted.
+	 */
+	private static void encodeChanges(TextSnapshot base, TextSnapshot text, RecordBuffer records) {
+		int[] runs = text.origins(base);
+		if (runs == null) {
+			runs = new int[]{-1, text.length()};
+		}
+		int offset = 0;
+		int baseOffset = 0;
+		for (int i = 0; i < runs.length; i += 2) {
+			int origin = runs[i];
+			int length = runs[i + 1];
+			if (origin >= baseOffset) {
+				if (origin > baseOffset) {
+					records.put(REMOVE, offset, origin - baseOffset, null);
+				}
+				baseOffset = origin + length;
+			} else {
+				insert(text, offset, length, records);
+			}
+			offset += length;
+		}
+		if (baseOffset < base.length()) {
+			records.put(REMOVE, offset, base.length() - baseOffset, null);
+		}
+	}
+
+	private static void insert(TextSnapshot text, int offset, int length, RecordBuffer records) {
+		char[] chunk = new char[Math.min(length, CHUNK_CHARS)];
+		int end = offset + length;
+		while (offset < end) {
+			int count = Math.min(end - offset, chunk.length);
+			text.getChars(offset, count, chunk, 0);
+			if (count > 1 && offset + count < end && Character.isHighSurrogate(chunk[count - 1])) {
+				// Keep the pair together so each chunk encodes on its own
+				count--;
+			}
+			records.put(INSERT, offset, count, new String(chunk, 0, count).getBytes(StandardCharsets.UTF_8));
+			offset += count;
+		}
+	}
+
+	private static void encodeEdits(List<Edit> edits, RecordBuffer records) {
+		for (Edit edit : edits) {
+			records.put(edit.type, edit.offset, edit.length, edit.text == null ? null : edit.text.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Applies the records of the journal file to the document, up to the first one that is
+	 * incomplete, as the last one is after a crash in the middle of a write.
+	 *
+	 * @return the number of edits applied, or -1 if the journal was stale
+	 */
+	private int replay() throws IOException {
+		if (!Files.exists(path)) {
+			return 0;
+		}
+		ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(path));
+		if (!isCurrent(journal)) {
+			Files.move(path, path.resolveSibling(path.getFileName() + ".stale"), StandardCopyOption.REPLACE_EXISTING);
+			return -1;
+		}
+		int count = 0;
+		CRC32 crc = new CRC32();
+		journal.position(HEADER_SIZE);
+		while (journal.remaining() >= RECORD_OVERHEAD) {
+			int start = journal.position();
+			int bodyLength = journal.getInt(start);
+			if (bodyLength < RECORD_OVERHEAD - 8 || bodyLength > journal.remaining() - 8) {
+				break;
+			}
+			crc.reset();
+			crc.update(journal.array(), start + 4, bodyLength);
+			if ((int) crc.getValue() != journal.getInt(start + 4 + bodyLength)) {
+				break;
+			}
+			byte type = journal.get(start + 4);
+			int offset = journal.getInt(start + 5);
+			int length = journal.getInt(start + 9);
+			try {
+				if (type == INSERT) {
+					document.insertString(offset, new String(journal.array(), start + 13, bodyLength - 9, StandardCharsets.UTF_8), null);
+				} else if (type == REMOVE) {
+					document.remove(offset, length);
+				} else {
+					break;
+				}
+			} catch (BadLocationException ex) {
+				break;
+			}
+			journal.position(start + 4 + bodyLength + 4);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Checks that the journal was written for the file as it is now.
+	 */
+	private boolean isCurrent(ByteBuffer journal) {
+		if (journal.limit() < HEADER_SIZE || journal.getInt(0) != MAGIC || journal.getInt(4) != VERSION) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(journal.array(), 0, HEADER_SIZE - 4);
+		return (int) crc.getValue() == journal.getInt(HEADER_SIZE - 4)
+			&& journal.getLong(8) == baseline.getSize()
+			&& journal.getLong(16) == baseline.getLastModified().toMillis();
+	}
+
+	/**
+	 * Growing buffer of encoded records: the body length, the type, the offset, the length and the
+	 * inserted text, followed by a checksum of the body.
+	 */
+	private static final class RecordBuffer {
+		private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+		void put(byte type, int offset, int length, byte[] text) {
+			int textLength = text == null ? 0 : text.length;
+			int bodyLength = RECORD_OVERHEAD - 8 + textLength;
+			if (buffer.remaining() < bodyLength + 8) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bodyLength + 8));
+				grown.put(buffer.flip());
+				buffer = grown;
+			}
+			int start = buffer.position();
+			buffer.putInt(bodyLength).put(type).putInt(offset).putInt(length);
+			if (text != null) {
+				buffer.put(text);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), start + 4, bodyLength);
+			buffer.putInt((int) crc.getValue());
+		}
+
+		boolean isEmpty() {
+			return buffer.position() == 0;
+		}
+
+		ByteBuffer flip() {
+			return buffer.flip();
+		}
+	}
+}
@@ -0,0 +1,336 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.document.LineIndex;
+
+import javax.swing.text.BadLocationException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Appends text to a document as it is written to the end of a file, like {@code tail -f}.
+ * <p>
+ * A virtual thread waits for the directory of the file to report a change through a
+ * {@link WatchService}, or for the poll interval to pass, since not every file system reports
+ * changes. It then reads only the bytes past the last offset, decodes them incrementally and
+ * queues them. Once per frame, everything queued is appended to the document in a single edit,
+ * so the cost follows the rate at which the file grows and not its size. A file that shrinks has
+ * been truncated or replaced, as by log rotation, and is followed again from its start.
+ * </p>
+ * <p>
+ * With a line limit, the oldest lines are removed after every append to keep the memory of a
+ * long-running follow bounded. Removed text stays in the buffers of the document, so once more
+ * has been removed than is kept, the kept text is copied into fresh storage and the image of the
+ * file as loaded, which no longer matches it, is dropped. The poll interval and the line limit
+ * default to the system properties {@value #POLL_INTERVAL_PROPERTY}, in milliseconds, and
+ * {@value #MAX_LINES_PROPERTY}, where 0 means no limit.
+ * </p>
+ */
+public class FileFollower {
+	public static final String POLL_INTERVAL_PROPERTY = "zizi.followPollMillis";
+	public static final String MAX_LINES_PROPERTY = "zizi.followMaxLines";
+
+	private static final long DEFAULT_POLL_MILLIS = 250;
+	private static final int READ_SIZE = 1 << 18;
+	private static final int QUEUED_CHUNKS = 16;
+	/**
+	 * Queued in place of text when the file was truncated, compared by identity.
+	 */
+	private static final String RESTART = new String();
+
+	private final Path path;
+	private final EditorDocument document;
+	private final Charset charset;
+	private final Executor frameExecutor;
+	private final Duration pollInterval;
+	private final int maxLines;
+	private final BlockingQueue<String> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+	private final AtomicBoolean appendScheduled = new AtomicBoolean();
+	private final Runnable appendTask = this::appendChunks;
+	private final StringBuilder batch = new StringBuilder();
+
+	private CharsetDecoder decoder;
+	private NewlineNormalizer normalizer = new NewlineNormalizer();
+	private Runnable progress;
+	private Thread thread;
+	private volatile long position;
+	private volatile boolean stopped;
+	private volatile IOException error;
+	private long droppedLines;
+	/**
+	 * Characters removed since the storage of the document was last compacted.
+	 */
+	private long droppedChars;
+
+	/**
+	 * Creates a follower with the poll interval and line limit from the system properties.
+	 *
+	 * @param path          the file to follow
+	 * @param document      the document to append to, holding the file up to {@code position}
+	 * @param charset       the charset of the file
+	 * @param position      the offset in the file to follow from
+	 * @param frameExecutor runs appends on the event dispatch thread, once per frame
+	 */
+	public FileFollower(Path path, EditorDocument document, Charset charset, long position, Executor frameExecutor) {
+		this(path, document, charset, position, frameExecutor,
+			Duration.ofMillis(Long.getLong(POLL_INTERVAL_PROPERTY, DEFAULT_POLL_MILLIS)), Integer.getInteger(MAX_LINES_PROPERTY, 0));
+	}
+
+	/**
+	 * Creates a follower.
+	 *
+	 * @param path          the file to follow
+	 * @param document      the document to append to, holding the file up to {@code position}
+	 * @param charset       the charset of the file
+	 * @param position      the offset in the file to follow from
+	 * @param frameExecutor runs appends on the event dispatch thread, once per frame
+	 * @param pollInterval  how often to check the size of the file if no change is reported
+	 * @param maxLines      the number of lines to keep, or 0 to keep all
+	 */
+	public FileFollower(Path path, EditorDocument document, Charset charset, long position, Executor frameExecutor, Duration pollInterval, int maxLines) {
+		this.path = path;
+		this.document = document;
+		this.charset = charset;
+		this.position = position;
+		this.frameExecutor = frameExecutor;
+		this.pollInterval = pollInterval;
+		this.maxLines = maxLines;
+	}
+
+	/**
+	 * Starts following on a virtual thread.
+	 *
+	 * @param progress called on the event dispatch thread after text was appended
+	 */
+	public void start(Runnable progress) {
+		this.progress = progress;
+		thread = Thread.ofVirtual().name("zizi-follow").start(this::follow);
+	}
+
+	/**
+	 * Stops following. Text that was already appended stays in the document.
+	 */
+	public void stop() {
+		stopped = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public EditorDocument getDocument() {
+		return document;
+	}
+
+	/**
+	 * Returns the offset in the file up to which it has been read.
+	 *
+	 * @return the offset
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the number of lines removed to stay within the line limit. Must be called on the
+	 * event dispatch thread.
+	 *
+	 * @return the dropped line count
+	 */
+	public long getDroppedLines() {
+		return droppedLines;
+	}
+
+	/**
+	 * Returns the last error reading the file. Following goes on after errors, since a log file
+	 * may briefly disappear while it is rotated.
+	 *
+	 * @return the error, or {@code null}
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	private void follow() {
+		decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer in = ByteBuffer.allocateDirect(READ_SIZE);
+		CharBuffer out = CharBuffer.allocate(READ_SIZE);
+		WatchService watcher = watch();
+		try {
+			while (!stopped) {
+				readNewBytes(in, out);
+				awaitChange(watcher);
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ex) {
+			// Stopped
+		} finally {
+			if (watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException ex) {
+					// Nothing left to clean up
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers for changes in the directory of the file.
+	 *
+	 * @return the watch service, or {@code null} if changes are only found by polling
+	 */
+	private WatchService watch() {
+		Path directory = path.toAbsolutePath().getParent();
+		WatchService watcher = null;
+		try {
+			watcher = directory.getFileSystem().newWatchService();
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			return watcher;
+		} catch (IOException | UnsupportedOperationException ex) {
+			if (watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException closeEx) {
+					// Polling works without it
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Waits until the directory reports a change or the poll interval has passed. Events are
+	 * not inspected: whatever changed, the size of the file tells if there is anything to read.
+	 */
+	private void awaitChange(WatchService watcher) throws InterruptedException {
+		if (watcher == null) {
+			Thread.sleep(pollInterval);
+			return;
+		}
+		WatchKey key = watcher.poll(pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+		while (key != null) {
+			key.pollEvents();
+			key.reset();
+			key = watcher.poll();
+		}
+	}
+
+	private void readNewBytes(ByteBuffer in, CharBuffer out) throws InterruptedException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < position) {
+				// Truncated or replaced, start over with the new content
+				position = 0;
+				in.clear();
+				decoder.reset();
+				normalizer = new NewlineNormalizer();
+				chunks.put(RESTART);
+				scheduleAppend();
+			}
+			while (position < size && !stopped) {
+				int read = channel.read(in, position);
+				if (read <= 0) {
+					break;
+				}
+				position += read;
+				in.flip();
+				CoderResult result;
+				do {
+					// The file may grow further, so an incomplete sequence at the end waits for more
+					result = decoder.decode(in, out, false);
+					out.flip();
+					String chunk = normalizer.normalize(out, false);
+					out.clear();
+					if (chunk != null) {
+						chunks.put(chunk);
+						scheduleAppend();
+					}
+				} while (result.isOverflow());
+				in.compact();
+			}
+			error = null;
+		} catch (NoSuchFileException ex) {
+			// Rotated away, the new file shows up later
+		} catch (IOException ex) {
+			if (!stopped) {
+				error = ex;
+			}
+		}
+	}
+
+	private void scheduleAppend() {
+		if (appendScheduled.compareAndSet(false, true)) {
+			frameExecutor.execute(appendTask);
+		}
+	}
+
+	private void appendChunks() {
+		appendScheduled.set(false);
+		if (stopped) {
+			chunks.clear();
+			return;
+		}
+		try {
+			String chunk;
+			while ((chunk = chunks.poll()) != null) {
+				if (chunk == RESTART) {
+					batch.setLength(0);
+					droppedChars += document.getLength();
+					document.remove(0, document.getLength());
+				} else {
+					batch.append(chunk);
+				}
+			}
+			if (!batch.isEmpty()) {
+				document.insertString(document.getLength(), batch.toString(), null);
+				batch.setLength(0);
+			}
+			dropOldestLines();
+			if (droppedChars > document.getLength()) {
+				// Removing text leaves it in the buffers of the document, and the disk image holds the loaded text
+				document.compactStorage();
+				document.putProperty(DiskImage.class, null);
+				droppedChars = 0;
+			}
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		}
+		progress.run();
+	}
+
+	private void dropOldestLines() throws BadLocationException {
+		LineIndex lineIndex = document.getLineIndex();
+		int excess = lineIndex.getLineCount() - maxLines;
+		if (maxLines > 0 && excess > 0) {
+			int end = lineIndex.getLineStartOffset(excess);
+			droppedChars += end;
+			document.remove(0, end);
+			droppedLines += excess;
+		}
+	}
+}
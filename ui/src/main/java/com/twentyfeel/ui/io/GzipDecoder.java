@@ -0,0 +1,569 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip file, including files of several concatenated members, and can start at
+ * any {@link GzipIndex.SeekPoint}.
+ * <p>
+ * The inflater is written in Java rather than using {@link java.util.zip.Inflater}, because
+ * starting in the middle of a deflate stream needs the bit position of a block boundary and
+ * the 32K of text before it, neither of which zlib exposes through the JDK. While decoding from
+ * the start, the decoder can record a seek point at the first block boundary after every span
+ * of output. The file is read with positional reads, so several decoders can share one channel
+ * and decompress different parts of it at the same time.
+ * </p>
+ */
+final class GzipDecoder implements ReadableByteChannel {
+	static final int WINDOW_SIZE = 1 << 15;
+
+	private static final int BUFFER_SIZE = 1 << 18;
+	private static final int MAX_MATCH = 258;
+	private static final int INPUT_SIZE = 1 << 16;
+	private static final int MAX_BITS = 15;
+	private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+	private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+	private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+	private static final int[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+	private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+	private enum State {MEMBER_HEADER, BLOCK_HEADER, STORED, CODES, MEMBER_TRAILER, END}
+
+	private final FileChannel channel;
+	private final ByteBuffer in = ByteBuffer.allocate(INPUT_SIZE).limit(0);
+	private long readPosition;
+	private long bitBuffer;
+	private int bitCount;
+
+	/**
+	 * Output, preceded by up to {@link #WINDOW_SIZE} bytes of history for back references.
+	 */
+	private final byte[] buffer = new byte[WINDOW_SIZE + BUFFER_SIZE + MAX_MATCH];
+	private int position = WINDOW_SIZE;
+	private int handedOut = WINDOW_SIZE;
+	/**
+	 * Offset in the decompressed file of {@code buffer[0]}.
+	 */
+	private long bufferOffset = -WINDOW_SIZE;
+	/**
+	 * Offset in the decompressed file of the start of the current member, counting any history
+	 * a seek point started with as part of the member.
+	 */
+	private long memberOffset;
+	private boolean firstMember = true;
+
+	private State state;
+	private boolean lastBlock;
+	private int storedRemaining;
+	private final int[] literalTable = new int[1 << MAX_BITS];
+	private final int[] distanceTable = new int[1 << MAX_BITS];
+	private int literalBits;
+	private int distanceBits;
+	private final byte[] lengths = new byte[288 + 32];
+
+	private final CRC32 crc = new CRC32();
+	private boolean checked;
+
+	private long seekSpan;
+	private long lastSeekPoint;
+	private List<GzipIndex.SeekPoint> seekPoints;
+
+	/**
+	 * Creates a decoder that starts at the beginning of the file.
+	 *
+	 * @param channel the file, which is not closed by the decoder
+	 */
+	GzipDecoder(FileChannel channel) {
+		this.channel = channel;
+		state = State.MEMBER_HEADER;
+		checked = true;
+	}
+
+	/**
+	 * Creates a decoder that starts at a seek point. The checksums of the member the seek point
+	 * is in are not verified, since the text before it is not decoded.
+	 *
+	 * @param channel the file, which is not closed by the decoder
+	 * @param point   where to start
+	 * @throws IOException if the file cannot be read
+	 */
+	GzipDecoder(FileChannel channel, GzipIndex.SeekPoint point) throws IOException {
+		this.channel = channel;
+		readPosition = point.bitOffset() >>> 3;
+		int skip = (int) (point.bitOffset() & 7);
+		if (skip > 0) {
+			take(skip);
+		}
+		byte[] window = point.window();
+		System.arraycopy(window, 0, buffer, WINDOW_SIZE - window.length, window.length);
+		bufferOffset = point.offset() - WINDOW_SIZE;
+		memberOffset = point.offset() - window.length;
+		firstMember = false;
+		state = point.memberStart() ? State.MEMBER_HEADER : State.BLOCK_HEADER;
+		checked = point.memberStart();
+		lastSeekPoint = point.offset();
+	}
+
+	/**
+	 * Records a seek point at the first block or member boundary after every {@code span} bytes
+	 * of output, and at the start.
+	 *
+	 * @param span the number of bytes between seek points
+	 */
+	void recordSeekPoints(long span) {
+		seekSpan = span;
+		seekPoints = new ArrayList<>();
+		lastSeekPoint = -span;
+	}
+
+	/**
+	 * Returns the seek points recorded so far.
+	 *
+	 * @return the seek points, in order
+	 */
+	List<GzipIndex.SeekPoint> getSeekPoints() {
+		return seekPoints;
+	}
+
+	/**
+	 * Returns the number of bytes decompressed and read so far, counted from the start of the
+	 * file.
+	 *
+	 * @return the offset in the decompressed file of the next byte to be read
+	 */
+	long getOffset() {
+		return bufferOffset + handedOut;
+	}
+
+	/**
+	 * Reads decompressed bytes.
+	 *
+	 * @param dst    the destination
+	 * @param offset where to put the first byte
+	 * @param length the maximum number of bytes
+	 * @return the number of bytes read, or -1 at the end of the file
+	 * @throws IOException if the file cannot be read or is not valid gzip
+	 */
+	int read(byte[] dst, int offset, int length) throws IOException {
+		if (!ensureOutput()) {
+			return -1;
+		}
+		int count = Math.min(length, position - handedOut);
+		System.arraycopy(buffer, handedOut, dst, offset, count);
+		handedOut += count;
+		return count;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!ensureOutput()) {
+			return -1;
+		}
+		int count = Math.min(dst.remaining(), position - handedOut);
+		dst.put(buffer, handedOut, count);
+		handedOut += count;
+		return count;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Does nothing; the channel belongs to the caller.
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Makes sure there are bytes to hand out.
+	 *
+	 * @return {@code false} at the end of the file
+	 */
+	private boolean ensureOutput() throws IOException {
+		while (handedOut == position) {
+			if (state == State.END) {
+				return false;
+			}
+			if (position >= WINDOW_SIZE + BUFFER_SIZE) {
+				// Keep the last window for back references
+				System.arraycopy(buffer, position - WINDOW_SIZE, buffer, 0, WINDOW_SIZE);
+				bufferOffset += position - WINDOW_SIZE;
+				position = WINDOW_SIZE;
+				handedOut = WINDOW_SIZE;
+			}
+			int start = position;
+			inflate();
+			if (checked) {
+				crc.update(buffer, start, position - start);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes until the buffer is full or the file ends.
+	 */
+	private void inflate() throws IOException {
+		int limit = WINDOW_SIZE + BUFFER_SIZE;
+		while (position < limit) {
+			switch (state) {
+				case MEMBER_HEADER -> {
+					if (!readMemberHeader()) {
+						state = State.END;
+						return;
+					}
+					state = State.BLOCK_HEADER;
+				}
+				case BLOCK_HEADER -> {
+					if (lastBlock) {
+						state = State.MEMBER_TRAILER;
+					} else {
+						recordSeekPoint(false);
+						readBlockHeader();
+					}
+				}
+				case STORED -> copyStored(limit);
+				case CODES -> decodeCodes(limit);
+				case MEMBER_TRAILER -> {
+					// The CRC is only complete once the output of this call has been added to it
+					if (position > handedOut) {
+						return;
+					}
+					readMemberTrailer();
+					state = State.MEMBER_HEADER;
+				}
+				case END -> {
+					return;
+				}
+			}
+		}
+	}
+
+	private boolean readMemberHeader() throws IOException {
+		fill(8);
+		if (bitCount < 8) {
+			if (firstMember) {
+				throw new EOFException("Empty gzip file");
+			}
+			return false;
+		}
+		if (!firstMember && (bitBuffer & 0xFF) == 0) {
+			// Some tools pad the file with zeros after the last member
+			return false;
+		}
+		recordSeekPoint(true);
+		if (take(8) != 0x1F || take(8) != 0x8B) {
+			throw new ZipException("Not in gzip format");
+		}
+		if (take(8) != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+		int flags = take(8);
+		// Modification time, extra flags and operating system
+		for (int i = 0; i < 6; i++) {
+			take(8);
+		}
+		if ((flags & 4) != 0) {
+			int extra = take(16);
+			for (int i = 0; i < extra; i++) {
+				take(8);
+			}
+		}
+		if ((flags & 8) != 0) {
+			while (take(8) != 0) {
+				// File name
+			}
+		}
+		if ((flags & 16) != 0) {
+			while (take(8) != 0) {
+				// Comment
+			}
+		}
+		if ((flags & 2) != 0) {
+			take(16);
+		}
+		firstMember = false;
+		lastBlock = false;
+		memberOffset = bufferOffset + position;
+		crc.reset();
+		checked = true;
+		return true;
+	}
+
+	private void readMemberTrailer() throws IOException {
+		take(bitCount & 7);
+		long expectedCrc = take(16) | (long) take(16) << 16;
+		long expectedSize = take(16) | (long) take(16) << 16;
+		long size = bufferOffset + position - memberOffset;
+		if (checked && (expectedCrc != crc.getValue() || expectedSize != (size & 0xFFFFFFFFL))) {
+			throw new ZipException("Corrupt gzip data: checksum mismatch");
+		}
+	}
+
+	private void recordSeekPoint(boolean memberStart) throws IOException {
+		long offset = bufferOffset + position;
+		if (seekPoints == null || offset - lastSeekPoint < seekSpan) {
+			return;
+		}
+		long bitOffset = (readPosition - in.remaining()) * 8 - bitCount;
+		int history = memberStart ? 0 : (int) Math.min(WINDOW_SIZE, offset - memberOffset);
+		seekPoints.add(new GzipIndex.SeekPoint(bitOffset, offset, Arrays.copyOfRange(buffer, position - history, position), memberStart));
+		lastSeekPoint = offset;
+	}
+
+	private void readBlockHeader() throws IOException {
+		lastBlock = take(1) == 1;
+		switch (take(2)) {
+			case 0 -> {
+				take(bitCount & 7);
+				int length = take(16);
+				if ((length ^ 0xFFFF) != take(16)) {
+					throw new ZipException("Invalid stored block length");
+				}
+				storedRemaining = length;
+				state = State.STORED;
+			}
+			case 1 -> {
+				Arrays.fill(lengths, 0, 144, (byte) 8);
+				Arrays.fill(lengths, 144, 256, (byte) 9);
+				Arrays.fill(lengths, 256, 280, (byte) 7);
+				Arrays.fill(lengths, 280, 288, (byte) 8);
+				literalBits = buildTable(lengths, 0, 288, literalTable);
+				Arrays.fill(lengths, 0, 30, (byte) 5);
+				distanceBits = buildTable(lengths, 0, 30, distanceTable);
+				state = State.CODES;
+			}
+			case 2 -> {
+				readDynamicTables();
+				state = State.CODES;
+			}
+			default -> throw new ZipException("Invalid block type");
+		}
+	}
+
+	private void readDynamicTables() throws IOException {
+		int literals = take(5) + 257;
+		int distances = take(5) + 1;
+		int codeLengths = take(4) + 4;
+		if (literals > 286 || distances > 30) {
+			throw new ZipException("Too many length or distance symbols");
+		}
+		Arrays.fill(lengths, 0, 19, (byte) 0);
+		byte[] order = new byte[19];
+		for (int i = 0; i < codeLengths; i++) {
+			order[CODE_LENGTH_ORDER[i]] = (byte) take(3);
+		}
+		int[] codeLengthTable = new int[1 << 7];
+		int codeLengthBits = buildTable(order, 0, 19, codeLengthTable);
+
+		int count = literals + distances;
+		int index = 0;
+		while (index < count) {
+			fill(7 + 7);
+			int symbol = decode(codeLengthTable, codeLengthBits);
+			if (symbol < 16) {
+				lengths[index++] = (byte) symbol;
+				continue;
+			}
+			byte value = 0;
+			int repeat;
+			if (symbol == 16) {
+				if (index == 0) {
+					throw new ZipException("Invalid bit length repeat");
+				}
+				value = lengths[index - 1];
+				repeat = 3 + take(2);
+			} else if (symbol == 17) {
+				repeat = 3 + take(3);
+			} else {
+				repeat = 11 + take(7);
+			}
+			if (index + repeat > count) {
+				throw new ZipException("Invalid bit length repeat");
+			}
+			Arrays.fill(lengths, index, index + repeat, value);
+			index += repeat;
+		}
+		if (lengths[256] == 0) {
+			throw new ZipException("Missing end-of-block code");
+		}
+		literalBits = buildTable(lengths, 0, literals, literalTable);
+		distanceBits = buildTable(Arrays.copyOfRange(lengths, literals, count), 0, distances, distanceTable);
+	}
+
+	/**
+	 * Builds a lookup table for a canonical Huffman code. The table is indexed by the next bits
+	 * of input, least significant first, and holds the symbol shifted left by four and the length
+	 * of its code; entries for unused codes of an incomplete code hold 0.
+	 *
+	 * @return the number of bits to index the table with
+	 */
+	private static int buildTable(byte[] codeLengths, int from, int count, int[] table) throws ZipException {
+		int[] perLength = new int[MAX_BITS + 1];
+		int maxBits = 0;
+		for (int i = 0; i < count; i++) {
+			int length = codeLengths[from + i];
+			perLength[length]++;
+			maxBits = Math.max(maxBits, length);
+		}
+		perLength[0] = 0;
+		int left = 1;
+		for (int length = 1; length <= MAX_BITS; length++) {
+			left = (left << 1) - perLength[length];
+			if (left < 0) {
+				throw new ZipException("Over-subscribed Huffman code");
+			}
+		}
+		int[] next = new int[MAX_BITS + 2];
+		for (int length = 1; length <= MAX_BITS; length++) {
+			next[length + 1] = (next[length] + perLength[length]) << 1;
+		}
+		int size = 1 << maxBits;
+		Arrays.fill(table, 0, size, 0);
+		for (int symbol = 0; symbol < count; symbol++) {
+			int length = codeLengths[from + symbol];
+			if (length == 0) {
+				continue;
+			}
+			int code = Integer.reverse(next[length]++) >>> (32 - length);
+			for (int i = code; i < size; i += 1 << length) {
+				table[i] = symbol << 4 | length;
+			}
+		}
+		return maxBits;
+	}
+
+	private void copyStored(int limit) throws IOException {
+		while (storedRemaining > 0 && position < limit) {
+			if (bitCount >= 8) {
+				buffer[position++] = (byte) take(8);
+				storedRemaining--;
+				continue;
+			}
+			if (!in.hasRemaining() && !refill()) {
+				throw new EOFException("Unexpected end of compressed data");
+			}
+			int count = Math.min(Math.min(storedRemaining, limit - position), in.remaining());
+			in.get(buffer, position, count);
+			position += count;
+			storedRemaining -= count;
+		}
+		if (storedRemaining == 0) {
+			state = State.BLOCK_HEADER;
+		}
+	}
+
+	private void decodeCodes(int limit) throws IOException {
+		int[] literals = literalTable;
+		int[] distances = distanceTable;
+		byte[] out = buffer;
+		int pos = position;
+		// Lowest index of the buffer that back references may reach
+		int floor = (int) Math.max(0, memberOffset - bufferOffset);
+		try {
+			while (pos < limit) {
+				// Enough for a length, a distance and their extra bits
+				if (bitCount < 48) {
+					fill(48);
+				}
+				int symbol = decode(literals, literalBits);
+				if (symbol < 256) {
+					out[pos++] = (byte) symbol;
+					continue;
+				}
+				if (symbol == 256) {
+					state = State.BLOCK_HEADER;
+					return;
+				}
+				symbol -= 257;
+				if (symbol >= LENGTH_BASE.length) {
+					throw new ZipException("Invalid literal/length code");
+				}
+				int length = LENGTH_BASE[symbol] + take(LENGTH_EXTRA[symbol]);
+				int distanceSymbol = decode(distances, distanceBits);
+				if (distanceSymbol >= DISTANCE_BASE.length) {
+					throw new ZipException("Invalid distance code");
+				}
+				int distance = DISTANCE_BASE[distanceSymbol] + take(DISTANCE_EXTRA[distanceSymbol]);
+				int from = pos - distance;
+				if (from < floor) {
+					throw new ZipException("Invalid distance too far back");
+				}
+				if (distance >= length) {
+					System.arraycopy(out, from, out, pos, length);
+					pos += length;
+				} else {
+					for (int i = 0; i < length; i++) {
+						out[pos++] = out[from + i];
+					}
+				}
+			}
+		} finally {
+			position = pos;
+		}
+	}
+
+	private int decode(int[] table, int bits) throws IOException {
+		int entry = table[(int) bitBuffer & ((1 << bits) - 1)];
+		int length = entry & 15;
+		if (length == 0) {
+			throw new ZipException("Invalid Huffman code");
+		}
+		if (length > bitCount) {
+			throw new EOFException("Unexpected end of compressed data");
+		}
+		bitBuffer >>>= length;
+		bitCount -= length;
+		return entry >>> 4;
+	}
+
+	private int take(int count) throws IOException {
+		if (bitCount < count) {
+			fill(count);
+			if (bitCount < count) {
+				throw new EOFException("Unexpected end of compressed data");
+			}
+		}
+		int value = (int) (bitBuffer & ((1L << count) - 1));
+		bitBuffer >>>= count;
+		bitCount -= count;
+		return value;
+	}
+
+	/**
+	 * Loads whole bytes until at least {@code count} bits are buffered or the input ends.
+	 */
+	private void fill(int count) throws IOException {
+		while (bitCount < count) {
+			if (!in.hasRemaining() && !refill()) {
+				return;
+			}
+			bitBuffer |= (long) (in.get() & 0xFF) << bitCount;
+			bitCount += 8;
+		}
+	}
+
+	private boolean refill() throws IOException {
+		in.clear();
+		int read = channel.read(in, readPosition);
+		in.flip();
+		if (read <= 0) {
+			return false;
+		}
+		readPosition += read;
+		return true;
+	}
+}
@@ -0,0 +1,220 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Seek points into a gzip file, so that it can be decompressed in spans from the middle.
+ * <p>
+ * A seek point is recorded about every {@value #SEEK_SPAN} bytes of decompressed text, at a
+ * deflate block or gzip member boundary. It holds the bit offset of the boundary in the file and
+ * the 32K of text before it, which is all {@link GzipDecoder} needs to go on from there, so the
+ * spans between seek points can be decompressed in parallel.
+ * </p>
+ * <p>
+ * An index is built while a file is first decompressed from the start and is kept for as long
+ * as memory allows, in a small cache keyed by the file. It is only used while the size and
+ * modification time of the file match.
+ * </p>
+ */
+public final class GzipIndex {
+	public static final int SEEK_SPAN = 4 << 20;
+
+	private static final int CACHED_INDEXES = 16;
+	private static final int MAX_LENGTH = Integer.MAX_VALUE - 16;
+	private static final Map<Path, SoftReference<GzipIndex>> CACHE = new LinkedHashMap<>(CACHED_INDEXES, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, SoftReference<GzipIndex>> eldest) {
+			return size() > CACHED_INDEXES;
+		}
+	};
+
+	private final Path path;
+	private final long compressedSize;
+	private final FileTime lastModified;
+	private final List<SeekPoint> points;
+	private final long length;
+
+	/**
+	 * A place where decompression can start.
+	 *
+	 * @param bitOffset   the offset in the file, in bits
+	 * @param offset      the offset in the decompressed text
+	 * @param window      up to 32K of decompressed text before {@code offset}
+	 * @param memberStart whether a gzip member starts here, rather than a deflate block
+	 */
+	record SeekPoint(long bitOffset, long offset, byte[] window, boolean memberStart) {
+	}
+
+	GzipIndex(Path path, long compressedSize, FileTime lastModified, List<SeekPoint> points, long length) {
+		this.path = path.toAbsolutePath();
+		this.compressedSize = compressedSize;
+		this.lastModified = lastModified;
+		this.points = List.copyOf(points);
+		this.length = length;
+	}
+
+	/**
+	 * Tells whether a file is gzip compressed, by its first two bytes.
+	 *
+	 * @param channel the file
+	 * @return {@code true} if the file starts like a gzip member
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isGzip(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(2);
+		while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+			// Read both bytes
+		}
+		return magic.position() == 2 && magic.get(0) == (byte) 0x1F && magic.get(1) == (byte) 0x8B;
+	}
+
+	/**
+	 * Returns the length a gzip file claims for its decompressed text, which is that of its last
+	 * member modulo 2<sup>32</sup>. Good enough to show progress.
+	 *
+	 * @param channel the file
+	 * @return the claimed length
+	 * @throws IOException if the file cannot be read
+	 */
+	public static long claimedLength(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < 4) {
+			return 0;
+		}
+		ByteBuffer trailer = ByteBuffer.allocate(4);
+		while (trailer.hasRemaining() && channel.read(trailer, size - 4 + trailer.position()) > 0) {
+			// Read the whole size
+		}
+		return (trailer.get(0) & 0xFF) | (trailer.get(1) & 0xFF) << 8 | (trailer.get(2) & 0xFF) << 16 | (trailer.get(3) & 0xFFL) << 24;
+	}
+
+	/**
+	 * Returns the index of a file, if one was built and the file has not changed since.
+	 *
+	 * @param path         the file
+	 * @param size         the current size of the file
+	 * @param lastModified the current modification time of the file
+	 * @return the index, or {@code null}
+	 */
+	public static GzipIndex cached(Path path, long size, FileTime lastModified) {
+		SoftReference<GzipIndex> reference;
+		synchronized (CACHE) {
+			reference = CACHE.get(path.toAbsolutePath());
+		}
+		GzipIndex index = reference == null ? null : reference.get();
+		return index != null && index.compressedSize == size && index.lastModified.equals(lastModified) ? index : null;
+	}
+
+	/**
+	 * Keeps an index for {@link #cached(Path, long, FileTime)}.
+	 *
+	 * @param index the index
+	 */
+	static void remember(GzipIndex index) {
+		synchronized (CACHE) {
+			CACHE.put(index.path, new SoftReference<>(index));
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the length of the decompressed text.
+	 *
+	 * @return the length in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public int getSeekPointCount() {
+		return points.size();
+	}
+
+	/**
+	 * Decompresses the whole file, the spans between seek points in parallel.
+	 *
+	 * @param channel  the file, which must be the one indexed
+	 * @param pool     the pool to decompress on
+	 * @param progress receives the number of bytes decompressed so far, from any thread but in
+	 *                 increasing order
+	 * @return the decompressed text
+	 * @throws IOException if the file cannot be read, is not valid gzip or is too large for a
+	 *                     document
+	 */
+	byte[] decompress(FileChannel channel, ForkJoinPool pool, LongConsumer progress) throws IOException {
+		if (length > MAX_LENGTH) {
+			throw new IOException(path + " is too large to edit (" + length + " bytes decompressed)");
+		}
+		byte[] text = new byte[(int) length];
+		if (points.isEmpty()) {
+			return text;
+		}
+		ProgressCounter done = new ProgressCounter(progress);
+		AtomicReference<IOException> failure = new AtomicReference<>();
+		pool.invoke(new ForEachSpan(0, points.size(), i -> {
+			int start = (int) points.get(i).offset();
+			int end = i + 1 < points.size() ? (int) points.get(i + 1).offset() : text.length;
+			try {
+				GzipDecoder decoder = new GzipDecoder(channel, points.get(i));
+				for (int at = start; at < end && failure.get() == null; ) {
+					int read = decoder.read(text, at, end - at);
+					if (read < 0) {
+						throw new IOException(path + " is shorter than when it was indexed");
+					}
+					at += read;
+					done.add(read);
+				}
+			} catch (IOException ex) {
+				failure.compareAndSet(null, ex);
+			}
+		}));
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return text;
+	}
+
+	/**
+	 * Runs a task for every span between seek points, splitting the range in halves until single
+	 * spans remain.
+	 */
+	private static final class ForEachSpan extends RecursiveAction {
+		private final int from;
+		private final int to;
+		private final IntConsumer task;
+
+		ForEachSpan(int from, int to, IntConsumer task) {
+			this.from = from;
+			this.to = to;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				task.accept(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			ForkJoinTask.invokeAll(new ForEachSpan(from, mid, task), new ForEachSpan(mid, to, task));
+		}
+	}
+}
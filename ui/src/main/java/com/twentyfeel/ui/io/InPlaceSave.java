@@ -0,0 +1,307 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.TextSnapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a document by overwriting only the parts of the file that changed.
+ * <p>
+ * The snapshot to save is compared with the {@link DiskImage} of the file piece by piece, which
+ * finds the changed ranges without looking at the unchanged text. A changed range whose encoded
+ * length did not change is written over the old bytes at the same position; from the first range
+ * whose length did change, or where text was appended or cut off, the rest of the file is
+ * rewritten and the file truncated to its new size. Saving a large file after fixing one line so
+ * writes a few bytes instead of the whole file. When too much would have to be rewritten, the
+ * file was changed by someone else, or its bytes turn out not to match the image, the caller
+ * falls back to a full rewrite.
+ * </p>
+ * <p>
+ * Before the file is touched, the old bytes of every range about to be overwritten are written
+ * to a small write-ahead record next to it and forced to the disk. The record is removed once
+ * the file itself has been forced. If the editor dies in between, {@link #recover(Path)} puts
+ * the old bytes back before the file is opened again, so the file is either entirely old or
+ * entirely new.
+ * </p>
+ */
+final class InPlaceSave {
+	private static final int MAGIC = 0x5A495A57;
+	private static final int VERSION = 1;
+	private static final int MAX_CHANGED_CHARS = 1 << 22;
+	private static final long MAX_TAIL_BYTES = 1 << 24;
+	private static final int MAX_VERIFIED_CHARS = 1 << 24;
+
+	private final DiskImage image;
+	private final TextSnapshot text;
+	private final SnapshotEncoder encoder;
+	private final List<Patch> patches = new ArrayList<>();
+	private long bytesWritten;
+	private int knownChar;
+	private long knownByte;
+
+	private record Patch(long offset, byte[] oldBytes, byte[] newBytes) {
+	}
+
+	private InPlaceSave(DiskImage image, TextSnapshot text) {
+		this.image = image;
+		this.text = text;
+		this.encoder = new SnapshotEncoder(image.getCharset(), image.getLineSeparator());
+	}
+
+	/**
+	 * Saves a snapshot in place if it can be done by rewriting little of the file.
+	 *
+	 * @param image         the image of the file as it is on the disk
+	 * @param text          the text to save
+	 * @param lineSeparator the line separator to save with
+	 * @return the result, or {@code null} if the file has to be rewritten entirely, in which case
+	 * it has not been touched
+	 * @throws IOException if writing failed after the file was touched; the write-ahead record
+	 *                     is then left for {@link #recover(Path)}
+	 */
+	static Result save(DiskImage image, TextSnapshot text, String lineSeparator) throws IOException {
+		if (!ParallelTextDecoder.isParallelSafe(image.getCharset()) || !image.getLineSeparator().equals(lineSeparator)) {
+			// Ranges can only be encoded on their own in charsets without state
+			return null;
+		}
+		int[] ranges = text.differences(image.getText());
+		if (ranges == null || !image.isCurrent()) {
+			return null;
+		}
+		return new InPlaceSave(image, text).save(ranges);
+	}
+
+	/**
+	 * The outcome of an in-place save.
+	 *
+	 * @param image        the image of the file after saving
+	 * @param bytesWritten the number of bytes written to the file
+	 */
+	record Result(DiskImage image, long bytesWritten) {
+	}
+
+	private Result save(int[] ranges) throws IOException {
+		Path path = image.getPath();
+		int tailStart = -1;
+		long tailByte = -1;
+		long newSize = image.getSize();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			int changedChars = 0;
+			for (int i = 0; i < ranges.length && tailStart < 0; i += 2) {
+				changedChars += ranges[i + 1] - ranges[i];
+				if (changedChars > MAX_CHANGED_CHARS) {
+					return null;
+				}
+				tailStart = plan(channel, ranges[i], ranges[i + 1]);
+				if (tailStart == -2) {
+					return null;
+				}
+			}
+			int oldLength = image.getText().length();
+			if (tailStart < 0 && text.length() != oldLength) {
+				tailStart = Math.min(text.length(), oldLength);
+			}
+			if (tailStart >= 0) {
+				tailByte = byteOffset(channel, tailStart);
+				if (tailByte < 0 || image.getSize() - tailByte > MAX_TAIL_BYTES || text.length() - tailStart > MAX_TAIL_BYTES) {
+					return null;
+				}
+				byte[] oldBytes = read(channel, tailByte, (int) (image.getSize() - tailByte));
+				byte[] newBytes = encoder.encode(text, tailStart, text.length());
+				if (!Arrays.equals(oldBytes, encoder.encode(image.getText(), tailStart, oldLength))) {
+					return null;
+				}
+				patches.add(new Patch(tailByte, oldBytes, newBytes));
+				newSize = tailByte + newBytes.length;
+			}
+
+			if (!patches.isEmpty()) {
+				Path journal = journalPath(path);
+				writeJournal(journal, image.getSize());
+				for (Patch patch : patches) {
+					write(channel, patch.offset, patch.newBytes);
+				}
+				if (newSize < image.getSize()) {
+					channel.truncate(newSize);
+				}
+				channel.force(true);
+				Files.delete(journal);
+			}
+		}
+		DiskImage saved = tailStart >= 0
+			? image.rewrittenFrom(text, tailStart, tailByte, newSize, Files.getLastModifiedTime(path))
+			: image.patched(text, Files.getLastModifiedTime(path));
+		return new Result(saved, bytesWritten);
+	}
+
+	/**
+	 * Plans overwriting a changed range.
+	 *
+	 * @return -1 if the range was planned as a patch, the start of the range if the rest of the
+	 * file has to be rewritten from there, or -2 if the file does not match the image
+	 */
+	private int plan(FileChannel channel, int from, int to) throws IOException {
+		if (splitsSurrogatePair(text, from, to) || splitsSurrogatePair(image.getText(), from, to)) {
+			// A half of a pair cannot be encoded on its own
+			return -2;
+		}
+		byte[] newBytes = encoder.encode(text, from, to);
+		byte[] oldBytes = encoder.encode(image.getText(), from, to);
+		if (newBytes.length != oldBytes.length) {
+			return from;
+		}
+		long offset = byteOffset(channel, from);
+		if (offset < 0 || !Arrays.equals(oldBytes, read(channel, offset, oldBytes.length))) {
+			return -2;
+		}
+		patches.add(new Patch(offset, oldBytes, newBytes));
+		knownChar = to;
+		knownByte = offset + oldBytes.length;
+		return -1;
+	}
+
+	/**
+	 * Returns the byte offset of a character in the file, found by encoding the text from the
+	 * closest known offset and checking that the file holds the same bytes.
+	 *
+	 * @return the byte offset, or -1 if the file does not match the image or the closest known
+	 * offset is too far away
+	 */
+	private long byteOffset(FileChannel channel, int offset) throws IOException {
+		int anchor = image.floorAnchor(offset);
+		if (image.getAnchorChar(anchor) > knownChar || knownChar > offset) {
+			knownChar = image.getAnchorChar(anchor);
+			knownByte = image.getAnchorByte(anchor);
+		}
+		if (offset - knownChar > MAX_VERIFIED_CHARS) {
+			return -1;
+		}
+		byte[] expected = encoder.encode(image.getText(), knownChar, offset);
+		if (!Arrays.equals(expected, read(channel, knownByte, expected.length))) {
+			return -1;
+		}
+		knownChar = offset;
+		knownByte += expected.length;
+		return knownByte;
+	}
+
+	private static boolean splitsSurrogatePair(TextSnapshot snapshot, int from, int to) {
+		char[] c = new char[1];
+		snapshot.getChars(from, 1, c, 0);
+		if (Character.isLowSurrogate(c[0])) {
+			return true;
+		}
+		snapshot.getChars(to - 1, 1, c, 0);
+		return Character.isHighSurrogate(c[0]);
+	}
+
+	private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		return buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+	}
+
+	private void write(FileChannel channel, long position, byte[] bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+		bytesWritten += bytes.length;
+	}
+
+	private static Path journalPath(Path path) {
+		return path.toAbsolutePath().resolveSibling("." + path.getFileName() + ".zizi-wal");
+	}
+
+	/**
+	 * Writes the old bytes of all patches and the old size of the file, followed by a checksum,
+	 * and forces them to the disk.
+	 */
+	private void writeJournal(Path journal, long oldSize) throws IOException {
+		int size = 4 + 4 + 8 + 4 + 8;
+		for (Patch patch : patches) {
+			size += 8 + 4 + patch.oldBytes.length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(size);
+		record.putInt(MAGIC).putInt(VERSION).putLong(oldSize).putInt(patches.size());
+		for (Patch patch : patches) {
+			record.putLong(patch.offset).putInt(patch.oldBytes.length).put(patch.oldBytes);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putLong(crc.getValue()).flip();
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+			channel.force(true);
+		}
+		DocumentSaver.syncDirectory(journal.getParent());
+	}
+
+	/**
+	 * Rolls back an in-place save that was interrupted, if the write-ahead record of one is found
+	 * next to the file. A record that is incomplete was written before the file was touched and
+	 * is just removed.
+	 *
+	 * @param path the file
+	 * @return {@code true} if the file was rolled back
+	 * @throws IOException if the file cannot be rolled back
+	 */
+	static boolean recover(Path path) throws IOException {
+		Path journal = journalPath(path);
+		if (!Files.exists(journal)) {
+			return false;
+		}
+		if (!Files.exists(path)) {
+			Files.delete(journal);
+			return false;
+		}
+		ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(journal));
+		boolean complete = isComplete(record);
+		if (complete) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				long oldSize = record.getLong(8);
+				int count = record.getInt(16);
+				record.position(20);
+				for (int i = 0; i < count; i++) {
+					long offset = record.getLong();
+					int length = record.getInt();
+					ByteBuffer oldBytes = record.slice(record.position(), length);
+					record.position(record.position() + length);
+					while (oldBytes.hasRemaining()) {
+						channel.write(oldBytes, offset + oldBytes.position());
+					}
+				}
+				channel.truncate(oldSize);
+				channel.force(true);
+			}
+		}
+		Files.delete(journal);
+		return complete;
+	}
+
+	private static boolean isComplete(ByteBuffer record) {
+		int limit = record.limit();
+		if (limit < 28 || record.getInt(0) != MAGIC || record.getInt(4) != VERSION) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, limit - 8);
+		return crc.getValue() == record.getLong(limit - 8);
+	}
+}
@@ -0,0 +1,117 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a file of any size, mapped lazily in fixed-size windows.
+ * <p>
+ * Only windows that are actually read get mapped, and the mapped pages live outside the Java heap
+ * where the operating system can page them in and out. All reads use absolute positions, so one
+ * instance can be shared by the painting thread and background scanners.
+ * </p>
+ */
+public class MappedFile implements Closeable {
+	public static final int WINDOW_SIZE = 1 << 26;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final long size;
+	private final MappedByteBuffer[] windows;
+
+	public MappedFile(Path path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the byte at the given position.
+	 *
+	 * @param position the file position
+	 * @return the byte
+	 * @throws IOException if the window containing the position cannot be mapped
+	 */
+	public byte get(long position) throws IOException {
+		return window(position).get((int) (position % WINDOW_SIZE));
+	}
+
+	/**
+	 * Copies bytes starting at a file position, crossing window boundaries as needed.
+	 *
+	 * @param position the file position to read from
+	 * @param dst      the destination array
+	 * @param offset   the offset in the destination array
+	 * @param length   the maximum number of bytes to copy
+	 * @return the number of bytes copied, which is less than requested only at the end of the file
+	 * @throws IOException if a window cannot be mapped
+	 */
+	public int read(long position, byte[] dst, int offset, int length) throws IOException {
+		int total = 0;
+		length = (int) Math.min(length, size - position);
+		while (total < length) {
+			long current = position + total;
+			int inWindow = (int) (current % WINDOW_SIZE);
+			MappedByteBuffer window = window(current);
+			int count = Math.min(length - total, window.limit() - inWindow);
+			window.get(inWindow, dst, offset + total, count);
+			total += count;
+		}
+		return Math.max(total, 0);
+	}
+
+	/**
+	 * Returns the position of the next occurrence of a byte.
+	 *
+	 * @param value the byte to look for
+	 * @param from  the first position to examine
+	 * @param limit the position at which to stop looking
+	 * @return the position of the byte, or {@code -1} if it does not occur before {@code limit}
+	 * @throws IOException if a window cannot be mapped
+	 */
+	public long indexOf(byte value, long from, long limit) throws IOException {
+		limit = Math.min(limit, size);
+		while (from < limit) {
+			MappedByteBuffer window = window(from);
+			int start = (int) (from % WINDOW_SIZE);
+			int end = (int) Math.min(window.limit(), start + (limit - from));
+			for (int i = start; i < end; i++) {
+				if (window.get(i) == value) {
+					return from + (i - start);
+				}
+			}
+			from += end - start;
+		}
+		return -1;
+	}
+
+	private synchronized MappedByteBuffer window(long position) throws IOException {
+		int index = (int) (position / WINDOW_SIZE);
+		MappedByteBuffer window = windows[index];
+		if (window == null) {
+			long start = (long) index * WINDOW_SIZE;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+			windows[index] = window;
+		}
+		return window;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,77 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.nio.CharBuffer;
+
+/**
+ * Turns {@code \r\n} and lone {@code \r} into {@code \n} in text that arrives in chunks, as
+ * {@link javax.swing.text.DefaultEditorKit} does. A {@code \r} at the end of a chunk is held back
+ * until the next chunk shows whether a {@code \n} follows. The first line separator seen is
+ * remembered, so it can be written back when saving.
+ */
+final class NewlineNormalizer {
+	private boolean pendingCarriageReturn;
+	private String lineSeparator;
+
+	/**
+	 * Normalizes the remaining characters of a buffer.
+	 *
+	 * @param text       the decoded text
+	 * @param endOfInput whether no more text follows, in which case a trailing {@code \r} is
+	 *                   not held back
+	 * @return the normalized text, or {@code null} if there is none yet
+	 */
+	String normalize(CharBuffer text, boolean endOfInput) {
+		char[] chars = new char[text.remaining() + 1];
+		int count = 0;
+		// Without text, only the end of the input decides what a held back \r was
+		if (pendingCarriageReturn && (text.hasRemaining() || endOfInput)) {
+			if (!text.hasRemaining() || text.get(text.position()) != '\n') {
+				lineSeparator = lineSeparator == null ? "\r" : lineSeparator;
+				chars[count++] = '\n';
+			} else {
+				lineSeparator = lineSeparator == null ? "\r\n" : lineSeparator;
+			}
+			pendingCarriageReturn = false;
+		}
+		while (text.hasRemaining()) {
+			char c = text.get();
+			if (c != '\r') {
+				if (c == '\n' && lineSeparator == null) {
+					lineSeparator = "\n";
+				}
+				chars[count++] = c;
+			} else if (!text.hasRemaining()) {
+				pendingCarriageReturn = !endOfInput;
+				if (endOfInput) {
+					lineSeparator = lineSeparator == null ? "\r" : lineSeparator;
+					chars[count++] = '\n';
+				}
+			} else if (text.get(text.position()) == '\n') {
+				lineSeparator = lineSeparator == null ? "\r\n" : lineSeparator;
+			} else {
+				lineSeparator = lineSeparator == null ? "\r" : lineSeparator;
+				chars[count++] = '\n';
+			}
+		}
+		return count > 0 ? new String(chars, 0, count) : null;
+	}
+
+	/**
+	 * Returns whether a {@code \r} at the end of the last chunk is held back.
+	 *
+	 * @return {@code true} until the next chunk or the end of the input decides what it was
+	 */
+	boolean hasPendingCarriageReturn() {
+		return pendingCarriageReturn;
+	}
+
+	/**
+	 * Returns the first line separator seen.
+	 *
+	 * @return the separator, or {@code null} if there was none
+	 */
+	String getLineSeparator() {
+		return lineSeparator;
+	}
+}
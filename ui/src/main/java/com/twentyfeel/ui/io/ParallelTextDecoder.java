@@ -0,0 +1,393 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.CompactText;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Decodes a whole text file and indexes its lines in parallel.
+ * <p>
+ * The file is memory-mapped and cut into chunks whose boundaries never fall inside a UTF-8
+ * sequence or between {@code \r} and {@code \n}. Every chunk is decoded, has its line separators
+ * normalized to {@code \n} and its line lengths collected on a fork-join pool. Decoded chunks are
+ * stored as {@link CompactText}, narrowed to one byte per character wherever they fit into
+ * Latin-1, and are joined without copying while their line lengths are stitched together, giving
+ * the content and line structure of a document in one step. Chunks that turn out to be pure ASCII
+ * skip the charset decoder and are never widened at all, see {@link ByteScanner}.
+ * </p>
+ * <p>
+ * Cutting the input at arbitrary boundaries only works for charsets that can resynchronize at
+ * any character, which holds for UTF-8 and the single-byte charsets. Any other charset may carry
+ * state from one character to the next, such as a byte order mark or shift sequences, and is
+ * decoded sequentially as a single chunk.
+ * </p>
+ */
+public class ParallelTextDecoder {
+	private static final int CHUNK_SIZE = 1 << 22;
+	private static final int MAX_LENGTH = Integer.MAX_VALUE - 16;
+	private static final Set<Charset> PARALLEL_CHARSETS = Set.of(StandardCharsets.UTF_8, StandardCharsets.US_ASCII, StandardCharsets.ISO_8859_1);
+
+	/**
+	 * The decoded text of a file together with its line lengths.
+	 *
+	 * @param text          the text, with line separators normalized to {@code \n}
+	 * @param lineLengths   the line lengths including their newline; the last line includes the
+	 *                      implied trailing newline of a document
+	 * @param lineCount     the number of valid entries in {@code lineLengths}
+	 * @param lineSeparator the first line separator found in the file, or {@code null}
+	 * @param anchorChars   the offset in {@code text} of the first character of every chunk
+	 * @param anchorBytes   the offset in the input of the first byte of every chunk
+	 * @param byteLength    the number of bytes decoded
+	 */
+	public record DecodedText(CompactText text, int[] lineLengths, int lineCount, String lineSeparator, int[] anchorChars, long[] anchorBytes, long byteLength) {
+	}
+
+	private ParallelTextDecoder() {
+	}
+
+	/**
+	 * Returns whether a charset can be decoded in independent chunks.
+	 *
+	 * @param charset the charset
+	 * @return {@code true} if chunks can be decoded in parallel
+	 */
+	public static boolean isParallelSafe(Charset charset) {
+		return PARALLEL_CHARSETS.contains(charset);
+	}
+
+	/**
+	 * Decodes a file.
+	 *
+	 * @param path     the file
+	 * @param charset  the charset of the file
+	 * @param pool     the pool to decode on
+	 * @param progress receives the number of bytes decoded so far, from any thread but in
+	 *                 increasing order; may be {@code null}
+	 * @return the decoded text
+	 * @throws IOException if the file cannot be read or is too large for a document
+	 */
+	public static DecodedText decode(Path path, Charset charset, ForkJoinPool pool, LongConsumer progress) throws IOException {
+		return decode(path, charset, false, pool, progress);
+	}
+
+	/**
+	 * Decodes a file, which may still be written to. If it is, its end is left out wherever the
+	 * next byte could change what it decodes to: an incomplete UTF-8 sequence and a trailing
+	 * {@code \r}, which may yet be followed by {@code \n}. The text then ends at
+	 * {@link DecodedText#byteLength()}, where reading the rest of the file can go on.
+	 *
+	 * @param path     the file
+	 * @param charset  the charset of the file
+	 * @param growing  whether to leave out the end of the file that may still be incomplete
+	 * @param pool     the pool to decode on
+	 * @param progress receives the number of bytes decoded so far, from any thread but in
+	 *                 increasing order; may be {@code null}
+	 * @return the decoded text
+	 * @throws IOException if the file cannot be read or is too large for a document
+	 */
+	public static DecodedText decode(Path path, Charset charset, boolean growing, ForkJoinPool pool, LongConsumer progress) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > MAX_LENGTH) {
+				throw new IOException(path + " is too large to edit (" + size + " bytes), open it in the viewer instead");
+			}
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (growing) {
+				bytes.limit(completeLength(bytes, charset));
+			}
+			return decode(bytes, charset, pool, progress);
+		}
+	}
+
+	/**
+	 * Decodes the remaining bytes of a buffer.
+	 *
+	 * @param bytes    the encoded text
+	 * @param charset  the charset of the text
+	 * @param pool     the pool to decode on
+	 * @param progress receives the number of bytes decoded so far, from any thread but in
+	 *                 increasing order; may be {@code null}
+	 * @return the decoded text
+	 * @throws IOException if the text is too long for a document
+	 */
+	public static DecodedText decode(ByteBuffer bytes, Charset charset, ForkJoinPool pool, LongConsumer progress) throws IOException {
+		return decode(bytes, charset, pool, progress, CHUNK_SIZE);
+	}
+
+	/**
+	 * Decodes the remaining bytes of a buffer in chunks of about the given size.
+	 */
+	static DecodedText decode(ByteBuffer bytes, Charset charset, ForkJoinPool pool, LongConsumer progress, int chunkSize) throws IOException {
+		Chunk[] chunks = split(bytes, isParallelSafe(charset) ? chunkSize : Integer.MAX_VALUE);
+		ProgressCounter decoded = new ProgressCounter(progress);
+		pool.invoke(new ForEachChunk(chunks, chunk -> {
+			chunk.decode(charset);
+			decoded.add(chunk.bytes.remaining());
+		}));
+		return merge(chunks, bytes.remaining());
+	}
+
+	/**
+	 * Returns the limit that leaves out an incomplete character and a {@code \r} at the end of
+	 * the bytes.
+	 */
+	private static int completeLength(ByteBuffer bytes, Charset charset) {
+		int start = bytes.position();
+		int end = bytes.limit();
+		if (charset.equals(StandardCharsets.UTF_8)) {
+			// Back up over at most three continuation bytes to the lead byte of the last sequence
+			int lead = end - 1;
+			while (lead > start && end - lead <= 3 && (bytes.get(lead) & 0xC0) == 0x80) {
+				lead--;
+			}
+			if (lead >= start) {
+				int b = bytes.get(lead) & 0xFF;
+				int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+				if (end - lead < length) {
+					end = lead;
+				}
+			}
+		}
+		if (end > start && bytes.get(end - 1) == '\r') {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * Cuts the buffer into chunks of about {@code chunkSize} bytes. A boundary is moved forward
+	 * past UTF-8 continuation bytes and past a {@code \r}, so that no character and no
+	 * {@code \r\n} pair is split.
+	 */
+	private static Chunk[] split(ByteBuffer bytes, int chunkSize) {
+		List<Chunk> chunks = new ArrayList<>();
+		int start = bytes.position();
+		int limit = bytes.limit();
+		while (start < limit) {
+			int end = limit - start <= chunkSize ? limit : start + chunkSize;
+			while (end < limit && ((bytes.get(end) & 0xC0) == 0x80 || bytes.get(end - 1) == '\r')) {
+				end++;
+			}
+			chunks.add(new Chunk(bytes.slice(start, end - start), start - bytes.position()));
+			start = end;
+		}
+		if (chunks.isEmpty()) {
+			chunks.add(new Chunk(bytes.slice(start, 0), 0));
+		}
+		return chunks.toArray(new Chunk[0]);
+	}
+
+	private static DecodedText merge(Chunk[] chunks, long byteLength) throws IOException {
+		long totalLength = 0;
+		int totalLines = 1;
+		String lineSeparator = null;
+		CompactText[] parts = new CompactText[chunks.length];
+		int[] anchorChars = new int[chunks.length];
+		long[] anchorBytes = new long[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			Chunk chunk = chunks[i];
+			anchorChars[i] = (int) Math.min(totalLength, MAX_LENGTH);
+			anchorBytes[i] = chunk.byteOffset;
+			parts[i] = chunk.text;
+			chunk.text = null;
+			totalLength += parts[i].length();
+			totalLines += chunk.lineCount;
+			if (lineSeparator == null) {
+				lineSeparator = chunk.lineSeparator;
+			}
+		}
+		if (totalLength > MAX_LENGTH) {
+			throw new IOException("Text is too long to edit (" + totalLength + " characters)");
+		}
+
+		CompactText text = CompactText.concat(parts);
+
+		// The text after the last newline of a chunk continues on the first line of the next one
+		int[] lineLengths = new int[totalLines];
+		int lineCount = 0;
+		int carry = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk.lineCount > 0) {
+				lineLengths[lineCount++] = carry + chunk.lineLengths[0];
+				System.arraycopy(chunk.lineLengths, 1, lineLengths, lineCount, chunk.lineCount - 1);
+				lineCount += chunk.lineCount - 1;
+				carry = chunk.tail;
+			} else {
+				carry += chunk.tail;
+			}
+			chunk.lineLengths = null;
+		}
+		lineLengths[lineCount++] = carry + 1;
+		return new DecodedText(text, lineLengths, lineCount, lineSeparator, anchorChars, anchorBytes, byteLength);
+	}
+
+	private static final class Chunk {
+		private final ByteBuffer bytes;
+		private final long byteOffset;
+		private CompactText text;
+		private int[] lineLengths;
+		private int lineCount;
+		private int tail;
+		private String lineSeparator;
+
+		Chunk(ByteBuffer bytes, long byteOffset) {
+			this.bytes = bytes;
+			this.byteOffset = byteOffset;
+		}
+
+		void decode(Charset charset) {
+			if (isParallelSafe(charset) && decodeAscii(ByteScanner.get())) {
+				return;
+			}
+			CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			ByteBuffer in = bytes.duplicate();
+			CharBuffer out = CharBuffer.allocate((int) Math.min(MAX_LENGTH, (long) (in.remaining() * (double) decoder.averageCharsPerByte()) + 16));
+			while (true) {
+				CoderResult result = decoder.decode(in, out, true);
+				if (result.isOverflow()) {
+					out = grow(out);
+					continue;
+				}
+				result = decoder.flush(out);
+				if (result.isOverflow()) {
+					out = grow(out);
+					continue;
+				}
+				break;
+			}
+			char[] chars = out.array();
+			text = CompactText.compact(chars, normalize(chars, out.position()));
+		}
+
+		/**
+		 * Decodes a chunk that is pure ASCII, which all parallel-safe charsets map one to one,
+		 * by keeping its bytes as they are. Line breaks are found with the byte scanning kernel.
+		 * Gives up on a byte outside ASCII or a {@code \r}, leaving those chunks to the charset
+		 * decoder and {@link #normalize(char[], int)}.
+		 *
+		 * @return {@code true} if the chunk was decoded
+		 */
+		private boolean decodeAscii(ByteScanner kernel) {
+			int count = bytes.remaining();
+			byte[] latin1 = new byte[count];
+			bytes.get(bytes.position(), latin1);
+			if (kernel.asciiLength(latin1, 0, count) != count) {
+				return false;
+			}
+			lineLengths = new int[64];
+			lineCount = 0;
+			int lineStart = 0;
+			for (int i = kernel.indexOfLineBreak(latin1, 0, count); i >= 0; i = kernel.indexOfLineBreak(latin1, i + 1, count)) {
+				if (latin1[i] == '\r') {
+					return false;
+				}
+				if (lineCount == lineLengths.length) {
+					lineLengths = Arrays.copyOf(lineLengths, lineCount * 2);
+				}
+				lineLengths[lineCount++] = i + 1 - lineStart;
+				lineStart = i + 1;
+			}
+			text = CompactText.ofLatin1(latin1, count);
+			tail = count - lineStart;
+			lineSeparator = lineCount > 0 ? "\n" : null;
+			return true;
+		}
+
+		private static CharBuffer grow(CharBuffer out) {
+			CharBuffer larger = CharBuffer.allocate((int) Math.min(MAX_LENGTH, out.capacity() * 2L + 16));
+			out.flip();
+			larger.put(out);
+			return larger;
+		}
+
+		/**
+		 * Turns {@code \r\n} and lone {@code \r} into {@code \n} in place and records the line
+		 * lengths.
+		 */
+		private int normalize(char[] chars, int count) {
+			lineLengths = new int[64];
+			lineCount = 0;
+			int write = 0;
+			int lineStart = 0;
+			for (int read = 0; read < count; read++) {
+				char c = chars[read];
+				if (c == '\r') {
+					boolean crlf = read + 1 < count && chars[read + 1] == '\n';
+					if (lineSeparator == null) {
+						lineSeparator = crlf ? "\r\n" : "\r";
+					}
+					if (crlf) {
+						continue;
+					}
+					c = '\n';
+				} else if (c == '\n' && lineSeparator == null) {
+					lineSeparator = "\n";
+				}
+				chars[write++] = c;
+				if (c == '\n') {
+					if (lineCount == lineLengths.length) {
+						lineLengths = Arrays.copyOf(lineLengths, lineCount * 2);
+					}
+					lineLengths[lineCount++] = write - lineStart;
+					lineStart = write;
+				}
+			}
+			tail = write - lineStart;
+			return write;
+		}
+	}
+
+	/**
+	 * Runs a task for every chunk, splitting the range in halves until single chunks remain.
+	 */
+	private static final class ForEachChunk extends RecursiveAction {
+		private final Chunk[] chunks;
+		private final Consumer<Chunk> task;
+		private final int from;
+		private final int to;
+
+		ForEachChunk(Chunk[] chunks, Consumer<Chunk> task) {
+			this(chunks, task, 0, chunks.length);
+		}
+
+		private ForEachChunk(Chunk[] chunks, Consumer<Chunk> task, int from, int to) {
+			this.chunks = chunks;
+			this.task = task;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				task.accept(chunks[from]);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			ForkJoinTask.invokeAll(new ForEachChunk(chunks, task, from, mid), new ForEachChunk(chunks, task, mid, to));
+		}
+	}
+}
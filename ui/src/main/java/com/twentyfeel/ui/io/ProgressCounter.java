@@ -0,0 +1,28 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Adds up the bytes done by several worker threads and reports the running total. Adding and
+ * reporting happen under one lock, so a worker that adds later never reports a smaller total
+ * after one that added earlier, and the reported progress never moves backwards.
+ */
+final class ProgressCounter {
+	private final LongConsumer progress;
+	private long total;
+
+	/**
+	 * @param progress receives the total after every addition; may be {@code null}
+	 */
+	ProgressCounter(LongConsumer progress) {
+		this.progress = progress;
+	}
+
+	synchronized void add(long bytes) {
+		total += bytes;
+		if (progress != null) {
+			progress.accept(total);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+/**
+ * Byte scanning kernel with plain loops, used when vector instructions are not available.
+ */
+final class ScalarByteScanner extends ByteScanner {
+	static final ScalarByteScanner INSTANCE = new ScalarByteScanner();
+
+	private ScalarByteScanner() {
+	}
+
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+
+	@Override
+	public boolean isAccelerated() {
+		return false;
+	}
+
+	@Override
+	public int indexOf(byte[] bytes, int from, int to, byte value) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int indexOfLineBreak(byte[] bytes, int from, int to) {
+		for (int i = from; i < to; i++) {
+			byte b = bytes[i];
+			if (b == '\n' || b == '\r') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int countLines(byte[] bytes, int from, int to) {
+		int lines = 0;
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == '\n') {
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	@Override
+	public int asciiLength(byte[] bytes, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] < 0) {
+				return i - from;
+			}
+		}
+		return to - from;
+	}
+}
@@ -0,0 +1,174 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The files open in the editor and where the user was in each of them, kept across restarts.
+ * <p>
+ * The session is stored in a small binary file: a header, then for every buffer its path in
+ * UTF-8, the caret, the selection mark and the offset at the top of the view, followed by a
+ * checksum. It is written next to its final place and moved there, so a crash while writing
+ * leaves the previous session. The file defaults to the system property
+ * {@value #FILE_PROPERTY}, or {@code .zizi/session} in the home directory.
+ * </p>
+ */
+public final class Session {
+	public static final String FILE_PROPERTY = "zizi.sessionFile";
+
+	private static final int MAGIC = 0x5A495A53;
+	private static final int VERSION = 1;
+	private static final int MAX_BUFFERS = 1 << 16;
+
+	private final List<Buffer> buffers;
+	private final int selected;
+
+	/**
+	 * A file open in the editor.
+	 *
+	 * @param path      the file
+	 * @param dot       the caret offset
+	 * @param mark      the other end of the selection, equal to {@code dot} if nothing is selected
+	 * @param topOffset the offset of the first visible line
+	 */
+	public record Buffer(Path path, int dot, int mark, int topOffset) {
+	}
+
+	/**
+	 * Creates a session.
+	 *
+	 * @param buffers  the open files, in tab order
+	 * @param selected the index of the selected buffer, or -1
+	 */
+	public Session(List<Buffer> buffers, int selected) {
+		this.buffers = List.copyOf(buffers);
+		this.selected = selected;
+	}
+
+	public List<Buffer> getBuffers() {
+		return buffers;
+	}
+
+	/**
+	 * Returns the buffer that was selected.
+	 *
+	 * @return the index of the buffer, or -1
+	 */
+	public int getSelected() {
+		return selected;
+	}
+
+	/**
+	 * Returns the file the session is kept in.
+	 *
+	 * @return the session file
+	 */
+	public static Path getDefaultPath() {
+		String file = System.getProperty(FILE_PROPERTY);
+		return file != null ? Path.of(file) : Path.of(System.getProperty("user.home"), ".zizi", "session");
+	}
+
+	/**
+	 * Reads a session.
+	 *
+	 * @param file the session file
+	 * @return the session, or {@code null} if there is none
+	 * @throws IOException if the file cannot be read or is damaged
+	 */
+	public static Session read(Path file) throws IOException {
+		ByteBuffer data;
+		try {
+			data = ByteBuffer.wrap(Files.readAllBytes(file));
+		} catch (NoSuchFileException ex) {
+			return null;
+		}
+		int limit = data.limit();
+		if (limit < 20 || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+			throw new IOException("Not a session file: " + file);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), 0, limit - 8);
+		if (crc.getValue() != data.getLong(limit - 8)) {
+			throw new IOException("Damaged session file: " + file);
+		}
+		data.position(8).limit(limit - 8);
+		int count = data.getInt();
+		int selected = data.getInt();
+		if (count < 0 || count > MAX_BUFFERS) {
+			throw new IOException("Damaged session file: " + file);
+		}
+		List<Buffer> buffers = new ArrayList<>(count);
+		int restoredSelected = -1;
+		for (int i = 0; i < count; i++) {
+			byte[] path = new byte[data.getShort() & 0xFFFF];
+			data.get(path);
+			int dot = data.getInt();
+			int mark = data.getInt();
+			int topOffset = data.getInt();
+			try {
+				if (i == selected) {
+					restoredSelected = buffers.size();
+				}
+				buffers.add(new Buffer(Path.of(new String(path, StandardCharsets.UTF_8)), dot, mark, topOffset));
+			} catch (InvalidPathException ex) {
+				// Written under another file name encoding, skip the file rather than the session
+				restoredSelected = i == selected ? -1 : restoredSelected;
+			}
+		}
+		return new Session(buffers, restoredSelected);
+	}
+
+	/**
+	 * Writes the session, replacing the file atomically where the file system allows it.
+	 *
+	 * @param file the session file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(Path file) throws IOException {
+		List<byte[]> paths = new ArrayList<>(buffers.size());
+		int size = 4 + 4 + 4 + 4 + 8;
+		for (Buffer buffer : buffers) {
+			byte[] path = buffer.path().toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+			if (path.length > 0xFFFF) {
+				throw new IOException("Path too long for the session file: " + buffer.path());
+			}
+			paths.add(path);
+			size += 2 + path.length + 4 + 4 + 4;
+		}
+		ByteBuffer data = ByteBuffer.allocate(size);
+		data.putInt(MAGIC).putInt(VERSION).putInt(buffers.size()).putInt(selected);
+		for (int i = 0; i < buffers.size(); i++) {
+			Buffer buffer = buffers.get(i);
+			data.putShort((short) paths.get(i).length).put(paths.get(i));
+			data.putInt(buffer.dot()).putInt(buffer.mark()).putInt(buffer.topOffset());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), 0, data.position());
+		data.putLong(crc.getValue());
+
+		Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temp, data.array());
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.TextSnapshot;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Encodes ranges of a snapshot into byte arrays the way {@link DocumentSaver} writes them, with
+ * every {@code \n} turned into the line separator of the file.
+ */
+final class SnapshotEncoder {
+	private final CharsetEncoder encoder;
+	private final String lineSeparator;
+
+	SnapshotEncoder(Charset charset, String lineSeparator) {
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.lineSeparator = lineSeparator;
+	}
+
+	/**
+	 * Encodes a range of characters.
+	 *
+	 * @param text the snapshot
+	 * @param from the first character
+	 * @param to   the end of the range
+	 * @return the encoded bytes
+	 */
+	byte[] encode(TextSnapshot text, int from, int to) throws CharacterCodingException {
+		char[] chars = new char[to - from];
+		text.getChars(from, chars.length, chars, 0);
+		int lines = 0;
+		if (!lineSeparator.equals("\n")) {
+			for (char c : chars) {
+				if (c == '\n') {
+					lines++;
+				}
+			}
+		}
+		CharBuffer in;
+		if (lines == 0) {
+			in = CharBuffer.wrap(chars);
+		} else {
+			char[] expanded = new char[chars.length + lines * (lineSeparator.length() - 1)];
+			int write = 0;
+			for (char c : chars) {
+				if (c == '\n') {
+					lineSeparator.getChars(0, lineSeparator.length(), expanded, write);
+					write += lineSeparator.length();
+				} else {
+					expanded[write++] = c;
+				}
+			}
+			in = CharBuffer.wrap(expanded);
+		}
+		ByteBuffer out = encoder.reset().encode(in);
+		return Arrays.copyOfRange(out.array(), out.arrayOffset() + out.position(), out.arrayOffset() + out.limit());
+	}
+}
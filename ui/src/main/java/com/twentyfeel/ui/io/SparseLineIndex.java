@@ -0,0 +1,189 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Line index of a {@link MappedFile} that is built in the background and only records the start
+ * of every {@value #INTERVAL}th line.
+ * <p>
+ * Locating any other line scans forward from the closest recorded line, which bounds both the
+ * memory of the index and the cost of a lookup. Lines become available as soon as the scanner has
+ * passed them, so a viewer can show the start of a file while the rest is still being indexed.
+ * </p>
+ */
+public class SparseLineIndex {
+	public static final int INTERVAL = 1024;
+	private static final int SCAN_CHUNK = 1 << 16;
+	private static final int COUNT_BLOCK = 1 << 12;
+
+	private final MappedFile file;
+	private volatile long[] checkpoints = new long[1024];
+	private volatile int checkpointCount = 1;
+	private volatile long scannedLines;
+	private volatile long scannedBytes;
+	private volatile boolean complete;
+	private volatile IOException error;
+	private volatile Thread scanner;
+
+	public SparseLineIndex(MappedFile file) {
+		this.file = file;
+		complete = file.size() == 0;
+	}
+
+	/**
+	 * Starts indexing on a background thread.
+	 *
+	 * @param progress called from the scanner thread after each chunk and when indexing ends or
+	 *                 fails, may be {@code null}
+	 */
+	public void start(Runnable progress) {
+		if (complete || scanner != null) {
+			return;
+		}
+		scanner = Thread.ofPlatform().daemon().name("zizi-line-index").priority(Thread.MIN_PRIORITY).start(() -> scan(progress));
+	}
+
+	/**
+	 * Stops a running scan. Lines indexed so far stay available.
+	 */
+	public void stop() {
+		Thread thread = scanner;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of lines whose start is known. Like a text document, a file with
+	 * {@code n} newlines has {@code n + 1} lines once indexing is complete.
+	 *
+	 * @return the known line count, at least 1
+	 */
+	public long getLineCount() {
+		return scannedLines + 1;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Returns the error that stopped indexing. Lines indexed before it stay available.
+	 *
+	 * @return the error, or {@code null}
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Returns the fraction of the file that has been indexed.
+	 *
+	 * @return a value between 0 and 1
+	 */
+	public double getProgress() {
+		long size = file.size();
+		return complete || size == 0 ? 1 : (double) scannedBytes / size;
+	}
+
+	/**
+	 * Returns the file position at which a line starts.
+	 *
+	 * @param line the zero-based line
+	 * @return the start position, or {@code -1} if the line has not been indexed yet
+	 * @throws IOException if the file cannot be read
+	 */
+	public long getLineStart(long line) throws IOException {
+		if (line < 0 || line >= getLineCount()) {
+			return -1;
+		}
+		int count = checkpointCount;
+		long[] points = checkpoints;
+		int index = (int) Math.min(line / INTERVAL, count - 1);
+		long position = points[index];
+		for (long current = (long) index * INTERVAL; current < line; current++) {
+			position = file.indexOf((byte) '\n', position, file.size()) + 1;
+		}
+		return position;
+	}
+
+	/**
+	 * Returns the position just past the content of a line, excluding its line terminator.
+	 *
+	 * @param lineStart the start position of the line
+	 * @return the end position
+	 * @throws IOException if the file cannot be read
+	 */
+	public long getLineEnd(long lineStart) throws IOException {
+		long newline = file.indexOf((byte) '\n', lineStart, file.size());
+		long end = newline < 0 ? file.size() : newline;
+		if (end > lineStart && file.get(end - 1) == '\r') {
+			end--;
+		}
+		return end;
+	}
+
+	private void scan(Runnable progress) {
+		ByteScanner kernel = ByteScanner.get();
+		byte[] chunk = new byte[SCAN_CHUNK];
+		long position = 0;
+		long lines = 0;
+		long size = file.size();
+		try {
+			while (position < size) {
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				int count = file.read(position, chunk, 0, chunk.length);
+				for (int from = 0; from < count; from += COUNT_BLOCK) {
+					int to = Math.min(count, from + COUNT_BLOCK);
+					int i = from;
+					while (true) {
+						int found = kernel.countLines(chunk, i, to);
+						long untilCheckpoint = INTERVAL - lines % INTERVAL;
+						if (found < untilCheckpoint) {
+							lines += found;
+							break;
+						}
+						// The next checkpoint is in this block, so walk its newlines up to it
+						for (long n = 0; n < untilCheckpoint; n++) {
+							i = kernel.indexOf(chunk, i, to, (byte) '\n') + 1;
+						}
+						lines += untilCheckpoint;
+						addCheckpoint(position + i);
+					}
+				}
+				position += count;
+				scannedLines = lines;
+				scannedBytes = position;
+				if (progress != null) {
+					progress.run();
+				}
+			}
+			complete = true;
+			if (progress != null) {
+				progress.run();
+			}
+		} catch (IOException ex) {
+			error = ex;
+			if (progress != null) {
+				progress.run();
+			}
+		} finally {
+			scanner = null;
+		}
+	}
+
+	private void addCheckpoint(long position) {
+		long[] points = checkpoints;
+		int count = checkpointCount;
+		if (count == points.length) {
+			points = Arrays.copyOf(points, count * 2);
+		}
+		points[count] = position;
+		checkpoints = points;
+		checkpointCount = count + 1;
+	}
+}
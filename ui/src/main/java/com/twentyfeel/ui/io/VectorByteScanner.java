@@ -0,0 +1,80 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Byte scanning kernel on the {@code jdk.incubator.vector} API. Each step compares a whole
+ * vector of bytes and tests or counts the resulting mask; the remainder that does not fill a
+ * vector is handled by the scalar kernel.
+ * <p>
+ * Only instantiated by {@link ByteScanner#get()} after it has checked that the incubator module
+ * is present.
+ * </p>
+ */
+final class VectorByteScanner extends ByteScanner {
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+	private static final int MIN_VECTOR_BYTES = 16;
+
+	private final ByteScanner tail = ScalarByteScanner.INSTANCE;
+
+	@Override
+	public String getName() {
+		return "vector " + SPECIES.vectorBitSize() + "-bit";
+	}
+
+	@Override
+	public boolean isAccelerated() {
+		return SPECIES.vectorByteSize() >= MIN_VECTOR_BYTES;
+	}
+
+	@Override
+	public int indexOf(byte[] bytes, int from, int to, byte value) {
+		int i = from;
+		for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+			VectorMask<Byte> matches = ByteVector.fromArray(SPECIES, bytes, i).eq(value);
+			if (matches.anyTrue()) {
+				return i + matches.firstTrue();
+			}
+		}
+		return tail.indexOf(bytes, i, to, value);
+	}
+
+	@Override
+	public int indexOfLineBreak(byte[] bytes, int from, int to) {
+		int i = from;
+		for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+			ByteVector vector = ByteVector.fromArray(SPECIES, bytes, i);
+			VectorMask<Byte> matches = vector.eq((byte) '\n').or(vector.eq((byte) '\r'));
+			if (matches.anyTrue()) {
+				return i + matches.firstTrue();
+			}
+		}
+		return tail.indexOfLineBreak(bytes, i, to);
+	}
+
+	@Override
+	public int countLines(byte[] bytes, int from, int to) {
+		int lines = 0;
+		int i = from;
+		for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+			lines += ByteVector.fromArray(SPECIES, bytes, i).eq((byte) '\n').trueCount();
+		}
+		return lines + tail.countLines(bytes, i, to);
+	}
+
+	@Override
+	public int asciiLength(byte[] bytes, int from, int to) {
+		int i = from;
+		for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+			// Bytes of 0x80 and above are negative
+			VectorMask<Byte> nonAscii = ByteVector.fromArray(SPECIES, bytes, i).lt((byte) 0);
+			if (nonAscii.anyTrue()) {
+				return i + nonAscii.firstTrue() - from;
+			}
+		}
+		return i - from + tail.asciiLength(bytes, i, to);
+	}
+}
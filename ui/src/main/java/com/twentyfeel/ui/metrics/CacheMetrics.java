@@ -0,0 +1,65 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit and miss counts of the caches of the editor since startup.
+ * <p>
+ * The counts are written by {@link FrameMetrics#dump(java.nio.file.Path)}.
+ * </p>
+ */
+public final class CacheMetrics {
+	/**
+	 * A counted cache.
+	 */
+	public enum Cache {
+		GLYPH_LAYOUT("Glyph layouts of text rows");
+
+		private final String description;
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+
+		Cache(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public void hit() {
+			hits.increment();
+		}
+
+		public void miss() {
+			misses.increment();
+		}
+
+		public long getHits() {
+			return hits.sum();
+		}
+
+		public long getMisses() {
+			return misses.sum();
+		}
+	}
+
+	private CacheMetrics() {
+	}
+
+	/**
+	 * Writes the counts of all caches.
+	 *
+	 * @param out where to write
+	 */
+	static void write(PrintWriter out) {
+		for (Cache cache : Cache.values()) {
+			long hits = cache.getHits();
+			long lookups = hits + cache.getMisses();
+			out.printf("%s: %d hits, %d misses, %s hit rate%n", cache.getDescription(), hits, cache.getMisses(),
+				lookups == 0 ? "no" : String.format("%.1f%%", 100.0 * hits / lookups));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.metrics;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paint and event dispatch timings of the editor.
+ * <p>
+ * Every {@link Probe} keeps a histogram of all durations since startup, which is written by
+ * {@link #dump(Path)}, and one of the durations since it was last drained, which feeds the
+ * status bar. Durations are recorded in nanoseconds.
+ * </p>
+ */
+public final class FrameMetrics {
+	private static final long HIGHEST_TRACKABLE_VALUE = TimeUnit.MINUTES.toNanos(1);
+	private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+	private static boolean installed;
+
+	/**
+	 * A timed section of the event dispatch thread.
+	 */
+	public enum Probe {
+		FRAME("Frame (paint of all dirty regions)"),
+		EVENT_DISPATCH("Event dispatch"),
+		TEXT_AREA("TextArea paint"),
+		TEXT_AREA_UI("TextArea UI delegate paint"),
+		LINE_NUMBERS("LineNumbers paint"),
+		FILE_VIEWER("FileViewer paint");
+
+		private final String description;
+		private final Histogram total = new Histogram(HIGHEST_TRACKABLE_VALUE);
+		private final Histogram recent = new Histogram(HIGHEST_TRACKABLE_VALUE);
+
+		Probe(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * Records the time elapsed since {@code start}.
+		 *
+		 * @param start the start of the section, from {@link System#nanoTime()}
+		 */
+		public void recordSince(long start) {
+			long duration = System.nanoTime() - start;
+			total.record(duration);
+			recent.record(duration);
+		}
+
+		public Histogram getTotal() {
+			return total;
+		}
+
+		/**
+		 * Returns the durations recorded since the previous call.
+		 *
+		 * @return the recent durations
+		 */
+		public Histogram drainRecent() {
+			return recent.drain();
+		}
+	}
+
+	private FrameMetrics() {
+	}
+
+	/**
+	 * Installs the repaint manager and event queue that time whole frames and event dispatch.
+	 * Must be called on the event dispatch thread; later calls do nothing.
+	 */
+	public static void install() {
+		if (installed) {
+			return;
+		}
+		installed = true;
+		RepaintManager.setCurrentManager(new TimingRepaintManager());
+		Toolkit.getDefaultToolkit().getSystemEventQueue().push(new TimingEventQueue());
+	}
+
+	/**
+	 * Formats a duration in nanoseconds as milliseconds for display.
+	 *
+	 * @param nanos the duration
+	 * @return the formatted duration
+	 */
+	public static String formatMillis(long nanos) {
+		return String.format("%.1f ms", nanos / NANOS_PER_MILLI);
+	}
+
+	/**
+	 * Writes the full histograms of all probes, in milliseconds, after the startup timings and
+	 * cache counts.
+	 *
+	 * @param file the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void dump(Path file) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+			out.printf("# Zizi frame metrics, %s, values in milliseconds%n", Instant.now());
+			out.println();
+			out.println("## Startup");
+			StartupMetrics.write(out);
+			out.println();
+			out.println("## Caches");
+			CacheMetrics.write(out);
+			for (Probe probe : Probe.values()) {
+				out.println();
+				out.printf("## %s%n", probe.getDescription());
+				probe.getTotal().write(out, NANOS_PER_MILLI);
+			}
+			if (out.checkError()) {
+				throw new IOException("Cannot write " + file);
+			}
+		}
+	}
+
+	private static final class TimingRepaintManager extends RepaintManager {
+		@Override
+		public void paintDirtyRegions() {
+			long start = System.nanoTime();
+			try {
+				super.paintDirtyRegions();
+			} finally {
+				Probe.FRAME.recordSince(start);
+			}
+		}
+	}
+
+	private static final class TimingEventQueue extends EventQueue {
+		@Override
+		protected void dispatchEvent(AWTEvent event) {
+			long start = System.nanoTime();
+			try {
+				super.dispatchEvent(event);
+			} finally {
+				Probe.EVENT_DISPATCH.recordSince(start);
+			}
+		}
+	}
+}
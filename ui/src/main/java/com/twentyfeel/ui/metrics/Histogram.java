@@ -0,0 +1,185 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets, in the style of
+ * HdrHistogram.
+ * <p>
+ * Values below {@code 2 * }{@value #SUB_BUCKET_COUNT} are counted exactly. Above that, every power
+ * of two is split into {@value #SUB_BUCKET_COUNT} equal sub-buckets, so any recorded value is
+ * reported with a relative error of at most about 3%. Recording is a single atomic increment and
+ * never blocks, which makes it safe to call from paint code on the event dispatch thread while
+ * another thread reads the histogram.
+ * </p>
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final double[] DUMP_PERCENTILES = {0, 10, 20, 30, 40, 50, 60, 70, 75, 80, 85, 90, 95, 97.5, 99, 99.5, 99.9, 99.99, 100};
+
+	private final long highestTrackableValue;
+	private final AtomicLongArray counts;
+	private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Creates a histogram. Larger values are recorded as the highest trackable value.
+	 *
+	 * @param highestTrackableValue the largest value that can be told apart
+	 */
+	public Histogram(long highestTrackableValue) {
+		if (highestTrackableValue < 1) {
+			throw new IllegalArgumentException("Highest trackable value must be positive: " + highestTrackableValue);
+		}
+		this.highestTrackableValue = highestTrackableValue;
+		this.counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+	}
+
+	public void record(long value) {
+		value = Math.max(0, Math.min(value, highestTrackableValue));
+		counts.incrementAndGet(indexOf(value));
+		max.accumulate(value);
+		sum.add(value);
+	}
+
+	public long getHighestTrackableValue() {
+		return highestTrackableValue;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * Returns the value at or below which the given percentage of recorded values fall, rounded
+	 * up to the bucket that holds it.
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the value, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = snapshot();
+		long count = 0;
+		for (long c : snapshot) {
+			count += c;
+		}
+		return valueAtPercentile(snapshot, count, percentile);
+	}
+
+	/**
+	 * Moves all recorded values into a new histogram and resets this one. Values recorded
+	 * concurrently end up in either histogram, never in neither.
+	 *
+	 * @return a histogram holding the values recorded since the last drain
+	 */
+	public Histogram drain() {
+		Histogram drained = new Histogram(highestTrackableValue);
+		for (int i = 0; i < counts.length(); i++) {
+			long count = counts.getAndSet(i, 0);
+			if (count != 0) {
+				drained.counts.set(i, count);
+			}
+		}
+		drained.max.accumulate(max.getThenReset());
+		drained.sum.add(sum.sumThenReset());
+		return drained;
+	}
+
+	/**
+	 * Writes the percentile distribution of the recorded values.
+	 *
+	 * @param out   the writer
+	 * @param scale the divisor that converts recorded values into the printed unit
+	 */
+	public void write(PrintWriter out, double scale) {
+		long[] snapshot = snapshot();
+		long count = 0;
+		for (long c : snapshot) {
+			count += c;
+		}
+		out.printf("count=%d mean=%.3f max=%.3f%n", count, getMean() / scale, getMax() / scale);
+		if (count == 0) {
+			return;
+		}
+		out.printf("%12s %12s %12s%n", "Value", "Percentile", "TotalCount");
+		for (double percentile : DUMP_PERCENTILES) {
+			long value = valueAtPercentile(snapshot, count, percentile);
+			out.printf("%12.3f %12.4f %12d%n", value / scale, percentile / 100, countAtOrBelow(snapshot, value));
+		}
+		out.printf("%12s %12s %12s%n", "BucketFrom", "BucketTo", "Count");
+		for (int i = 0; i < snapshot.length; i++) {
+			if (snapshot[i] != 0) {
+				out.printf("%12.3f %12.3f %12d%n", lowestEquivalentValue(i) / scale, highestEquivalentValue(i) / scale, snapshot[i]);
+			}
+		}
+	}
+
+	private long[] snapshot() {
+		long[] snapshot = new long[counts.length()];
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return snapshot;
+	}
+
+	private long valueAtPercentile(long[] snapshot, long count, double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return Math.min(highestEquivalentValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	private static long countAtOrBelow(long[] snapshot, long value) {
+		long count = 0;
+		for (int i = 0; i <= indexOf(value) && i < snapshot.length; i++) {
+			count += snapshot[i];
+		}
+		return count;
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+	}
+
+	private static long lowestEquivalentValue(int index) {
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		if (shift < 0) {
+			return index;
+		}
+		return (long) ((index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT) << shift;
+	}
+
+	private static long highestEquivalentValue(int index) {
+		return lowestEquivalentValue(index + 1) - 1;
+	}
+}
@@ -0,0 +1,82 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.metrics;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Timings of the startup of the editor, measured from the start of {@code main}.
+ * <p>
+ * Each {@link Milestone} is recorded once, the first time it is reached; later calls are
+ * ignored. The time the JVM took before {@code main} is recorded separately, since it does not
+ * depend on the editor. The timings are written by {@link FrameMetrics#dump(java.nio.file.Path)}.
+ * </p>
+ */
+public final class StartupMetrics {
+	private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+	private static volatile long start;
+	private static volatile long jvmMillis = -1;
+
+	/**
+	 * A point of the startup.
+	 */
+	public enum Milestone {
+		WINDOW_SHOWN("Window shown"),
+		FIRST_PAINT("First paint of the editor"),
+		VISIBLE_BUFFER_LOADED("Visible buffer loaded");
+
+		private final String description;
+		private volatile long elapsed = -1;
+
+		Milestone(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * Records that this milestone was reached, unless it was already.
+		 */
+		public void reach() {
+			if (elapsed < 0 && start != 0) {
+				elapsed = System.nanoTime() - start;
+			}
+		}
+
+		/**
+		 * Returns the time from the start of {@code main} to this milestone.
+		 *
+		 * @return the time in nanoseconds, or -1 if the milestone was not reached
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+	}
+
+	private StartupMetrics() {
+	}
+
+	/**
+	 * Starts the clock. Must be called first thing in {@code main}.
+	 */
+	public static void begin() {
+		start = System.nanoTime();
+		jvmMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+	}
+
+	/**
+	 * Writes the milestones reached, in milliseconds.
+	 *
+	 * @param out where to write
+	 */
+	static void write(PrintWriter out) {
+		out.printf("JVM start to main: %d%n", jvmMillis);
+		for (Milestone milestone : Milestone.values()) {
+			long elapsed = milestone.getElapsed();
+			out.printf("%s: %s%n", milestone.getDescription(), elapsed < 0 ? "not reached" : String.format("%.3f", elapsed / NANOS_PER_MILLI));
+		}
+	}
+}
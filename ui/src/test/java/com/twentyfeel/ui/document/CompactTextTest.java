@@ -0,0 +1,116 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.Segment;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link CompactText} read back against a {@link String}, over blocks that were narrowed to
+ * Latin-1 and blocks that stayed wide, joined texts, and compressed blocks that inflate on read.
+ */
+class CompactTextTest {
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	@Test
+	void narrowsLatin1BlocksOnly() {
+		String text = mixedBlocks(new Random(33));
+		CompactText compact = CompactText.compact(text.toCharArray(), text.length());
+		assertReads(text, compact, new Random(34));
+
+		// Block 1, block 4 and the last one hold characters above U+00FF and take two bytes each
+		long wideLength = 2L * BLOCK_SIZE + 1234;
+		assertEquals(text.length() + wideLength, compact.getStorageSize());
+	}
+
+	@Test
+	void joinsTextsWithoutChangingThem() {
+		Random random = new Random(35);
+		String latin1 = PieceTableContentTest.randomText(random, 70_000);
+		// An adopted buffer may be longer than the text it holds
+		byte[] bytes = Arrays.copyOf(latin1.getBytes(StandardCharsets.ISO_8859_1), latin1.length() + 100);
+		String wide = "€ and 😀 ".repeat(5_000);
+		String mixed = mixedBlocks(random);
+		CompactText joined = CompactText.concat(
+			CompactText.ofLatin1(bytes, latin1.length()),
+			CompactText.empty(),
+			CompactText.ofChars((wide + "unused").toCharArray(), wide.length()),
+			CompactText.compact(mixed.toCharArray(), mixed.length()));
+		assertReads(latin1 + wide + mixed, joined, random);
+		assertEquals(0, CompactText.concat().length());
+	}
+
+	@Test
+	void compressedBlocksReadTheSame() {
+		Random random = new Random(36);
+		String text = mixedBlocks(random);
+		CompactText compact = CompactText.compact(text.toCharArray(), text.length());
+		long before = compact.getStorageSize();
+		long saved = compact.compress();
+		assertTrue(saved > 0);
+		assertEquals(before - saved, compact.getStorageSize());
+		assertEquals(0, compact.compress());
+
+		// Blocks inflate as they are read, a few at a time or all at once
+		assertReads(text, compact, random);
+		assertEquals(before, compact.getStorageSize());
+
+		String latin1 = PieceTableContentTest.randomText(random, 3 * BLOCK_SIZE);
+		byte[] bytes = Arrays.copyOf(latin1.getBytes(StandardCharsets.ISO_8859_1), latin1.length() + 7);
+		CompactText adopted = CompactText.ofLatin1(bytes, latin1.length());
+		adopted.compress();
+		assertReads(latin1, adopted, random);
+	}
+
+	/**
+	 * Text of several blocks: Latin-1 ones, one with a character above {@code U+00FF}, and a
+	 * surrogate pair split by a block boundary that keeps two blocks wide, the last one short.
+	 */
+	private static String mixedBlocks(Random random) {
+		StringBuilder text = new StringBuilder(PieceTableContentTest.randomText(random, 5 * BLOCK_SIZE + 1234));
+		text.setCharAt(BLOCK_SIZE + 500, '€');
+		text.replace(5 * BLOCK_SIZE - 1, 5 * BLOCK_SIZE + 1, "😀");
+		text.setCharAt(2 * BLOCK_SIZE, 'ÿ');
+		return text.toString();
+	}
+
+	/**
+	 * Reads the text in ranges across block boundaries and in random ranges, by copying and
+	 * through segments.
+	 */
+	private static void assertReads(String expected, CompactText text, Random random) {
+		assertEquals(expected.length(), text.length());
+		for (int i = 0; i < 300; i++) {
+			int where;
+			if (i % 3 == 0) {
+				// Around a block boundary
+				int boundary = BLOCK_SIZE * (1 + random.nextInt(Math.max(1, expected.length() / BLOCK_SIZE)));
+				where = Math.max(0, Math.min(expected.length(), boundary - random.nextInt(100)));
+			} else {
+				where = random.nextInt(expected.length() + 1);
+			}
+			int len = random.nextInt(Math.min(expected.length() - where, 3 * BLOCK_SIZE) + 1);
+			char[] chars = new char[len + 2];
+			text.getChars(where, len, chars, 1);
+			assertEquals(expected.substring(where, where + len), new String(chars, 1, len), "chars at " + where);
+		}
+		char[] all = new char[expected.length()];
+		text.getChars(0, all.length, all, 0);
+		assertEquals(expected, new String(all));
+
+		StringBuilder segments = new StringBuilder();
+		Segment segment = new Segment();
+		while (segments.length() < expected.length()) {
+			int count = text.getSegment(segments.length(), expected.length() - segments.length(), segment);
+			assertTrue(count > 0);
+			segments.append(segment.array, segment.offset, segment.count);
+		}
+		assertEquals(expected, segments.toString());
+	}
+}
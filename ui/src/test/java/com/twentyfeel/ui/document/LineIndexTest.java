@@ -0,0 +1,109 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The {@link LineIndex} of an {@link EditorDocument} under random edits, checked against the line
+ * starts of the text and the line elements of the document.
+ */
+class LineIndexTest {
+	@Test
+	void followsRandomEdits() throws BadLocationException {
+		Random random = new Random(5);
+		EditorDocument document = new EditorDocument();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 3_000; i++) {
+			int length = expected.length();
+			if (random.nextInt(3) > 0 || length == 0) {
+				int where = random.nextInt(length + 1);
+				String text = PieceTableContentTest.randomText(random, 1 + random.nextInt(40));
+				document.insertString(where, text, null);
+				expected.insert(where, text);
+			} else {
+				int where = random.nextInt(length);
+				int count = Math.min(length - where, 1 + random.nextInt(60));
+				document.remove(where, count);
+				expected.delete(where, where + count);
+			}
+			if (i % 50 == 0) {
+				assertMatches(expected, document);
+			}
+		}
+		assertMatches(expected, document);
+	}
+
+	@Test
+	void matchesADocumentBuiltFromLineLengths() throws BadLocationException {
+		String text = "first\n\nthird line\nlast";
+		int[] lengths = {6, 1, 11, 5};
+		EditorDocument document = new EditorDocument(CompactText.ofChars(text.toCharArray(), text.length()), lengths, lengths.length);
+		assertMatches(new StringBuilder(text), document);
+
+		document.insertString(7, "second\n", null);
+		document.remove(0, 3);
+		assertMatches(new StringBuilder("st\n\nsecond\nthird line\nlast"), document);
+	}
+
+	@Test
+	void splicesLines() {
+		LineIndex index = new LineIndex();
+		index.reset(new int[]{3, 4, 5}, 3);
+		index.insertLines(1, new int[]{10, 20}, 2);
+		assertLengths(index, 3, 10, 20, 4, 5);
+		index.removeLines(2, 2);
+		assertLengths(index, 3, 10, 5);
+		index.setLength(2, 7);
+		assertLengths(index, 3, 10, 7);
+		index.insertLines(3, new int[]{1}, 1);
+		assertLengths(index, 3, 10, 7, 1);
+		assertEquals(21, index.getLength());
+		assertEquals(2, index.getLineOfOffset(13));
+		assertEquals(3, index.getLineOfOffset(100));
+		assertThrows(IndexOutOfBoundsException.class, () -> index.getLineStartOffset(4));
+	}
+
+	private static void assertMatches(CharSequence text, EditorDocument document) {
+		LineIndex index = document.getLineIndex();
+		List<Integer> starts = new ArrayList<>();
+		starts.add(0);
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				starts.add(i + 1);
+			}
+		}
+		Element root = document.getDefaultRootElement();
+		assertEquals(starts.size(), index.getLineCount());
+		assertEquals(root.getElementCount(), index.getLineCount());
+		// The implied trailing newline belongs to the last line
+		assertEquals(text.length() + 1, index.getLength());
+		for (int line = 0; line < starts.size(); line++) {
+			int start = starts.get(line);
+			int end = line + 1 < starts.size() ? starts.get(line + 1) : text.length() + 1;
+			assertEquals(start, index.getLineStartOffset(line), "start of line " + line);
+			assertEquals(end, index.getLineEndOffset(line), "end of line " + line);
+			assertEquals(root.getElement(line).getStartOffset(), index.getLineStartOffset(line));
+			assertEquals(line, index.getLineOfOffset(start));
+			assertEquals(line, index.getLineOfOffset(end - 1));
+		}
+	}
+
+	private static void assertLengths(LineIndex index, int... lengths) {
+		assertEquals(lengths.length, index.getLineCount());
+		int start = 0;
+		for (int line = 0; line < lengths.length; line++) {
+			assertEquals(lengths[line], index.getLineLength(line));
+			assertEquals(start, index.getLineStartOffset(line));
+			start += lengths[line];
+		}
+	}
+}
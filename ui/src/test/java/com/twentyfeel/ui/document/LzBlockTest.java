@@ -0,0 +1,58 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips through {@link LzBlock}, and blocks that must be rejected as damaged.
+ */
+class LzBlockTest {
+	@Test
+	void roundTripsAllKindsOfInput() {
+		Random random = new Random(6);
+		byte[] noise = new byte[100_000];
+		random.nextBytes(noise);
+		byte[] log = "2024-01-01 INFO request completed in 12 ms\n".repeat(5_000).getBytes(StandardCharsets.US_ASCII);
+		byte[] run = new byte[70_000];
+		Arrays.fill(run, (byte) 'x');
+		byte[] mixed = new byte[200_000];
+		for (int i = 0; i < mixed.length; i++) {
+			// Matches at all distances, some beyond the 64K window
+			mixed[i] = random.nextInt(4) == 0 ? (byte) random.nextInt(256) : mixed[Math.max(0, i - 1 - random.nextInt(Math.min(i + 1, 80_000)))];
+		}
+		for (byte[] bytes : new byte[][]{new byte[0], {1}, "abcdabcdabcd".getBytes(StandardCharsets.US_ASCII), noise, log, run, mixed}) {
+			assertRoundTrip(bytes, 0, bytes.length);
+		}
+		assertRoundTrip(log, 1000, 20_000);
+		assertTrue(LzBlock.compress(log, 0, log.length).length < log.length / 10);
+	}
+
+	@Test
+	void rejectsDamagedBlocks() {
+		byte[] text = "the quick brown fox jumps over the lazy dog, the quick brown fox again\n".repeat(100).getBytes(StandardCharsets.US_ASCII);
+		byte[] block = LzBlock.compress(text, 0, text.length);
+
+		assertThrows(IllegalArgumentException.class, () -> LzBlock.decompress(Arrays.copyOf(block, block.length - 3), new byte[text.length]));
+		assertThrows(IllegalArgumentException.class, () -> LzBlock.decompress(block, new byte[text.length - 1]));
+		assertThrows(IllegalArgumentException.class, () -> LzBlock.decompress(block, new byte[text.length + 1]));
+		// A match before the start of the output
+		assertThrows(IllegalArgumentException.class, () -> LzBlock.decompress(new byte[]{0x10, 'a', 5, 0, 0x00}, new byte[10]));
+		// A match at distance 0
+		assertThrows(IllegalArgumentException.class, () -> LzBlock.decompress(new byte[]{0x10, 'a', 0, 0, 0x00}, new byte[10]));
+	}
+
+	private static void assertRoundTrip(byte[] bytes, int offset, int length) {
+		byte[] block = LzBlock.compress(bytes, offset, length);
+		byte[] restored = new byte[length];
+		LzBlock.decompress(block, restored);
+		assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + length), restored);
+	}
+}
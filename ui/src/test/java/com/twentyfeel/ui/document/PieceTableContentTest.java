@@ -0,0 +1,221 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.document;
+
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Random edits of a {@link PieceTableContent} checked against a {@link StringBuilder}, with
+ * positions checked against offsets shifted by hand.
+ */
+class PieceTableContentTest {
+	private static final int EDITS = 5_000;
+
+	@Test
+	void randomEditsMatchStringBuilder() throws BadLocationException {
+		Random random = new Random(1);
+		String loaded = randomText(random, 10_000);
+		PieceTableContent content = new PieceTableContent(loaded.toCharArray(), loaded.length());
+		StringBuilder expected = new StringBuilder(loaded).append('\n');
+		List<Position> positions = new ArrayList<>();
+		List<Integer> offsets = new ArrayList<>();
+
+		for (int i = 0; i < EDITS; i++) {
+			int length = expected.length() - 1;
+			if (random.nextInt(3) > 0 || length == 0) {
+				int where = random.nextInt(length + 1);
+				String text = randomText(random, 1 + random.nextInt(20));
+				content.insertString(where, text);
+				expected.insert(where, text);
+				for (int j = 0; j < offsets.size(); j++) {
+					// Marks at the insertion point move with the text, except at the start
+					if (offsets.get(j) >= Math.max(where, 1)) {
+						offsets.set(j, offsets.get(j) + text.length());
+					}
+				}
+			} else {
+				int where = random.nextInt(length);
+				int count = Math.min(length - where, 1 + random.nextInt(30));
+				content.remove(where, count);
+				expected.delete(where, where + count);
+				for (int j = 0; j < offsets.size(); j++) {
+					int offset = offsets.get(j);
+					offsets.set(j, offset > where + count ? offset - count : Math.min(offset, where));
+				}
+			}
+			if (i % 10 == 0) {
+				int offset = random.nextInt(expected.length());
+				positions.add(content.createPosition(offset));
+				offsets.add(offset);
+			}
+			if (i % 100 == 0) {
+				assertContent(expected, content);
+				assertPositions(offsets, positions);
+			}
+		}
+		assertContent(expected, content);
+		assertPositions(offsets, positions);
+	}
+
+	@Test
+	void undoAndRedoRestoreTextAndPositions() throws BadLocationException {
+		Random random = new Random(2);
+		PieceTableContent content = new PieceTableContent();
+		List<UndoableEdit> edits = new ArrayList<>();
+		List<String> states = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			states.add(content.getString(0, content.length()));
+			int length = content.length() - 1;
+			if (random.nextBoolean() || length == 0) {
+				edits.add(content.insertString(random.nextInt(length + 1), randomText(random, 1 + random.nextInt(10))));
+			} else {
+				int where = random.nextInt(length);
+				edits.add(content.remove(where, Math.min(length - where, 1 + random.nextInt(10))));
+			}
+		}
+		String last = content.getString(0, content.length());
+		for (int i = edits.size() - 1; i >= 0; i--) {
+			edits.get(i).undo();
+			assertEquals(states.get(i), content.getString(0, content.length()));
+		}
+		for (UndoableEdit edit : edits) {
+			edit.redo();
+		}
+		assertEquals(last, content.getString(0, content.length()));
+
+		content = new PieceTableContent("abcdef".toCharArray(), 6);
+		Position inside = content.createPosition(3);
+		UndoableEdit remove = content.remove(1, 4);
+		assertEquals(1, inside.getOffset());
+		remove.undo();
+		assertEquals(3, inside.getOffset());
+	}
+
+	@Test
+	void positionsAtTheSameOffsetAreShared() throws BadLocationException {
+		PieceTableContent content = new PieceTableContent("hello".toCharArray(), 5);
+		assertSame(content.createPosition(2), content.createPosition(2));
+		Position start = content.createPosition(0);
+		content.insertString(0, "say ");
+		assertEquals(0, start.getOffset());
+	}
+
+	@Test
+	void snapshotsAreNotChangedByLaterEdits() throws BadLocationException {
+		Random random = new Random(3);
+		PieceTableContent content = new PieceTableContent();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			String text = randomText(random, 50);
+			int where = random.nextInt(expected.length() + 1);
+			content.insertString(where, text);
+			expected.insert(where, text);
+		}
+		TextSnapshot snapshot = content.snapshot(expected.length());
+		String before = expected.toString();
+		content.remove(10, 500);
+		content.insertString(0, "changed");
+		assertEquals(before, read(snapshot));
+	}
+
+	@Test
+	void compactionKeepsTextPositionsAndSnapshots() throws BadLocationException {
+		Random random = new Random(4);
+		String loaded = randomText(random, 5_000);
+		PieceTableContent content = new PieceTableContent(loaded.toCharArray(), loaded.length());
+		StringBuilder expected = new StringBuilder(loaded).append('\n');
+		for (int i = 0; i < 300; i++) {
+			int where = random.nextInt(expected.length());
+			String text = randomText(random, 5);
+			content.insertString(where, text);
+			expected.insert(where, text);
+		}
+		Position position = content.createPosition(1234);
+		TextSnapshot snapshot = content.snapshot(content.length() - 1);
+		String before = read(snapshot);
+
+		content.compact();
+		assertEquals(2, content.getPieceCount());
+		assertContent(expected, content);
+		assertEquals(1234, position.getOffset());
+		assertEquals(before, read(snapshot));
+		// The same places of the new buffers hold other text
+		TextSnapshot compacted = content.snapshot(content.length() - 1);
+		assertNull(compacted.differences(snapshot));
+		assertNull(compacted.origins(snapshot));
+
+		content.insertString(0, "x");
+		expected.insert(0, "x");
+		assertContent(expected, content);
+		assertEquals(1235, position.getOffset());
+		assertArrayEquals(new int[]{-1, 1, 0, compacted.length()}, content.snapshot(content.length() - 1).origins(compacted));
+	}
+
+	@Test
+	void compressedTextReadsTheSame() throws BadLocationException {
+		String loaded = "line of a log file that repeats\n".repeat(10_000);
+		PieceTableContent content = new PieceTableContent(CompactText.ofLatin1(loaded.getBytes(StandardCharsets.ISO_8859_1), loaded.length()));
+		content.insertString(100, "typed");
+		String expected = content.getString(0, content.length());
+		long before = content.getStorageSize();
+		long saved = content.compressOriginal();
+		assertTrue(saved > 0);
+		assertEquals(before - saved, content.getStorageSize());
+		assertEquals(expected, content.getString(0, content.length()));
+	}
+
+	@Test
+	void rejectsEditsOutsideTheText() {
+		PieceTableContent content = new PieceTableContent("abc".toCharArray(), 3);
+		assertThrows(BadLocationException.class, () -> content.insertString(5, "x"));
+		assertThrows(BadLocationException.class, () -> content.remove(2, 2));
+		assertThrows(BadLocationException.class, () -> content.getChars(2, 3, new Segment()));
+	}
+
+	private static void assertContent(CharSequence expected, PieceTableContent content) throws BadLocationException {
+		assertEquals(expected.length(), content.length());
+		assertEquals(expected.toString(), content.getString(0, content.length()));
+		// Reads that start and end inside pieces
+		for (int i = 0; i + 7 <= expected.length(); i += expected.length() / 13 + 1) {
+			Segment segment = new Segment();
+			content.getChars(i, 7, segment);
+			assertEquals(expected.subSequence(i, i + 7).toString(), segment.toString());
+		}
+	}
+
+	private static void assertPositions(List<Integer> offsets, List<Position> positions) {
+		for (int i = 0; i < offsets.size(); i++) {
+			assertEquals(offsets.get(i), positions.get(i).getOffset(), "position " + i);
+		}
+	}
+
+	private static String read(TextSnapshot snapshot) {
+		char[] chars = new char[snapshot.length()];
+		snapshot.getChars(0, chars.length, chars, 0);
+		return new String(chars);
+	}
+
+	static String randomText(Random random, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			int kind = random.nextInt(20);
+			chars[i] = kind == 0 ? '\n' : kind == 1 ? 'é' : (char) ('a' + random.nextInt(26));
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,89 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The vector kernel of {@link ByteScanner} checked against the scalar one on random bytes, over
+ * ranges of every length and alignment, so that both the vector loop and the scalar tail run.
+ */
+class ByteScannerTest {
+	private static final byte[] ALPHABET = {'a', 'b', ' ', '\n', '\r', 0, 0x7F, (byte) 0x80, (byte) 0xC3, (byte) 0xFF};
+
+	private final ByteScanner scalar = ByteScanner.scalar();
+	private final ByteScanner vector = new VectorByteScanner();
+
+	@Test
+	void vectorKernelMatchesScalarKernel() {
+		Random random = new Random(30);
+		for (int round = 0; round < 5_000; round++) {
+			byte[] bytes = bytes(random, random.nextInt(round < 4_000 ? 300 : 5_000));
+			int from = random.nextInt(bytes.length + 1);
+			int to = from + random.nextInt(bytes.length - from + 1);
+			String range = "[" + from + ", " + to + ") of " + bytes.length;
+			byte value = ALPHABET[random.nextInt(ALPHABET.length)];
+			assertEquals(scalar.indexOf(bytes, from, to, value), vector.indexOf(bytes, from, to, value), "indexOf " + value + " " + range);
+			assertEquals(scalar.indexOfLineBreak(bytes, from, to), vector.indexOfLineBreak(bytes, from, to), "indexOfLineBreak " + range);
+			assertEquals(scalar.countLines(bytes, from, to), vector.countLines(bytes, from, to), "countLines " + range);
+			assertEquals(scalar.asciiLength(bytes, from, to), vector.asciiLength(bytes, from, to), "asciiLength " + range);
+		}
+	}
+
+	@Test
+	void scalarKernelMatchesALoop() {
+		Random random = new Random(31);
+		for (int round = 0; round < 2_000; round++) {
+			byte[] bytes = bytes(random, random.nextInt(200));
+			int from = random.nextInt(bytes.length + 1);
+			int to = from + random.nextInt(bytes.length - from + 1);
+			int lines = 0;
+			int lineBreak = -1;
+			int ascii = -1;
+			for (int i = to - 1; i >= from; i--) {
+				lines += bytes[i] == '\n' ? 1 : 0;
+				lineBreak = bytes[i] == '\n' || bytes[i] == '\r' ? i : lineBreak;
+				ascii = bytes[i] < 0 ? i : ascii;
+			}
+			assertEquals(lines, scalar.countLines(bytes, from, to));
+			assertEquals(lineBreak, scalar.indexOfLineBreak(bytes, from, to));
+			assertEquals((ascii < 0 ? to : ascii) - from, scalar.asciiLength(bytes, from, to));
+		}
+	}
+
+	@Test
+	void scansDirectBuffersThroughWindows() {
+		Random random = new Random(32);
+		for (int round = 0; round < 50; round++) {
+			// Longer than the window the buffer is copied through
+			byte[] bytes = bytes(random, random.nextInt(40_000));
+			ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+			int from = random.nextInt(bytes.length + 1);
+			int to = from + random.nextInt(bytes.length - from + 1);
+			buffer.limit(to).position(from);
+			for (ByteScanner kernel : new ByteScanner[]{scalar, vector}) {
+				assertEquals(scalar.countLines(bytes, from, to), kernel.countLines(buffer));
+				assertEquals(scalar.indexOfLineBreak(bytes, from, to), kernel.indexOfLineBreak(buffer));
+				assertEquals(scalar.asciiLength(bytes, from, to), kernel.asciiLength(buffer));
+				assertEquals(from, buffer.position());
+			}
+		}
+	}
+
+	/**
+	 * Random bytes, some arrays with the rare bytes far apart so that long runs are scanned
+	 * without a match.
+	 */
+	private static byte[] bytes(Random random, int length) {
+		byte[] bytes = new byte[length];
+		boolean sparse = random.nextBoolean();
+		for (int i = 0; i < length; i++) {
+			bytes[i] = sparse && random.nextInt(500) > 0 ? (byte) ('a' + random.nextInt(26)) : ALPHABET[random.nextInt(ALPHABET.length)];
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,133 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.EditorDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Files loaded by a {@link DocumentLoader} whose appends run right away on the reading thread.
+ */
+class DocumentLoaderTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	void loadsGzipFilesWithAndWithoutACachedIndex() throws Exception {
+		byte[] text = GzipDecoderTest.logText(new Random(12), 12_000_000);
+		Path path = directory.resolve("log.gz");
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(path))) {
+			out.write(text);
+		}
+		String expected = new String(text, StandardCharsets.US_ASCII);
+
+		DocumentLoader first = load(path, StandardCharsets.UTF_8);
+		assertTrue(first.isCompressed());
+		assertEquals(expected, read(first.getDocument()));
+		GzipIndex index = first.getGzipIndex();
+		assertNotNull(index);
+		assertTrue(index.getSeekPointCount() > 1);
+		assertNull(first.getDiskImage());
+
+		DocumentLoader second = load(path, StandardCharsets.UTF_8);
+		assertSame(index, second.getGzipIndex());
+		assertEquals(expected, read(second.getDocument()));
+	}
+
+	@Test
+	void anchorsStreamedFilesInCharsetsWithoutState() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		Random random = new Random(23);
+		while (builder.length() < 4_000_000) {
+			builder.append("Zeile ").append(random.nextInt()).append(random.nextInt(5) == 0 ? " äöü\r" : "\r\n");
+		}
+		String text = builder.toString();
+		String expected = text.replace("\r\n", "\n").replace('\r', '\n');
+		for (Charset charset : new Charset[]{StandardCharsets.UTF_8, Charset.forName("windows-1252"), StandardCharsets.UTF_16}) {
+			Path path = directory.resolve(charset.name() + ".txt");
+			byte[] bytes = text.getBytes(charset);
+			Files.write(path, bytes);
+			DocumentLoader loader = load(path, charset);
+			assertEquals(expected, read(loader.getDocument()));
+
+			DiskImage image = loader.getDiskImage();
+			int anchors = image.floorAnchor(Integer.MAX_VALUE) + 1;
+			assertTrue(charset == StandardCharsets.UTF_16 ? anchors == 1 : anchors > 3, charset + " anchors " + anchors);
+			for (int i = 0; i < anchors; i++) {
+				// The bytes at every anchor decode to the text at its character
+				int at = image.getAnchorChar(i);
+				int byteOffset = (int) image.getAnchorByte(i);
+				String decoded = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.decode(ByteBuffer.wrap(bytes, byteOffset, Math.min(64, bytes.length - byteOffset))).toString();
+				String normalized = decoded.replace("\r\n", "\n").replace('\r', '\n');
+				int length = Math.min(16, expected.length() - at);
+				assertEquals(expected.substring(at, at + length), normalized.substring(0, length), charset + " anchor " + i);
+			}
+		}
+	}
+
+	@Test
+	void leavesTheIncompleteEndOfAFollowedFile() throws Exception {
+		byte[] euro = "€".getBytes(StandardCharsets.UTF_8);
+		// Small files are streamed, large ones decoded in parallel
+		for (String start : new String[]{"first line\r\nsecond ", "a line of text\n".repeat(1_200_000)}) {
+			byte[] complete = (start + "ä").getBytes(StandardCharsets.UTF_8);
+			for (byte[] end : new byte[][]{{}, {'\r'}, Arrays.copyOf(euro, 1), Arrays.copyOf(euro, 2)}) {
+				Path path = directory.resolve("growing.log");
+				Files.write(path, concat(complete, end));
+				DocumentLoader loader = load(path, StandardCharsets.UTF_8, true);
+				assertEquals(start.replace("\r\n", "\n") + "ä", read(loader.getDocument()));
+				assertEquals(complete.length, loader.getTextBytes());
+			}
+		}
+	}
+
+	static DocumentLoader load(Path path, Charset charset) throws InterruptedException {
+		return load(path, charset, false);
+	}
+
+	static DocumentLoader load(Path path, Charset charset, boolean following) throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(1);
+		DocumentLoader loader = new DocumentLoader(path, new EditorDocument(), charset, Runnable::run);
+		loader.setFollowing(following);
+		loader.start(() -> {
+			if (loader.isDone()) {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(1, TimeUnit.MINUTES));
+		assertNull(loader.getError());
+		return loader;
+	}
+
+	static String read(Document document) throws BadLocationException {
+		return document.getText(0, document.getLength());
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, bytes, first.length, second.length);
+		return bytes;
+	}
+}
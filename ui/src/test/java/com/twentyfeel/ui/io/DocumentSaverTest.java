@@ -0,0 +1,179 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.io.DocumentSaver.Durability;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Files written by a {@link DocumentSaver} through a temporary file and a rename, checked against
+ * the encoded text and loaded back with a {@link DocumentLoader}, with line separators and
+ * surrogate pairs at the chunk boundaries of the encoder.
+ */
+class DocumentSaverTest {
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int ANCHOR_INTERVAL = 1 << 20;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void replacesTheFileByRenaming() throws Exception {
+		Path path = directory.resolve("notes.txt");
+		String text = text(new Random(27), 200_000);
+		DocumentSaver saver = save(path, text, StandardCharsets.UTF_8, "\n");
+		assertFalse(saver.isInPlace());
+		assertSaved(path, text, StandardCharsets.UTF_8, "\n");
+
+		// An existing file without a baseline is replaced as a whole
+		String changed = "changed\n" + text;
+		saver = save(path, changed, StandardCharsets.UTF_8, "\n");
+		assertFalse(saver.isInPlace());
+		assertSaved(path, changed, StandardCharsets.UTF_8, "\n");
+		assertEquals(Files.size(path), saver.getDiskImage().getSize());
+		assertEquals(Files.getLastModifiedTime(path), saver.getDiskImage().getLastModified());
+		assertEquals(List.of(path), files());
+	}
+
+	@Test
+	void expandsLineSeparatorsAcrossChunks() throws Exception {
+		Path path = directory.resolve("windows.txt");
+		StringBuilder builder = new StringBuilder("x".repeat(3 * CHUNK_SIZE + 10));
+		// Newlines right before, at and after every chunk boundary, and a run of them across one
+		for (int chunk = 1; chunk <= 3; chunk++) {
+			builder.setCharAt(chunk * CHUNK_SIZE - 1, '\n');
+			builder.setCharAt(chunk * CHUNK_SIZE, '\n');
+			builder.setCharAt(chunk * CHUNK_SIZE + 1, '\n');
+		}
+		builder.replace(2 * CHUNK_SIZE - 8, 2 * CHUNK_SIZE + 8, "\n".repeat(16));
+		String text = builder.toString();
+		save(path, text, StandardCharsets.UTF_8, "\r\n");
+		DocumentLoader loader = assertSaved(path, text, StandardCharsets.UTF_8, "\r\n");
+		assertEquals("\r\n", loader.getDocument().getProperty(DefaultEditorKit.EndOfLineStringProperty));
+	}
+
+	@Test
+	void keepsSurrogatePairsSplitByChunks() throws Exception {
+		Path path = directory.resolve("emoji.txt");
+		StringBuilder builder = new StringBuilder("é".repeat(3 * CHUNK_SIZE + 10));
+		// The high surrogate ends one chunk and the low one starts the next
+		for (int chunk = 1; chunk <= 3; chunk++) {
+			builder.replace(chunk * CHUNK_SIZE - 1, chunk * CHUNK_SIZE + 1, "😀");
+		}
+		String text = builder.toString();
+		for (Charset charset : new Charset[]{StandardCharsets.UTF_8, StandardCharsets.UTF_16LE}) {
+			save(path, text, charset, "\n");
+			assertSaved(path, text, charset, "\n");
+		}
+		// Line separators expanded right before a split pair
+		text = text.replace("é😀", "\n😀");
+		save(path, text, StandardCharsets.UTF_8, "\r\n");
+		assertSaved(path, text, StandardCharsets.UTF_8, "\r\n");
+	}
+
+	@Test
+	void anchorsTheSavedFileEveryMegabyte() throws Exception {
+		Path path = directory.resolve("large.txt");
+		String text = text(new Random(28), 3 * ANCHOR_INTERVAL + 1000);
+		DocumentSaver saver = save(path, text, StandardCharsets.UTF_8, "\r\n");
+		assertSaved(path, text, StandardCharsets.UTF_8, "\r\n");
+
+		DiskImage image = saver.getDiskImage();
+		assertEquals(3, image.floorAnchor(Integer.MAX_VALUE));
+		for (int i = 0; i <= 3; i++) {
+			int at = i * ANCHOR_INTERVAL;
+			assertEquals(at, image.getAnchorChar(i));
+			// The byte offset of the anchor is the length of the text before it as written
+			long expected = text.substring(0, at).replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8).length;
+			assertEquals(expected, image.getAnchorByte(i), "anchor " + i);
+		}
+	}
+
+	@Test
+	void leavesTheFileUnchangedWhenCancelled() throws Exception {
+		Path path = directory.resolve("kept.txt");
+		Files.writeString(path, "the old text\n");
+		String text = text(new Random(29), 20 * ANCHOR_INTERVAL);
+		DocumentSaver saver = new DocumentSaver(path, document(text).snapshot(), StandardCharsets.UTF_8, "\n", Durability.NO_SYNC, Runnable::run);
+		CountDownLatch done = new CountDownLatch(1);
+		// Cancelled as soon as the first batch of buffers has been written to the temporary file
+		saver.start(() -> {
+			saver.cancel();
+			if (saver.isDone()) {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(1, TimeUnit.MINUTES));
+		assertTrue(saver.getBytesWritten() < text.length());
+		assertNull(saver.getError());
+		assertNull(saver.getDiskImage());
+		assertEquals("the old text\n", Files.readString(path));
+		assertEquals(List.of(path), files());
+	}
+
+	/**
+	 * Checks the bytes of a saved file and loads it back.
+	 *
+	 * @return the loader that read the file back
+	 */
+	private static DocumentLoader assertSaved(Path path, String text, Charset charset, String lineSeparator) throws Exception {
+		assertArrayEquals(text.replace("\n", lineSeparator).getBytes(charset), Files.readAllBytes(path));
+		DocumentLoader loader = DocumentLoaderTest.load(path, charset);
+		assertEquals(text, DocumentLoaderTest.read(loader.getDocument()));
+		return loader;
+	}
+
+	private static DocumentSaver save(Path path, String text, Charset charset, String lineSeparator) throws Exception {
+		DocumentSaver saver = new DocumentSaver(path, document(text).snapshot(), charset, lineSeparator, Durability.NO_SYNC, Runnable::run);
+		CountDownLatch done = new CountDownLatch(1);
+		saver.start(() -> {
+			if (saver.isDone()) {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(1, TimeUnit.MINUTES));
+		assertNull(saver.getError());
+		return saver;
+	}
+
+	private static EditorDocument document(String text) throws BadLocationException {
+		EditorDocument document = new EditorDocument();
+		document.insertString(0, text, null);
+		return document;
+	}
+
+	private List<Path> files() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.toList();
+		}
+	}
+
+	private static String text(Random random, int length) {
+		StringBuilder text = new StringBuilder(length + 100);
+		while (text.length() < length) {
+			text.append("line ").append(random.nextInt()).append(random.nextInt(8) == 0 ? " é ü" : "").append('\n');
+		}
+		text.setLength(length);
+		return text.toString();
+	}
+}
@@ -0,0 +1,189 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.EditorDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.swing.text.BadLocationException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Edits recorded by an {@link EditJournal} and recovered into a freshly loaded document, from
+ * whole, compacted, cut off and damaged journals.
+ */
+class EditJournalTest {
+	private static final String ORIGINAL = "first line\nsecond line\nthird line\n".repeat(200);
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void recoversRecordedEdits() throws Exception {
+		Path file = write(ORIGINAL);
+		EditorDocument document = load(file);
+		EditJournal journal = new EditJournal(document, image(file, document), Duration.ZERO);
+		journal.start();
+		List<String> states = edit(document, new Random(13), 300);
+		journal.close();
+		journal.awaitClosed();
+		assertTrue(Files.exists(journal.getPath()));
+
+		EditorDocument recovered = load(file);
+		EditJournal reopened = EditJournal.recover(recovered, image(file, recovered));
+		reopened.discard();
+		reopened.awaitClosed();
+		assertEquals(300, reopened.getRecoveredEdits());
+		assertEquals(states.getLast(), DocumentLoaderTest.read(recovered));
+		assertFalse(Files.exists(journal.getPath()));
+	}
+
+	@Test
+	void recoversACompactedJournal() throws Exception {
+		Path file = write(ORIGINAL);
+		EditorDocument document = load(file);
+		DiskImage image = image(file, document);
+		EditJournal journal = new EditJournal(document, image, Duration.ZERO);
+		journal.start();
+		List<String> states = edit(document, new Random(14), 500);
+		// Replaces the journal by the differences between the file and the document
+		journal.rebase(image);
+		journal.close();
+		journal.awaitClosed();
+
+		EditorDocument recovered = load(file);
+		EditJournal reopened = EditJournal.recover(recovered, image(file, recovered));
+		reopened.close();
+		reopened.awaitClosed();
+		assertTrue(reopened.getRecoveredEdits() < 500);
+		assertEquals(states.getLast(), DocumentLoaderTest.read(recovered));
+	}
+
+	@Test
+	void removesTheJournalOnceTheDocumentMatchesTheFile() throws Exception {
+		Path file = write(ORIGINAL);
+		EditorDocument document = load(file);
+		EditJournal journal = new EditJournal(document, image(file, document), Duration.ZERO);
+		journal.start();
+		edit(document, new Random(15), 50);
+		journal.flush();
+		assertTrue(Files.exists(journal.getPath()));
+
+		journal = new EditJournal(document, image(file, document), Duration.ZERO);
+		journal.start();
+		Files.writeString(file, DocumentLoaderTest.read(document));
+		journal.rebase(image(file, document));
+		journal.close();
+		journal.awaitClosed();
+		assertFalse(Files.exists(journal.getPath()));
+	}
+
+	@Test
+	void stopsAtACutOffOrDamagedRecord() throws Exception {
+		Path file = write(ORIGINAL);
+		EditorDocument document = load(file);
+		EditJournal journal = new EditJournal(document, image(file, document), Duration.ZERO);
+		journal.start();
+		List<String> states = edit(document, new Random(16), 20);
+		journal.close();
+		journal.awaitClosed();
+		byte[] bytes = Files.readAllBytes(journal.getPath());
+
+		// A write cut short by a crash
+		Files.write(journal.getPath(), Arrays.copyOf(bytes, bytes.length - 3));
+		assertRecovers(file, 19, states.get(18));
+
+		// A damaged checksum of the last record
+		byte[] damaged = bytes.clone();
+		damaged[damaged.length - 1] ^= 1;
+		Files.write(journal.getPath(), damaged);
+		assertRecovers(file, 19, states.get(18));
+
+		// A damaged header drops the whole journal
+		damaged = bytes.clone();
+		damaged[10] ^= 1;
+		Files.write(journal.getPath(), damaged);
+		assertRecovers(file, -1, ORIGINAL);
+	}
+
+	@Test
+	void setsAsideTheJournalOfAnotherVersion() throws Exception {
+		Path file = write(ORIGINAL);
+		EditorDocument document = load(file);
+		EditJournal journal = new EditJournal(document, image(file, document), Duration.ZERO);
+		journal.start();
+		edit(document, new Random(17), 10);
+		journal.close();
+		journal.awaitClosed();
+
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 60_000));
+		assertRecovers(file, -1, ORIGINAL);
+		assertTrue(Files.exists(journal.getPath().resolveSibling(journal.getPath().getFileName() + ".stale")));
+	}
+
+	private void assertRecovers(Path file, int edits, String text) throws IOException, BadLocationException, InterruptedException {
+		Path path = EditJournal.journalPath(file);
+		byte[] before = Files.exists(path) ? Files.readAllBytes(path) : null;
+		EditorDocument recovered = load(file);
+		EditJournal reopened = EditJournal.recover(recovered, image(file, recovered));
+		reopened.close();
+		reopened.awaitClosed();
+		assertEquals(edits, reopened.getRecoveredEdits());
+		assertEquals(text, DocumentLoaderTest.read(recovered));
+		if (before != null && edits >= 0) {
+			// Put the journal back for the next case
+			Files.write(path, before);
+		}
+	}
+
+	/**
+	 * Applies random edits, some with text outside the BMP and across lines.
+	 *
+	 * @return the text after every edit
+	 */
+	private static List<String> edit(EditorDocument document, Random random, int count) throws BadLocationException {
+		List<String> states = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int length = document.getLength();
+			if (random.nextInt(3) > 0 || length == 0) {
+				String text = random.nextInt(10) == 0 ? "😀 new line\n" : "typed" + i;
+				document.insertString(random.nextInt(length + 1), text, null);
+			} else {
+				int where = random.nextInt(length);
+				document.remove(where, Math.min(length - where, 1 + random.nextInt(40)));
+			}
+			states.add(DocumentLoaderTest.read(document));
+		}
+		return states;
+	}
+
+	private Path write(String text) throws IOException {
+		Path file = directory.resolve("notes.txt");
+		Files.writeString(file, text);
+		return file;
+	}
+
+	private static EditorDocument load(Path file) throws IOException, BadLocationException {
+		EditorDocument document = new EditorDocument();
+		document.insertString(0, Files.readString(file), null);
+		return document;
+	}
+
+	private static DiskImage image(Path file, EditorDocument document) throws IOException {
+		return new DiskImage(file, StandardCharsets.UTF_8, "\n", document.snapshot(), new int[]{0}, new long[]{0}, 1,
+			Files.size(file), Files.getLastModifiedTime(file));
+	}
+}
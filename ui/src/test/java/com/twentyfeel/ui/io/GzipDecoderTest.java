@@ -0,0 +1,185 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decompression with {@link GzipDecoder} checked against the text given to the JDK compressor,
+ * from the start, from every recorded seek point and in parallel through a {@link GzipIndex},
+ * and damaged files that must fail.
+ */
+class GzipDecoderTest {
+	private static final long SPAN = 1 << 16;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void decompressesDynamicStoredAndFixedBlocks() throws IOException {
+		byte[] text = logText(new Random(7), 2_000_000);
+		assertDecompresses(gzip(text, Deflater.DEFAULT_COMPRESSION), text);
+		assertDecompresses(gzip(text, Deflater.NO_COMPRESSION), text);
+		byte[] small = "short enough for fixed codes\n".getBytes(StandardCharsets.US_ASCII);
+		assertDecompresses(gzip(small, Deflater.BEST_SPEED), small);
+		assertDecompresses(gzip(new byte[0], Deflater.DEFAULT_COMPRESSION), new byte[0]);
+	}
+
+	@Test
+	void decompressesConcatenatedMembers() throws IOException {
+		Random random = new Random(8);
+		byte[] first = logText(random, 300_000);
+		byte[] second = logText(random, 500_000);
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		file.writeBytes(gzip(first, Deflater.DEFAULT_COMPRESSION));
+		file.writeBytes(gzip(new byte[0], Deflater.DEFAULT_COMPRESSION));
+		file.writeBytes(gzip(second, Deflater.NO_COMPRESSION));
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		text.writeBytes(first);
+		text.writeBytes(second);
+		assertDecompresses(file.toByteArray(), text.toByteArray());
+	}
+
+	@Test
+	void readsTheHeaderAndTrailer() throws IOException {
+		byte[] text = logText(new Random(9), 10_000);
+		Path path = write(gzip(text, Deflater.DEFAULT_COMPRESSION));
+		Path plain = directory.resolve("plain.txt");
+		Files.write(plain, text);
+		try (FileChannel channel = FileChannel.open(path); FileChannel other = FileChannel.open(plain)) {
+			assertTrue(GzipIndex.isGzip(channel));
+			assertFalse(GzipIndex.isGzip(other));
+			assertEquals(text.length, GzipIndex.claimedLength(channel));
+		}
+	}
+
+	@Test
+	void rejectsDamagedFiles() throws IOException {
+		byte[] text = logText(new Random(10), 200_000);
+		byte[] gzip = gzip(text, Deflater.DEFAULT_COMPRESSION);
+
+		byte[] badChecksum = gzip.clone();
+		badChecksum[gzip.length - 8] ^= 1;
+		assertThrows(ZipException.class, () -> decompress(badChecksum));
+
+		byte[] badLength = gzip.clone();
+		badLength[gzip.length - 4] ^= 1;
+		assertThrows(ZipException.class, () -> decompress(badLength));
+
+		assertThrows(EOFException.class, () -> decompress(Arrays.copyOf(gzip, gzip.length / 2)));
+		assertThrows(EOFException.class, () -> decompress(new byte[0]));
+
+		byte[] notGzip = gzip.clone();
+		notGzip[1] = 0;
+		assertThrows(ZipException.class, () -> decompress(notGzip));
+
+		byte[] badMethod = gzip.clone();
+		badMethod[2] = 7;
+		assertThrows(ZipException.class, () -> decompress(badMethod));
+
+		// Damage inside the deflate stream is caught by the stream itself or by the checksum
+		Random random = new Random(11);
+		for (int i = 0; i < 20; i++) {
+			byte[] damaged = gzip.clone();
+			damaged[20 + random.nextInt(gzip.length - 40)] ^= (byte) (1 << random.nextInt(8));
+			assertThrows(IOException.class, () -> decompress(damaged));
+		}
+	}
+
+	/**
+	 * Decompresses a file from the start while recording seek points, then again from every seek
+	 * point, then all of it through an index.
+	 */
+	private void assertDecompresses(byte[] gzip, byte[] text) throws IOException {
+		Path path = write(gzip);
+		List<GzipIndex.SeekPoint> points;
+		try (FileChannel channel = FileChannel.open(path)) {
+			GzipDecoder decoder = new GzipDecoder(channel);
+			decoder.recordSeekPoints(SPAN);
+			assertArrayEquals(text, readAll(decoder));
+			assertEquals(text.length, decoder.getOffset());
+			points = decoder.getSeekPoints();
+			if (text.length > 4 * SPAN) {
+				assertTrue(points.size() > 2, "seek points " + points.size());
+			}
+
+			for (GzipIndex.SeekPoint point : points) {
+				byte[] rest = readAll(new GzipDecoder(channel, point));
+				assertArrayEquals(Arrays.copyOfRange(text, (int) point.offset(), text.length), rest, "from " + point.offset());
+			}
+
+			GzipIndex index = new GzipIndex(path, Files.size(path), Files.getLastModifiedTime(path), points, text.length);
+			assertArrayEquals(text, index.decompress(channel, ForkJoinPool.commonPool(), decompressed -> {
+			}));
+		}
+	}
+
+	private byte[] decompress(byte[] gzip) throws IOException {
+		try (FileChannel channel = FileChannel.open(write(gzip))) {
+			return readAll(new GzipDecoder(channel));
+		}
+	}
+
+	private static byte[] readAll(GzipDecoder decoder) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[12_345];
+		int read;
+		while ((read = decoder.read(buffer, 0, buffer.length)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private Path write(byte[] bytes) throws IOException {
+		Path path = Files.createTempFile(directory, "test", ".gz");
+		Files.write(path, bytes);
+		return path;
+	}
+
+	private static byte[] gzip(byte[] text, int level) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+			{
+				def.setLevel(level);
+			}
+		}) {
+			out.write(text);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Log lines with enough repetition for long matches and enough noise for dynamic codes.
+	 */
+	static byte[] logText(Random random, int length) {
+		String[] messages = {"request completed", "cache miss for key", "connection reset by peer", "retrying after backoff"};
+		StringBuilder text = new StringBuilder(length + 100);
+		while (text.length() < length) {
+			text.append("2024-01-01T12:").append(random.nextInt(60)).append(' ')
+				.append(messages[random.nextInt(messages.length)]).append(' ').append(random.nextInt(1_000_000)).append('\n');
+		}
+		text.setLength(length);
+		return text.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,182 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.EditorDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * In-place saves checked against the encoded text, and the write-ahead record that rolls back
+ * a save that was interrupted.
+ */
+class InPlaceSaveTest {
+	private static final int MAGIC = 0x5A495A57;
+	private static final int VERSION = 1;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void overwritesChangedRangesOnly() throws Exception {
+		Path file = write(text(new Random(18), "\n"));
+		DocumentLoader loader = DocumentLoaderTest.load(file, StandardCharsets.UTF_8);
+		EditorDocument document = (EditorDocument) loader.getDocument();
+		DiskImage image = loader.getDiskImage();
+
+		// Same encoded length: only the changed bytes are written
+		document.remove(1000, 5);
+		document.insertString(1000, "ABCDE", null);
+		int accent = DocumentLoaderTest.read(document).indexOf('é', 700_000);
+		document.remove(accent, 1);
+		document.insertString(accent, "ü", null);
+		InPlaceSave.Result result = InPlaceSave.save(image, document.snapshot(), "\n");
+		assertNotNull(result);
+		assertEquals(7, result.bytesWritten());
+		assertSaved(file, document, "\n");
+
+		// Another length from near the end: only the tail is rewritten
+		int near = document.getLength() - 5000;
+		document.insertString(near, "inserted text\n", null);
+		result = InPlaceSave.save(result.image(), document.snapshot(), "\n");
+		assertNotNull(result);
+		assertTrue(result.bytesWritten() < 6000, "wrote " + result.bytesWritten());
+		assertSaved(file, document, "\n");
+
+		// Text cut off at the end
+		document.remove(near, document.getLength() - near);
+		result = InPlaceSave.save(result.image(), document.snapshot(), "\n");
+		assertNotNull(result);
+		assertEquals(0, result.bytesWritten());
+		assertSaved(file, document, "\n");
+		assertFalse(Files.exists(walPath(file)));
+	}
+
+	@Test
+	void keepsWindowsLineSeparators() throws Exception {
+		Path file = write(text(new Random(19), "\r\n"));
+		DocumentLoader loader = DocumentLoaderTest.load(file, StandardCharsets.UTF_8);
+		EditorDocument document = (EditorDocument) loader.getDocument();
+		assertEquals("\r\n", loader.getDiskImage().getLineSeparator());
+
+		document.insertString(50_000, "one more line\n", null);
+		assertNotNull(InPlaceSave.save(loader.getDiskImage(), document.snapshot(), "\r\n"));
+		assertSaved(file, document, "\r\n");
+	}
+
+	@Test
+	void leavesFilesItCannotSaveUntouched() throws Exception {
+		Path file = write(text(new Random(20), "\n"));
+		DocumentLoader loader = DocumentLoaderTest.load(file, StandardCharsets.UTF_8);
+		EditorDocument document = (EditorDocument) loader.getDocument();
+		document.insertString(10, "x", null);
+		byte[] before = Files.readAllBytes(file);
+
+		assertNull(InPlaceSave.save(loader.getDiskImage(), document.snapshot(), "\r\n"));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60_000));
+		assertNull(InPlaceSave.save(loader.getDiskImage(), document.snapshot(), "\n"));
+		assertArrayEquals(before, Files.readAllBytes(file));
+	}
+
+	@Test
+	void rollsBackAnInterruptedSave() throws IOException {
+		byte[] old = text(new Random(21), "\n").getBytes(StandardCharsets.UTF_8);
+		Path file = write(new String(old, StandardCharsets.UTF_8));
+		// The save got as far as patching two ranges and rewriting the tail longer
+		byte[] patched = Arrays.copyOf(old, old.length + 100);
+		Arrays.fill(patched, 10, 20, (byte) '#');
+		Arrays.fill(patched, old.length - 50, patched.length, (byte) '#');
+		Files.write(file, patched);
+		Files.write(walPath(file), record(old.length,
+			10, Arrays.copyOfRange(old, 10, 20),
+			old.length - 50, Arrays.copyOfRange(old, old.length - 50, old.length)));
+
+		assertTrue(InPlaceSave.recover(file));
+		assertArrayEquals(old, Files.readAllBytes(file));
+		assertFalse(Files.exists(walPath(file)));
+		assertFalse(InPlaceSave.recover(file));
+	}
+
+	@Test
+	void dropsIncompleteRecords() throws IOException {
+		byte[] old = "some text\n".getBytes(StandardCharsets.UTF_8);
+		Path file = write("new! text\n");
+		byte[] record = record(old.length, 0, Arrays.copyOf(old, 4));
+
+		// Cut off while it was written, before the file was touched
+		Files.write(walPath(file), Arrays.copyOf(record, record.length - 1));
+		assertFalse(InPlaceSave.recover(file));
+		assertEquals("new! text\n", Files.readString(file));
+		assertFalse(Files.exists(walPath(file)));
+
+		byte[] damaged = record.clone();
+		damaged[20] ^= 1;
+		Files.write(walPath(file), damaged);
+		assertFalse(InPlaceSave.recover(file));
+		assertEquals("new! text\n", Files.readString(file));
+
+		// The file itself is gone
+		Files.write(walPath(file), record);
+		Files.delete(file);
+		assertFalse(InPlaceSave.recover(file));
+		assertFalse(Files.exists(walPath(file)));
+	}
+
+	private static void assertSaved(Path file, EditorDocument document, String lineSeparator) throws Exception {
+		String text = DocumentLoaderTest.read(document).replace("\n", lineSeparator);
+		assertEquals(text, Files.readString(file));
+	}
+
+	/**
+	 * Encodes a write-ahead record: the old size and the old bytes at some offsets, followed by a
+	 * checksum.
+	 *
+	 * @param ranges pairs of an offset and the bytes that were there
+	 */
+	private static byte[] record(long oldSize, Object... ranges) {
+		ByteBuffer record = ByteBuffer.allocate(1 << 16);
+		record.putInt(MAGIC).putInt(VERSION).putLong(oldSize).putInt(ranges.length / 2);
+		for (int i = 0; i < ranges.length; i += 2) {
+			byte[] bytes = (byte[]) ranges[i + 1];
+			record.putLong(((Number) ranges[i]).longValue()).putInt(bytes.length).put(bytes);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putLong(crc.getValue());
+		return Arrays.copyOf(record.array(), record.position());
+	}
+
+	private static Path walPath(Path file) {
+		return file.toAbsolutePath().resolveSibling("." + file.getFileName() + ".zizi-wal");
+	}
+
+	private Path write(String text) throws IOException {
+		Path file = directory.resolve("data.txt");
+		Files.writeString(file, text);
+		return file;
+	}
+
+	private static String text(Random random, String lineSeparator) {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 1_000_000) {
+			text.append("line ").append(random.nextInt()).append(random.nextInt(8) == 0 ? " é ü" : "").append(lineSeparator);
+		}
+		return text.toString();
+	}
+}
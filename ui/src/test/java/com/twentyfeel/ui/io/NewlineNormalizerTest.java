@@ -0,0 +1,86 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Line separators normalized by a {@link NewlineNormalizer}, whole and cut into chunks at every
+ * place, including right between {@code \r} and {@code \n} and with empty chunks in between.
+ */
+class NewlineNormalizerTest {
+	@Test
+	void normalizesAllSeparators() {
+		assertNormalized("a\nb\nc\n", "\n", "a\nb\nc\n");
+		assertNormalized("a\nb\nc\n", "\r\n", "a\r\nb\r\nc\r\n");
+		assertNormalized("a\nb\nc\n", "\r", "a\rb\rc\r");
+		assertNormalized("a\n\nb", "\r\n", "a\r\n\rb");
+		assertNormalized("a\n\nb\n", "\r", "a\r\r\nb\n");
+		assertNormalized("no separator", null, "no separator");
+		assertNormalized("", null, "");
+	}
+
+	@Test
+	void holdsBackACarriageReturnAcrossEmptyChunks() {
+		NewlineNormalizer normalizer = new NewlineNormalizer();
+		assertEquals("a", normalizer.normalize(CharBuffer.wrap("a\r"), false));
+		assertNull(normalizer.normalize(CharBuffer.wrap(""), false));
+		assertNull(normalizer.normalize(CharBuffer.wrap(""), false));
+		assertEquals("\nb", normalizer.normalize(CharBuffer.wrap("\nb"), true));
+		assertEquals("\r\n", normalizer.getLineSeparator());
+
+		normalizer = new NewlineNormalizer();
+		assertEquals("a", normalizer.normalize(CharBuffer.wrap("a\r"), false));
+		assertNull(normalizer.normalize(CharBuffer.wrap(""), false));
+		assertEquals("\n", normalizer.normalize(CharBuffer.wrap(""), true));
+		assertEquals("\r", normalizer.getLineSeparator());
+	}
+
+	@Test
+	void givesTheSameTextForEveryChunking() {
+		Random random = new Random(22);
+		String[] pieces = {"x", "yz", "\n", "\r", "\r\n", "\r\r", "\n\r"};
+		for (int round = 0; round < 2_000; round++) {
+			StringBuilder text = new StringBuilder();
+			for (int i = random.nextInt(20); i >= 0; i--) {
+				text.append(pieces[random.nextInt(pieces.length)]);
+			}
+			String input = text.toString();
+			String expected = input.replace("\r\n", "\n").replace('\r', '\n');
+			NewlineNormalizer whole = new NewlineNormalizer();
+			String normalized = whole.normalize(CharBuffer.wrap(input), true);
+			assertEquals(expected, normalized == null ? "" : normalized);
+
+			NewlineNormalizer chunked = new NewlineNormalizer();
+			StringBuilder output = new StringBuilder();
+			int at = 0;
+			while (at < input.length()) {
+				// Chunks of up to three characters, some of them empty
+				int end = Math.min(input.length(), at + random.nextInt(4));
+				append(output, chunked.normalize(CharBuffer.wrap(input, at, end), false));
+				at = end;
+			}
+			append(output, chunked.normalize(CharBuffer.wrap(""), true));
+			assertEquals(expected, output.toString(), "chunked " + input.replace("\r", "\\r").replace("\n", "\\n"));
+			assertEquals(whole.getLineSeparator(), chunked.getLineSeparator());
+		}
+	}
+
+	private static void assertNormalized(String expected, String separator, String input) {
+		NewlineNormalizer normalizer = new NewlineNormalizer();
+		String normalized = normalizer.normalize(CharBuffer.wrap(input), true);
+		assertEquals(expected, normalized == null ? "" : normalized);
+		assertEquals(separator, normalizer.getLineSeparator());
+	}
+
+	private static void append(StringBuilder output, String chunk) {
+		if (chunk != null) {
+			output.append(chunk);
+		}
+	}
+}
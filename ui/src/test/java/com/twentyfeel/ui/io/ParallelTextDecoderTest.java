@@ -0,0 +1,196 @@
+// Copyright (C) 2024 Twentyfeel and contributors. Use of this source code is governed by the Apache License, Version 2.0, that can be found in the LICENSE file.
+package com.twentyfeel.ui.io;
+
+import com.twentyfeel.ui.document.EditorDocument;
+import com.twentyfeel.ui.io.ParallelTextDecoder.DecodedText;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Text decoded by {@link ParallelTextDecoder} in small chunks, checked against the same bytes
+ * decoded in one go, with chunk boundaries falling inside characters, between {@code \r} and
+ * {@code \n} and inside lines, and large files loaded in parallel by a {@link DocumentLoader}.
+ */
+class ParallelTextDecoderTest {
+	private static ForkJoinPool pool;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void startPool() {
+		pool = new ForkJoinPool(4);
+	}
+
+	@AfterAll
+	static void stopPool() {
+		pool.shutdown();
+	}
+
+	@Test
+	void matchesASequentialDecodeForEveryChunkSize() throws IOException {
+		Random random = new Random(24);
+		for (int round = 0; round < 200; round++) {
+			byte[] bytes = text(random, random.nextInt(400)).getBytes(StandardCharsets.UTF_8);
+			for (int chunkSize : new int[]{1, 2, 3, 5, 16, 100}) {
+				assertDecodes(bytes, StandardCharsets.UTF_8, chunkSize);
+			}
+		}
+	}
+
+	@Test
+	void matchesASequentialDecodeInSingleByteCharsets() throws IOException {
+		Random random = new Random(25);
+		for (int round = 0; round < 50; round++) {
+			byte[] bytes = new byte[random.nextInt(2_000)];
+			for (int i = 0; i < bytes.length; i++) {
+				// Mostly ASCII for the fast path, with line breaks and bytes above it
+				int kind = random.nextInt(20);
+				bytes[i] = (byte) (kind == 0 ? '\r' : kind == 1 ? '\n' : kind == 2 ? 0x80 + random.nextInt(0x80) : 'a' + random.nextInt(26));
+			}
+			assertDecodes(bytes, StandardCharsets.ISO_8859_1, 64);
+			bytes = new String(bytes, StandardCharsets.ISO_8859_1).replaceAll("[^\\x00-\\x7F]", "x").getBytes(StandardCharsets.US_ASCII);
+			assertDecodes(bytes, StandardCharsets.US_ASCII, 64);
+		}
+	}
+
+	@Test
+	void keepsLinesWholeAcrossChunks() throws IOException {
+		// No line break for many chunks, then one right at a boundary
+		String text = "x".repeat(1000) + "\r\n" + "ü".repeat(300) + "\r" + "\n".repeat(5) + "tail";
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		for (int chunkSize = 1; chunkSize < 40; chunkSize++) {
+			DecodedText decoded = assertDecodes(bytes, StandardCharsets.UTF_8, chunkSize);
+			assertEquals(7, decoded.lineCount());
+			assertEquals(1001, decoded.lineLengths()[0]);
+			assertEquals(301, decoded.lineLengths()[1]);
+			assertEquals(5, decoded.lineLengths()[6]);
+			assertEquals("\r\n", decoded.lineSeparator());
+		}
+	}
+
+	@Test
+	void loadsLargeFilesInParallel() throws Exception {
+		Random random = new Random(26);
+		StringBuilder builder = new StringBuilder(18_000_000);
+		while (builder.length() < 17_000_000) {
+			builder.append(text(random, 1_000));
+		}
+		byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+		assertTrue(bytes.length >= 1 << 24);
+		Path path = directory.resolve("large.txt");
+		Files.write(path, bytes);
+		String expected = sequential(bytes, StandardCharsets.UTF_8);
+
+		DocumentLoader loader = DocumentLoaderTest.load(path, StandardCharsets.UTF_8);
+		EditorDocument document = (EditorDocument) loader.getDocument();
+		assertEquals(expected, DocumentLoaderTest.read(document));
+		assertEquals(lineCount(expected), document.getDefaultRootElement().getElementCount());
+		assertEquals(bytes.length, loader.getBytesRead());
+		assertEquals(bytes.length, loader.getTextBytes());
+		assertEquals(bytes.length, loader.getDiskImage().getSize());
+	}
+
+	/**
+	 * Decodes the bytes in chunks and compares the text, the line lengths, the anchors and the
+	 * reported progress with a sequential decode.
+	 */
+	private static DecodedText assertDecodes(byte[] bytes, Charset charset, int chunkSize) throws IOException {
+		String expected = sequential(bytes, charset);
+		AtomicLong reported = new AtomicLong();
+		DecodedText decoded = ParallelTextDecoder.decode(ByteBuffer.wrap(bytes), charset, pool, done -> {
+			// Reported in increasing order, even from several workers
+			assertTrue(done >= reported.get(), done + " after " + reported.get());
+			reported.set(done);
+		}, chunkSize);
+		String message = charset + " in chunks of " + chunkSize;
+		char[] chars = new char[decoded.text().length()];
+		decoded.text().getChars(0, chars.length, chars, 0);
+		assertEquals(expected, new String(chars), message);
+		assertEquals(bytes.length, decoded.byteLength(), message);
+		assertEquals(bytes.length, reported.get(), message);
+
+		int[] lineLengths = lineLengths(expected);
+		assertEquals(lineLengths.length, decoded.lineCount(), message);
+		for (int i = 0; i < lineLengths.length; i++) {
+			assertEquals(lineLengths[i], decoded.lineLengths()[i], message + " line " + i);
+		}
+		assertEquals(lineSeparator(new String(bytes, charset)), decoded.lineSeparator(), message);
+
+		// Every chunk starts where the text decoded up to its first byte ends
+		int[] anchorChars = decoded.anchorChars();
+		long[] anchorBytes = decoded.anchorBytes();
+		assertEquals(anchorChars.length, anchorBytes.length);
+		assertEquals(0, anchorChars[0]);
+		assertEquals(0, anchorBytes[0]);
+		for (int i = 1; i < anchorChars.length; i++) {
+			byte[] chunk = Arrays.copyOfRange(bytes, (int) anchorBytes[i - 1], (int) anchorBytes[i]);
+			assertEquals(anchorChars[i - 1] + sequential(chunk, charset).length(), anchorChars[i], message + " anchor " + i);
+		}
+		return decoded;
+	}
+
+	private static String sequential(byte[] bytes, Charset charset) {
+		return new String(bytes, charset).replace("\r\n", "\n").replace('\r', '\n');
+	}
+
+	/**
+	 * Returns the lengths of the lines of normalized text including their newline, and the last
+	 * line with the implied trailing newline of a document.
+	 */
+	private static int[] lineLengths(String text) {
+		int[] lengths = new int[lineCount(text)];
+		int count = 0;
+		int start = 0;
+		for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+			lengths[count++] = i + 1 - start;
+			start = i + 1;
+		}
+		lengths[count] = text.length() - start + 1;
+		return lengths;
+	}
+
+	private static int lineCount(String text) {
+		return (int) text.chars().filter(c -> c == '\n').count() + 1;
+	}
+
+	private static String lineSeparator(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				return "\n";
+			}
+			if (text.charAt(i) == '\r') {
+				return i + 1 < text.length() && text.charAt(i + 1) == '\n' ? "\r\n" : "\r";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Random text of ASCII, two-, three- and four-byte characters and all kinds of line breaks.
+	 */
+	private static String text(Random random, int length) {
+		String[] pieces = {"a", "line ", "é", "€", "😀", "\n", "\r\n", "\r", "\r\r\n"};
+		StringBuilder text = new StringBuilder();
+		while (text.length() < length) {
+			text.append(pieces[random.nextInt(pieces.length)]);
+		}
+		return text.toString();
+	}
+}